@@ -17,8 +17,10 @@ package root;
 
 import org.apache.hadoop.util.ProgramDriver;
 
+import root.benchmark.HapScalingBenchmarkJob;
 import root.benchmark.ReutersBenchmarkJob;
 import root.hap.HierarchicalAffinityPropagationJob;
+import root.hap.local.LocalHierarchicalAffinityPropagationJob;
 import root.input.images.ImagesJob;
 import root.input.lyrl2004.LyrlJob;
 import root.input.points.PointsJob;
@@ -76,6 +78,10 @@ public class Driver {
 			
 			pgd.addClass("hap", HierarchicalAffinityPropagationJob.class,
 					"Run Hierarchical Affinity Propagation on an existing Similarity Matrix");
+			pgd.addClass("hap-local", LocalHierarchicalAffinityPropagationJob.class,
+					"Run Hierarchical Affinity Propagation in memory on a single node");
+			pgd.addClass("hap-bench", HapScalingBenchmarkJob.class,
+					"Measure Hierarchical Affinity Propagation scaling on synthetic data");
 //			pgd.addClass("hive", OutputJob.class,
 //					"Export data to the visualizations database");
 			pgd.addClass("lyrl", LyrlJob.class,
@@ -0,0 +1,337 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.util.ToolRunner;
+
+import root.hap.HierarchicalAffinityPropagationJob;
+import root.hap.util.Compression;
+import root.hap.util.GenerateDataset;
+import root.hap.util.Instrumentation;
+import root.hap.util.Timeline;
+import root.input.InputJob;
+
+
+/**
+ * <p>
+ * This is a driver for measuring how the Hierarchical Affinity Propagation
+ * job scales, without a real corpus or a cluster.
+ * </p>
+ * 
+ * <p>
+ * For every combination of the requested dataset sizes, numbers of levels 
+ * and dampening factors, a synthetic similarity matrix is generated by 
+ * {@link GenerateDataset} and {@link HierarchicalAffinityPropagationJob} is
+ * run on it with the local job runner.
+ * </p>
+ * 
+ * <p>
+ * One CSV row is written per job of every run (similarity store, each
+ * responsibility and availability update, cluster extraction), followed by
+ * a total for the run: wall time, map output bytes before and after 
+ * compression, spilled records, reduce tasks and peak heap. The peak heap 
+ * of a job is the mean over its reduce tasks; that of the total is the 
+ * peak of the whole JVM during the run. The CSV is rewritten after every 
+ * run.
+ * </p>
+ * 
+ * <p>
+ * To run this program from the command line:<br/>
+ * <code>$ bin/hadoop root.Driver hap-bench -w /tmp/hap-bench 
+ * -n 500,1000,2000 -l 1,2 -lambda 0.5,0.9</code>
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see Timeline
+ * 
+ */
+public class HapScalingBenchmarkJob extends InputJob {
+
+	private static final String CSV_HEADER = "N,levels,lambda,phase,"
+			+ "iteration,millis,mapOutputBytes,shuffleBytes,spilledRecords,"
+			+ "reduceTasks,peakHeapBytes";
+
+	// -------------------------------------------------------------------
+	// The following configuration variables will have default values.
+	private static String sizes;
+	private static String levels;
+	private static String lambdas;
+	private static String numIterations;
+	private static String shuffleMode;
+	private static String similarityStore;
+	private static String numClusters;
+	private static String sparsity;
+	private static String seed;
+	private static String reportFile;
+
+	// -------------------------------------------------------------------
+	// The following configuration variables must be set by the user.
+	private static String workingDirectory;
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void constructParameterList() {
+
+		addOption("workDir", "w", "Working Directory", true);
+		addOption("sizes", "n", "Comma Separated Dataset Cardinalities", 
+				"500,1000,2000");
+		addOption("numLevels", "l", "Comma Separated Numbers of Levels", "1");
+		addOption("lambda", "lambda", "Comma Separated Dampening Factors", 
+				"0.5");
+		addOption("numIter", "iter", "Number of Iterations", "5");
+		addOption("shuffle", "shuffle", "Shuffle Mode (element, slice)", 
+				"element");
+		addOption("similarityStore", "ss", 
+				"Keep S out of the iteration shuffle (true, false)", "false");
+		addOption("numClusters", "k", "Number of Planted Clusters", "10");
+		addOption("sparsity", "sparsity", 
+				"Fraction of Similarities to Drop (0: dense)", "0");
+		addOption("seed", "seed", "Random Seed", "42");
+		addOption("out", "o", "CSV Report File (default: workDir/hap-bench.csv)", 
+				false);
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void initializeConfigurationParameters() {
+
+		workingDirectory = getOption("workDir");
+		workingDirectory = cleanDirectoryName(workingDirectory);
+		sizes = getOption("sizes");
+		levels = getOption("numLevels");
+		lambdas = getOption("lambda");
+		numIterations = getOption("numIter");
+		shuffleMode = getOption("shuffle");
+		similarityStore = getOption("similarityStore");
+		numClusters = getOption("numClusters");
+		sparsity = getOption("sparsity");
+		seed = getOption("seed");
+		reportFile = getOption("out");
+		if (reportFile == null) {
+			reportFile = workingDirectory + "/hap-bench.csv";
+		}
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void printConfiguredParameters() {
+		System.out.println("[INFO]: HAP Scaling Benchmark Job");
+		System.out.println("\t-w\t\t" + workingDirectory);
+		System.out.println("\t-n\t\t" + sizes);
+		System.out.println("\t-l\t\t" + levels);
+		System.out.println("\t-lambda\t" + lambdas);
+		System.out.println("\t-iter\t\t" + numIterations);
+		System.out.println("\t-shuffle\t" + shuffleMode);
+		System.out.println("\t-ss\t\t" + similarityStore);
+		System.out.println("\t-k\t\t" + numClusters);
+		System.out.println("\t-sparsity\t" + sparsity);
+		System.out.println("\t-seed\t\t" + seed);
+		System.out.println("\t-o\t\t" + reportFile);
+		System.out.println();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		constructParameterList();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initializeConfigurationParameters();
+
+		printJobHeader();
+
+		// Every job of the sweep runs in this JVM.
+		Configuration conf = getConf();
+		conf.set("mapred.job.tracker", "local");
+
+		URI workingURI = new URI(conf.get("fs.default.name"));
+		FileSystem workingFS = FileSystem.get(workingURI, conf);
+
+		Path workingDirectoryPath = new Path(workingDirectory);
+		if (workingFS.exists(workingDirectoryPath)) {
+			throw new Exception("Working Directory already exists.");
+		}
+		if (!workingFS.mkdirs(workingDirectoryPath)) {
+			throw new Exception("Failed to create Working Directory.");
+		}
+
+		int iterations = Integer.valueOf(numIterations);
+		StringBuilder report = new StringBuilder(CSV_HEADER).append("\n");
+
+		for (int N : parseInts(sizes)) {
+			for (int L : parseInts(levels)) {
+
+				String dataDirectory = workingDirectory + "/data-" + N + "-" + L;
+				String[] generateArgs = { 
+						"-o",        dataDirectory,
+						"-n",        N + "",
+						"-l",        L + "",
+						"-k",        numClusters,
+						"-sparsity", sparsity,
+						"-seed",     seed
+				};
+				ToolRunner.run(new Configuration(conf), new GenerateDataset(), 
+						generateArgs);
+
+				for (String lambda : lambdas.split(",")) {
+					lambda = lambda.trim();
+					String runDirectory = workingDirectory + "/run-" + N 
+							+ "-" + L + "-" + lambda;
+
+					String[] hapArgs = { 
+							"-i",       dataDirectory,
+							"-w",       runDirectory + "/work",
+							"-o",       runDirectory + "/clusters",
+							"-n",       N + "",
+							"-l",       L + "",
+							"-iter",    Math.max(iterations, L) + "",
+							"-lambda",  lambda,
+							"-shuffle", shuffleMode,
+							"-ss",      similarityStore
+					};
+
+					resetPeakHeap();
+					long start = System.currentTimeMillis();
+					HierarchicalAffinityPropagationJob hap = 
+							new HierarchicalAffinityPropagationJob();
+					ToolRunner.run(new Configuration(conf), hap, hapArgs);
+					long millis = System.currentTimeMillis() - start;
+
+					String run = N + "," + L + "," + lambda + ",";
+					for (Timeline.Phase phase : hap.getTimeline().getPhases()) {
+						report.append(run).append(row(phase.getName(), 
+								phase.getIteration(), phase.getMillis(), 
+								phase.getCounters())).append("\n");
+					}
+					report.append(run).append("total,,").append(millis)
+							.append(",,,,,").append(getPeakHeap()).append("\n");
+
+					writeReport(workingFS, new Path(reportFile), report);
+					workingFS.delete(new Path(runDirectory + "/work"), true);
+				}
+
+				workingFS.delete(new Path(dataDirectory), true);
+			}
+		}
+
+		System.out.println();
+		System.out.println("[INFO]: Report: " + reportFile);
+
+		return 0;
+
+	}
+
+
+	/*
+	 * One CSV row, without the run columns, for a single job.
+	 */
+	private static String row(String name, int iteration, long millis, 
+			Counters counters) {
+		return name + "," + iteration + "," + millis + ","
+				+ Compression.getMapOutputBytes(counters) + ","
+				+ Compression.getMaterializedMapOutputBytes(counters) + ","
+				+ Instrumentation.getSpilledRecords(counters) + ","
+				+ Instrumentation.getTasks(counters) + ","
+				+ Instrumentation.getMeanPeakHeap(counters);
+	}
+
+
+	private static int[] parseInts(String list) {
+		String[] values = list.split(",");
+		int[] ints = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			ints[i] = Integer.valueOf(values[i].trim());
+		}
+		return ints;
+	}
+
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+
+	private static long getPeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+
+	private static void writeReport(FileSystem fs, Path path, 
+			CharSequence report) throws IOException {
+		Writer writer = new OutputStreamWriter(fs.create(path, true), "UTF-8");
+		try {
+			writer.write(report.toString());
+		} finally {
+			writer.close();
+		}
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run( 
+				new Configuration(),
+				new HapScalingBenchmarkJob(),
+				args);
+		System.exit(res);
+	}
+
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.benchmark.hap;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * <p>
+ * Runs the HAP microbenchmarks with the GC profiler attached, so every 
+ * result reports its allocation rate next to its throughput.
+ * </p>
+ * 
+ * <p>
+ * The benchmarks are compiled with the JMH annotation processor and are 
+ * not part of the job jar. To run them from the command line:<br/>
+ * <code>$ java -cp lib/run/*:lib/build/*:lib/bench/*:bench.jar 
+ * root.benchmark.hap.HapBenchmarks [JMH options]</code>
+ * </p>
+ * 
+ * <p>
+ * Any standard JMH option may be given, e.g. <code>-p N=1000</code> to 
+ * restrict the sizes or a regular expression to select benchmarks; by 
+ * default every benchmark of this package runs at N = 1k, 10k and 100k.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see KeyUtilitiesBenchmark
+ * @see ReduceInputBenchmark
+ * @see ReducerKernelBenchmark
+ * 
+ */
+public class HapBenchmarks {
+
+	public static void main( String[] args ) throws Exception { 
+		OptionsBuilder options = new OptionsBuilder();
+		options.parent( new CommandLineOptions( args ) );
+		options.include( HapBenchmarks.class.getPackage().getName() + "\\..*" );
+		options.addProfiler( GCProfiler.class );
+		new Runner( options.build() ).run();
+	}
+
+}
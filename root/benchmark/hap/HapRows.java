@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.benchmark.hap;
+
+import java.util.Random;
+
+
+/**
+ * <p>
+ * Random input rows for the Hierarchical Affinity Propagation 
+ * microbenchmarks.
+ * </p>
+ * 
+ * <p>
+ * Rows are drawn as in a real run over N points in the unit square: S holds
+ * negative squared distances with the median similarity as preference on 
+ * the diagonal, A is non-positive except on the diagonal, and R is S 
+ * perturbed by the message noise of an early iteration. Inputs are seeded,
+ * so every benchmark sees the same data for a given N.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+class HapRows {
+
+	final int N;
+	final int index;
+
+	final double[] S;
+	final double[] A;
+	final double[] ALevelAbove;
+	final double[] R;
+	final double[] RLevelBelow;
+	final double[] diagA;
+	final double[] diagR;
+
+
+	HapRows( int N, long seed ) { 
+		this.N = N;
+
+		Random random = new Random( seed );
+		index = random.nextInt( N );
+
+		S = similarities( random, N, index );
+		A = availabilities( random, N, index );
+		ALevelAbove = availabilities( random, N, index );
+		R = responsibilities( random, S );
+		RLevelBelow = responsibilities( random, S );
+		diagA = availabilities( random, N, -1 );
+		diagR = responsibilities( random, similarities( random, N, -1 ) );
+		for( int i = 0; i < N; i++ ) { 
+			diagA[i] = -diagA[i];
+		}
+	}
+
+
+	/*
+	 * Negative squared distances from one random point to N others, with
+	 * the median similarity on the diagonal (if any).
+	 */
+	private static double[] similarities( Random random, int N, int diag ) { 
+		double x = random.nextDouble();
+		double y = random.nextDouble();
+		double[] s = new double[N];
+		for( int j = 0; j < N; j++ ) { 
+			double dx = x - random.nextDouble();
+			double dy = y - random.nextDouble();
+			s[j] = -( dx * dx + dy * dy );
+		}
+		if( diag >= 0 ) { 
+			s[diag] = -1.0 / 6.0;
+		}
+		return s;
+	}
+
+
+	private static double[] availabilities( Random random, int N, int diag ) { 
+		double[] a = new double[N];
+		for( int j = 0; j < N; j++ ) { 
+			a[j] = Math.min( 0, random.nextGaussian() * 0.1 );
+		}
+		if( diag >= 0 ) { 
+			a[diag] = Math.abs( random.nextGaussian() * 0.1 );
+		}
+		return a;
+	}
+
+
+	private static double[] responsibilities( Random random, double[] s ) { 
+		double[] r = new double[s.length];
+		for( int j = 0; j < s.length; j++ ) { 
+			r[j] = s[j] + random.nextGaussian() * 0.05;
+		}
+		return r;
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.benchmark.hap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import root.hap.util.KeyUtilities;
+
+
+/**
+ * <p>
+ * Microbenchmarks of the tab separated key handling done by the HAP mappers
+ * once per input vector.
+ * </p>
+ * 
+ * <p>
+ * Each operation parses (or builds) a single key, cycling through the keys
+ * of an N point, three level matrix.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see KeyUtilities
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyUtilitiesBenchmark {
+
+	private static final String IDS = "ARS";
+	private static final int LEVELS = 3;
+
+	@Param({ "1000", "10000", "100000" })
+	public int N;
+
+	private Text[] keys;
+	private int cursor;
+
+
+	@Setup
+	public void setup() { 
+		keys = new Text[N];
+		for( int i = 0; i < N; i++ ) { 
+			keys[i] = new Text( i + "\t" + ( i % LEVELS ) + "\t" 
+					+ IDS.charAt( i % IDS.length() ) );
+		}
+	}
+
+
+	private int next() { 
+		cursor = cursor + 1 == N ? 0 : cursor + 1;
+		return cursor;
+	}
+
+
+	@Benchmark
+	public String[] explode() { 
+		return KeyUtilities.explode( keys[next()], false );
+	}
+
+
+	/*
+	 * The mappers parse the exploded fields once more.
+	 */
+	@Benchmark
+	public int explodeAndParse() { 
+		String[] keyData = KeyUtilities.explode( keys[next()], false );
+		int index = Integer.valueOf( keyData[KeyUtilities.INDEX] );
+		int level = Integer.valueOf( keyData[KeyUtilities.LEVEL] );
+		char id = keyData[KeyUtilities.ID].charAt( 0 );
+		return index + level + id;
+	}
+
+
+	@Benchmark
+	public Text getInstance() { 
+		int i = next();
+		return KeyUtilities.getInstance( i, i % LEVELS, 
+				String.valueOf( IDS.charAt( i % IDS.length() ) ) );
+	}
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.benchmark.hap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import root.hap.availability.AvailabilityReducer;
+import root.hap.cluster.ClusterReducer;
+import root.hap.responsibility.ResponsibilityReducer;
+import root.hap.util.HapMessage;
+
+
+/**
+ * <p>
+ * Microbenchmarks of the per-record loops that rebuild a row (or column) 
+ * from the shuffle at the start of every <code>reduce</code> call of the 
+ * element mode HAP reducers.
+ * </p>
+ * 
+ * <p>
+ * Each operation deserializes the full value list of one reduce key into a
+ * single reused {@link HapMessage}, as the framework does, and copies every
+ * element into freshly allocated row arrays, exactly as 
+ * {@link ResponsibilityReducer}, {@link AvailabilityReducer} and 
+ * {@link ClusterReducer} do.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReduceInputBenchmark {
+
+	private static final int LEVEL = 1;
+
+	@Param({ "1000", "10000", "100000" })
+	public int N;
+
+	private byte[] responsibilityInput;
+	private byte[] availabilityInput;
+	private byte[] clusterInput;
+
+	private final HapMessage message = new HapMessage();
+
+
+	@Setup
+	public void setup() throws IOException { 
+		HapRows rows = new HapRows( N, 42 );
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		write( out, rows.A, LEVEL, 'A' );
+		write( out, rows.ALevelAbove, LEVEL + 1, 'A' );
+		write( out, rows.R, LEVEL, 'R' );
+		write( out, rows.S, LEVEL, 'S' );
+		new HapMessage( rows.index, LEVEL, 'T', 0 ).write( out );
+		new HapMessage( rows.index, LEVEL, 'P', 0 ).write( out );
+		new HapMessage( rows.index, LEVEL, 'C', 0 ).write( out );
+		responsibilityInput = bytes.toByteArray();
+
+		bytes.reset();
+		write( out, rows.R, LEVEL, 'R' );
+		write( out, rows.RLevelBelow, LEVEL - 1, 'R' );
+		write( out, rows.A, LEVEL, 'A' );
+		write( out, rows.S, LEVEL, 'S' );
+		new HapMessage( rows.index, LEVEL, 'C', 0 ).write( out );
+		new HapMessage( rows.index, LEVEL - 1, 'C', 0 ).write( out );
+		new HapMessage( rows.index, LEVEL, 'T', 0 ).write( out );
+		new HapMessage( rows.index, LEVEL, 'P', 0 ).write( out );
+		availabilityInput = bytes.toByteArray();
+
+		bytes.reset();
+		write( out, rows.R, LEVEL, 'R' );
+		write( out, rows.A, LEVEL, 'A' );
+		clusterInput = bytes.toByteArray();
+	}
+
+
+	private static void write( DataOutputStream out, double[] values, 
+			int level, char id ) throws IOException { 
+		HapMessage message = new HapMessage();
+		for( int i = 0; i < values.length; i++ ) { 
+			message.set( i, level, id, values[i] );
+			message.write( out );
+		}
+	}
+
+
+	@Benchmark
+	public void responsibility( Blackhole blackhole ) throws IOException { 
+		DataInputStream in = new DataInputStream( 
+				new ByteArrayInputStream( responsibilityInput ) );
+
+		double[] A = new double[N];
+		double[] ALevelAbove = new double[N];
+		double[] R = new double[N];
+		double[] S = new double[N];
+		double T = 0;
+		double P = 0;
+		double C = 0;
+
+		while( in.available() > 0 ) { 
+			message.readFields( in );
+			int colInt = message.getIndex();
+			double valDouble = message.getValue();
+			int levelInt = message.getLevel();
+
+			switch( message.getMatrixId() ) { 
+			case 'R':
+				R[colInt] = valDouble;
+				break;
+			case 'A':
+				if( LEVEL == levelInt ) { 
+					A[colInt] = valDouble;
+				} else { 
+					ALevelAbove[colInt] = valDouble;
+				}
+				break;
+			case 'S':
+				S[colInt] = valDouble;
+				break;
+			case 'C':
+				C = valDouble;
+				break;
+			case 'T':
+				T = valDouble;
+				break;
+			case 'P':
+				P = valDouble;
+				break;
+			default:
+				throw new IllegalStateException( "Invalid matrix ID." );
+			}
+		}
+
+		blackhole.consume( A );
+		blackhole.consume( ALevelAbove );
+		blackhole.consume( R );
+		blackhole.consume( S );
+		blackhole.consume( T + P + C );
+	}
+
+
+	@Benchmark
+	public void availability( Blackhole blackhole ) throws IOException { 
+		DataInputStream in = new DataInputStream( 
+				new ByteArrayInputStream( availabilityInput ) );
+
+		double[] A = new double[N];
+		double[] R = new double[N];
+		double[] RLevelBelow = new double[N];
+		double[] S = new double[N];
+		double T = 0;
+		double P = 0;
+		double C = 0;
+		double CLevelBelow = 0;
+
+		while( in.available() > 0 ) { 
+			message.readFields( in );
+			int rowInt = message.getIndex();
+			double valDouble = message.getValue();
+			int levelInt = message.getLevel();
+
+			switch( message.getMatrixId() ) { 
+			case 'R':
+				if( LEVEL == levelInt ) { 
+					R[rowInt] = valDouble;
+				} else { 
+					RLevelBelow[rowInt] = valDouble;
+				}
+				break;
+			case 'A':
+				A[rowInt] = valDouble;
+				break;
+			case 'S':
+				S[rowInt] = valDouble;
+				break;
+			case 'C':
+				if( LEVEL == levelInt ) { 
+					C = valDouble;
+				} else { 
+					CLevelBelow = valDouble;
+				}
+				break;
+			case 'T':
+				T = valDouble;
+				break;
+			case 'P':
+				P = valDouble;
+				break;
+			default:
+				throw new IllegalStateException( "Invalid matrix ID." );
+			}
+		}
+
+		blackhole.consume( A );
+		blackhole.consume( R );
+		blackhole.consume( RLevelBelow );
+		blackhole.consume( S );
+		blackhole.consume( T + P + C + CLevelBelow );
+	}
+
+
+	@Benchmark
+	public void cluster( Blackhole blackhole ) throws IOException { 
+		DataInputStream in = new DataInputStream( 
+				new ByteArrayInputStream( clusterInput ) );
+
+		double[] A = new double[N];
+		double[] R = new double[N];
+
+		while( in.available() > 0 ) { 
+			message.readFields( in );
+			int rowInt = message.getIndex();
+			double valDouble = message.getValue();
+
+			switch( message.getMatrixId() ) { 
+			case 'R':
+				R[rowInt] = valDouble;
+				break;
+			case 'A':
+				A[rowInt] = valDouble;
+				break;
+			default:
+				throw new IllegalStateException( "Invalid matrix ID." );
+			}
+		}
+
+		blackhole.consume( A );
+		blackhole.consume( R );
+	}
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.benchmark.hap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import root.hap.util.HapKernels;
+
+
+/**
+ * <p>
+ * Microbenchmarks of the {@link HapKernels} row and column kernels that 
+ * make up the updates of the HAP reducers: <code>argMaxSum</code> and 
+ * <code>maxSumExcept</code> followed by <code>dampedResponsibility</code> 
+ * for R, <code>positiveSum</code> followed by 
+ * <code>dampedAvailability</code> for A, <code>positiveSum</code> for Tau,
+ * <code>maxSum</code> for Phi, and <code>exemplarValue</code> and 
+ * <code>exemplarIndex</code> for C.
+ * </p>
+ * 
+ * <p>
+ * Each benchmark calls a single kernel, so the reducers keep their update
+ * methods to themselves; the output key and writable, the counters and 
+ * the write of a task are not measured. R and A are updated in place, as 
+ * in the reducers; repeated dampened updates converge, which does not 
+ * change their cost.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReducerKernelBenchmark {
+
+	private static final double LAMBDA = 0.5;
+
+	@Param({ "1000", "10000", "100000" })
+	public int N;
+
+	private HapRows rows;
+	private int maxIndex;
+	private double max;
+	private double secondMax;
+
+
+	@Setup
+	public void setup() { 
+		rows = new HapRows( N, 42 );
+
+		maxIndex = HapKernels.argMaxSum( rows.A, 0, rows.S, 0, N );
+		max = Math.min( -( rows.A[maxIndex] + rows.S[maxIndex] ), 0 );
+		secondMax = Math.min( -HapKernels.maxSumExcept( rows.A, 0, rows.S, 
+				0, N, maxIndex ), 0 );
+	}
+
+
+	@Benchmark
+	public double maxSum() { 
+		return HapKernels.maxSum( rows.ALevelAbove, 0, rows.S, 0, N );
+	}
+
+
+	@Benchmark
+	public double maxSumExcept() { 
+		return HapKernels.maxSumExcept( rows.A, 0, rows.S, 0, N, maxIndex );
+	}
+
+
+	@Benchmark
+	public int argMaxSum() { 
+		return HapKernels.argMaxSum( rows.A, 0, rows.S, 0, N );
+	}
+
+
+	@Benchmark
+	public double dampedResponsibility() { 
+		return HapKernels.dampedResponsibility( rows.S, 0, rows.R, 0, N, 
+				maxIndex, max, secondMax, LAMBDA );
+	}
+
+
+	@Benchmark
+	public double positiveSum() { 
+		return HapKernels.positiveSum( rows.RLevelBelow, 0, N, rows.index );
+	}
+
+
+	@Benchmark
+	public double dampedAvailability() { 
+		return HapKernels.dampedAvailability( rows.R, 0, rows.A, 0, N, 
+				rows.index, HapKernels.positiveSum( rows.R, 0, N, rows.index ), 
+				LAMBDA );
+	}
+
+
+	@Benchmark
+	public double exemplarValue() { 
+		return HapKernels.exemplarValue( rows.A, 0, rows.R, 0, rows.diagA, 
+				rows.diagR, N );
+	}
+
+
+	@Benchmark
+	public int exemplarIndex() { 
+		return HapKernels.exemplarIndex( rows.A, 0, rows.R, 0, rows.diagA, 
+				rows.diagR, null, N );
+	}
+
+}
@@ -16,15 +16,31 @@
 package root.hap;
 
 import java.net.URI;
+import java.util.Arrays;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.util.ToolRunner;
 
 import root.hap.availability.HierarchicalAvailabilityDriver;
 import root.hap.cluster.HierarchicalClusterDriver;
+import root.hap.iteration.HierarchicalIterationDriver;
 import root.hap.responsibility.HierarchicalResponsibilityDriver;
+import root.hap.similarity.SimilarityStoreDriver;
+import root.hap.tiled.HierarchicalTileDriver;
+import root.hap.tiled.Tile;
+import root.hap.tiled.TileAggregates;
+import root.hap.util.BlockUtilities;
+import root.hap.util.Candidates;
+import root.hap.util.Compression;
+import root.hap.util.Convergence;
+import root.hap.util.HapSortKey;
+import root.hap.util.Precision;
+import root.hap.util.SparseEdges;
+import root.hap.util.Timeline;
 import root.input.InputJob;
 
 
@@ -37,8 +53,56 @@ import root.input.InputJob;
  * <p>
  * This job is broken up into three sub-jobs, namely the Availability,
  * Responsibility, and Cluster jobs. The Availability and Responsibility 
- * jobs iterate until the iteration threshold is reached. ClusterJob operates
- * at the end to extract the cluster data.
+ * jobs iterate until the iteration threshold is reached, or, if requested,
+ * until the exemplars of every level have been stable for a number of 
+ * iterations (see {@link Convergence}). ClusterJob operates at the end to 
+ * extract the cluster data.
+ * </p>
+ * 
+ * <p>
+ * With <code>-sparse true</code>, the similarity matrix holds only the 
+ * edges of a k-nearest-neighbour graph (see {@link SparseEdges}), as 
+ * written by <code>CreateSimilarityMatrixJob -knn</code>, and every job 
+ * carries only the messages on those edges.
+ * </p>
+ * 
+ * <p>
+ * With <code>-candidates true</code>, the candidate exemplars of every 
+ * level above the first are the exemplars of the level below at the start
+ * of the iteration (see {@link Candidates}), and messages are computed and
+ * shuffled for their columns only. A level is only restricted once the 
+ * exemplars of the level below have been unchanged for 
+ * <code>-candidateStable</code> iterations, and the clusters are chosen 
+ * among the same candidates.
+ * </p>
+ * 
+ * <p>
+ * With <code>-stream true</code>, the Responsibility shuffle is sorted by 
+ * column within every row (see {@link HapSortKey}), and both reducers 
+ * fold their input into running sums and maxima through buffers reused 
+ * across rows and columns instead of allocating every vector anew.
+ * </p>
+ * 
+ * <p>
+ * With <code>-fused true</code>, every iteration after the first is a 
+ * single job (see {@link HierarchicalIterationDriver}) that finishes the 
+ * availability update of the previous iteration from per-column 
+ * aggregates and updates responsibility, halving the number of jobs.
+ * </p>
+ * 
+ * <p>
+ * With <code>-tiles g</code>, S, A and R are cut once into a g x g grid of
+ * tiles (see {@link Tile}), and every iteration runs two map-only jobs in 
+ * which each task updates whole tiles and exchanges only per-row and 
+ * per-column aggregates with the other tasks (see 
+ * {@link HierarchicalTileDriver}), instead of shuffling every element.
+ * </p>
+ * 
+ * <p>
+ * With <code>-sweeps k</code> on top of <code>-tiles g</code>, every 
+ * Availability task runs k - 1 further sweeps over its tile on the stale
+ * aggregates of the other tiles before the next exchange, so that the two
+ * jobs cover k iterations.
  * </p>
  * 
  * @author Dillon Rose
@@ -49,6 +113,7 @@ import root.input.InputJob;
  * @see HierarchicalResponsibilityDriver
  * @see HierarchicalAvailabilityDriver
  * @see HierarchicalClusterDriver
+ * @see HierarchicalTileDriver
  * 
  */
 public class HierarchicalAffinityPropagationJob extends InputJob {
@@ -59,16 +124,79 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 	// This is the number of iterations the algorithm will be required
 	// to run before halting. Defaults to 1.
 	private static String numIterations;
-	private static String simMatFileName="/part-m-00000";
+	private static String simMatFileName="/part-*";
 
 	// This is the value for lambda, or the dampening factor.
 	// Defaults to 0.
 	private static String lambda;
 
+	// This is the shuffle mode of the Responsibility and Availability jobs,
+	// either one record per element or one per block of a row. Defaults to
+	// element. The number of blocks defaults to one per reduce task.
+	private static String shuffleMode;
+	private static String numBlocks;
+
+	// The number of consecutive stable iterations after which the job stops
+	// early, and the largest message delta a stable iteration may have. An
+	// iteration is stable when no exemplar decision changed. Defaults to 0,
+	// which disables early stopping (and, for the tolerance, ignores the
+	// message delta).
+	private static String convergenceIters;
+	private static String tolerance;
+
+	// Whether the similarity matrix is written once to a partitioned store
+	// instead of being shuffled in every iteration. Defaults to false.
+	private static String similarityStore;
+
+	// The precision S, R and A are stored and shuffled in, and the number of
+	// bits the similarity store is quantized to. Default to double and 0
+	// (no quantization). Quantization requires the similarity store.
+	private static String precision;
+	private static String quantization;
+
+	// The codecs the intermediate state and the map output of every job are
+	// compressed with. Default to none.
+	private static String stateCodec;
+	private static String shuffleCodec;
+
+	// Whether the similarity matrix holds only k-nearest-neighbour edges,
+	// every other similarity being negative infinity. Defaults to false.
+	private static String sparse;
+
+	// Whether the columns of every level above the first are restricted to
+	// the exemplars of the level below. Defaults to false.
+	private static String candidates;
+
+	// The number of iterations the exemplars of a level must be unchanged 
+	// before the level above is restricted to them. Defaults to 3.
+	private static String candidateStable;
+
+	// Whether the Responsibility and Availability reducers stream every row
+	// and column through reused buffers. Defaults to false.
+	private static String streaming;
+
+	// Whether the availability update of every iteration is fused into the
+	// responsibility update of the next one. Defaults to false.
+	private static String fused;
+
+	// The number of tiles per dimension of the tiled iterations. Defaults 
+	// to 0, which keeps the untiled jobs.
+	private static String tiles;
+
+	// The number of iterations every tiled task runs between two exchanges
+	// of aggregates, all but the first of them on stale aggregates.
+	// Defaults to 1, which exchanges aggregates in every iteration.
+	private static String localSweeps;
+
 	// These are the prefixes of the intermediary file IO locations.
 	private static String RD_File = "/RD";
 	private static String AD_File = "/AD";
 	private static String CD_File = "/CD";
+	private static String SS_File = "/SS";
+	private static String TS_File = "/TS";
+	private static String TR_File = "/TR";
+	private static String TA_File = "/TA";
+	private static String Timeline_File = "/timeline.json";
 	private static String workingDirectory;
 
 	// -------------------------------------------------------------------
@@ -91,9 +219,12 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 
 	// These argument arrays will be passed down into the Responsibility
 	// and Availability MapReduce drivers.
-	private static String[] RDargs = new String[12];
-	private static String[] ADargs = new String[12];
-	private static String[] CDargs = new String[6];
+	private static String[] RDargs = new String[22];
+	private static String[] ADargs = new String[24];
+	private static String[] CDargs = new String[8];
+	private static String[] SSargs = new String[16];
+	private static String[] FIargs = new String[20];
+	private static String[] TIargs = new String[26];
 
 	private static final HierarchicalResponsibilityDriver HRD = 
 			new HierarchicalResponsibilityDriver();
@@ -101,6 +232,15 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 			new HierarchicalAvailabilityDriver();
 	private static final HierarchicalClusterDriver HCD = 
 			new HierarchicalClusterDriver();
+	private static final SimilarityStoreDriver SSD = 
+			new SimilarityStoreDriver();
+	private static final HierarchicalIterationDriver HID = 
+			new HierarchicalIterationDriver();
+	private static final HierarchicalTileDriver TID = 
+			new HierarchicalTileDriver();
+
+	// Wall time and counters of every job of the last run.
+	private Timeline timeline;
 
 
 	/**
@@ -114,6 +254,48 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 		addOption("numLevels", "l", "Number of Levels", "1");
 		addOption("numIter", "iter", "Number of Iterations", "1");
 		addOption("lambda", "lambda", "Dampening Factor", "0");
+		addOption("shuffle", "shuffle", "Shuffle Mode (element, slice)", 
+				"element");
+		addOption("numBlocks", "blocks", 
+				"Number of Blocks in slice mode (0: one per reduce task)", "0");
+		addOption("convergenceIters", "conv", 
+				"Stable Iterations before Stopping (0: never stop early)", "0");
+		addOption("tolerance", "tol", 
+				"Maximum Message Delta of a Stable Iteration (0: ignore)", "0");
+		addOption("similarityStore", "ss", 
+				"Keep S out of the iteration shuffle (true, false)", "false");
+		addOption("precision", "precision", 
+				"Storage Precision of S, R and A (double, float, bfloat16)", 
+				"double");
+		addOption("quantize", "q", 
+				"Quantization Bits of the similarity store (0: none, 8, 16)", 
+				"0");
+		addOption("stateCodec", "stateCodec", 
+				"State Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("shuffleCodec", "shuffleCodec", 
+				"Map Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("sparse", "sparse", 
+				"Similarity Matrix holds only k-nearest-neighbour edges "
+				+ "(true, false)", "false");
+		addOption("candidates", "candidates", 
+				"Restrict every Level to the Exemplars of the Level below "
+				+ "(true, false)", "false");
+		addOption("candidateStable", "candidateStable", 
+				"Iterations the Exemplars of a Level must be unchanged "
+				+ "before the Level above is restricted to them", "3");
+		addOption("streaming", "stream", 
+				"Stream every Row and Column through reused Buffers "
+				+ "(true, false)", "false");
+		addOption("fused", "fused", 
+				"Fuse the Availability and Responsibility Updates into one "
+				+ "Job per Iteration (true, false)", "false");
+		addOption("tiles", "tiles", 
+				"Tiles per Dimension of the tiled Iterations (0: untiled)", "0");
+		addOption("localSweeps", "sweeps", 
+				"Iterations per Exchange of Aggregates of the tiled Iterations",
+				"1");
 		addOption("inputSize", "n", "Cardinality of the Dataset", true);
 
 	}
@@ -130,6 +312,22 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 		System.out.println("\t-l\t\t" + numLevels);
 		System.out.println("\t-iter\t\t" + numIterations);
 		System.out.println("\t-lambda\t" + lambda);
+		System.out.println("\t-shuffle\t" + shuffleMode);
+		System.out.println("\t-blocks\t" + numBlocks);
+		System.out.println("\t-conv\t\t" + convergenceIters);
+		System.out.println("\t-tol\t\t" + tolerance);
+		System.out.println("\t-ss\t\t" + similarityStore);
+		System.out.println("\t-precision\t" + precision);
+		System.out.println("\t-q\t\t" + quantization);
+		System.out.println("\t-stateCodec\t" + stateCodec);
+		System.out.println("\t-shuffleCodec\t" + shuffleCodec);
+		System.out.println("\t-sparse\t" + sparse);
+		System.out.println("\t-candidates\t" + candidates);
+		System.out.println("\t-candidateStable\t" + candidateStable);
+		System.out.println("\t-stream\t" + streaming);
+		System.out.println("\t-fused\t" + fused);
+		System.out.println("\t-tiles\t" + tiles);
+		System.out.println("\t-sweeps\t" + localSweeps);
 		System.out.println("\t-n\t" + N);
 		System.out.println();
 	}
@@ -149,8 +347,33 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 		numLevels = getOption("numLevels");
 		numIterations = getOption("numIter");
 		lambda = getOption("lambda");
+		shuffleMode = getOption("shuffle");
+		numBlocks = getOption("numBlocks");
+		convergenceIters = getOption("convergenceIters");
+		tolerance = getOption("tolerance");
+		similarityStore = getOption("similarityStore");
+		precision = getOption("precision");
+		quantization = getOption("quantize");
+		stateCodec = getOption("stateCodec");
+		shuffleCodec = getOption("shuffleCodec");
+		sparse = getOption("sparse");
+		candidates = getOption("candidates");
+		candidateStable = getOption("candidateStable");
+		streaming = getOption("streaming");
+		fused = getOption("fused");
+		tiles = getOption("tiles");
+		localSweeps = getOption("localSweeps");
 		N = getOption("inputSize");
 
+		// Start from fresh argument arrays, in case the job is run more 
+		// than once in this JVM.
+		RDargs = new String[22];
+		ADargs = new String[24];
+		CDargs = new String[8];
+		SSargs = new String[16];
+		FIargs = new String[20];
+		TIargs = new String[26];
+
 		// Set the input and output directories as specified by the user.
 		RDargs[0] = "-i";
 		RDargs[1] = RD_File;
@@ -163,6 +386,16 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 		RDargs[8] = "-l";
 		RDargs[9] = numLevels;
 		RDargs[10] = "-iter";
+		RDargs[12] = "-shuffle";
+		RDargs[13] = shuffleMode;
+		RDargs[14] = "-blocks";
+		RDargs[15] = numBlocks;
+		RDargs[16] = "-precision";
+		RDargs[17] = precision;
+		RDargs[18] = "-stateCodec";
+		RDargs[19] = stateCodec;
+		RDargs[20] = "-shuffleCodec";
+		RDargs[21] = shuffleCodec;
 
 		ADargs[0] = "-i";
 		ADargs[1] = RD_File;
@@ -175,6 +408,17 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 		ADargs[8] = "-l";
 		ADargs[9] = numLevels;
 		ADargs[10] = "-iter";
+		ADargs[12] = "-shuffle";
+		ADargs[13] = shuffleMode;
+		ADargs[14] = "-blocks";
+		ADargs[15] = numBlocks;
+		ADargs[16] = "-prev";
+		ADargs[18] = "-precision";
+		ADargs[19] = precision;
+		ADargs[20] = "-stateCodec";
+		ADargs[21] = stateCodec;
+		ADargs[22] = "-shuffleCodec";
+		ADargs[23] = shuffleCodec;
 
 		CDargs[0] = "-i";
 		CDargs[1] = CD_File;
@@ -182,6 +426,63 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 		CDargs[3] = outputDirectory;
 		CDargs[4] = "-n";
 		CDargs[5] = N;
+		CDargs[6] = "-shuffleCodec";
+		CDargs[7] = shuffleCodec;
+
+		FIargs[0] = "-i";
+		FIargs[2] = "-o";
+		FIargs[4] = "-n";
+		FIargs[5] = N;
+		FIargs[6] = "-lambda";
+		FIargs[7] = lambda;
+		FIargs[8] = "-l";
+		FIargs[9] = numLevels;
+		FIargs[10] = "-iter";
+		FIargs[12] = "-blocks";
+		FIargs[13] = numBlocks;
+		FIargs[14] = "-precision";
+		FIargs[15] = precision;
+		FIargs[16] = "-stateCodec";
+		FIargs[17] = stateCodec;
+		FIargs[18] = "-shuffleCodec";
+		FIargs[19] = shuffleCodec;
+
+		TIargs[0] = "-i";
+		TIargs[2] = "-o";
+		TIargs[4] = "-ss";
+		TIargs[6] = "-step";
+		TIargs[8] = "-n";
+		TIargs[9] = N;
+		TIargs[10] = "-lambda";
+		TIargs[11] = lambda;
+		TIargs[12] = "-l";
+		TIargs[13] = numLevels;
+		TIargs[14] = "-iter";
+		TIargs[16] = "-grid";
+		TIargs[17] = tiles;
+		TIargs[18] = "-stateCodec";
+		TIargs[19] = stateCodec;
+		TIargs[20] = "-shuffleCodec";
+		TIargs[21] = shuffleCodec;
+		TIargs[22] = "-sweeps";
+		TIargs[24] = "-prev";
+
+		SSargs[0] = "-i";
+		SSargs[1] = inputDirectory;
+		SSargs[2] = "-o";
+		SSargs[3] = SS_File;
+		SSargs[4] = "-n";
+		SSargs[5] = N;
+		SSargs[6] = "-blocks";
+		SSargs[7] = numBlocks;
+		SSargs[8] = "-precision";
+		SSargs[9] = precision;
+		SSargs[10] = "-q";
+		SSargs[11] = quantization;
+		SSargs[12] = "-stateCodec";
+		SSargs[13] = stateCodec;
+		SSargs[14] = "-shuffleCodec";
+		SSargs[15] = shuffleCodec;
 
 		// Initialize numIterations if it wasn't set by args
 		if (Integer.valueOf(numIterations) < Integer.valueOf(numLevels)) {
@@ -198,6 +499,145 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 			System.exit( 1 );
 		}
 
+		try { 
+			Precision.configure( getConf(), precision, 
+					Integer.valueOf( quantization ) );
+			Compression.getCodec( getConf(), stateCodec );
+			Compression.getCodec( getConf(), shuffleCodec );
+		} catch( IllegalArgumentException e ) { 
+			System.err.println("[ERROR]: " + e.getMessage());
+			System.exit( 1 );
+		}
+
+		if( Integer.valueOf( quantization ) != 0 
+				&& !Boolean.valueOf( similarityStore ) ) { 
+			System.err.println("[ERROR]: Quantization requires the similarity store.");
+			System.err.println("[INFO]: Use -ss true with -q " + quantization );
+			System.exit( 1 );
+		}
+
+		if( Boolean.valueOf( sparse ) ) { 
+			if( Boolean.valueOf( similarityStore ) 
+					|| BlockUtilities.SHUFFLE_SLICE.equals( shuffleMode ) ) { 
+				System.err.println("[ERROR]: Sparse similarity matrices require the element shuffle without the similarity store.");
+				System.err.println("[INFO]: Use -shuffle element -ss false with -sparse true");
+				System.exit( 1 );
+			}
+
+			RDargs = Arrays.copyOf( RDargs, RDargs.length + 2 );
+			RDargs[RDargs.length - 2] = "-sparse";
+			RDargs[RDargs.length - 1] = sparse;
+
+			ADargs = Arrays.copyOf( ADargs, ADargs.length + 2 );
+			ADargs[ADargs.length - 2] = "-sparse";
+			ADargs[ADargs.length - 1] = sparse;
+
+			CDargs = Arrays.copyOf( CDargs, CDargs.length + 4 );
+			CDargs[CDargs.length - 4] = "-sparse";
+			CDargs[CDargs.length - 3] = sparse;
+			CDargs[CDargs.length - 2] = "-l";
+			CDargs[CDargs.length - 1] = numLevels;
+		}
+
+		if( Boolean.valueOf( candidates ) ) { 
+			if( Boolean.valueOf( similarityStore ) 
+					|| Boolean.valueOf( sparse )
+					|| BlockUtilities.SHUFFLE_SLICE.equals( shuffleMode ) ) { 
+				System.err.println("[ERROR]: Candidate restriction requires the element shuffle of a dense similarity matrix without the similarity store.");
+				System.err.println("[INFO]: Use -shuffle element -ss false -sparse false with -candidates true");
+				System.exit( 1 );
+			}
+
+			if( Integer.valueOf( candidateStable ) < 0 ) { 
+				System.err.println("[ERROR]: Invalid number of stable iterations before candidate restriction.");
+				System.err.println("[INFO]: candidateStable = " + candidateStable );
+				System.exit( 1 );
+			}
+
+			// The restricted levels are set before every iteration.
+			RDargs = Arrays.copyOf( RDargs, RDargs.length + 4 );
+			RDargs[RDargs.length - 4] = "-candidates";
+			RDargs[RDargs.length - 3] = candidates;
+			RDargs[RDargs.length - 2] = "-restricted";
+			RDargs[RDargs.length - 1] = Candidates.NONE;
+
+			ADargs = Arrays.copyOf( ADargs, ADargs.length + 4 );
+			ADargs[ADargs.length - 4] = "-candidates";
+			ADargs[ADargs.length - 3] = candidates;
+			ADargs[ADargs.length - 2] = "-restricted";
+			ADargs[ADargs.length - 1] = Candidates.NONE;
+
+			CDargs = Arrays.copyOf( CDargs, CDargs.length + 6 );
+			CDargs[CDargs.length - 6] = "-candidates";
+			CDargs[CDargs.length - 5] = candidates;
+			CDargs[CDargs.length - 4] = "-restricted";
+			CDargs[CDargs.length - 3] = Candidates.NONE;
+			CDargs[CDargs.length - 2] = "-l";
+			CDargs[CDargs.length - 1] = numLevels;
+		}
+
+		if( Boolean.valueOf( streaming ) ) { 
+			if( Boolean.valueOf( sparse ) 
+					|| Boolean.valueOf( candidates )
+					|| BlockUtilities.SHUFFLE_SLICE.equals( shuffleMode ) ) { 
+				System.err.println("[ERROR]: Streaming reducers require the element shuffle of a dense similarity matrix.");
+				System.err.println("[INFO]: Use -shuffle element -sparse false -candidates false with -stream true");
+				System.exit( 1 );
+			}
+
+			RDargs = Arrays.copyOf( RDargs, RDargs.length + 2 );
+			RDargs[RDargs.length - 2] = "-stream";
+			RDargs[RDargs.length - 1] = streaming;
+
+			ADargs = Arrays.copyOf( ADargs, ADargs.length + 2 );
+			ADargs[ADargs.length - 2] = "-stream";
+			ADargs[ADargs.length - 1] = streaming;
+		}
+
+		if( Boolean.valueOf( fused ) ) { 
+			if( Boolean.valueOf( sparse ) 
+					|| Boolean.valueOf( candidates )
+					|| Boolean.valueOf( streaming )
+					|| BlockUtilities.SHUFFLE_SLICE.equals( shuffleMode ) ) { 
+				System.err.println("[ERROR]: Fused iterations require the element shuffle of a dense similarity matrix.");
+				System.err.println("[INFO]: Use -shuffle element -sparse false -candidates false -stream false with -fused true");
+				System.exit( 1 );
+			}
+
+			RDargs = Arrays.copyOf( RDargs, RDargs.length + 2 );
+			RDargs[RDargs.length - 2] = "-fused";
+			RDargs[RDargs.length - 1] = fused;
+		}
+
+		if( Integer.valueOf( tiles ) < 0 
+				|| Integer.valueOf( tiles ) > Integer.valueOf( N ) ) { 
+			System.err.println("[ERROR]: Invalid number of tiles.");
+			System.err.println("[INFO]: tiles = " + tiles );
+			System.exit( 1 );
+		}
+
+		if( Integer.valueOf( tiles ) > 0 ) { 
+			if( Boolean.valueOf( similarityStore ) 
+					|| Boolean.valueOf( sparse ) 
+					|| Boolean.valueOf( candidates )
+					|| Boolean.valueOf( streaming )
+					|| Boolean.valueOf( fused )
+					|| Precision.get( getConf() ) != Precision.DOUBLE
+					|| BlockUtilities.SHUFFLE_SLICE.equals( shuffleMode ) ) { 
+				System.err.println("[ERROR]: Tiled iterations require a dense similarity matrix in double precision, without the other iteration options.");
+				System.err.println("[INFO]: Use -shuffle element -ss false -precision double -sparse false -candidates false -stream false -fused false with -tiles " + tiles );
+				System.exit( 1 );
+			}
+		}
+
+		if( Integer.valueOf( localSweeps ) < 1 
+				|| ( Integer.valueOf( localSweeps ) > 1 
+						&& Integer.valueOf( tiles ) == 0 ) ) { 
+			System.err.println("[ERROR]: Local sweeps require at least one sweep and tiled iterations.");
+			System.err.println("[INFO]: Use -tiles with -sweeps " + localSweeps );
+			System.exit( 1 );
+		}
+
 	}
 
 
@@ -265,79 +705,572 @@ public class HierarchicalAffinityPropagationJob extends InputJob {
 		}
 
 		Path simMatPath = new Path(inputDirectory+simMatFileName);
-		if (!inputFS.exists(simMatPath)) {
+		FileStatus[] simMatFiles = inputFS.globStatus(simMatPath);
+		if (simMatFiles == null || simMatFiles.length == 0) {
 			System.err.println("Similarity Matrix File does not exist.");
 			System.exit(2);
 		}
 
+		// Write the similarity matrix once, partitioned like the iteration
+		// jobs, and point both of them at it.
+		boolean useStore = Boolean.valueOf(similarityStore);
+		long storeMillis = 0;
+		if (useStore) {
+			SSargs[3] = workingDirectory + SS_File;
+
+			System.out.println();
+			System.out.println("---------------------");
+			System.out.println("Storing Similarity");
+			System.out.println("---------------------");
+			System.out.println("\tInput: " + SSargs[1]);
+			System.out.println("\tOutput: " + SSargs[3]);
+			System.out.println();
+			long storeStart = System.currentTimeMillis();
+			ToolRunner.run(conf, SSD, SSargs);
+			storeMillis = System.currentTimeMillis() - storeStart;
+
+			RDargs = Arrays.copyOf(RDargs, RDargs.length + 2);
+			RDargs[RDargs.length - 2] = "-ss";
+			RDargs[RDargs.length - 1] = SSargs[3];
+
+			ADargs = Arrays.copyOf(ADargs, ADargs.length + 2);
+			ADargs[ADargs.length - 2] = "-ss";
+			ADargs[ADargs.length - 1] = SSargs[3];
+
+			FIargs = Arrays.copyOf(FIargs, FIargs.length + 2);
+			FIargs[FIargs.length - 2] = "-ss";
+			FIargs[FIargs.length - 1] = SSargs[3];
+		}
+
+		int iterations = Integer.valueOf(numIterations);
+		int levels = Integer.valueOf(numLevels);
+		int stableLimit = Integer.valueOf(convergenceIters);
+		double maxDelta = Double.valueOf(tolerance);
+		int stableIterations = 0;
+		int iterationsRun = iterations;
+		boolean converged = false;
+
+		// Iterations the exemplars of every level have been unchanged, to
+		// decide which levels are restricted to their candidates.
+		int[] unchanged = new int[levels];
+		String restricted = Candidates.NONE;
+
+		// Per-iteration counters, rewritten after every iteration.
+		timeline = new Timeline(levels);
+		if (useStore) {
+			timeline.addPhase("similarityStore", 0, storeMillis, 
+					SSD.getCounters());
+		}
+		Path timelinePath = new Path(workingDirectory + Timeline_File);
+
+		boolean tiled = Integer.valueOf(tiles) > 0;
+		if (tiled) {
+			iterationsRun = iterateTiled(conf, workingFS, timelinePath);
+			converged = iterationsRun < iterations;
+		} else if (Boolean.valueOf(fused)) {
+			iterationsRun = iterateFused(conf, workingFS, timelinePath);
+			converged = iterationsRun < iterations;
+		} else {
+			for (int i = 0; i < iterations; i++) {
+
+				RDargs[1] = workingDirectory + RD_File + i;
+				RDargs[3] = workingDirectory + AD_File + i;
+				RDargs[11] = i + "";
+
+				// If this is the first run, read from initial input.
+				if (i == 0) {
+					RDargs[1] = inputDirectory;
+				}
+
+				// Both jobs of an iteration restrict the same levels.
+				setArgument(RDargs, "-restricted", restricted);
+				setArgument(ADargs, "-restricted", restricted);
+
+				System.out.println();
+				System.out.println("----------------------");
+				System.out.println("Updating Responsibilty");
+				System.out.println("----------------------");
+				System.out.println("\tInput: " + RDargs[1]);
+				System.out.println("\tOutput: " + RDargs[3]);
+				System.out.println("\tIteration: " + (i + 1) + " of "
+						+ numIterations);
+				System.out.println();
+				long responsibilityStart = System.currentTimeMillis();
+				ToolRunner.run(conf, HRD, RDargs);
+				long responsibilityMillis = 
+						System.currentTimeMillis() - responsibilityStart;
+
+				ADargs[1] = workingDirectory + AD_File + i;
+				ADargs[3] = workingDirectory + RD_File + (i + 1);
+				ADargs[11] = i + "";
+				ADargs[17] = RDargs[1];
+
+				if (i == iterations - 1) {
+					ADargs[3] = workingDirectory + CD_File;
+				}
+
+				System.out.println();
+				System.out.println("---------------------");
+				System.out.println("Updating Availability");
+				System.out.println("---------------------");
+				System.out.println("\tInput: " + ADargs[1]);
+				System.out.println("\tOutput: " + ADargs[3]);
+				System.out.println("\tIteration: " + (i + 1) + " of "
+						+ numIterations);
+				System.out.println();
+				long availabilityStart = System.currentTimeMillis();
+				ToolRunner.run(conf, HAD, ADargs);
+				long availabilityMillis = 
+						System.currentTimeMillis() - availabilityStart;
+
+				// Measure the state of this iteration before it is deleted.
+				long rawState = 
+						Compression.getUncompressedState(HRD.getCounters())
+						+ Compression.getUncompressedState(HAD.getCounters());
+				long storedState = 
+						Compression.getStoredBytes(workingFS, new Path(ADargs[1]))
+						+ Compression.getStoredBytes(workingFS, new Path(ADargs[3]));
+				long rawShuffle = 
+						Compression.getMapOutputBytes(HRD.getCounters())
+						+ Compression.getMapOutputBytes(HAD.getCounters());
+				long storedShuffle = 
+						Compression.getMaterializedMapOutputBytes(HRD.getCounters())
+						+ Compression.getMaterializedMapOutputBytes(HAD.getCounters());
+
+				workingFS.delete(new Path(ADargs[1]), true);
+
+				// Delete the previous iteration, kept until now to compare
+				// exemplar decisions. Preserve the initial input, though.
+				if( i > 0 ) { 
+					workingFS.delete(new Path(RDargs[1]), true);
+				}
+
+				long changes = Convergence.getExemplarChanges(HAD.getCounters());
+				double delta = Math.max(
+						Convergence.getMaxDelta(HRD.getCounters()), 
+						Convergence.getMaxDelta(HAD.getCounters()));
+
+				System.out.println();
+				System.out.println("\tExemplar Changes: " + changes);
+				for (int l = 0; l < levels; l++) {
+					System.out.println("\tExemplars (Level " + l + "): " 
+							+ Convergence.getExemplars(HAD.getCounters(), l));
+				}
+				if (Boolean.valueOf(candidates)) {
+					for (int l = 1; l < levels; l++) {
+						System.out.println("\tCandidates (Level " + l + "): " 
+								+ Candidates.getCandidates(HAD.getCounters(), l));
+					}
+					System.out.println("\tRestricted Levels: " + restricted);
+					restricted = restrictLevels(unchanged, HAD.getCounters());
+				}
+				System.out.println("\tMax Message Delta: " + delta);
+				System.out.println("\tState Compression Ratio: " 
+						+ Compression.formatRatio(stateCodec, rawState, 
+								storedState));
+				System.out.println("\tShuffle Compression Ratio: " 
+						+ Compression.formatRatio(shuffleCodec, rawShuffle, 
+								storedShuffle));
+
+				timeline.addIteration(i + 1, 
+						responsibilityMillis, HRD.getCounters(), 
+						availabilityMillis, HAD.getCounters());
+				timeline.write(workingFS, timelinePath);
+				System.out.println("\tTimeline: " + timelinePath);
+
+				boolean stable = changes == 0 && (maxDelta <= 0 || delta <= maxDelta);
+				stableIterations = stable ? stableIterations + 1 : 0;
+
+				// Every level must have been reached before stopping.
+				if (stableLimit > 0 && stableIterations >= stableLimit
+						&& i + 1 >= levels && i < iterations - 1) {
+					workingFS.rename(new Path(ADargs[3]), 
+							new Path(workingDirectory + CD_File));
+					iterationsRun = i + 1;
+					converged = true;
+					break;
+				}
+
+			}
+		}
+
+		System.out.println();
+		if (converged) {
+			System.out.println("[INFO]: Converged after " + iterationsRun 
+					+ " of " + numIterations + " iterations.");
+		} else {
+			System.out.println("[INFO]: Stopped after " + iterationsRun 
+					+ " iterations.");
+		}
+
+		CDargs[1] = workingDirectory + CD_File;
+		setArgument(CDargs, "-restricted", restricted);
+
+		System.out.println();
+		System.out.println("---------------------");
+		System.out.println("Extracting Clusters");
+		System.out.println("---------------------");
+		System.out.println("\tInput: " + CDargs[1]);
+		System.out.println("\tOutput: " + CDargs[3]);
+		System.out.println();
+		long clusterStart = System.currentTimeMillis();
+		if (tiled) {
+			TIargs[1] = CDargs[1];
+			TIargs[3] = CDargs[3];
+			TIargs[7] = HierarchicalTileDriver.STEP_CLUSTER;
+			ToolRunner.run(conf, TID, TIargs);
+			timeline.addPhase("cluster", iterationsRun, 
+					System.currentTimeMillis() - clusterStart, 
+					TID.getCounters());
+		} else {
+			ToolRunner.run(conf, HCD, CDargs);
+			timeline.addPhase("cluster", iterationsRun, 
+					System.currentTimeMillis() - clusterStart, 
+					HCD.getCounters());
+		}
+
+		workingFS.delete(new Path(CDargs[1]), true);
+
+		if (tiled) {
+			workingFS.delete(new Path(TIargs[5]), true);
+		}
+
+		if (useStore) {
+			workingFS.delete(new Path(SSargs[3]), true);
+		}
+
+		workingFS.close();
+		inputFS.close();
+		return 0;
+	}
+
+
+	/*
+	 * Run the iterations in fused mode: the first iteration updates 
+	 * responsibility only, every following one finishes the availability 
+	 * update of the one before in the same job as its own responsibility 
+	 * update, and a last Availability job finishes the final iteration for
+	 * the Cluster job. Exemplar decisions are counted one iteration late.
+	 * Returns the number of iterations run.
+	 */
+	private int iterateFused(Configuration conf, FileSystem workingFS, 
+			Path timelinePath) throws Exception {
+
 		int iterations = Integer.valueOf(numIterations);
+		int levels = Integer.valueOf(numLevels);
+		int stableLimit = Integer.valueOf(convergenceIters);
+		double maxDelta = Double.valueOf(tolerance);
+		int stableIterations = 0;
+		int iterationsRun = iterations;
+
+		String input = inputDirectory;
+
 		for (int i = 0; i < iterations; i++) {
 
-			RDargs[1] = workingDirectory + RD_File + i;
-			RDargs[3] = workingDirectory + AD_File + i;
-			RDargs[11] = i + "";
+			String output = workingDirectory + AD_File + i;
+			String[] args;
+			Counters counters;
 
-			// If this is the first run, read from initial input.
 			if (i == 0) {
-				RDargs[1] = inputDirectory;
+				RDargs[1] = input;
+				RDargs[3] = output;
+				RDargs[11] = i + "";
+				args = RDargs;
+			} else {
+				FIargs[1] = input;
+				FIargs[3] = output;
+				FIargs[11] = i + "";
+				args = FIargs;
 			}
 
 			System.out.println();
 			System.out.println("----------------------");
-			System.out.println("Updating Responsibilty");
+			System.out.println(i == 0 
+					? "Updating Responsibilty" : "Fused Iteration");
 			System.out.println("----------------------");
-			System.out.println("\tInput: " + RDargs[1]);
-			System.out.println("\tOutput: " + RDargs[3]);
+			System.out.println("\tInput: " + args[1]);
+			System.out.println("\tOutput: " + args[3]);
 			System.out.println("\tIteration: " + (i + 1) + " of "
 					+ numIterations);
 			System.out.println();
-			ToolRunner.run(conf, HRD, RDargs);
+			long start = System.currentTimeMillis();
+			if (i == 0) {
+				ToolRunner.run(conf, HRD, args);
+				counters = HRD.getCounters();
+			} else {
+				ToolRunner.run(conf, HID, args);
+				counters = HID.getCounters();
+			}
+			long millis = System.currentTimeMillis() - start;
+
+			long rawState = Compression.getUncompressedState(counters);
+			long storedState = 
+					Compression.getStoredBytes(workingFS, new Path(output));
+			long rawShuffle = Compression.getMapOutputBytes(counters);
+			long storedShuffle = 
+					Compression.getMaterializedMapOutputBytes(counters);
 
-			// Delete input directory to remove wasted space.
-			// Preserve the initial input, though.
-			if( i > 0 ) { 
-				workingFS.delete(new Path(RDargs[1]), true);
+			// Preserve the initial input.
+			if (i > 0) {
+				workingFS.delete(new Path(input), true);
 			}
+			input = output;
 
-			ADargs[1] = workingDirectory + AD_File + i;
-			ADargs[3] = workingDirectory + RD_File + (i + 1);
-			ADargs[11] = i + "";
+			long changes = Convergence.getExemplarChanges(counters);
+			double delta = Convergence.getMaxDelta(counters);
 
-			if (i == iterations - 1) {
-				ADargs[3] = workingDirectory + CD_File;
+			System.out.println();
+			if (i > 0) {
+				System.out.println("\tExemplar Changes (Iteration " + i 
+						+ "): " + changes);
+				for (int l = 0; l < levels; l++) {
+					System.out.println("\tExemplars (Level " + l + "): " 
+							+ Convergence.getExemplars(counters, l));
+				}
 			}
+			System.out.println("\tMax Message Delta: " + delta);
+			System.out.println("\tState Compression Ratio: " 
+					+ Compression.formatRatio(stateCodec, rawState, 
+							storedState));
+			System.out.println("\tShuffle Compression Ratio: " 
+					+ Compression.formatRatio(shuffleCodec, rawShuffle, 
+							storedShuffle));
+
+			timeline.addIteration(i + 1, millis, counters);
+			timeline.write(workingFS, timelinePath);
+			System.out.println("\tTimeline: " + timelinePath);
+
+			// The first job decides no exemplars.
+			boolean stable = i > 0 && changes == 0 
+					&& (maxDelta <= 0 || delta <= maxDelta);
+			stableIterations = stable ? stableIterations + 1 : 0;
+
+			if (stableLimit > 0 && stableIterations >= stableLimit
+					&& i + 1 >= levels && i < iterations - 1) {
+				iterationsRun = i + 1;
+				break;
+			}
+
+		}
+
+		ADargs[1] = input;
+		ADargs[3] = workingDirectory + CD_File;
+		ADargs[11] = (iterationsRun - 1) + "";
+		ADargs[17] = input;
+
+		System.out.println();
+		System.out.println("---------------------");
+		System.out.println("Finishing Availability");
+		System.out.println("---------------------");
+		System.out.println("\tInput: " + ADargs[1]);
+		System.out.println("\tOutput: " + ADargs[3]);
+		System.out.println();
+		long availabilityStart = System.currentTimeMillis();
+		ToolRunner.run(conf, HAD, ADargs);
+		timeline.addPhase("availability", iterationsRun, 
+				System.currentTimeMillis() - availabilityStart, 
+				HAD.getCounters());
+
+		workingFS.delete(new Path(input), true);
+
+		return iterationsRun;
+	}
+
+
+	/*
+	 * Count the iterations the exemplars of every level have been 
+	 * unchanged, and list the levels to restrict to their candidates in 
+	 * the next iteration: those above a level whose exemplars have been 
+	 * unchanged for -candidateStable iterations.
+	 */
+	private static String restrictLevels(int[] unchanged, Counters counters) {
+
+		int stable = Integer.valueOf(candidateStable);
+		StringBuilder levels = new StringBuilder();
+
+		for (int l = 0; l < unchanged.length; l++) {
+			unchanged[l] = Convergence.getExemplarChanges(counters, l) == 0 
+					? unchanged[l] + 1 : 0;
+			if (l > 0 && unchanged[l - 1] >= stable) {
+				levels.append(levels.length() == 0 ? "" : ",").append(l);
+			}
+		}
+
+		return levels.length() == 0 ? Candidates.NONE : levels.toString();
+	}
+
+
+	/*
+	 * Set the value following an option of an argument list.
+	 */
+	private static void setArgument(String[] args, String option, 
+			String value) {
+		for (int i = 0; i < args.length - 1; i++) {
+			if (option.equals(args[i])) {
+				args[i + 1] = value;
+				return;
+			}
+		}
+	}
+
+
+	/*
+	 * Run the iterations in tiled mode: cut the similarity matrix into 
+	 * tiles once, then run a tiled Responsibility and Availability step per 
+	 * round of local sweeps, each round covering up to -sweeps iterations. 
+	 * The state of the last iteration is left in the cluster input 
+	 * directory. Returns the number of iterations run.
+	 */
+	private int iterateTiled(Configuration conf, FileSystem workingFS, 
+			Path timelinePath) throws Exception {
+
+		int iterations = Integer.valueOf(numIterations);
+		int levels = Integer.valueOf(numLevels);
+		int sweeps = Integer.valueOf(localSweeps);
+		int stableLimit = Integer.valueOf(convergenceIters);
+		double maxDelta = Double.valueOf(tolerance);
+		int stableIterations = 0;
+		int iterationsRun = iterations;
+		int rounds = 0;
+
+		TIargs[1] = inputDirectory;
+		TIargs[3] = workingDirectory + TS_File;
+		TIargs[5] = TIargs[3];
+		TIargs[7] = HierarchicalTileDriver.STEP_INIT;
+		TIargs[15] = "0";
+		TIargs[23] = "1";
+		TIargs[25] = TIargs[3];
+
+		System.out.println();
+		System.out.println("---------------------");
+		System.out.println("Cutting Tiles");
+		System.out.println("---------------------");
+		System.out.println("\tInput: " + TIargs[1]);
+		System.out.println("\tOutput: " + TIargs[3]);
+		System.out.println("\tGrid: " + tiles + " x " + tiles);
+		System.out.println();
+		long tilesStart = System.currentTimeMillis();
+		ToolRunner.run(conf, TID, TIargs);
+		timeline.addPhase("tiles", 0, 
+				System.currentTimeMillis() - tilesStart, TID.getCounters());
+
+		// The similarity tiles are kept in the first state directory.
+		String input = TIargs[3];
+
+		int i = 0;
+		while (i < iterations) {
+
+			int roundSweeps = Math.min(sweeps, iterations - i);
+
+			TIargs[1] = input;
+			TIargs[3] = workingDirectory + TR_File + i;
+			TIargs[7] = HierarchicalTileDriver.STEP_RESPONSIBILITY;
+			TIargs[15] = i + "";
+			TIargs[23] = "1";
+
+			System.out.println();
+			System.out.println("----------------------");
+			System.out.println("Updating Responsibilty");
+			System.out.println("----------------------");
+			System.out.println("\tInput: " + TIargs[1]);
+			System.out.println("\tOutput: " + TIargs[3]);
+			System.out.println("\tIteration: " + (i + 1) + " of "
+					+ numIterations);
+			System.out.println();
+			long responsibilityStart = System.currentTimeMillis();
+			ToolRunner.run(conf, TID, TIargs);
+			long responsibilityMillis = 
+					System.currentTimeMillis() - responsibilityStart;
+			Counters responsibility = TID.getCounters();
+
+			// The local sweeps reuse the row maxima the Responsibility step 
+			// read from its input.
+			TIargs[1] = TIargs[3];
+			TIargs[3] = workingDirectory + TA_File + i;
+			TIargs[7] = HierarchicalTileDriver.STEP_AVAILABILITY;
+			TIargs[23] = roundSweeps + "";
+			TIargs[25] = input;
 
 			System.out.println();
 			System.out.println("---------------------");
 			System.out.println("Updating Availability");
 			System.out.println("---------------------");
-			System.out.println("\tInput: " + ADargs[1]);
-			System.out.println("\tOutput: " + ADargs[3]);
-			System.out.println("\tIteration: " + (i + 1) + " of "
+			System.out.println("\tInput: " + TIargs[1]);
+			System.out.println("\tOutput: " + TIargs[3]);
+			System.out.println("\tIteration: " + (i + roundSweeps) + " of "
 					+ numIterations);
 			System.out.println();
-			ToolRunner.run(conf, HAD, ADargs);
+			long availabilityStart = System.currentTimeMillis();
+			ToolRunner.run(conf, TID, TIargs);
+			long availabilityMillis = 
+					System.currentTimeMillis() - availabilityStart;
+			Counters availability = TID.getCounters();
 
-			workingFS.delete(new Path(ADargs[1]), true);
+			workingFS.delete(new Path(TIargs[1]), true);
 
-		}
+			// Preserve the similarity tiles.
+			if (i > 0) {
+				workingFS.delete(new Path(input), true);
+			}
+			input = TIargs[3];
 
-		CDargs[1] = workingDirectory + CD_File;
+			i += roundSweeps;
+			rounds++;
+
+			long changes = Convergence.getExemplarChanges(availability);
+			double delta = Math.max(
+					Convergence.getMaxDelta(responsibility), 
+					Convergence.getMaxDelta(availability));
+
+			System.out.println();
+			System.out.println("\tExemplar Changes: " + changes);
+			for (int l = 0; l < levels; l++) {
+				System.out.println("\tExemplars (Level " + l + "): " 
+						+ Convergence.getExemplars(availability, l));
+			}
+			System.out.println("\tMax Message Delta: " + delta);
+			System.out.println("\tAggregate Values Exchanged: " 
+					+ (TileAggregates.getValues(responsibility) 
+							+ TileAggregates.getValues(availability)));
+			if (roundSweeps > 1) {
+				System.out.println("\tLocal Sweeps: " + roundSweeps 
+						+ " (aggregates at most " + (roundSweeps - 1) 
+						+ " iterations stale)");
+			}
+
+			timeline.addIteration(i, 
+					responsibilityMillis, responsibility, 
+					availabilityMillis, availability);
+			timeline.write(workingFS, timelinePath);
+			System.out.println("\tTimeline: " + timelinePath);
+
+			boolean stable = changes == 0 && (maxDelta <= 0 || delta <= maxDelta);
+			stableIterations = stable ? stableIterations + 1 : 0;
+
+			// Every level must have been reached before stopping.
+			if (stableLimit > 0 && stableIterations >= stableLimit
+					&& i >= levels && i < iterations) {
+				iterationsRun = i;
+				break;
+			}
+
+		}
 
 		System.out.println();
-		System.out.println("---------------------");
-		System.out.println("Extracting Clusters");
-		System.out.println("---------------------");
-		System.out.println("\tInput: " + CDargs[1]);
-		System.out.println("\tOutput: " + CDargs[3]);
-		System.out.println();
-		ToolRunner.run(conf, HCD, CDargs);
+		System.out.println("\tSynchronized Rounds: " + rounds);
 
-		workingFS.delete(new Path(CDargs[1]), true);
+		workingFS.rename(new Path(input), new Path(workingDirectory + CD_File));
 
-		workingFS.close();
-		inputFS.close();
-		return 0;
+		return iterationsRun;
+	}
+
+
+	/**
+	 * @return the wall time and counters of every job of the last run, or
+	 * null if the job has not run
+	 */
+	public Timeline getTimeline() {
+		return timeline;
 	}
 
 
@@ -16,12 +16,21 @@
 package root.hap.availability;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
+import root.hap.util.Candidates;
+import root.hap.util.HapKey;
+import root.hap.util.HapMessage;
+import root.hap.util.Instrumentation;
 import root.hap.util.KeyUtilities;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+import root.hap.util.SparseEdges;
 
 
 /**
@@ -40,9 +49,9 @@ import root.hap.util.KeyUtilities;
  * </p>
  * 
  * <p>
- * <code>Output key [Text]:</code> tab separated list: {Column Number, Level}
+ * <code>Output key [HapKey]:</code> {Column Number, Level}
  * <br />
- * <code>Output value [Iterable&lt;Text&gt;]:</code> tab separated list: 
+ * <code>Output value [HapMessage]:</code> 
  * {Row Number, Level, Matrix ID, Element Value}
  * </p>
  * 
@@ -56,7 +65,34 @@ import root.hap.util.KeyUtilities;
  * 
  */
 public class AvailabilityMapper extends 
-Mapper<Text, VectorWritable, Text, Text> {
+Mapper<Text, VectorWritable, HapKey, HapMessage> {
+
+	private final HapKey keyOut = new HapKey();
+	private final HapMessage valOut = new HapMessage();
+	private final Instrumentation.Emitted emitted = 
+			new Instrumentation.Emitted();
+
+	private boolean similarityStored;
+	private boolean sparse;
+	private Candidates candidates;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		similarityStored = SimilarityStore.isEnabled(
+				context.getConfiguration());
+		sparse = SparseEdges.isEnabled(context.getConfiguration());
+		candidates = Candidates.load(context.getConfiguration());
+		valOut.setPrecision(Precision.get(context.getConfiguration()));
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		emitted.flush(context);
+	}
 
 
 	/**
@@ -76,116 +112,51 @@ Mapper<Text, VectorWritable, Text, Text> {
 
 		String[] keyData = KeyUtilities.explode(keyIn, false);
 
-		String row = keyData[KeyUtilities.INDEX];
-		String level = keyData[KeyUtilities.LEVEL];
-		String id = keyData[KeyUtilities.ID];
+		int row = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		int level = Integer.valueOf(keyData[KeyUtilities.LEVEL]);
+		char id = keyData[KeyUtilities.ID].charAt(0);
 
-		Text keyOut, keyOutLevelAbove, valOut;
+		Vector vector = valIn.get();
 
 		// Begin filtering out vectors based on their Matrix ID.
-		if (id.equals("A")) {  // Availability vectors
-
-			double elementValue;
-
-			for (int col = 0; col < N; col++) {
+		if (id == 'A') {  // Availability vectors
 
-				elementValue = valIn.get().get( col );
+			emitRow(context, vector, row, level, level, id, N);
 
-				keyOut = new Text();
-				keyOut.set(col + "\t" + level);
+		} else if (id == 'R') {  // Responsibility vectors
 
-				valOut = new Text();
-				valOut.set(row + "\t" + level + "\t" + id + "\t" + elementValue);
-
-				context.write(keyOut, valOut);
-			}
+			emitRow(context, vector, row, level, level, id, N);
 
-		} else if (id.equals("R")) {  // Responsibility vectors
-
-			double elementValue;
-
-			for (int col = 0; col < N; col++) {
-
-				elementValue = valIn.get().get(col);
-
-				keyOut = new Text();
-				keyOut.set(col + "\t" + level);
-
-				valOut = new Text();
-				valOut.set(row + "\t" + level + "\t" + id + "\t" + elementValue);
-
-				context.write(keyOut, valOut);
-			}
-
-			int levelAbove = Integer.valueOf(level) + 1;
+			int levelAbove = level + 1;
 
 			if (levelAbove < numLevels) {  // Second level of Responsibility
-
-				for (int col = 0; col < N; col++) {
-
-					elementValue = valIn.get().get(col);
-
-					keyOutLevelAbove = new Text();
-					keyOutLevelAbove.set(col + "\t" + levelAbove);
-
-					valOut = new Text();
-					valOut.set(row + "\t" + level + "\t" + id + "\t"
-							+ elementValue);
-
-					context.write(keyOutLevelAbove, valOut);
-				}
+				emitRow(context, vector, row, levelAbove, level, id, N);
 			}
-		} else if (id.equals("S")) {  // Similarity vectors
-
-			double elementValue;
+		} else if (id == 'S' && !similarityStored) {  // Similarity vectors
 
 			for (int i = 0; i < numLevels; i++) {
-				for (int col = 0; col < N; col++) {
-
-					elementValue = valIn.get().get(col);
-
-					keyOut = new Text();
-					keyOut.set(col + "\t" + i);
-
-					valOut = new Text();
-					valOut.set(row + "\t" + i + "\t" + id + "\t" + elementValue);
-
-					context.write(keyOut, valOut);
-				}
+				emitRow(context, vector, row, i, i, id, N);
 			}
-		} else if (id.equals("T") || id.equals("P")) {  // 1D Tau and Phi vectors
-			double elementValue = valIn.get().get(0);
-
-			keyOut = new Text();
-			keyOut.set(row + "\t" + level);
-			valOut = new Text();
-
-			valOut.set(row + "\t" + level + "\t" + id + "\t" + elementValue);
-
+		} else if (id == 'T' || id == 'P') {  // 1D Tau and Phi vectors
+			keyOut.set(row, level);
+			valOut.set(row, level, id, vector.get(0));
 			context.write(keyOut, valOut);
-		} else if (id.equals("C")) {  // Exemplar Preference vector
-			double elementValue = valIn.get().get(0);
-
-			keyOut = new Text();
-			keyOut.set(row + "\t" + level);
-
-			valOut = new Text();
-			valOut.set(row + "\t" + level + "\t" + id + "\t" + elementValue);
+			emitted.record(valOut);
+		} else if (id == 'C') {  // Exemplar Preference vector
+			double elementValue = vector.get(0);
 
+			keyOut.set(row, level);
+			valOut.set(row, level, id, elementValue);
 			context.write(keyOut, valOut);
+			emitted.record(valOut);
 
-			int levelAbove = Integer.valueOf(level) + 1;
+			int levelAbove = level + 1;
 
 			if (levelAbove < numLevels) {
-				elementValue = valIn.get().get(0);
-
-				keyOutLevelAbove = new Text();
-				keyOutLevelAbove.set(row + "\t" + levelAbove);
-
-				valOut = new Text();
-				valOut.set(row + "\t" + level + "\t" + id + "\t" + elementValue);
-
-				context.write(keyOutLevelAbove, valOut);
+				keyOut.set(row, levelAbove);
+				valOut.set(row, level, id, elementValue);
+				context.write(keyOut, valOut);
+				emitted.record(valOut);
 			}
 		}
 
@@ -194,4 +165,42 @@ Mapper<Text, VectorWritable, Text, Text> {
 		valIn = null;
 		System.gc();
 	}
+
+
+	/*
+	 * Send every element of a row to the reducer of its column at the 
+	 * given level: all N elements, or only the non-zero ones in sparse 
+	 * mode. Elements of columns that are not candidate exemplars at the 
+	 * level of their matrix are not sent.
+	 */
+	private void emitRow(Context context, Vector vector, int row, 
+			int keyLevel, int level, char id, int N) 
+					throws IOException, InterruptedException {
+
+		if (sparse) {
+			Iterator<Vector.Element> elements = vector.iterateNonZero();
+			while (elements.hasNext()) {
+				Vector.Element element = elements.next();
+				if (candidates != null 
+						&& !candidates.contains(level, element.index())) {
+					continue;
+				}
+				keyOut.set(element.index(), keyLevel);
+				valOut.set(row, level, id, element.get());
+				context.write(keyOut, valOut);
+				emitted.record(valOut);
+			}
+			return;
+		}
+
+		for (int col = 0; col < N; col++) {
+			if (candidates != null && !candidates.contains(level, col)) {
+				continue;
+			}
+			keyOut.set(col, keyLevel);
+			valOut.set(row, level, id, vector.get(col));
+			context.write(keyOut, valOut);
+			emitted.record(valOut);
+		}
+	}
 }
\ No newline at end of file
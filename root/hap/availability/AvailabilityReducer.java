@@ -16,13 +16,26 @@
 package root.hap.availability;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.VectorWritable;
 
-import root.hap.util.KeyUtilities;
+import root.hap.util.Candidates;
+import root.hap.util.Compression;
+import root.hap.util.Convergence;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKernels;
+import root.hap.util.HapKey;
+import root.hap.util.HapMessage;
+import root.hap.util.HapSortKey;
+import root.hap.util.Instrumentation;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+import root.hap.util.SparseEdges;
 
 
 /**
@@ -36,8 +49,9 @@ import root.hap.util.KeyUtilities;
  * </p>
  * 
  * <p>
- * <code>Input key [Text]:</code> information about these rows<br />
- * <code>Input value [Iterable&lt;Text&gt;]:</code> the corresponding input rows
+ * <code>Input key [HapKey]:</code> information about these rows<br />
+ * <code>Input value [Iterable&lt;HapMessage&gt;]:</code> the corresponding 
+ * input row elements
  * </p>
  * 
  * <p>
@@ -47,6 +61,34 @@ import root.hap.util.KeyUtilities;
  * <code>Output value [VectorWritable]:</code> vector of appropriate data
  * </p>
  * 
+ * <p>
+ * The updated diagonals a(k,k) and r(k,k) are additionally written to a 
+ * {@link Diagonals} side file for the following Responsibility or Cluster 
+ * job, and compared against the diagonals of the previous iteration (if 
+ * given) to count changed exemplar decisions; see {@link Convergence}.
+ * </p>
+ * 
+ * <p>
+ * When the similarity matrix is sparse (see {@link SparseEdges}), the 
+ * column is rebuilt from its edges only, and the arrays passed to the 
+ * update hold one element per edge.
+ * </p>
+ * 
+ * <p>
+ * With {@link Candidates}, a column that is not a candidate exemplar of 
+ * its level receives no element of S, R or A: only the scalars of its 
+ * point, and the column of R below from which its tau is updated, are 
+ * passed on, and it is recorded as no exemplar.
+ * </p>
+ * 
+ * <p>
+ * When streaming (see {@link HapSortKey}), the positive sums of R and of 
+ * the R below are accumulated as the messages arrive, so the column of R 
+ * below is never kept, and A, R and S are rebuilt in buffers allocated 
+ * once per task. The sums need no particular message order, so the 
+ * shuffle of this job is left unchanged.
+ * </p>
+ * 
  * @author Dillon Rose
  * @author Michel Rouly
  * 
@@ -57,7 +99,55 @@ import root.hap.util.KeyUtilities;
  * 
  */
 public class AvailabilityReducer extends
-Reducer<Text, Text, Text, VectorWritable> {
+Reducer<HapKey, HapMessage, Text, VectorWritable> {
+
+	private Diagonals.Writer diagonals;
+	private Diagonals previous;
+
+	// Sparse mode: gatherer of the edges of a column, and its targets.
+	private static final int S_EDGES = 0;
+	private static final int R_EDGES = 1;
+	private static final int R_BELOW_EDGES = 2;
+	private static final int A_EDGES = 3;
+
+	private SparseEdges.Row edges;
+	private Candidates candidates;
+
+	// Streaming mode: column buffers reused by every column of the task.
+	private double[] colA;
+	private double[] colR;
+	private double[] colS;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		int N = context.getConfiguration().getInt("matrixN", -1);
+		diagonals = new Diagonals.Writer(context);
+		previous = Diagonals.load(context.getConfiguration(), N);
+		candidates = Candidates.load(context.getConfiguration());
+		if (SparseEdges.isEnabled(context.getConfiguration())) {
+			edges = new SparseEdges.Row(N);
+		} else if (HapSortKey.isEnabled(context.getConfiguration())) {
+			colA = new double[N];
+			colR = new double[N];
+			if (!SimilarityStore.isEnabled(context.getConfiguration())) {
+				colS = new double[N];
+			}
+		}
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		diagonals.close();
+		Convergence.writeDelta(context);
+		Instrumentation.recordTask(context, startMillis);
+	}
 
 
 	/**
@@ -69,67 +159,73 @@ Reducer<Text, Text, Text, VectorWritable> {
 	 * @param keyIn vector identification block
 	 * @param valIn vector data
 	 */
-	public void reduce(Text keyIn, Iterable<Text> valIn, Context context)
+	public void reduce(HapKey keyIn, Iterable<HapMessage> valIn, Context context)
 			throws IOException, InterruptedException {
 
+		if (candidates != null) {
+			if (!candidates.contains(keyIn.getLevel(), keyIn.getIndex())) {
+				reduceScalars(keyIn, valIn, context);
+				return;
+			}
+			Candidates.record(context, keyIn.getLevel());
+		}
+
+		if (edges != null) {
+			reduceEdges(keyIn, valIn, context);
+			return;
+		}
+
+		if (colA != null) {
+			reduceStream(keyIn, valIn, context);
+			return;
+		}
+
 		int N = context.getConfiguration().getInt("matrixN", -1);
 
 		// data structures to reconstruct the rows we're working on
-		DenseVector A = new DenseVector( N );
-		DenseVector R = new DenseVector( N );
-		DenseVector RLevelBelow = new DenseVector( N );
-		DenseVector S = new DenseVector( N );
-		DenseVector T = new DenseVector( 1 );
-		DenseVector P = new DenseVector( 1 );
-		DenseVector C = new DenseVector( 1 );
-		DenseVector CLevelBelow = new DenseVector( 1 );
-
-		int reducerColNum = Integer.valueOf(keyIn.toString().split("\t")[0]);
-		int reducerLevelNum = Integer.valueOf(keyIn.toString().split("\t")[1]);
-
-		for (Text text : valIn) { 
-			// **** important, do not remove this conversion ****
-			// we must do this for some reason..not sure why.
-			// if we don't the loop doesn't iterate properly.
-			// **** important, do not remove this conversion ****
-			text = new Text(text.toString());
-
-			String[] textData = KeyUtilities.explode( text, true );
-			String id = textData[ KeyUtilities.ID ];
-			String row = textData[ KeyUtilities.INDEX ];
-			String level = textData[ KeyUtilities.LEVEL ];
-			String value = textData[ KeyUtilities.VALUE ];
-
-			int rowInt = Integer.valueOf( row );
-			double valDouble = Double.valueOf( value );
-			int levelInt = Integer.valueOf( level );
-
-			switch( id.charAt( 0 ) ) { 
+		double[] A = new double[N];
+		double[] R = new double[N];
+		double[] RLevelBelow = new double[N];
+		double[] S = new double[N];
+		double T = 0;
+		double P = 0;
+		double C = 0;
+		double CLevelBelow = 0;
+
+		int reducerColNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		for (HapMessage message : valIn) { 
+			int rowInt = message.getIndex();
+			double valDouble = message.getValue();
+			int levelInt = message.getLevel();
+
+			switch( message.getMatrixId() ) { 
 			case 'R':
 				if( reducerLevelNum == levelInt ) { 
-					R.setQuick( rowInt, valDouble );
+					R[rowInt] = valDouble;
 				} else { 
-					RLevelBelow.setQuick( rowInt, valDouble );
+					RLevelBelow[rowInt] = valDouble;
 				}
 				break;
 			case 'A':
-				A.setQuick( rowInt, valDouble );
+				A[rowInt] = valDouble;
 				break;
 			case 'S':
-				S.setQuick( rowInt, valDouble );
+				S[rowInt] = valDouble;
 				break;
 			case 'C':
 				if( reducerLevelNum == levelInt ) { 
-					C.setQuick( 0, valDouble );
+					C = valDouble;
 				} else { 
-					CLevelBelow.setQuick( 0, valDouble );
+					CLevelBelow = valDouble;
 				}
 				break;
 			case 'T':
-				T.setQuick( 0, valDouble );
+				T = valDouble;
 				break;
 			case 'P':
-				P.setQuick( 0, valDouble );
+				P = valDouble;
 				break;
 			default:
 				System.err.println("[ERROR]: Invalid matrix ID.");
@@ -141,40 +237,332 @@ Reducer<Text, Text, Text, VectorWritable> {
 
 		//		printInput(A, R, RLevelBelow, S, T, P, C, CLevelBelow);
 
+		double diagA = updateColumn(context, A, R, RLevelBelow, S, T, P, C, 
+				CLevelBelow, reducerColNum, reducerLevelNum, N);
+
+		diagonals.write(reducerColNum, reducerLevelNum, diagA, 
+				R[reducerColNum]);
+		Convergence.recordExemplar(context, reducerLevelNum, 
+				previous.getA(reducerLevelNum)[reducerColNum], 
+				previous.getR(reducerLevelNum)[reducerColNum], 
+				diagA, R[reducerColNum]);
+
+
+		keyIn = null;
+		valIn = null;
+		A = null;
+		R = null;
+		RLevelBelow = null;
+		S = null;
+		System.gc();
+	}
+
+
+	/*
+	 * Sparse counterpart of reduce: rebuild the column on its edges, the 
+	 * rows present in S.
+	 */
+	private void reduceEdges(HapKey keyIn, Iterable<HapMessage> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		double T = 0;
+		double P = 0;
+		double C = 0;
+		double CLevelBelow = 0;
+
+		int reducerColNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		edges.clear();
+
+		for (HapMessage message : valIn) { 
+			int rowInt = message.getIndex();
+			double valDouble = message.getValue();
+			int levelInt = message.getLevel();
+
+			switch( message.getMatrixId() ) { 
+			case 'R':
+				edges.add(reducerLevelNum == levelInt 
+						? R_EDGES : R_BELOW_EDGES, rowInt, valDouble);
+				break;
+			case 'A':
+				edges.add(A_EDGES, rowInt, valDouble);
+				break;
+			case 'S':
+				edges.add(S_EDGES, rowInt, valDouble);
+				break;
+			case 'C':
+				if( reducerLevelNum == levelInt ) { 
+					C = valDouble;
+				} else { 
+					CLevelBelow = valDouble;
+				}
+				break;
+			case 'T':
+				T = valDouble;
+				break;
+			case 'P':
+				P = valDouble;
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit( 1 );
+				break;
+			}
+		}
+
+		int size = edges.build(S_EDGES);
+		int diag = edges.find(reducerColNum);
+		if (diag == -1) {
+			throw new IllegalStateException("Column " + reducerColNum 
+					+ " of the sparse similarity matrix has no diagonal.");
+		}
+
+		double[] R = edges.get(R_EDGES);
+
+		double diagA = updateColumn(context, edges.get(A_EDGES), R, 
+				edges.get(R_BELOW_EDGES), edges.get(S_EDGES), T, P, C, 
+				CLevelBelow, reducerColNum, reducerLevelNum, size, diag, 
+				edges.getIndices());
+
+		diagonals.write(reducerColNum, reducerLevelNum, diagA, R[diag]);
+		Convergence.recordExemplar(context, reducerLevelNum, 
+				previous.getA(reducerLevelNum)[reducerColNum], 
+				previous.getR(reducerLevelNum)[reducerColNum], 
+				diagA, R[diag]);
+	}
+
+
+	/*
+	 * Streaming counterpart of reduce: accumulate the positive sums of R 
+	 * and of the R below while the column is received.
+	 */
+	private void reduceStream(HapKey keyIn, Iterable<HapMessage> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		int N = context.getConfiguration().getInt("matrixN", -1);
+
+		double T = 0;
+		double P = 0;
+		double C = 0;
+		double CLevelBelow = 0;
+
+		// r(k,k) plus the sum of positive R(i,k), i != k, of this level and
+		// of the level below
+		double RPSum = 0;
+		double rhoAndPositives = 0;
+
+		int reducerColNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		Arrays.fill(colA, 0);
+		Arrays.fill(colR, 0);
+		if (colS != null) {
+			Arrays.fill(colS, 0);
+		}
+
+		for (HapMessage message : valIn) { 
+			int rowInt = message.getIndex();
+			double valDouble = message.getValue();
+			int levelInt = message.getLevel();
+
+			switch( message.getMatrixId() ) { 
+			case 'R':
+				double positive = rowInt == reducerColNum 
+						? valDouble : Math.max( 0, valDouble );
+				if( reducerLevelNum == levelInt ) { 
+					colR[rowInt] = valDouble;
+					RPSum += positive;
+				} else { 
+					rhoAndPositives += positive;
+				}
+				break;
+			case 'A':
+				colA[rowInt] = valDouble;
+				break;
+			case 'S':
+				colS[rowInt] = valDouble;
+				break;
+			case 'C':
+				if( reducerLevelNum == levelInt ) { 
+					C = valDouble;
+				} else { 
+					CLevelBelow = valDouble;
+				}
+				break;
+			case 'T':
+				T = valDouble;
+				break;
+			case 'P':
+				P = valDouble;
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit( 1 );
+				break;
+			}
+		}
+
+		outputPhi(context, P, reducerColNum, reducerLevelNum, "P");
+		outputExemplars(context, C, reducerColNum, reducerLevelNum, "C");
+		outputTau(context, reducerLevelNum != 0 
+				? CLevelBelow + rhoAndPositives : T, 
+						reducerColNum, reducerLevelNum, "T");
+
+		if( reducerLevelNum == 0 && colS != null ) { 
+			outputSimilarity(context, colS, null, reducerColNum, 
+					reducerLevelNum, "S");
+		}
+
+		outputResponsibility(context, colR, null, reducerColNum, 
+				reducerLevelNum, "R");
+
+		double diagA = writeAvailability(context, colA, colR, null, 
+				C + P + RPSum, reducerColNum, reducerLevelNum, N, 
+				reducerColNum, "A");
+
+		diagonals.write(reducerColNum, reducerLevelNum, diagA, 
+				colR[reducerColNum]);
+		Convergence.recordExemplar(context, reducerLevelNum, 
+				previous.getA(reducerLevelNum)[reducerColNum], 
+				previous.getR(reducerLevelNum)[reducerColNum], 
+				diagA, colR[reducerColNum]);
+	}
+
+
+	/*
+	 * Counterpart of reduce for a column that is not a candidate exemplar:
+	 * pass its scalars on, with tau updated from the column of R below.
+	 */
+	private void reduceScalars(HapKey keyIn, Iterable<HapMessage> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		double T = 0;
+		double P = 0;
+		double C = 0;
+		double CLevelBelow = 0;
+
+		// r(k,k) plus the sum of positive R(i,k), i != k, of the level below
+		double rhoAndPositives = 0;
+
+		int reducerColNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		for (HapMessage message : valIn) { 
+			int rowInt = message.getIndex();
+			double valDouble = message.getValue();
+			int levelInt = message.getLevel();
+
+			switch( message.getMatrixId() ) { 
+			case 'R':
+				if( reducerLevelNum != levelInt ) { 
+					rhoAndPositives += rowInt == reducerColNum 
+							? valDouble : Math.max( 0, valDouble );
+				}
+				break;
+			case 'C':
+				if( reducerLevelNum == levelInt ) { 
+					C = valDouble;
+				} else { 
+					CLevelBelow = valDouble;
+				}
+				break;
+			case 'T':
+				T = valDouble;
+				break;
+			case 'P':
+				P = valDouble;
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit( 1 );
+				break;
+			}
+		}
+
+		outputPhi(context, P, reducerColNum, reducerLevelNum, "P");
+		outputExemplars(context, C, reducerColNum, reducerLevelNum, "C");
+		outputTau(context, reducerLevelNum != 0 
+				? CLevelBelow + rhoAndPositives : T, 
+						reducerColNum, reducerLevelNum, "T");
+
+		diagonals.write(reducerColNum, reducerLevelNum, 0, 0);
+		Convergence.recordExemplar(context, reducerLevelNum, 
+				previous.getA(reducerLevelNum)[reducerColNum], 
+				previous.getR(reducerLevelNum)[reducerColNum], 0, 0);
+	}
+
+
+	/**
+	 * <p>
+	 * Update every quantity owned by a single column once its input vectors 
+	 * have been assembled, and write the results to the given context.
+	 * </p>
+	 * 
+	 * <p>
+	 * This is shared by {@link AvailabilityReducer} and 
+	 * {@link AvailabilitySliceReducer}.
+	 * </p>
+	 * 
+	 * <p>
+	 * A is overwritten in place with the updated availabilities.
+	 * </p>
+	 * 
+	 * @return the updated diagonal element a(k,k)
+	 */
+	static double updateColumn(TaskInputOutputContext<?, ?, Text, VectorWritable> context,
+			double[] A, double[] R, double[] RLevelBelow, 
+			double[] S, double T, double P, double C,
+			double CLevelBelow, int reducerColNum, int reducerLevelNum,
+			int N) throws IOException, InterruptedException {
+		return updateColumn(context, A, R, RLevelBelow, S, T, P, C, 
+				CLevelBelow, reducerColNum, reducerLevelNum, N, 
+				reducerColNum, null);
+	}
+
+
+	/**
+	 * <p>
+	 * Update a column given as compact arrays over some of its rows, as in
+	 * sparse mode: every array holds N elements, the elements at the given
+	 * rows, and is written out as a sparse vector.
+	 * </p>
+	 * 
+	 * @param diag position of the diagonal element in the arrays
+	 * @param rows row of every element, or null for full columns
+	 * @return the updated diagonal element a(k,k)
+	 */
+	static double updateColumn(TaskInputOutputContext<?, ?, Text, VectorWritable> context,
+			double[] A, double[] R, double[] RLevelBelow, 
+			double[] S, double T, double P, double C,
+			double CLevelBelow, int reducerColNum, int reducerLevelNum,
+			int N, int diag, int[] rows) 
+					throws IOException, InterruptedException {
+
 		outputPhi(context, P, reducerColNum, reducerLevelNum, "P");
 
 		outputExemplars(context, C, reducerColNum, reducerLevelNum, "C");
 
 		if (reducerLevelNum != 0) {
 
-			updateTau(context, RLevelBelow, CLevelBelow, T, reducerColNum,
-					reducerLevelNum, N, "T");
+			updateTau(context, RLevelBelow, CLevelBelow, reducerColNum,
+					reducerLevelNum, N, diag, "T");
 
 		} else {
 			outputTau(context, T, reducerColNum, reducerLevelNum, "T");
 		}
 
-		if( reducerLevelNum == 0 ) { 
-			outputSimilarity(context, S, reducerColNum, reducerLevelNum, "S");
+		if( reducerLevelNum == 0 
+				&& !SimilarityStore.isEnabled(context.getConfiguration()) ) { 
+			outputSimilarity(context, S, rows, reducerColNum, 
+					reducerLevelNum, "S");
 		}
 
-		outputResponsibility(context, R, reducerColNum, reducerLevelNum, "R");
-
-		updateAvailability(context, A, R, S, P, C, reducerColNum,
-				reducerLevelNum, N, "A");
+		outputResponsibility(context, R, rows, reducerColNum, 
+				reducerLevelNum, "R");
 
-
-		keyIn = null;
-		valIn = null;
-		A = null;
-		R = null;
-		RLevelBelow = null;
-		S = null;
-		T = null;
-		P = null;
-		C = null;
-		CLevelBelow = null;
-		System.gc();
+		return updateAvailability(context, A, R, rows, P, C, reducerColNum,
+				reducerLevelNum, N, diag, "A");
 	}
 
 
@@ -198,11 +586,12 @@ Reducer<Text, Text, Text, VectorWritable> {
 	/*
 	 * Output Phi directly.
 	 */
-	private void outputPhi(Context context, DenseVector P, int reducerColNum,
+	private static void outputPhi(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double P, int reducerColNum,
 			int reducerLevelNum, String phi) throws IOException,
 			InterruptedException {
 
-		VectorWritable PWritable = new VectorWritable(P);
+		VectorWritable PWritable = new VectorWritable(
+				new DenseVector(new double[] { P }, true));
 
 		context.write(new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
 				+ phi), PWritable);
@@ -212,11 +601,12 @@ Reducer<Text, Text, Text, VectorWritable> {
 	/*
 	 * Output Exemplar Preferences directly.
 	 */
-	private void outputExemplars(Context context, DenseVector C, int reducerColNum,
+	private static void outputExemplars(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double C, int reducerColNum,
 			int reducerLevelNum, String exemplar) throws IOException,
 			InterruptedException {
 
-		VectorWritable CWritable = new VectorWritable(C);
+		VectorWritable CWritable = new VectorWritable(
+				new DenseVector(new double[] { C }, true));
 
 		context.write(new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
 				+ exemplar), CWritable);
@@ -226,11 +616,12 @@ Reducer<Text, Text, Text, VectorWritable> {
 	/*
 	 * Output Tau directly.
 	 */
-	private void outputTau(Context context, DenseVector T, int reducerColNum,
+	private static void outputTau(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double T, int reducerColNum,
 			int reducerLevelNum, String tau) throws IOException,
 			InterruptedException {
 
-		VectorWritable TWritable = new VectorWritable(T);
+		VectorWritable TWritable = new VectorWritable(
+				new DenseVector(new double[] { T }, true));
 
 		context.write(new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
 				+ tau), TWritable);
@@ -240,28 +631,32 @@ Reducer<Text, Text, Text, VectorWritable> {
 	/*
 	 * Output Similarity directly.
 	 */
-	private void outputSimilarity(Context context, DenseVector S, int reducerColNum,
-			int reducerLevelNum, String similarity) throws IOException,
-			InterruptedException {
+	private static void outputSimilarity(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] S, int[] rows,
+			int reducerColNum, int reducerLevelNum, String similarity) 
+					throws IOException, InterruptedException {
 
-		VectorWritable SWritable = new VectorWritable(S);
+		VectorWritable SWritable = writable(context, S, rows);
 
-		context.write(new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
-				+ similarity), SWritable);
+		Text SKey = new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
+				+ similarity);
+		context.write(SKey, SWritable);
+		Compression.recordState(context, SKey, S.length);
 	}
 
 
 	/*
 	 * Output Responsibility directly.
 	 */
-	private void outputResponsibility(Context context, DenseVector R, int reducerColNum,
-			int reducerLevelNum, String responsibility) throws IOException,
-			InterruptedException {
+	private static void outputResponsibility(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] R, int[] rows,
+			int reducerColNum, int reducerLevelNum, String responsibility) 
+					throws IOException, InterruptedException {
 
-		VectorWritable RWritable = new VectorWritable(R);
+		VectorWritable RWritable = writable(context, R, rows);
 
-		context.write(new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
-				+ responsibility), RWritable);
+		Text RKey = new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
+				+ responsibility);
+		context.write(RKey, RWritable);
+		Compression.recordState(context, RKey, R.length);
 	}
 
 
@@ -271,30 +666,17 @@ Reducer<Text, Text, Text, VectorWritable> {
 	 * Find the maximum of A+S keeping row constant varying column for level one
 	 * above level of lower P level
 	 */
-	private void updateTau(Context context, DenseVector RLevelBelow,
-			DenseVector CLevelBelow, DenseVector T, int reducerColNum, 
-			int reducerLevelNum, int N, String tau) throws IOException, InterruptedException {
-
-		double sumOfPositives = 0.0;
-		for( int rowNum = 0; rowNum < N; rowNum++ ) { 
-			if( rowNum == reducerColNum ) { 
-				continue;
-			}
-			double value = RLevelBelow.get( rowNum );
-			sumOfPositives += (value > 0) ? value : 0;
-		}
+	private static void updateTau(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] RLevelBelow,
+			double CLevelBelow, int reducerColNum, 
+			int reducerLevelNum, int N, int diag, String tau) throws IOException, InterruptedException {
 
-		double rhoValue = RLevelBelow.get( reducerColNum );
-		double exemplarValue = CLevelBelow.get( 0 ); // "CValue"
+		// r(k,k) plus the sum of positive R(i,k), i != k
+		double rhoAndPositives = HapKernels.positiveSum( RLevelBelow, 0, N, 
+				diag );
 
-		double tauValue = rhoValue + exemplarValue + sumOfPositives;
+		double tauValue = CLevelBelow + rhoAndPositives;
 
-		T.setQuick( 0, tauValue );
-		VectorWritable TWritable = new VectorWritable( T );
-
-		context.write(
-				new Text(reducerColNum + "\t" + reducerLevelNum + "\t" + tau),
-				TWritable);
+		outputTau( context, tauValue, reducerColNum, reducerLevelNum, tau );
 	}
 
 
@@ -302,61 +684,62 @@ Reducer<Text, Text, Text, VectorWritable> {
 	 * ALGORITHM: sum of positive R(i',k) where i'!=k : k=i A(i,k) = { min[ 0 ,
 	 * r(k,k) + sum of positive R(i',k) where i'!={i,k} ] : k != i Find the
 	 * maximum of S+A excluding self, subtract this from S, store this in self
-	 * (R).
+	 * (R). A is updated in place.
 	 */
-	private void updateAvailability(Context context, DenseVector A,
-			DenseVector R, DenseVector S, DenseVector P, DenseVector C,
-			int reducerColNum, int reducerLevelNum, int N, String availability) 
-					throws IOException, InterruptedException {
+	private static double updateAvailability(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] A,
+			double[] R, int[] rows, double P, double C,
+			int reducerColNum, int reducerLevelNum, int N, int diag, 
+			String availability) throws IOException, InterruptedException {
 
-		DenseVector oldA = A.clone();
+		// sum R Positive values, keeping the diagonal value from R
+		double RPSum = HapKernels.positiveSum( R, 0, N, diag );
 
-		// get positive values into RPositive
-		DenseVector RPositive = R.clone();
-		for( int rowNum = 0; rowNum < N; rowNum++ ) {
-			double RValue = RPositive.get( rowNum );
-			if( RValue < 0 ) { 
-				RPositive.setQuick( rowNum, 0 );
-			}
-		}
+		double CHat = C + P;
 
-		// reset diagonal value from R
-		RPositive.setQuick( reducerColNum, R.get( reducerColNum ) );
+		return writeAvailability(context, A, R, rows, CHat + RPSum, 
+				reducerColNum, reducerLevelNum, N, diag, availability);
+	}
 
-		// sum R Positive values
-		double RPSum = RPositive.zSum();
 
-		double CVal = C.get(0);
-		double PVal = P.get(0);
+	/*
+	 * Dampen A in place given r(k,k) plus C, P and the sum of positive 
+	 * R(i,k), i != k, and write it out.
+	 */
+	private static double writeAvailability(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] A,
+			double[] R, int[] rows, double total, int reducerColNum, 
+			int reducerLevelNum, int N, int diag, String availability) 
+					throws IOException, InterruptedException {
 
-		double CHat = CVal + PVal;
+		double lambda = context.getConfiguration().getFloat("lambda", 0);
+		double delta = HapKernels.dampedAvailability( R, 0, A, 0, N, 
+				diag, total, lambda );
 
-		// sum together CHat and RPSum into a vector
-		A.assign( CHat + RPSum );
+		Convergence.recordDelta( context, delta );
+		Instrumentation.recordUpdate( context, reducerLevelNum, delta );
 
-		A = (DenseVector) A.minus( RPositive );
+		VectorWritable AWritable = writable(context, A, rows);
 
-		for( int rowNum = 0; rowNum < N; rowNum++ ) {
+		Text AKey = new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
+				+ availability);
+		context.write(AKey, AWritable);
+		Compression.recordState(context, AKey, A.length);
 
-			if( rowNum == reducerColNum ) { 
-				continue;
-			}
+		return A[diag];
+	}
 
-			double value = A.get( rowNum ) < 0 ? A.get( rowNum ) : 0;
 
-			A.setQuick( rowNum, value );
+	/*
+	 * Wrap a column for output: in full, or as a sparse vector of matrixN
+	 * elements if the rows of its elements are given.
+	 */
+	private static VectorWritable writable(
+			TaskInputOutputContext<?, ?, Text, VectorWritable> context, 
+			double[] values, int[] rows) {
+		Precision precision = Precision.get(context.getConfiguration());
+		if (rows == null) {
+			return precision.writable(values);
 		}
-
-
-		double lambda = context.getConfiguration().getFloat("lambda", 0);
-		A = (DenseVector) A.times( 1 - lambda );
-		oldA = (DenseVector) oldA.times( lambda );
-		A = (DenseVector) A.plus( oldA );
-
-		VectorWritable AWritable = new VectorWritable( A );
-
-		context.write(new Text(reducerColNum + "\t" + reducerLevelNum + "\t"
-				+ availability), AWritable);
-
+		return precision.writable(values, rows, 
+				context.getConfiguration().getInt("matrixN", -1));
 	}
 }
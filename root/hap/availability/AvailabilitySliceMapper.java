@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.availability;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+import root.hap.util.KeyUtilities;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+
+
+/**
+ * <p>
+ * Mapper class for updating availability in the block ("slice") shuffle 
+ * mode.
+ * </p>
+ * 
+ * <p>
+ * This mapper distributes the same data as {@link AvailabilityMapper}, 
+ * but instead of one record per element it cuts each input row into 
+ * contiguous blocks of columns and writes one record per block.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> information about this row<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding input row
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [HapKey]:</code> {Block Number, Level}
+ * <br />
+ * <code>Output value [HapSlice]:</code> 
+ * {Row Number, Level, Matrix ID, First Column, Element Values}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalAvailabilityDriver
+ * @see AvailabilitySliceReducer
+ * 
+ */
+public class AvailabilitySliceMapper extends 
+Mapper<Text, VectorWritable, HapKey, HapSlice> {
+
+	private int N;
+	private int numLevels;
+	private int numBlocks;
+	private boolean similarityStored;
+
+	private double[] row;
+	private double[] block;
+	private final double[] single = new double[1];
+
+	private final HapKey keyOut = new HapKey();
+	private final HapSlice valOut = new HapSlice();
+	private final Instrumentation.Emitted emitted = 
+			new Instrumentation.Emitted();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numLevels = conf.getInt("numLevels", -1);
+		numBlocks = BlockUtilities.getNumBlocks(conf, N, 
+				context.getNumReduceTasks());
+		similarityStored = SimilarityStore.isEnabled(conf);
+		valOut.setPrecision(Precision.get(conf));
+
+		row = new double[N];
+		block = new double[BlockUtilities.blockEnd(0, N, numBlocks) + 1];
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		emitted.flush(context);
+	}
+
+
+	/**
+	 * <p>
+	 * This method takes in a vector or matrix row and outputs its elements
+	 * block by block in a fashion usable by the Reducer.
+	 * </p>
+	 * 
+	 * @param keyIn vector identification text
+	 * @param valIn vector data
+	 */
+	public void map(Text keyIn, VectorWritable valIn, Context context)
+			throws IOException, InterruptedException {
+
+		String[] keyData = KeyUtilities.explode(keyIn, false);
+
+		int rowNum = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		int level = Integer.valueOf(keyData[KeyUtilities.LEVEL]);
+		char id = keyData[KeyUtilities.ID].charAt(0);
+
+		Vector vector = valIn.get();
+
+		if (id == 'A') {  // Availability vectors
+
+			copyRow(vector);
+			writeBlocks(context, rowNum, level, level, id);
+
+		} else if (id == 'R') {  // Responsibility vectors
+
+			copyRow(vector);
+			writeBlocks(context, rowNum, level, level, id);
+
+			if (level + 1 < numLevels) {  // Second level of Responsibility
+				writeBlocks(context, rowNum, level, level + 1, id);
+			}
+
+		} else if (id == 'S' && !similarityStored) {  // Similarity vectors
+
+			copyRow(vector);
+			for (int i = 0; i < numLevels; i++) {
+				writeBlocks(context, rowNum, i, i, id);
+			}
+
+		} else if (id == 'T' || id == 'P' || id == 'C') {  // 1D vectors
+
+			single[0] = vector.get(0);
+			int block = BlockUtilities.blockOf(rowNum, N, numBlocks);
+
+			keyOut.set(block, level);
+			valOut.set(rowNum, level, id, rowNum, single, 1);
+			context.write(keyOut, valOut);
+			emitted.record(valOut);
+
+			if (id == 'C' && level + 1 < numLevels) {
+				keyOut.set(block, level + 1);
+				context.write(keyOut, valOut);
+				emitted.record(valOut);
+			}
+		}
+	}
+
+
+	/*
+	 * Unpack the input vector into the reusable row buffer.
+	 */
+	private void copyRow(Vector vector) { 
+		for( int col = 0; col < N; col++ ) { 
+			row[col] = vector.getQuick(col);
+		}
+	}
+
+
+	/*
+	 * Cut the row buffer into one slice per block of columns.
+	 */
+	private void writeBlocks(Context context, int rowNum, int level, 
+			int targetLevel, char id) throws IOException, InterruptedException {
+		for( int b = 0; b < numBlocks; b++ ) { 
+			int start = BlockUtilities.blockStart(b, N, numBlocks);
+			int length = BlockUtilities.blockEnd(b, N, numBlocks) - start;
+
+			System.arraycopy(row, start, block, 0, length);
+
+			keyOut.set(b, targetLevel);
+			valOut.set(rowNum, level, id, start, block, length);
+			context.write(keyOut, valOut);
+			emitted.record(valOut);
+		}
+	}
+}
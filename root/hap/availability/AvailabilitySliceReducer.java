@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.availability;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.Convergence;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+
+
+/**
+ * <p>
+ * Reducer class for updating availability in the block ("slice") shuffle 
+ * mode.
+ * </p>
+ * 
+ * <p>
+ * Each call receives every slice destined for one block of columns at one
+ * level. Slices are copied in bulk into source-major tiles, after which 
+ * each column of the block is gathered and updated exactly as in 
+ * {@link AvailabilityReducer}. A reduce call holds four N by block-size 
+ * tiles in memory.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [HapKey]:</code> {Block Number, Level}<br />
+ * <code>Input value [Iterable&lt;HapSlice&gt;]:</code> the slices of the 
+ * input rows covering this block
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Column Number, Level, 
+ * Matrix ID}
+ * <br />
+ * <code>Output value [VectorWritable]:</code> vector of appropriate data
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalAvailabilityDriver
+ * @see AvailabilitySliceMapper
+ * 
+ */
+public class AvailabilitySliceReducer extends
+Reducer<HapKey, HapSlice, Text, VectorWritable> {
+
+	private int N;
+	private int numBlocks;
+
+	// source-major tiles: tile[ row * blockLength + column - blockStart ]
+	private double[] ATile;
+	private double[] RTile;
+	private double[] RLevelBelowTile;
+	private double[] STile;
+
+	private double[] T;
+	private double[] P;
+	private double[] C;
+	private double[] CLevelBelow;
+
+	// reusable column buffers
+	private double[] ACol;
+	private double[] RCol;
+	private double[] RLevelBelowCol;
+	private double[] SCol;
+
+	private Diagonals.Writer diagonals;
+	private Diagonals previous;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numBlocks = BlockUtilities.getNumBlocks(conf, N, 
+				context.getNumReduceTasks());
+
+		int maxBlockLength = BlockUtilities.blockEnd(0, N, numBlocks) + 1;
+		long tileSize = (long) N * maxBlockLength;
+		if( tileSize > Integer.MAX_VALUE ) { 
+			System.err.println("[ERROR]: Block too large, increase the "
+					+ "number of blocks.");
+			System.exit(1);
+		}
+
+		ATile = new double[(int) tileSize];
+		RTile = new double[(int) tileSize];
+		RLevelBelowTile = new double[(int) tileSize];
+		STile = new double[(int) tileSize];
+
+		T = new double[maxBlockLength];
+		P = new double[maxBlockLength];
+		C = new double[maxBlockLength];
+		CLevelBelow = new double[maxBlockLength];
+
+		ACol = new double[N];
+		RCol = new double[N];
+		RLevelBelowCol = new double[N];
+		SCol = new double[N];
+
+		diagonals = new Diagonals.Writer(context);
+		previous = Diagonals.load(conf, N);
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		diagonals.close();
+		Convergence.writeDelta(context);
+		Instrumentation.recordTask(context, startMillis);
+	}
+
+
+	/**
+	 * <p>
+	 * This method serves to update the availability matrix for a block of
+	 * columns by accessing the slices of each matrix covering that block.
+	 * </p>
+	 * 
+	 * @param keyIn block identification
+	 * @param valIn slice data
+	 */
+	public void reduce(HapKey keyIn, Iterable<HapSlice> valIn, Context context)
+			throws IOException, InterruptedException {
+
+		int block = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		int blockStart = BlockUtilities.blockStart(block, N, numBlocks);
+		int blockLength = BlockUtilities.blockEnd(block, N, numBlocks) 
+				- blockStart;
+		int tileLength = N * blockLength;
+
+		Arrays.fill(ATile, 0, tileLength, 0);
+		Arrays.fill(RTile, 0, tileLength, 0);
+		Arrays.fill(RLevelBelowTile, 0, tileLength, 0);
+		Arrays.fill(STile, 0, tileLength, 0);
+		Arrays.fill(T, 0);
+		Arrays.fill(P, 0);
+		Arrays.fill(C, 0);
+		Arrays.fill(CLevelBelow, 0);
+
+		for (HapSlice slice : valIn) { 
+			switch( slice.getMatrixId() ) { 
+			case 'R':
+				if( reducerLevelNum == slice.getLevel() ) { 
+					BlockUtilities.copyIntoTile(slice, RTile, blockStart, blockLength);
+				} else { 
+					BlockUtilities.copyIntoTile(slice, RLevelBelowTile, blockStart, blockLength);
+				}
+				break;
+			case 'A':
+				BlockUtilities.copyIntoTile(slice, ATile, blockStart, blockLength);
+				break;
+			case 'S':
+				BlockUtilities.copyIntoTile(slice, STile, blockStart, blockLength);
+				break;
+			case 'C':
+				if( reducerLevelNum == slice.getLevel() ) { 
+					copy(slice, C, blockStart);
+				} else { 
+					copy(slice, CLevelBelow, blockStart);
+				}
+				break;
+			case 'T':
+				copy(slice, T, blockStart);
+				break;
+			case 'P':
+				copy(slice, P, blockStart);
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit( 1 );
+				break;
+			}
+		}
+
+		for( int i = 0; i < blockLength; i++ ) { 
+			BlockUtilities.gather(ATile, i, blockLength, ACol, N);
+			BlockUtilities.gather(RTile, i, blockLength, RCol, N);
+			BlockUtilities.gather(RLevelBelowTile, i, blockLength, RLevelBelowCol, N);
+			BlockUtilities.gather(STile, i, blockLength, SCol, N);
+
+			double diagA = AvailabilityReducer.updateColumn(context, ACol, 
+					RCol, RLevelBelowCol, SCol, T[i], P[i], C[i], 
+					CLevelBelow[i], blockStart + i, reducerLevelNum, N);
+
+			diagonals.write(blockStart + i, reducerLevelNum, diagA, 
+					RCol[blockStart + i]);
+			Convergence.recordExemplar(context, reducerLevelNum, 
+					previous.getA(reducerLevelNum)[blockStart + i], 
+					previous.getR(reducerLevelNum)[blockStart + i], 
+					diagA, RCol[blockStart + i]);
+		}
+	}
+
+
+	/*
+	 * Copy a slice into a flat array indexed relative to the given offset.
+	 */
+	private static void copy(HapSlice slice, double[] dest, int offset) { 
+		System.arraycopy(slice.getValues(), 0, dest, 
+				slice.getStart() - offset, slice.getLength());
+	}
+}
@@ -18,6 +18,7 @@ package root.hap.availability;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
@@ -27,6 +28,21 @@ import org.apache.hadoop.util.ToolRunner;
 import org.apache.mahout.common.AbstractJob;
 import org.apache.mahout.math.VectorWritable;
 
+import root.hap.util.BlockUtilities;
+import root.hap.util.Candidates;
+import root.hap.util.Compression;
+import root.hap.util.Convergence;
+import root.hap.util.Diagonals;
+import root.hap.util.HapBlockPartitioner;
+import root.hap.util.HapKey;
+import root.hap.util.HapKeyPartitioner;
+import root.hap.util.HapMessage;
+import root.hap.util.HapSlice;
+import root.hap.util.HapSortKey;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+import root.hap.util.SparseEdges;
+
 
 /**
  * <p>
@@ -41,7 +57,9 @@ import org.apache.mahout.math.VectorWritable;
  * 
  * <p>
  * The exact breakdown of the MapReduce implementation is discussed in the 
- * appropriate {@link AvailabilityMapper} and {@link AvailabilityReducer}.
+ * appropriate {@link AvailabilityMapper} and {@link AvailabilityReducer}, or in 
+ * {@link AvailabilitySliceMapper} and {@link AvailabilitySliceReducer} when the 
+ * block ("slice") shuffle mode is selected.
  * </p>
  * 
  * @author Dillon Rose
@@ -61,6 +79,19 @@ public class HierarchicalAvailabilityDriver extends AbstractJob {
 	private static String lambda;
 	private static String numLevels;
 	private static String numIteration;
+	private static String shuffleMode;
+	private static String numBlocks;
+	private static String similarityStore;
+	private static String precision;
+	private static String stateCodec;
+	private static String shuffleCodec;
+	private static String sparse;
+	private static String candidates;
+	private static String restricted;
+	private static String streaming;
+	private static String previousDirectory;
+
+	private Counters counters;
 
 
 	/*
@@ -74,6 +105,34 @@ public class HierarchicalAvailabilityDriver extends AbstractJob {
 		addOption("lambda", "lambda", "Dampening Factor", true);
 		addOption("numLevels", "l", "Number of Levels", true);
 		addOption("numIter", "iter", "Number of Iterations", true);
+		addOption("shuffle", "shuffle", "Shuffle Mode (element, slice)", 
+				BlockUtilities.SHUFFLE_ELEMENT);
+		addOption("numBlocks", "blocks", 
+				"Number of Blocks in slice mode (0: one per reduce task)", "0");
+		addOption("similarityStore", "ss", 
+				"Similarity Store Directory (S is shuffled if absent)", false);
+		addOption("precision", "precision", 
+				"Storage Precision (double, float, bfloat16)", "double");
+		addOption("stateCodec", "stateCodec", 
+				"Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("shuffleCodec", "shuffleCodec", 
+				"Map Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("sparse", "sparse", 
+				"Sparse Similarity Matrix (true, false)", "false");
+		addOption("candidates", "candidates", 
+				"Restrict every Level to the Exemplars below (true, false)", 
+				"false");
+		addOption("restricted", "restricted", 
+				"Levels restricted by -candidates (all, none, or a comma separated list)", 
+				Candidates.ALL);
+		addOption("previous", "prev", 
+				"Previous Iteration Directory (to count exemplar changes)", 
+				false);
+		addOption("streaming", "stream", 
+				"Stream every Column through reused Buffers (true, false)", 
+				"false");
 
 	}
 
@@ -89,6 +148,17 @@ public class HierarchicalAvailabilityDriver extends AbstractJob {
 		lambda = getOption("lambda");
 		numLevels = getOption("numLevels");
 		numIteration = getOption("numIter");
+		shuffleMode = getOption("shuffle");
+		numBlocks = getOption("numBlocks");
+		similarityStore = getOption("similarityStore");
+		precision = getOption("precision");
+		stateCodec = getOption("stateCodec");
+		shuffleCodec = getOption("shuffleCodec");
+		sparse = getOption("sparse");
+		candidates = getOption("candidates");
+		restricted = getOption("restricted");
+		streaming = getOption("streaming");
+		previousDirectory = getOption("previous");
 
 	}
 
@@ -114,22 +184,50 @@ public class HierarchicalAvailabilityDriver extends AbstractJob {
 
 		initArguments();
 
+		// Candidates are found from the diagonals entering the iteration.
+		if (Boolean.valueOf(candidates) && previousDirectory == null) {
+			System.err.println("[ERROR]: Candidate restriction requires the previous iteration directory.");
+			System.exit(1);
+		}
+
 		conf.setInt("matrixN",Integer.valueOf(matrixN));
 		conf.setFloat("lambda",Float.valueOf(lambda));
 		conf.setInt("numLevels",Integer.valueOf(numLevels));
 		conf.setInt("numIteration",Integer.valueOf(numIteration));
+		conf.setInt(BlockUtilities.NUM_BLOCKS_KEY,Integer.valueOf(numBlocks));
+		Precision.configure(conf,precision,0);
+		conf.setBoolean(SparseEdges.SPARSE_KEY,Boolean.valueOf(sparse));
+		conf.setBoolean(Candidates.CANDIDATES_KEY,Boolean.valueOf(candidates));
+		conf.set(Candidates.RESTRICTED_KEY,restricted);
+		conf.setBoolean(HapSortKey.STREAMING_KEY,Boolean.valueOf(streaming));
+		if (similarityStore != null) {
+			conf.set(SimilarityStore.PATH_KEY,similarityStore);
+		}
+		if (previousDirectory != null) {
+			conf.set(Diagonals.PATH_KEY,previousDirectory);
+		}
 
 		Job job = new Job(conf, "HierarchicalAvailability");
 		job.setJarByClass(HierarchicalAvailabilityDriver.class);
-
-		job.setMapperClass(AvailabilityMapper.class);
-		job.setReducerClass(AvailabilityReducer.class);
+		Compression.configure(job, stateCodec, shuffleCodec);
 
 		job.setInputFormatClass(SequenceFileInputFormat.class);
 		job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-		job.setMapOutputKeyClass(Text.class);
-		job.setMapOutputValueClass(Text.class);
+		job.setMapOutputKeyClass(HapKey.class);
+		job.setSortComparatorClass(HapKey.Comparator.class);
+
+		if (BlockUtilities.SHUFFLE_SLICE.equals(shuffleMode)) {
+			job.setMapperClass(AvailabilitySliceMapper.class);
+			job.setReducerClass(AvailabilitySliceReducer.class);
+			job.setMapOutputValueClass(HapSlice.class);
+			job.setPartitionerClass(HapBlockPartitioner.class);
+		} else {
+			job.setMapperClass(AvailabilityMapper.class);
+			job.setReducerClass(AvailabilityReducer.class);
+			job.setMapOutputValueClass(HapMessage.class);
+			job.setPartitionerClass(HapKeyPartitioner.class);
+		}
 
 		job.setOutputKeyClass(Text.class);
 		job.setOutputValueClass(VectorWritable.class);
@@ -137,8 +235,22 @@ public class HierarchicalAvailabilityDriver extends AbstractJob {
 		FileInputFormat.addInputPath(job, new Path(inputDirectory));
 		FileOutputFormat.setOutputPath(job, new Path(outputDirectory));
 
-		return job.waitForCompletion(true) ? 0 : 1;
+		boolean success = job.waitForCompletion(true);
+		counters = job.getCounters();
+		Convergence.collectMaxDelta(conf, new Path(outputDirectory), counters);
+
+		return success ? 0 : 1;
+
+	}
 
+
+	/**
+	 * @return the counters of the last job run by this driver, used by 
+	 * the calling job to detect convergence
+	 * @see Convergence
+	 */
+	public Counters getCounters() {
+		return counters;
 	}
 
 
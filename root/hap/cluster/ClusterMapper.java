@@ -16,12 +16,18 @@
 package root.hap.cluster;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
+import root.hap.util.HapKey;
+import root.hap.util.HapMessage;
 import root.hap.util.KeyUtilities;
+import root.hap.util.Precision;
+import root.hap.util.SparseEdges;
 
 
 /**
@@ -36,14 +42,20 @@ import root.hap.util.KeyUtilities;
  * </p>
  * 
  * <p>
+ * When the similarity matrix is sparse (see {@link SparseEdges}), only the
+ * non-zero elements are distributed, together with S, which defines the 
+ * edges of every row.
+ * </p>
+ * 
+ * <p>
  * <code>Input key [Text]:</code> information about this column<br />
  * <code>Input value [VectorWritable]:</code> the corresponding column
  * </p>
  * 
  * <p>
- * <code>Output key [Text]:</code> tab separated list: {Row Number, Level}
+ * <code>Output key [HapKey]:</code> {Row Number, Level}
  * <br />
- * <code>Output value [Text]:</code> tab separated list: 
+ * <code>Output value [HapMessage]:</code> 
  * {Column Number, Level, Matrix ID, Element Value}
  * </p>
  * 
@@ -56,7 +68,21 @@ import root.hap.util.KeyUtilities;
  * @see ClusterReducer
  * 
  */
-public class ClusterMapper extends Mapper<Text, VectorWritable, Text, Text> {
+public class ClusterMapper extends 
+Mapper<Text, VectorWritable, HapKey, HapMessage> {
+
+	private final HapKey keyOut = new HapKey();
+	private final HapMessage valOut = new HapMessage();
+
+	private boolean sparse;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		valOut.setPrecision(Precision.get(context.getConfiguration()));
+		sparse = SparseEdges.isEnabled(context.getConfiguration());
+	}
 
 
 	/**
@@ -75,73 +101,30 @@ public class ClusterMapper extends Mapper<Text, VectorWritable, Text, Text> {
 
 		String[] keyData = KeyUtilities.explode( keyIn , false );
 
-		String col = keyData[KeyUtilities.INDEX];
-		String level = keyData[KeyUtilities.LEVEL];
-		String id = keyData[KeyUtilities.ID];
+		int col = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		int level = Integer.valueOf(keyData[KeyUtilities.LEVEL]);
+		char id = keyData[KeyUtilities.ID].charAt(0);
 		
-		int colInt = Integer.valueOf( col );
-		String diagID = id.toLowerCase();
-
-		Text keyOut,valOut;
-
-		if (id.equals("R")) {
-			
-			double elementValue = valIn.get().get(colInt);
-
-			for (int diagIter = 0; diagIter < N; diagIter++) {
-
-				keyOut = new Text();
-				keyOut.set(diagIter + "\t" + level);
-				valOut = new Text();
-
-				valOut.set(colInt + "\t" + level + "\t" + diagID + "\t"
-						+ elementValue);
-
-				context.write(keyOut, valOut);
-			}
-
-			for( int row = 0; row < N; row++ ) { 
-				elementValue = valIn.get().get( row );
-
-				keyOut = new Text();
-				keyOut.set(row + "\t" + level);
-				
-				valOut = new Text();
-				valOut.set(col + "\t" + level + "\t" + id
-						+ "\t" + elementValue);
-				
-				context.write(keyOut, valOut);
-
+		Vector vector = valIn.get();
+
+		if (sparse) {
+
+			if (id == 'R' || id == 'A') {
+				emitEdges(context, vector, col, level, id);
+			} else if (id == 'S') {
+				int numLevels = 
+						context.getConfiguration().getInt("numLevels", -1);
+				for (int i = 0; i < numLevels; i++) {
+					emitEdges(context, vector, col, i, id);
+				}
 			}
 
-		} else if (id.equals("A")) {
+		} else if (id == 'R' || id == 'A') {
 			
-			double elementValue = valIn.get().get(colInt);
-
-			for (int diagIter = 0; diagIter < N; diagIter++) {
-
-				keyOut = new Text();
-				keyOut.set(diagIter + "\t" + level);
-				valOut = new Text();
-
-				valOut.set(colInt + "\t" + level + "\t" + diagID + "\t"
-						+ elementValue);
-
-				context.write(keyOut, valOut);
-			}
-
-
 			for( int row = 0; row < N; row++ ) { 
-				elementValue = valIn.get().get( row );
-
-				keyOut = new Text();
-				keyOut.set(row + "\t" + level);
-				
-				valOut = new Text();
-				valOut.set(col + "\t" + level + "\t" + id
-						+ "\t" + elementValue);
+				keyOut.set(row, level);
+				valOut.set(col, level, id, vector.get( row ));
 				context.write(keyOut, valOut);
-
 			}
 
 		}
@@ -151,4 +134,19 @@ public class ClusterMapper extends Mapper<Text, VectorWritable, Text, Text> {
 		valIn = null;
 		System.gc();
 	}
+
+
+	/*
+	 * Send the non-zero elements of a column to the reducers of their rows.
+	 */
+	private void emitEdges(Context context, Vector vector, int col, 
+			int level, char id) throws IOException, InterruptedException {
+		Iterator<Vector.Element> elements = vector.iterateNonZero();
+		while (elements.hasNext()) {
+			Vector.Element element = elements.next();
+			keyOut.set(element.index(), level);
+			valOut.set(col, level, id, element.get());
+			context.write(keyOut, valOut);
+		}
+	}
 }
\ No newline at end of file
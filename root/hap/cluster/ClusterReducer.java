@@ -16,13 +16,17 @@
 package root.hap.cluster;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.mahout.math.DenseVector;
 
-import root.hap.util.KeyUtilities;
+import root.hap.util.Candidates;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKernels;
+import root.hap.util.HapKey;
+import root.hap.util.HapMessage;
+import root.hap.util.Instrumentation;
+import root.hap.util.SparseEdges;
 
 
 /**
@@ -31,13 +35,20 @@ import root.hap.util.KeyUtilities;
  * </p>
  * 
  * <p>
- * This reducer takes in a set of rows and diagonals from the HAP algorithm 
- * generated matrices and uses their contents to extract cluster descriptions.
+ * This reducer takes in a set of rows from the HAP algorithm generated 
+ * matrices, together with their diagonals from the {@link Diagonals} side
+ * file, and uses their contents to extract cluster descriptions.
  * </p>
  * 
  * <p>
- * <code>Input key [Text]:</code> information about these rows<br />
- * <code>Input value [Iterable&lt;Text&gt;]:</code> the corresponding rows
+ * When the similarity matrix is sparse (see {@link SparseEdges}), the 
+ * exemplar of a row is chosen among its edges, the columns present in S.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [HapKey]:</code> information about these rows<br />
+ * <code>Input value [Iterable&lt;HapMessage&gt;]:</code> the corresponding 
+ * row elements
  * </p>
  * 
  * <p>
@@ -55,7 +66,39 @@ import root.hap.util.KeyUtilities;
  * @see ClusterReducer
  * 
  */
-public class ClusterReducer extends Reducer<Text, Text, Text, Text> {
+public class ClusterReducer extends Reducer<HapKey, HapMessage, Text, Text> {
+
+	private Diagonals diagonals;
+	private Candidates candidates;
+
+	// Sparse mode: gatherer of the edges of a row, and its targets.
+	private static final int S_EDGES = 0;
+	private static final int R_EDGES = 1;
+	private static final int A_EDGES = 2;
+
+	private SparseEdges.Row edges;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		int N = context.getConfiguration().getInt("matrixN", -1);
+		diagonals = Diagonals.load(context.getConfiguration(), N);
+		candidates = Candidates.load(context.getConfiguration());
+		if (SparseEdges.isEnabled(context.getConfiguration())) {
+			edges = new SparseEdges.Row(N);
+		}
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		Instrumentation.recordTask(context, startMillis);
+	}
 
 
 	/**
@@ -69,47 +112,36 @@ public class ClusterReducer extends Reducer<Text, Text, Text, Text> {
 	 * @param keyIn vector identification block
 	 * @param valIn vector data
 	 */
-	public void reduce(Text keyIn, Iterable<Text> valIn, Context context)
+	public void reduce(HapKey keyIn, Iterable<HapMessage> valIn, Context context)
 			throws IOException, InterruptedException {
 
+		if (edges != null) {
+			reduceEdges(keyIn, valIn, context);
+			return;
+		}
+
 		int N = context.getConfiguration().getInt("matrixN", -1);
 
 		// data structures to reconstruct the rows we're working on
-		DenseVector A = new DenseVector( N );
-		DenseVector diagA = new DenseVector(N);
-		DenseVector R = new DenseVector( N );
-		DenseVector diagR = new DenseVector(N);
-
-		int reducerRowNum = Integer.valueOf(keyIn.toString().split("\t")[0]);
-		int reducerLevelNum = Integer.valueOf(keyIn.toString().split("\t")[1]);
-
-		for (Text text : valIn) {
-			// **** important, do not remove this conversion ****
-			// we must do this for some reason..not sure why.
-			// if we don't the loop doesn't iterate properly.
-			// **** important, do not remove this conversion ****
-			text = new Text(text.toString());
-
-			String[] textData = KeyUtilities.explode( text, true );
-			String id = textData[ KeyUtilities.ID ];
-			String row = textData[ KeyUtilities.INDEX ];
-			String value = textData[ KeyUtilities.VALUE ];
-
-			int rowInt = Integer.valueOf( row );
-			double valDouble = Double.valueOf( value );
-
-			switch( id.charAt( 0 ) ) { 
+		double[] A = new double[N];
+		double[] R = new double[N];
+
+		int reducerRowNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		double[] diagA = diagonals.getA( reducerLevelNum );
+		double[] diagR = diagonals.getR( reducerLevelNum );
+
+		for (HapMessage message : valIn) {
+			int rowInt = message.getIndex();
+			double valDouble = message.getValue();
+
+			switch( message.getMatrixId() ) { 
 			case 'R':
-				R.setQuick( rowInt, valDouble );
-				break;
-			case 'r':
-				diagR.setQuick( rowInt, valDouble );
+				R[rowInt] = valDouble;
 				break;
 			case 'A':
-				A.setQuick( rowInt, valDouble );
-				break;
-			case 'a':
-				diagA.setQuick( rowInt, valDouble );
+				A[rowInt] = valDouble;
 				break;
 			default:
 				System.err.println("[ERROR]: Invalid matrix ID.");
@@ -127,13 +159,59 @@ public class ClusterReducer extends Reducer<Text, Text, Text, Text> {
 		keyIn = null;
 		valIn = null;
 		A = null;
-		diagA = null;
 		R = null;
-		diagR = null;
 		System.gc();
 	}
 
 
+	/*
+	 * Sparse counterpart of reduce: choose the exemplar among the edges of
+	 * the row.
+	 */
+	private void reduceEdges(HapKey keyIn, Iterable<HapMessage> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		int reducerRowNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		edges.clear();
+
+		for (HapMessage message : valIn) {
+			int colInt = message.getIndex();
+			double valDouble = message.getValue();
+
+			switch( message.getMatrixId() ) { 
+			case 'R':
+				edges.add( R_EDGES, colInt, valDouble );
+				break;
+			case 'A':
+				edges.add( A_EDGES, colInt, valDouble );
+				break;
+			case 'S':
+				edges.add( S_EDGES, colInt, valDouble );
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit( 1 );
+				break;
+			}
+		}
+
+		int size = edges.build( S_EDGES );
+
+		double[] diagA = edges.gather( diagonals.getA( reducerLevelNum ) );
+		double[] diagR = edges.gather( diagonals.getR( reducerLevelNum ) );
+
+		int slot = HapKernels.exemplarIndex( edges.get( A_EDGES ), 0, 
+				edges.get( R_EDGES ), 0, diagA, diagR, null, size );
+
+		if (slot != -1) {
+			context.write(new Text(), new Text( edges.getIndices()[slot] 
+					+ "\t" + reducerRowNum + "\t" + reducerLevelNum ));
+		}
+	}
+
+
 	//	private void printInput( DenseVector A, DenseVector diagA, DenseVector R, DenseVector diagR ) {
 	//		System.out.println( A );
 	// 		System.out.println( diagA );
@@ -149,44 +227,14 @@ public class ClusterReducer extends Reducer<Text, Text, Text, Text> {
 	 * A(j,j,l) + R(i,j,l) > 0 Find the maximum of A+R keeping row constant
 	 * varying column for level equal level to lower C level
 	 */
-	private void updateExemplars(Context context, DenseVector A, DenseVector diagA, DenseVector R,
-			DenseVector diagR, int reducerRowNum, int reducerLevelNum, int N ) 
+	private void updateExemplars(Context context, double[] A, double[] diagA, double[] R,
+			double[] diagR, int reducerRowNum, int reducerLevelNum, int N ) 
 					throws IOException, InterruptedException {
 
-		boolean [] validExemplars = new boolean [N];
-		boolean validExist = false;
-		Arrays.fill(validExemplars, false);
-
-		for ( int diagIter = 0; diagIter < N ; diagIter++ ){
-			double diagVal = diagA.get( diagIter ) + diagR.get( diagIter );
-			if( diagVal > 0 ){
-				validExemplars[diagIter] = true;
-				validExist = true;
-			}
-		}
-
-		DenseVector sum = (DenseVector) A.plus(R);
-		double maxValue = Double.NEGATIVE_INFINITY;
-		int maxValueIndex = sum.maxValueIndex();
-
-		if( validExist ){
-
-			for ( int diagIter = 0; diagIter < N ; diagIter++ ){
-
-				double validValue = sum.get( diagIter );
-				if( validExemplars [diagIter] && validValue > maxValue){
-					maxValue = validValue;
-					maxValueIndex = diagIter;
-				}
-
-			}
-
-		}else{
-
-			maxValue = sum.maxValue();
-			maxValueIndex = sum.maxValueIndex();
-
-		}
+		// Columns without messages are no candidates, not zero messages.
+		int maxValueIndex = HapKernels.exemplarIndex( A, 0, R, 0, 
+				diagA, diagR, candidates == null 
+				? null : candidates.get( reducerLevelNum ), N );
 
 		Text output = new Text( maxValueIndex + "\t" + reducerRowNum + "\t"
 				+ reducerLevelNum );
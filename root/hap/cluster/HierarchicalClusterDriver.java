@@ -18,6 +18,7 @@ package root.hap.cluster;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
@@ -26,6 +27,13 @@ import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.mahout.common.AbstractJob;
 
+import root.hap.util.Candidates;
+import root.hap.util.Compression;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKey;
+import root.hap.util.HapMessage;
+import root.hap.util.SparseEdges;
+
 
 /**
  * <p>
@@ -58,6 +66,13 @@ public class HierarchicalClusterDriver extends AbstractJob {
 	private static String inputDirectory;
 	private static String outputDirectory;
 	private static String matrixN;
+	private static String shuffleCodec;
+	private static String numLevels;
+	private static String sparse;
+	private static String candidates;
+	private static String restricted;
+
+	private Counters counters;
 
 
 	/*
@@ -68,6 +83,18 @@ public class HierarchicalClusterDriver extends AbstractJob {
 		addOption("input", "i", "Input Directory", true);
 		addOption("out", "o", "Output Directory", true);
 		addOption("N", "n", "Size of Matrix (NxN)", true);
+		addOption("shuffleCodec", "shuffleCodec", 
+				"Map Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("numLevels", "l", "Number of Levels", "1");
+		addOption("sparse", "sparse", 
+				"Sparse Similarity Matrix (true, false)", "false");
+		addOption("candidates", "candidates", 
+				"Restrict every Level to the Exemplars below (true, false)", 
+				"false");
+		addOption("restricted", "restricted", 
+				"Levels restricted by -candidates (all, none, or a comma separated list)", 
+				Candidates.ALL);
 
 	}
 
@@ -80,6 +107,11 @@ public class HierarchicalClusterDriver extends AbstractJob {
 		inputDirectory = getOption("input");
 		outputDirectory = getOption("out");
 		matrixN = getOption("N");
+		shuffleCodec = getOption("shuffleCodec");
+		numLevels = getOption("numLevels");
+		sparse = getOption("sparse");
+		candidates = getOption("candidates");
+		restricted = getOption("restricted");
 
 	}
 
@@ -106,9 +138,15 @@ public class HierarchicalClusterDriver extends AbstractJob {
 		initArguments();
 
 		conf.setInt("matrixN",Integer.valueOf(matrixN));
+		conf.set(Diagonals.PATH_KEY,inputDirectory);
+		conf.setInt("numLevels",Integer.valueOf(numLevels));
+		conf.setBoolean(SparseEdges.SPARSE_KEY,Boolean.valueOf(sparse));
+		conf.setBoolean(Candidates.CANDIDATES_KEY,Boolean.valueOf(candidates));
+		conf.set(Candidates.RESTRICTED_KEY,restricted);
 
 		Job job = new Job(conf, "HierarchicalResponsibility");
 		job.setJarByClass(HierarchicalClusterDriver.class);
+		Compression.configure(job, Compression.NONE, shuffleCodec);
 
 		job.setMapperClass(ClusterMapper.class);
 		job.setReducerClass(ClusterReducer.class);
@@ -116,8 +154,9 @@ public class HierarchicalClusterDriver extends AbstractJob {
 		job.setInputFormatClass(SequenceFileInputFormat.class);
 		job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-		job.setMapOutputKeyClass(Text.class);
-		job.setMapOutputValueClass(Text.class);
+		job.setMapOutputKeyClass(HapKey.class);
+		job.setMapOutputValueClass(HapMessage.class);
+		job.setSortComparatorClass(HapKey.Comparator.class);
 
 		job.setOutputKeyClass(Text.class);
 		job.setOutputValueClass(Text.class);
@@ -125,8 +164,19 @@ public class HierarchicalClusterDriver extends AbstractJob {
 		FileInputFormat.addInputPath(job, new Path(inputDirectory));
 		FileOutputFormat.setOutputPath(job, new Path(outputDirectory));
 
-		return job.waitForCompletion(true) ? 0 : 1;
+		boolean success = job.waitForCompletion(true);
+		counters = job.getCounters();
+
+		return success ? 0 : 1;
+
+	}
+
 
+	/**
+	 * @return the counters of the last job run by this driver
+	 */
+	public Counters getCounters() {
+		return counters;
 	}
 
 
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.iteration;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.common.AbstractJob;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.ColumnAggregates;
+import root.hap.util.Compression;
+import root.hap.util.Convergence;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKey;
+import root.hap.util.HapKeyPartitioner;
+import root.hap.util.HapSlice;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+
+
+/**
+ * <p>
+ * This is a driver for running a fused iteration of the Hierarchical 
+ * Affinity Propagation job: the Availability Update step of the previous 
+ * iteration and the Responsibility Update step of this one, in a single 
+ * job.
+ * </p>
+ * 
+ * <p>
+ * The input is the output of a Responsibility job run with 
+ * <code>-fused true</code>, or of a previous fused iteration, and the 
+ * output has the same form. Reduce tasks own blocks of rows, which are 
+ * shuffled whole; the columns of R are never transposed, since the 
+ * availability update needs only their {@link ColumnAggregates}. The 
+ * availability update of the last iteration is finished by the regular
+ * Availability job, which also transposes the output for the Cluster job.
+ * </p>
+ * 
+ * <p>
+ * The exact breakdown of the MapReduce implementation is discussed in the 
+ * appropriate {@link IterationMapper} and {@link IterationReducer}.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see IterationMapper
+ * @see IterationReducer
+ * 
+ */
+public class HierarchicalIterationDriver extends AbstractJob {
+
+	private static String inputDirectory;
+	private static String outputDirectory;
+	private static String matrixN;
+	private static String lambda;
+	private static String numLevels;
+	private static String numIteration;
+	private static String numBlocks;
+	private static String similarityStore;
+	private static String precision;
+	private static String stateCodec;
+	private static String shuffleCodec;
+
+	private Counters counters;
+
+
+	/*
+	 * Construct arguments list.
+	 */
+	private void addArguments() {
+
+		addOption("input", "i", "Input Directory", true);
+		addOption("out", "o", "Output Directory", true);
+		addOption("N", "n", "Size of Matrix (NxN)", true);
+		addOption("lambda", "lambda", "Dampening Factor", true);
+		addOption("numLevels", "l", "Number of Levels", true);
+		addOption("numIter", "iter", "Number of Iterations", true);
+		addOption("numBlocks", "blocks", 
+				"Number of Blocks of Rows (0: one per reduce task)", "0");
+		addOption("similarityStore", "ss", 
+				"Similarity Store Directory (S is shuffled if absent)", false);
+		addOption("precision", "precision", 
+				"Storage Precision (double, float, bfloat16)", "double");
+		addOption("stateCodec", "stateCodec", 
+				"Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("shuffleCodec", "shuffleCodec", 
+				"Map Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+
+	}
+
+
+	/*
+	 * Grab arguments from the user.
+	 */
+	private void initArguments() {
+
+		inputDirectory = getOption("input");
+		outputDirectory = getOption("out");
+		matrixN = getOption("N");
+		lambda = getOption("lambda");
+		numLevels = getOption("numLevels");
+		numIteration = getOption("numIter");
+		numBlocks = getOption("numBlocks");
+		similarityStore = getOption("similarityStore");
+		precision = getOption("precision");
+		stateCodec = getOption("stateCodec");
+		shuffleCodec = getOption("shuffleCodec");
+
+	}
+
+
+	/**
+	 * This method allows {@link HierarchicalIterationDriver} to act as a 
+	 * {@link ToolRunner} and interface properly with any Driver.
+	 * 
+	 * @param args Configuration arguments
+	 * @return Exit status
+	 * @see ToolRunner
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		Configuration conf = getConf();
+
+		addArguments();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initArguments();
+
+		conf.setInt("matrixN",Integer.valueOf(matrixN));
+		conf.setFloat("lambda",Float.valueOf(lambda));
+		conf.setInt("numLevels",Integer.valueOf(numLevels));
+		conf.setInt("numIteration",Integer.valueOf(numIteration));
+		conf.setInt(BlockUtilities.NUM_BLOCKS_KEY,Integer.valueOf(numBlocks));
+		Precision.configure(conf,precision,0);
+		conf.setBoolean(ColumnAggregates.FUSED_KEY,true);
+		conf.set(ColumnAggregates.PATH_KEY,inputDirectory);
+		conf.set(Diagonals.PATH_KEY,inputDirectory);
+		if (similarityStore != null) {
+			conf.set(SimilarityStore.PATH_KEY,similarityStore);
+		}
+
+		Job job = new Job(conf, "HierarchicalIteration");
+		job.setJarByClass(HierarchicalIterationDriver.class);
+		Compression.configure(job, stateCodec, shuffleCodec);
+
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		job.setMapperClass(IterationMapper.class);
+		job.setReducerClass(IterationReducer.class);
+		job.setMapOutputKeyClass(HapKey.class);
+		job.setMapOutputValueClass(HapSlice.class);
+		job.setSortComparatorClass(HapKey.Comparator.class);
+		job.setPartitionerClass(HapKeyPartitioner.class);
+
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(VectorWritable.class);
+
+		FileInputFormat.addInputPath(job, new Path(inputDirectory));
+		FileOutputFormat.setOutputPath(job, new Path(outputDirectory));
+
+		boolean success = job.waitForCompletion(true);
+		counters = job.getCounters();
+		Convergence.collectMaxDelta(conf, new Path(outputDirectory), counters);
+
+		return success ? 0 : 1;
+
+	}
+
+
+	/**
+	 * @return the counters of the last job run by this driver, used by 
+	 * the calling job to detect convergence
+	 * @see Convergence
+	 */
+	public Counters getCounters() {
+		return counters;
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run( 
+				new Configuration(), 
+				new HierarchicalIterationDriver(), 
+				args);
+		System.exit(res);
+	}
+}
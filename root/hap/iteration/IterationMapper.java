@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.iteration;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+import root.hap.util.KeyUtilities;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+
+
+/**
+ * <p>
+ * Mapper class for a fused iteration.
+ * </p>
+ * 
+ * <p>
+ * This mapper takes in a row of the Responsibility job output and sends it
+ * whole to the {@link IterationReducer}s of the same row: rows of A and R
+ * to their own level and to the level below, whose phi needs the finished
+ * A above; rows of S to every level; scalars to their own level.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> information about this row<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding input row
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [HapKey]:</code> {Row Number, Level}
+ * <br />
+ * <code>Output value [HapSlice]:</code> the whole row, or a single value
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalIterationDriver
+ * @see IterationReducer
+ * 
+ */
+public class IterationMapper extends
+Mapper<Text, VectorWritable, HapKey, HapSlice> {
+
+	private int N;
+	private int numLevels;
+	private boolean similarityStored;
+
+	private double[] row;
+	private final double[] single = new double[1];
+
+	private final HapKey keyOut = new HapKey();
+	private final HapSlice valOut = new HapSlice();
+	private final Instrumentation.Emitted emitted = 
+			new Instrumentation.Emitted();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numLevels = conf.getInt("numLevels", -1);
+		similarityStored = SimilarityStore.isEnabled(conf);
+		valOut.setPrecision(Precision.get(conf));
+
+		row = new double[N];
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		emitted.flush(context);
+	}
+
+
+	/**
+	 * <p>
+	 * This method takes in a matrix row and outputs it whole in a fashion 
+	 * usable by the Reducer.
+	 * </p>
+	 * 
+	 * @param keyIn vector identification text
+	 * @param valIn vector data
+	 */
+	public void map(Text keyIn, VectorWritable valIn, Context context)
+			throws IOException, InterruptedException {
+
+		String[] keyData = KeyUtilities.explode( keyIn , false );
+
+		int index = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		int level = Integer.valueOf(keyData[KeyUtilities.LEVEL]);
+		char id = keyData[KeyUtilities.ID].charAt(0);
+
+		Vector vector = valIn.get();
+
+		if( id == 'A' || id == 'R' ) { 
+
+			copyRow(vector);
+			write(context, index, level, level, id, row, N);
+
+			if( level - 1 >= 0 ) { 
+				write(context, index, level, level - 1, id, row, N);
+			}
+
+		} else if( id == 'S' && !similarityStored ) { 
+
+			copyRow(vector);
+			for (int i = 0; i < numLevels; i++) {
+				write(context, index, i, i, id, row, N);
+			}
+
+		} else if( id == 'T' || id == 'P' || id == 'C' ) { 
+
+			single[0] = vector.get(0);
+			write(context, index, level, level, id, single, 1);
+
+		}
+	}
+
+
+	/*
+	 * Unpack the input vector into the reusable row buffer.
+	 */
+	private void copyRow(Vector vector) { 
+		for( int col = 0; col < N; col++ ) { 
+			row[col] = vector.getQuick(col);
+		}
+	}
+
+
+	/*
+	 * Send a row, or a single value, to the reducer of its row at the 
+	 * target level.
+	 */
+	private void write(Context context, int index, int level, 
+			int targetLevel, char id, double[] values, int length) 
+					throws IOException, InterruptedException {
+		keyOut.set(index, targetLevel);
+		valOut.set(index, level, id, 0, values, length);
+		context.write(keyOut, valOut);
+		emitted.record(valOut);
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.iteration;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.responsibility.ResponsibilityReducer;
+import root.hap.util.ColumnAggregates;
+import root.hap.util.Convergence;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKernels;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+import root.hap.util.SimilarityStore;
+
+
+/**
+ * <p>
+ * Reducer class for a fused iteration.
+ * </p>
+ * 
+ * <p>
+ * This reducer takes in a row of every input matrix, as written by the 
+ * previous Responsibility update, and first finishes the availability 
+ * update of the previous iteration on it: every element of a row of A 
+ * depends on its column only through the {@link ColumnAggregates} of the
+ * previous job, which are loaded once per task. The finished row of A 
+ * then takes part in the Responsibility update of this iteration exactly 
+ * as in {@link ResponsibilityReducer}, whose aggregates are written in 
+ * turn for the next job.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [HapKey]:</code> {Row Number, Level}<br />
+ * <code>Input value [Iterable&lt;HapSlice&gt;]:</code> the corresponding 
+ * input rows and scalars
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Row Number, Level, 
+ * Matrix ID}
+ * <br />
+ * <code>Output value [VectorWritable]:</code> vector of appropriate data
+ * </p>
+ * 
+ * <p>
+ * The finished diagonals a(k,k) and r(k,k) of the previous iteration are 
+ * written to a {@link Diagonals} side file and compared against those of 
+ * the iteration before, so exemplar decisions are counted one iteration 
+ * late; see {@link Convergence}.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalIterationDriver
+ * @see IterationMapper
+ * 
+ */
+public class IterationReducer extends
+Reducer<HapKey, HapSlice, Text, VectorWritable> {
+
+	private int N;
+	private int numLevels;
+	private double lambda;
+
+	private ColumnAggregates aggregates;
+	private ColumnAggregates.Writer aggregatesOut;
+	private Diagonals previous;
+	private Diagonals.Writer diagonals;
+	private SimilarityStore store;
+
+	// reusable row buffers
+	private double[] A;
+	private double[] ALevelAbove;
+	private double[] R;
+	private double[] RLevelAbove;
+	private double[] S;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numLevels = conf.getInt("numLevels", -1);
+		lambda = conf.getFloat("lambda", 0);
+
+		aggregates = ColumnAggregates.load(conf, N);
+		aggregatesOut = new ColumnAggregates.Writer(context);
+		previous = Diagonals.load(conf, N);
+		diagonals = new Diagonals.Writer(context);
+		store = SimilarityStore.open(context);
+
+		A = new double[N];
+		ALevelAbove = new double[N];
+		R = new double[N];
+		RLevelAbove = new double[N];
+		S = new double[N];
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		aggregatesOut.close();
+		diagonals.close();
+		if (store != null) {
+			store.close();
+		}
+		Convergence.writeDelta(context);
+		Instrumentation.recordTask(context, startMillis);
+	}
+
+
+	/**
+	 * <p>
+	 * This method serves to finish the availability update of a single row
+	 * and update its responsibility.
+	 * </p>
+	 * 
+	 * @param keyIn row identification
+	 * @param valIn row data
+	 */
+	public void reduce(HapKey keyIn, Iterable<HapSlice> valIn, Context context)
+			throws IOException, InterruptedException {
+
+		int reducerRowNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		double T = 0;
+		double P = 0;
+		double C = 0;
+
+		Arrays.fill(A, 0);
+		Arrays.fill(ALevelAbove, 0);
+		Arrays.fill(R, 0);
+		Arrays.fill(RLevelAbove, 0);
+		Arrays.fill(S, 0);
+
+		for (HapSlice slice : valIn) { 
+			boolean above = slice.getLevel() != reducerLevelNum;
+
+			switch (slice.getMatrixId()) {
+			case 'R':
+				copy(slice, above ? RLevelAbove : R);
+				break;
+			case 'A':
+				copy(slice, above ? ALevelAbove : A);
+				break;
+			case 'S':
+				copy(slice, S);
+				break;
+			case 'C':
+				C = slice.getValues()[0];
+				break;
+			case 'T':
+				T = slice.getValues()[0];
+				break;
+			case 'P':
+				P = slice.getValues()[0];
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit(1);
+				break;
+			}
+		}
+
+		double[] SRow = store != null ? store.getRow(reducerRowNum) : S;
+
+		// Finish the availability update of the previous iteration, on this
+		// level and on the level above for phi.
+		double delta = HapKernels.dampedAvailabilityRow(R, 0, A, 0, 
+				aggregates.getTotals(reducerLevelNum), N, reducerRowNum, 
+				lambda);
+		Convergence.recordDelta(context, delta);
+
+		if (reducerLevelNum + 1 < numLevels) {
+			HapKernels.dampedAvailabilityRow(RLevelAbove, 0, ALevelAbove, 0, 
+					aggregates.getTotals(reducerLevelNum + 1), N, 
+					reducerRowNum, lambda);
+		}
+
+		if (reducerLevelNum != 0) {
+			T = aggregates.getTau(reducerLevelNum, reducerRowNum);
+		}
+
+		diagonals.write(reducerRowNum, reducerLevelNum, A[reducerRowNum], 
+				R[reducerRowNum]);
+		Convergence.recordExemplar(context, reducerLevelNum, 
+				previous.getA(reducerLevelNum)[reducerRowNum], 
+				previous.getR(reducerLevelNum)[reducerRowNum], 
+				A[reducerRowNum], R[reducerRowNum]);
+
+		ResponsibilityReducer.updateRow(context, A, ALevelAbove, 
+				aggregates.getDiagonalA(reducerLevelNum), R, 
+				aggregates.getDiagonalR(reducerLevelNum), SRow, T, P, C, 
+				reducerRowNum, reducerLevelNum, N, numLevels, null, 
+				aggregatesOut);
+	}
+
+
+	/*
+	 * Copy a whole row slice into a row buffer.
+	 */
+	private static void copy(HapSlice slice, double[] row) { 
+		System.arraycopy(slice.getValues(), 0, row, slice.getStart(), 
+				slice.getLength());
+	}
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.local;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.cluster.ClusterReducer;
+import root.hap.util.KeyUtilities;
+
+
+/**
+ * <p>
+ * Common part of the single node Hierarchical Affinity Propagation engines.
+ * </p>
+ * 
+ * <p>
+ * The engines compute exactly the updates of the Responsibility, 
+ * Availability and Cluster reducers. This class holds the per-point state 
+ * (T, P, C, the diagonals and the exemplar decisions), reads the input, 
+ * drives the iterations over a {@link ForkJoinPool} and writes the 
+ * clusters. Subclasses own the N x N matrices S, A and R, stored row-major
+ * (element <code>(i,k)</code> at <code>i * N + k</code>), and implement the
+ * row and column updates on them. Row updates write only their own rows 
+ * and column updates only their own columns, so both run in place.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see LocalHapEngine
+ * @see MappedHapEngine
+ * 
+ */
+public abstract class AbstractHapEngine {
+
+	protected final int N;
+	protected final int numLevels;
+	protected final double lambda;
+	protected final ForkJoinPool pool;
+
+	// per-point vectors, one per level
+	protected final double[][] T;
+	protected final double[][] P;
+	protected final double[][] C;
+
+	// diagonals a(k,k) and r(k,k) at the start of the Responsibility update
+	protected final double[][] diagA;
+	protected final double[][] diagR;
+
+	// exemplar decisions of the previous iteration
+	protected final boolean[][] exemplars;
+
+	// per-row (per-column) largest message delta of the last update
+	protected final double[] rowDelta;
+	protected final double[] colDelta;
+
+	private long exemplarChanges;
+	private double maxDelta;
+
+
+	/**
+	 * Allocate the per-point state of a dataset of N points.
+	 * 
+	 * @param N size of the dataset
+	 * @param numLevels number of levels of the hierarchy
+	 * @param lambda dampening factor
+	 * @param pool pool the updates are run on
+	 */
+	protected AbstractHapEngine( int N, int numLevels, double lambda, 
+			ForkJoinPool pool ) { 
+
+		this.N = N;
+		this.numLevels = numLevels;
+		this.lambda = lambda;
+		this.pool = pool;
+
+		T = new double[numLevels][N];
+		P = new double[numLevels][N];
+		C = new double[numLevels][N];
+
+		diagA = new double[numLevels][N];
+		diagR = new double[numLevels][N];
+		exemplars = new boolean[numLevels][N];
+
+		rowDelta = new double[N];
+		colDelta = new double[N];
+	}
+
+
+	/**
+	 * Store a column of S (for which the level is ignored), A or R.
+	 * 
+	 * @param id matrix ID
+	 * @param level level of the hierarchy
+	 * @param col column number
+	 * @param vector column data
+	 */
+	protected abstract void setColumn( char id, int level, int col, 
+			Vector vector ) throws IOException;
+
+
+	/**
+	 * Copy the diagonals a(k,k) and r(k,k) of a level.
+	 */
+	protected abstract void readDiagonals( int level, double[] a, double[] r );
+
+
+	/**
+	 * Update C, P and R of the rows [from, to) at every level, as in 
+	 * ResponsibilityReducer, using {@link #diagA} and {@link #diagR}.
+	 */
+	protected abstract void updateRows( int from, int to, int iteration );
+
+
+	/**
+	 * Update T and A of the columns [from, to) at every level, as in
+	 * AvailabilityReducer.
+	 */
+	protected abstract void updateColumns( int from, int to );
+
+
+	/**
+	 * Choose the exemplar of the rows [from, to) at every level, as in 
+	 * {@link ClusterReducer}, using {@link #exemplars} as the valid 
+	 * exemplars.
+	 */
+	protected abstract void assignExemplars( int from, int to, 
+			int[][] assignment );
+
+
+	/**
+	 * Release any resources held by the engine.
+	 */
+	public void close() throws IOException { 
+		;
+	}
+
+
+	/**
+	 * <p>
+	 * Load the initial state from the SequenceFiles of a similarity matrix 
+	 * directory, as written by <code>CreateSimilarityMatrixJob</code>. Matrix 
+	 * vectors are columns; T, P and C vectors hold a single element.
+	 * </p>
+	 * 
+	 * @param conf configuration to access the file system with
+	 * @param input similarity matrix directory
+	 */
+	public void load( Configuration conf, Path input ) throws IOException { 
+
+		FileSystem fs = input.getFileSystem( conf );
+		FileStatus[] files = fs.globStatus( new Path( input, "part-*" ) );
+		if( files == null || files.length == 0 ) { 
+			throw new IOException( "No similarity matrix found in " + input );
+		}
+
+		Text key = new Text();
+		VectorWritable value = new VectorWritable();
+
+		for( FileStatus file : files ) { 
+			SequenceFile.Reader reader = 
+					new SequenceFile.Reader( fs, file.getPath(), conf );
+
+			while( reader.next( key, value ) ) { 
+				String[] keyData = KeyUtilities.explode( key, false );
+				int index = Integer.valueOf( keyData[KeyUtilities.INDEX] );
+				int level = Integer.valueOf( keyData[KeyUtilities.LEVEL] );
+				char id = keyData[KeyUtilities.ID].charAt( 0 );
+				Vector vector = value.get();
+
+				switch( id ) { 
+				case 'S':
+				case 'A':
+				case 'R':
+					setColumn( id, level, index, vector );
+					break;
+				case 'T':
+					T[level][index] = vector.get( 0 );
+					break;
+				case 'P':
+					P[level][index] = vector.get( 0 );
+					break;
+				case 'C':
+					C[level][index] = vector.get( 0 );
+					break;
+				default:
+					System.err.println("[ERROR]: Invalid matrix ID.");
+					System.exit( 1 );
+					break;
+				}
+			}
+
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * Run one Responsibility update followed by one Availability update.
+	 * 
+	 * @param iteration zero based iteration number
+	 */
+	public void iterate( final int iteration ) { 
+
+		for( int l = 0; l < numLevels; l++ ) { 
+			readDiagonals( l, diagA[l], diagR[l] );
+		}
+
+		Arrays.fill( rowDelta, 0 );
+		parallel( N, new Range() { 
+			public void apply( int from, int to ) { 
+				updateRows( from, to, iteration );
+			}
+		} );
+
+		Arrays.fill( colDelta, 0 );
+		parallel( N, new Range() { 
+			public void apply( int from, int to ) { 
+				updateColumns( from, to );
+			}
+		} );
+
+		exemplarChanges = 0;
+		maxDelta = 0;
+		for( int l = 0; l < numLevels; l++ ) { 
+			readDiagonals( l, diagA[l], diagR[l] );
+			for( int k = 0; k < N; k++ ) { 
+				boolean isExemplar = diagA[l][k] + diagR[l][k] > 0;
+				if( isExemplar != exemplars[l][k] ) { 
+					exemplarChanges++;
+					exemplars[l][k] = isExemplar;
+				}
+			}
+		}
+		for( int i = 0; i < N; i++ ) { 
+			maxDelta = Math.max( maxDelta, 
+					Math.max( rowDelta[i], colDelta[i] ) );
+		}
+	}
+
+
+	/**
+	 * @return the number of exemplar decisions changed by the last iteration
+	 */
+	public long getExemplarChanges() { 
+		return exemplarChanges;
+	}
+
+
+	/**
+	 * @return the number of exemplars at the given level
+	 */
+	public int getExemplars( int level ) { 
+		int count = 0;
+		for( int k = 0; k < N; k++ ) { 
+			count += exemplars[level][k] ? 1 : 0;
+		}
+		return count;
+	}
+
+
+	/**
+	 * @return the largest message delta of the last iteration
+	 */
+	public double getMaxDelta() { 
+		return maxDelta;
+	}
+
+
+	/**
+	 * <p>
+	 * Extract the clusters, writing the same <code>{Exemplar ID, Vector ID,
+	 * Level}</code> records as {@link ClusterReducer} to a single 
+	 * <code>part-r-00000</code> file in the output directory.
+	 * </p>
+	 * 
+	 * @param conf configuration to access the file system with
+	 * @param output output directory
+	 */
+	public void writeClusters( Configuration conf, Path output ) 
+			throws IOException { 
+
+		final int[][] assignment = new int[N][numLevels];
+
+		parallel( N, new Range() { 
+			public void apply( int from, int to ) { 
+				assignExemplars( from, to, assignment );
+			}
+		} );
+
+		FileSystem fs = output.getFileSystem( conf );
+		SequenceFile.Writer writer = new SequenceFile.Writer( fs, conf, 
+				new Path( output, "part-r-00000" ), Text.class, Text.class );
+
+		Text key = new Text();
+		Text value = new Text();
+
+		for( int i = 0; i < N; i++ ) { 
+			for( int l = 0; l < numLevels; l++ ) { 
+				if( assignment[i][l] != -1 ) { 
+					value.set( assignment[i][l] + "\t" + i + "\t" + l );
+					writer.append( key, value );
+				}
+			}
+		}
+
+		writer.close();
+	}
+
+
+	/*
+	 * Run a body over [0, n) in parallel, split into ranges small enough to
+	 * keep every worker of the pool busy.
+	 */
+	private void parallel( int n, Range body ) { 
+		int grain = Math.max( 1, n / ( pool.getParallelism() * 8 ) );
+		pool.invoke( new RangeAction( body, 0, n, grain ) );
+	}
+
+
+	/*
+	 * Body of a parallel loop over a range of indices.
+	 */
+	private interface Range { 
+		void apply( int from, int to );
+	}
+
+
+	/*
+	 * Fork/join task splitting a range in halves down to the grain size.
+	 */
+	private static class RangeAction extends RecursiveAction { 
+
+		private static final long serialVersionUID = 1L;
+
+		private final Range body;
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		RangeAction( Range body, int from, int to, int grain ) { 
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() { 
+			if( to - from <= grain ) { 
+				body.apply( from, to );
+				return;
+			}
+			int mid = ( from + to ) >>> 1;
+			invokeAll( new RangeAction( body, from, mid, grain ), 
+					new RangeAction( body, mid, to, grain ) );
+		}
+	}
+
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.local;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.mahout.math.Vector;
+
+import root.hap.util.HapKernels;
+
+
+/**
+ * <p>
+ * In-memory, multi-threaded implementation of Hierarchical Affinity 
+ * Propagation for datasets whose full state fits in the memory of a single
+ * machine.
+ * </p>
+ * 
+ * <p>
+ * Every matrix is kept in a single row-major <code>double[]</code> on the 
+ * heap. Each matrix is a single array, so N is limited to 46340. The state 
+ * takes roughly <code>8 (2L + 1) N^2</code> bytes for L levels; larger 
+ * datasets may use the {@link MappedHapEngine}.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see LocalHierarchicalAffinityPropagationJob
+ * 
+ */
+public class LocalHapEngine extends AbstractHapEngine {
+
+	// N x N matrices, row-major; S is shared by every level
+	private final double[] S;
+	private final double[][] A;
+	private final double[][] R;
+
+
+	/**
+	 * Allocate the state of a dataset of N points.
+	 * 
+	 * @param N size of the dataset
+	 * @param numLevels number of levels of the hierarchy
+	 * @param lambda dampening factor
+	 * @param pool pool the updates are run on
+	 */
+	public LocalHapEngine( int N, int numLevels, double lambda, 
+			ForkJoinPool pool ) { 
+
+		super( N, numLevels, lambda, pool );
+
+		if( (long) N * N > Integer.MAX_VALUE ) { 
+			throw new IllegalArgumentException( "N = " + N + " is too large "
+					+ "for the in-memory engine." );
+		}
+
+		S = new double[N * N];
+		A = new double[numLevels][N * N];
+		R = new double[numLevels][N * N];
+	}
+
+
+	@Override
+	protected void setColumn( char id, int level, int col, Vector vector ) { 
+		double[] m = id == 'S' ? S : id == 'A' ? A[level] : R[level];
+		for( int row = 0; row < N; row++ ) { 
+			m[row * N + col] = vector.getQuick( row );
+		}
+	}
+
+
+	@Override
+	protected void readDiagonals( int level, double[] a, double[] r ) { 
+		for( int k = 0; k < N; k++ ) { 
+			a[k] = A[level][k * N + k];
+			r[k] = R[level][k * N + k];
+		}
+	}
+
+
+	@Override
+	protected void updateRows( int from, int to, int iteration ) { 
+		for( int i = from; i < to; i++ ) { 
+			for( int l = 0; l < numLevels; l++ ) { 
+				updateRow( i, l, iteration );
+			}
+		}
+	}
+
+
+	@Override
+	protected void updateColumns( int from, int to ) { 
+		double[] sums = new double[to - from];
+		for( int l = 0; l < numLevels; l++ ) { 
+			updateColumns( from, to, l, sums );
+		}
+	}
+
+
+	@Override
+	protected void assignExemplars( int from, int to, int[][] assignment ) { 
+		for( int i = from; i < to; i++ ) { 
+			for( int l = 0; l < numLevels; l++ ) { 
+				assignment[i][l] = HapKernels.exemplarIndex( A[l], i * N, 
+						R[l], i * N, exemplars[l], null, N );
+			}
+		}
+	}
+
+
+	/*
+	 * Update C, P and R of row i at level l.
+	 */
+	private void updateRow( int i, int l, int iteration ) { 
+
+		int base = i * N;
+		double[] a = A[l];
+		double[] r = R[l];
+
+		// C(i,l) = max [ A(i,j,l) + R(i,j,l) ] over valid exemplars j
+		if( iteration != 0 ) { 
+			C[l][i] = HapKernels.exemplarValue( a, base, r, base, 
+					diagA[l], diagR[l], N );
+		}
+
+		// P(i,l) = max [ A(i,j,l+1) + S(i,j) ]
+		if( l != numLevels - 1 && iteration != 0 ) { 
+			P[l][i] = HapKernels.maxSum( A[l + 1], base, S, base, N );
+		}
+
+		// R(i,k) = S(i,k) - max [ S(i,j) + A(i,j) ] over j != k, capped by tau
+		int maxIndex = HapKernels.argMaxSum( a, base, S, base, N );
+		double max1 = a[base + maxIndex] + S[base + maxIndex];
+		double max2 = HapKernels.maxSumExcept( a, base, S, base, N, maxIndex );
+
+		double tau = T[l][i];
+		double YH = Math.min( -max1, tau );
+		double YH2 = Math.min( -max2, tau );
+
+		double delta = HapKernels.dampedResponsibility( S, base, r, base, N, 
+				maxIndex, YH, YH2, lambda );
+		rowDelta[i] = Math.max( rowDelta[i], delta );
+	}
+
+
+	/*
+	 * Update T and A of the columns [from, to) at level l. Rows are walked 
+	 * in the outer loop so that every access is sequential within a row.
+	 */
+	private void updateColumns( int from, int to, int l, double[] sums ) { 
+
+		int width = to - from;
+
+		// T(k,l) = C(k,l-1) + r(k,k,l-1) + sum of positive R(i,k,l-1), i != k
+		if( l != 0 ) { 
+			positiveColumnSums( R[l - 1], from, to, sums );
+			for( int k = from; k < to; k++ ) { 
+				T[l][k] = C[l - 1][k] + sums[k - from];
+			}
+		}
+
+		// A(i,k) = min [ 0, CHat + r(k,k) + sum of positive R(i',k), i' != i,k ]
+		// A(k,k) = CHat + sum of positive R(i',k), i' != k
+		positiveColumnSums( R[l], from, to, sums );
+		for( int k = from; k < to; k++ ) { 
+			sums[k - from] += C[l][k] + P[l][k];
+		}
+
+		for( int i = 0; i < N; i++ ) { 
+			int base = i * N + from;
+			int diag = ( i >= from && i < to ) ? i - from : -1;
+			HapKernels.dampedAvailabilityRow( R[l], base, A[l], base, sums, 
+					colDelta, from, width, diag, lambda );
+		}
+	}
+
+
+	/*
+	 * Sum the positive off-diagonal elements plus the diagonal of each 
+	 * column in [from, to).
+	 */
+	private void positiveColumnSums( double[] m, int from, int to, 
+			double[] sums ) { 
+		Arrays.fill( sums, 0, to - from, 0 );
+		for( int i = 0; i < N; i++ ) { 
+			int diag = ( i >= from && i < to ) ? i - from : -1;
+			HapKernels.addPositive( m, i * N + from, sums, 0, to - from, diag );
+		}
+	}
+
+}
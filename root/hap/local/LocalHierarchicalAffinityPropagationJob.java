@@ -0,0 +1,275 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.local;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ToolRunner;
+
+import root.hap.HierarchicalAffinityPropagationJob;
+import root.input.InputJob;
+
+
+/**
+ * <p>
+ * This is the driver class for the in-memory Hierarchical Affinity 
+ * Propagation engine.
+ * </p>
+ * 
+ * <p>
+ * It reads the same similarity matrix input and writes the same cluster 
+ * output as {@link HierarchicalAffinityPropagationJob}, but runs every 
+ * iteration inside this process with {@link LocalHapEngine}. This is much 
+ * faster whenever the state fits in memory, since no job is scheduled per 
+ * half-iteration.
+ * </p>
+ * 
+ * <p>
+ * With <code>-engine mapped</code> the matrices are kept in memory-mapped 
+ * files under the <code>-scratch</code> directory by 
+ * {@link MappedHapEngine} instead, for datasets whose state is larger than
+ * the heap.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see LocalHapEngine
+ * @see MappedHapEngine
+ * @see HierarchicalAffinityPropagationJob
+ * 
+ */
+public class LocalHierarchicalAffinityPropagationJob extends InputJob {
+
+	private static String inputDirectory;
+	private static String outputDirectory;
+	private static String N;
+	private static String numLevels;
+	private static String numIterations;
+	private static String lambda;
+	private static String numThreads;
+	private static String convergenceIters;
+	private static String tolerance;
+	private static String engineType;
+	private static String scratchDirectory;
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void constructParameterList() {
+
+		addOption("input", "i", "Input Directory", true);
+		addOption("out", "o", "Output Directory", true);
+		addOption("numLevels", "l", "Number of Levels", "1");
+		addOption("numIter", "iter", "Number of Iterations", "1");
+		addOption("lambda", "lambda", "Dampening Factor", "0");
+		addOption("numThreads", "threads", 
+				"Number of Threads (0: one per core)", "0");
+		addOption("convergenceIters", "conv", 
+				"Stable Iterations before Stopping (0: never stop early)", "0");
+		addOption("tolerance", "tol", 
+				"Maximum Message Delta of a Stable Iteration (0: ignore)", "0");
+		addOption("engine", "engine", 
+				"Matrix Storage (heap: in memory, mapped: memory-mapped files)", 
+				"heap");
+		addOption("scratch", "scratch", 
+				"Local Directory for Memory-Mapped Matrices", 
+				System.getProperty("java.io.tmpdir") + "/hap-local");
+		addOption("inputSize", "n", "Cardinality of the Dataset", true);
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void printConfiguredParameters() {
+		System.out.println("[INFO]: Local Hierarchical Affinity Propagation Job");
+		System.out.println("\t-i\t\t" + inputDirectory);
+		System.out.println("\t-o\t\t" + outputDirectory);
+		System.out.println("\t-l\t\t" + numLevels);
+		System.out.println("\t-iter\t\t" + numIterations);
+		System.out.println("\t-lambda\t" + lambda);
+		System.out.println("\t-threads\t" + numThreads);
+		System.out.println("\t-conv\t\t" + convergenceIters);
+		System.out.println("\t-tol\t\t" + tolerance);
+		System.out.println("\t-engine\t" + engineType);
+		System.out.println("\t-scratch\t" + scratchDirectory);
+		System.out.println("\t-n\t" + N);
+		System.out.println();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void initializeConfigurationParameters() {
+
+		inputDirectory = cleanDirectoryName(getOption("input"));
+		outputDirectory = cleanDirectoryName(getOption("out"));
+		numLevels = getOption("numLevels");
+		numIterations = getOption("numIter");
+		lambda = getOption("lambda");
+		numThreads = getOption("numThreads");
+		convergenceIters = getOption("convergenceIters");
+		tolerance = getOption("tolerance");
+		engineType = getOption("engine");
+		scratchDirectory = getOption("scratch");
+		N = getOption("inputSize");
+
+		if (Integer.valueOf(numIterations) < Integer.valueOf(numLevels)) {
+			System.err.println(
+					"Number of Iterations \'" + numIterations
+					+ "\' was less than Number of Levels \'"
+					+ numLevels + "\'");
+			System.exit( 2 );
+		}
+
+		if( Integer.valueOf( N ) <= 0 ) { 
+			System.err.println("[ERROR]: Invalid dataset cardinality.");
+			System.err.println("[INFO]: N = " + N );
+			System.exit( 1 );
+		}
+
+		if( !engineType.equals( "heap" ) && !engineType.equals( "mapped" ) ) { 
+			System.err.println("[ERROR]: Unknown engine \'" + engineType + "\'.");
+			System.err.println("[INFO]: Valid engines are heap and mapped.");
+			System.exit( 1 );
+		}
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		constructParameterList();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initializeConfigurationParameters();
+
+		printJobHeader();
+
+		Configuration conf = getConf();
+
+		Path input = new Path(inputDirectory);
+		Path output = new Path(outputDirectory);
+
+		FileSystem outputFS = output.getFileSystem(conf);
+		if (outputFS.exists(output)) {
+			System.err.println("Output Directory already exists.");
+			System.exit(2);
+		}
+
+		int threads = Integer.valueOf(numThreads);
+		ForkJoinPool pool = threads > 0 
+				? new ForkJoinPool(threads) : new ForkJoinPool();
+
+		int levels = Integer.valueOf(numLevels);
+		int iterations = Integer.valueOf(numIterations);
+		int stableLimit = Integer.valueOf(convergenceIters);
+		double maxDelta = Double.valueOf(tolerance);
+
+		AbstractHapEngine engine;
+		if (engineType.equals("mapped")) {
+			engine = new MappedHapEngine(Integer.valueOf(N), levels, 
+					Double.valueOf(lambda), pool, new File(scratchDirectory));
+		} else {
+			engine = new LocalHapEngine(Integer.valueOf(N), levels, 
+					Double.valueOf(lambda), pool);
+		}
+
+		long start = System.currentTimeMillis();
+		engine.load(conf, input);
+		System.out.println("[INFO]: Loaded input in " 
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		int stableIterations = 0;
+		int iterationsRun = iterations;
+		boolean converged = false;
+
+		for (int i = 0; i < iterations; i++) {
+
+			start = System.currentTimeMillis();
+			engine.iterate(i);
+
+			System.out.println("[INFO]: Iteration " + (i + 1) + " of " 
+					+ numIterations + " in " 
+					+ (System.currentTimeMillis() - start) + " ms"
+					+ ", exemplar changes: " + engine.getExemplarChanges()
+					+ ", max message delta: " + engine.getMaxDelta());
+
+			boolean stable = engine.getExemplarChanges() == 0 
+					&& (maxDelta <= 0 || engine.getMaxDelta() <= maxDelta);
+			stableIterations = stable ? stableIterations + 1 : 0;
+
+			// Every level must have been reached before stopping.
+			if (stableLimit > 0 && stableIterations >= stableLimit 
+					&& i + 1 >= levels) {
+				iterationsRun = i + 1;
+				converged = true;
+				break;
+			}
+		}
+
+		for (int l = 0; l < levels; l++) {
+			System.out.println("\tExemplars (Level " + l + "): " 
+					+ engine.getExemplars(l));
+		}
+
+		if (converged) {
+			System.out.println("[INFO]: Converged after " + iterationsRun 
+					+ " of " + numIterations + " iterations.");
+		} else {
+			System.out.println("[INFO]: Stopped after " + iterationsRun 
+					+ " iterations.");
+		}
+
+		engine.writeClusters(conf, output);
+		engine.close();
+		pool.shutdown();
+
+		return 0;
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run( 
+				new Configuration(),
+				new LocalHierarchicalAffinityPropagationJob(),
+				args);
+		System.exit(res);
+	}
+
+}
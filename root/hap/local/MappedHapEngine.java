@@ -0,0 +1,230 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.mahout.math.Vector;
+
+import root.hap.util.HapKernels;
+
+
+/**
+ * <p>
+ * Out-of-core, multi-threaded implementation of Hierarchical Affinity 
+ * Propagation for datasets whose state does not fit in the heap, but does
+ * fit on a local disk.
+ * </p>
+ * 
+ * <p>
+ * S and the A and R matrices of every level are kept off-heap in 
+ * {@link MappedMatrix} files. Row updates stream whole rows through small
+ * per-task buffers. Column updates work on strips of columns, read one row
+ * segment at a time, so every access to the files is sequential within a 
+ * row. Only the O(N) per-point state is kept on the heap.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see LocalHierarchicalAffinityPropagationJob
+ * @see LocalHapEngine
+ * 
+ */
+public class MappedHapEngine extends AbstractHapEngine {
+
+	private final MappedMatrix S;
+	private final MappedMatrix[] A;
+	private final MappedMatrix[] R;
+
+
+	/**
+	 * Create the state files of a dataset of N points.
+	 * 
+	 * @param N size of the dataset
+	 * @param numLevels number of levels of the hierarchy
+	 * @param lambda dampening factor
+	 * @param pool pool the updates are run on
+	 * @param directory local directory to create the state files in
+	 */
+	public MappedHapEngine( int N, int numLevels, double lambda, 
+			ForkJoinPool pool, File directory ) throws IOException { 
+
+		super( N, numLevels, lambda, pool );
+
+		if( !directory.isDirectory() && !directory.mkdirs() ) { 
+			throw new IOException( "Unable to create " + directory );
+		}
+
+		S = new MappedMatrix( new File( directory, "S.dat" ), N );
+		A = new MappedMatrix[numLevels];
+		R = new MappedMatrix[numLevels];
+		for( int l = 0; l < numLevels; l++ ) { 
+			A[l] = new MappedMatrix( new File( directory, "A-" + l + ".dat" ), N );
+			R[l] = new MappedMatrix( new File( directory, "R-" + l + ".dat" ), N );
+		}
+	}
+
+
+	@Override
+	public void close() throws IOException { 
+		S.close();
+		for( int l = 0; l < numLevels; l++ ) { 
+			A[l].close();
+			R[l].close();
+		}
+	}
+
+
+	@Override
+	protected void setColumn( char id, int level, int col, Vector vector ) { 
+		MappedMatrix m = id == 'S' ? S : id == 'A' ? A[level] : R[level];
+		for( int row = 0; row < N; row++ ) { 
+			m.set( row, col, vector.getQuick( row ) );
+		}
+	}
+
+
+	@Override
+	protected void readDiagonals( int level, double[] a, double[] r ) { 
+		for( int k = 0; k < N; k++ ) { 
+			a[k] = A[level].get( k, k );
+			r[k] = R[level].get( k, k );
+		}
+	}
+
+
+	@Override
+	protected void updateRows( int from, int to, int iteration ) { 
+
+		double[] s = new double[N];
+		double[] a = new double[N];
+		double[] aAbove = new double[N];
+		double[] r = new double[N];
+
+		for( int i = from; i < to; i++ ) { 
+			S.read( i, 0, s, 0, N );
+
+			for( int l = 0; l < numLevels; l++ ) { 
+				A[l].read( i, 0, a, 0, N );
+				R[l].read( i, 0, r, 0, N );
+
+				// C(i,l) = max [ A(i,j,l) + R(i,j,l) ] over valid exemplars j
+				if( iteration != 0 ) { 
+					C[l][i] = HapKernels.exemplarValue( a, 0, r, 0, 
+							diagA[l], diagR[l], N );
+				}
+
+				// P(i,l) = max [ A(i,j,l+1) + S(i,j) ]
+				if( l != numLevels - 1 && iteration != 0 ) { 
+					A[l + 1].read( i, 0, aAbove, 0, N );
+					P[l][i] = HapKernels.maxSum( aAbove, 0, s, 0, N );
+				}
+
+				// R(i,k) = S(i,k) - max [ S(i,j) + A(i,j) ] over j != k, 
+				// capped by tau
+				int maxIndex = HapKernels.argMaxSum( a, 0, s, 0, N );
+				double max1 = a[maxIndex] + s[maxIndex];
+				double max2 = HapKernels.maxSumExcept( a, 0, s, 0, N, maxIndex );
+
+				double tau = T[l][i];
+				double YH = Math.min( -max1, tau );
+				double YH2 = Math.min( -max2, tau );
+
+				double delta = HapKernels.dampedResponsibility( s, 0, r, 0, N, 
+						maxIndex, YH, YH2, lambda );
+				rowDelta[i] = Math.max( rowDelta[i], delta );
+
+				R[l].write( i, 0, r, 0, N );
+			}
+		}
+	}
+
+
+	@Override
+	protected void updateColumns( int from, int to ) { 
+
+		int width = to - from;
+		double[] sums = new double[width];
+		double[] r = new double[width];
+		double[] a = new double[width];
+
+		for( int l = 0; l < numLevels; l++ ) { 
+
+			// T(k,l) = C(k,l-1) + r(k,k,l-1) + sum of positive R(i,k,l-1)
+			if( l != 0 ) { 
+				positiveColumnSums( R[l - 1], from, to, sums, r );
+				for( int k = from; k < to; k++ ) { 
+					T[l][k] = C[l - 1][k] + sums[k - from];
+				}
+			}
+
+			// A(i,k) = min [ 0, CHat + r(k,k) + sum of positive R(i',k) ]
+			positiveColumnSums( R[l], from, to, sums, r );
+			for( int k = from; k < to; k++ ) { 
+				sums[k - from] += C[l][k] + P[l][k];
+			}
+
+			for( int i = 0; i < N; i++ ) { 
+				int diag = ( i >= from && i < to ) ? i - from : -1;
+				R[l].read( i, from, r, 0, width );
+				A[l].read( i, from, a, 0, width );
+				HapKernels.dampedAvailabilityRow( r, 0, a, 0, sums, 
+						colDelta, from, width, diag, lambda );
+				A[l].write( i, from, a, 0, width );
+			}
+		}
+	}
+
+
+	@Override
+	protected void assignExemplars( int from, int to, int[][] assignment ) { 
+
+		double[] a = new double[N];
+		double[] r = new double[N];
+
+		for( int i = from; i < to; i++ ) { 
+			for( int l = 0; l < numLevels; l++ ) { 
+				A[l].read( i, 0, a, 0, N );
+				R[l].read( i, 0, r, 0, N );
+				assignment[i][l] = HapKernels.exemplarIndex( a, 0, r, 0, 
+						exemplars[l], null, N );
+			}
+		}
+	}
+
+
+	/*
+	 * Sum the positive off-diagonal elements plus the diagonal of each 
+	 * column in [from, to), reading one row segment at a time.
+	 */
+	private void positiveColumnSums( MappedMatrix m, int from, int to, 
+			double[] sums, double[] segment ) { 
+		int width = to - from;
+		Arrays.fill( sums, 0, width, 0 );
+		for( int i = 0; i < N; i++ ) { 
+			int diag = ( i >= from && i < to ) ? i - from : -1;
+			m.read( i, from, segment, 0, width );
+			HapKernels.addPositive( segment, 0, sums, 0, width, diag );
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * <p>
+ * N x N matrix of doubles stored row-major in a memory-mapped file.
+ * </p>
+ * 
+ * <p>
+ * A single mapping is limited to 2GB, so the file is mapped in segments of
+ * whole rows, each as large as that limit allows. Rows (or parts of rows) 
+ * are copied in and out with bulk reads and writes; the operating system 
+ * pages the file in and out as needed, so the matrix may be much larger 
+ * than the heap or physical memory.
+ * </p>
+ * 
+ * <p>
+ * Distinct rows, or distinct parts of a row, may be accessed by different
+ * threads concurrently.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see MappedHapEngine
+ * 
+ */
+class MappedMatrix {
+
+	private final File path;
+	private final RandomAccessFile file;
+	private final int N;
+	private final int rowsPerSegment;
+	private final DoubleBuffer[] segments;
+
+
+	/**
+	 * Create (or truncate) a zero-filled matrix file and map it.
+	 * 
+	 * @param path backing file
+	 * @param N size of the matrix
+	 */
+	MappedMatrix( File path, int N ) throws IOException { 
+
+		this.path = path;
+		this.N = N;
+
+		rowsPerSegment = (int) Math.min( N, Integer.MAX_VALUE / ( 8L * N ) );
+		int numSegments = ( N + rowsPerSegment - 1 ) / rowsPerSegment;
+
+		file = new RandomAccessFile( path, "rw" );
+		file.setLength( 0 );
+		file.setLength( 8L * N * N );
+
+		FileChannel channel = file.getChannel();
+		segments = new DoubleBuffer[numSegments];
+		for( int s = 0; s < numSegments; s++ ) { 
+			long firstRow = (long) s * rowsPerSegment;
+			long rows = Math.min( rowsPerSegment, N - firstRow );
+			segments[s] = channel.map( FileChannel.MapMode.READ_WRITE, 
+					8L * firstRow * N, 8L * rows * N )
+					.order( ByteOrder.nativeOrder() ).asDoubleBuffer();
+		}
+	}
+
+
+	/**
+	 * Copy <code>len</code> elements of a row, starting at column 
+	 * <code>col</code>, into <code>dst</code>.
+	 */
+	void read( int row, int col, double[] dst, int off, int len ) { 
+		DoubleBuffer buffer = segment( row, col );
+		buffer.get( dst, off, len );
+	}
+
+
+	/**
+	 * Copy <code>len</code> elements from <code>src</code> into a row, 
+	 * starting at column <code>col</code>.
+	 */
+	void write( int row, int col, double[] src, int off, int len ) { 
+		DoubleBuffer buffer = segment( row, col );
+		buffer.put( src, off, len );
+	}
+
+
+	double get( int row, int col ) { 
+		return segments[row / rowsPerSegment]
+				.get( ( row % rowsPerSegment ) * N + col );
+	}
+
+
+	void set( int row, int col, double value ) { 
+		segments[row / rowsPerSegment]
+				.put( ( row % rowsPerSegment ) * N + col, value );
+	}
+
+
+	/**
+	 * Close and delete the backing file.
+	 */
+	void close() throws IOException { 
+		file.close();
+		path.delete();
+	}
+
+
+	/*
+	 * Private view of the segment holding a row, positioned at an element.
+	 */
+	private DoubleBuffer segment( int row, int col ) { 
+		DoubleBuffer buffer = segments[row / rowsPerSegment].duplicate();
+		buffer.position( ( row % rowsPerSegment ) * N + col );
+		return buffer;
+	}
+
+}
@@ -18,6 +18,7 @@ package root.hap.responsibility;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
@@ -27,6 +28,22 @@ import org.apache.hadoop.util.ToolRunner;
 import org.apache.mahout.common.AbstractJob;
 import org.apache.mahout.math.VectorWritable;
 
+import root.hap.util.BlockUtilities;
+import root.hap.util.Candidates;
+import root.hap.util.ColumnAggregates;
+import root.hap.util.Compression;
+import root.hap.util.Convergence;
+import root.hap.util.HapBlockPartitioner;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKey;
+import root.hap.util.HapKeyPartitioner;
+import root.hap.util.HapMessage;
+import root.hap.util.HapSlice;
+import root.hap.util.HapSortKey;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+import root.hap.util.SparseEdges;
+
 
 /**
  * <p>
@@ -41,7 +58,9 @@ import org.apache.mahout.math.VectorWritable;
  * 
  * <p>
  * The exact breakdown of the MapReduce implementation is discussed in the 
- * appropriate {@link ResponsibilityMapper} and {@link ResponsibilityReducer}.
+ * appropriate {@link ResponsibilityMapper} and {@link ResponsibilityReducer}, or in 
+ * {@link ResponsibilitySliceMapper} and {@link ResponsibilitySliceReducer} when the 
+ * block ("slice") shuffle mode is selected.
  * </p>
  * 
  * @author Dillon Rose
@@ -61,6 +80,19 @@ public class HierarchicalResponsibilityDriver extends AbstractJob {
 	private static String lambda;
 	private static String numLevels;
 	private static String numIteration;
+	private static String shuffleMode;
+	private static String numBlocks;
+	private static String similarityStore;
+	private static String precision;
+	private static String stateCodec;
+	private static String shuffleCodec;
+	private static String sparse;
+	private static String candidates;
+	private static String restricted;
+	private static String streaming;
+	private static String fused;
+
+	private Counters counters;
 
 
 	/*
@@ -74,6 +106,34 @@ public class HierarchicalResponsibilityDriver extends AbstractJob {
 		addOption("lambda", "lambda", "Dampening Factor", true);
 		addOption("numLevels", "l", "Number of Levels", true);
 		addOption("numIter", "iter", "Number of Iterations", true);
+		addOption("shuffle", "shuffle", "Shuffle Mode (element, slice)", 
+				BlockUtilities.SHUFFLE_ELEMENT);
+		addOption("numBlocks", "blocks", 
+				"Number of Blocks in slice mode (0: one per reduce task)", "0");
+		addOption("similarityStore", "ss", 
+				"Similarity Store Directory (S is shuffled if absent)", false);
+		addOption("precision", "precision", 
+				"Storage Precision (double, float, bfloat16)", "double");
+		addOption("stateCodec", "stateCodec", 
+				"Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("shuffleCodec", "shuffleCodec", 
+				"Map Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("sparse", "sparse", 
+				"Sparse Similarity Matrix (true, false)", "false");
+		addOption("candidates", "candidates", 
+				"Restrict every Level to the Exemplars below (true, false)", 
+				"false");
+		addOption("restricted", "restricted", 
+				"Levels restricted by -candidates (all, none, or a comma separated list)", 
+				Candidates.ALL);
+		addOption("streaming", "stream", 
+				"Stream every Row through reused Buffers (true, false)", 
+				"false");
+		addOption("fused", "fused", 
+				"Write the Column Aggregates of a fused Iteration (true, false)", 
+				"false");
 
 	}
 
@@ -89,6 +149,17 @@ public class HierarchicalResponsibilityDriver extends AbstractJob {
 		lambda = getOption("lambda");
 		numLevels = getOption("numLevels");
 		numIteration = getOption("numIter");
+		shuffleMode = getOption("shuffle");
+		numBlocks = getOption("numBlocks");
+		similarityStore = getOption("similarityStore");
+		precision = getOption("precision");
+		stateCodec = getOption("stateCodec");
+		shuffleCodec = getOption("shuffleCodec");
+		sparse = getOption("sparse");
+		candidates = getOption("candidates");
+		restricted = getOption("restricted");
+		streaming = getOption("streaming");
+		fused = getOption("fused");
 
 	}
 
@@ -115,21 +186,48 @@ public class HierarchicalResponsibilityDriver extends AbstractJob {
 		initArguments();
 
 		conf.setInt("matrixN",Integer.valueOf(matrixN));
+		conf.set(Diagonals.PATH_KEY,inputDirectory);
 		conf.setFloat("lambda",Float.valueOf(lambda));
 		conf.setInt("numLevels",Integer.valueOf(numLevels));
 		conf.setInt("numIteration",Integer.valueOf(numIteration));
+		conf.setInt(BlockUtilities.NUM_BLOCKS_KEY,Integer.valueOf(numBlocks));
+		Precision.configure(conf,precision,0);
+		conf.setBoolean(SparseEdges.SPARSE_KEY,Boolean.valueOf(sparse));
+		conf.setBoolean(Candidates.CANDIDATES_KEY,Boolean.valueOf(candidates));
+		conf.set(Candidates.RESTRICTED_KEY,restricted);
+		conf.setBoolean(HapSortKey.STREAMING_KEY,Boolean.valueOf(streaming));
+		conf.setBoolean(ColumnAggregates.FUSED_KEY,Boolean.valueOf(fused));
+		if (similarityStore != null) {
+			conf.set(SimilarityStore.PATH_KEY,similarityStore);
+		}
 
 		Job job = new Job(conf, "HierarchicalResponsibility");
 		job.setJarByClass(HierarchicalResponsibilityDriver.class);
-
-		job.setMapperClass(ResponsibilityMapper.class);
-		job.setReducerClass(ResponsibilityReducer.class);
+		Compression.configure(job, stateCodec, shuffleCodec);
 
 		job.setInputFormatClass(SequenceFileInputFormat.class);
 		job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-		job.setMapOutputKeyClass(Text.class);
-		job.setMapOutputValueClass(Text.class);
+		job.setMapOutputKeyClass(HapKey.class);
+		job.setSortComparatorClass(HapKey.Comparator.class);
+
+		if (BlockUtilities.SHUFFLE_SLICE.equals(shuffleMode)) {
+			job.setMapperClass(ResponsibilitySliceMapper.class);
+			job.setReducerClass(ResponsibilitySliceReducer.class);
+			job.setMapOutputValueClass(HapSlice.class);
+			job.setPartitionerClass(HapBlockPartitioner.class);
+		} else {
+			job.setMapperClass(ResponsibilityMapper.class);
+			job.setReducerClass(ResponsibilityReducer.class);
+			job.setMapOutputValueClass(HapMessage.class);
+			job.setPartitionerClass(HapKeyPartitioner.class);
+			// Sort every row by column, still grouped by row and level.
+			if (Boolean.valueOf(streaming)) {
+				job.setMapOutputKeyClass(HapSortKey.class);
+				job.setSortComparatorClass(HapSortKey.Comparator.class);
+				job.setGroupingComparatorClass(HapKey.Comparator.class);
+			}
+		}
 
 		job.setOutputKeyClass(Text.class);
 		job.setOutputValueClass(VectorWritable.class);
@@ -137,8 +235,22 @@ public class HierarchicalResponsibilityDriver extends AbstractJob {
 		FileInputFormat.addInputPath(job, new Path(inputDirectory));
 		FileOutputFormat.setOutputPath(job, new Path(outputDirectory));
 
-		return job.waitForCompletion(true) ? 0 : 1;
+		boolean success = job.waitForCompletion(true);
+		counters = job.getCounters();
+		Convergence.collectMaxDelta(conf, new Path(outputDirectory), counters);
 
+		return success ? 0 : 1;
+
+	}
+
+
+	/**
+	 * @return the counters of the last job run by this driver, used by 
+	 * the calling job to detect convergence
+	 * @see Convergence
+	 */
+	public Counters getCounters() {
+		return counters;
 	}
 
 
@@ -16,12 +16,22 @@
 package root.hap.responsibility;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
+import root.hap.util.Candidates;
+import root.hap.util.HapKey;
+import root.hap.util.HapMessage;
+import root.hap.util.HapSortKey;
+import root.hap.util.Instrumentation;
 import root.hap.util.KeyUtilities;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+import root.hap.util.SparseEdges;
 
 
 /**
@@ -40,9 +50,11 @@ import root.hap.util.KeyUtilities;
  * </p>
  * 
  * <p>
- * <code>Output key [Text]:</code> tab separated list: {Row Number, Level}
+ * <code>Output key [HapKey]:</code> {Row Number, Level}, or a 
+ * {@link HapSortKey} that adds {Column Number, Matrix ID} when the reducers
+ * stream their input
  * <br />
- * <code>Output value [Iterable&lt;Text&gt;]:</code> tab separated list: 
+ * <code>Output value [HapMessage]:</code> 
  * {Column Number, Level, Matrix ID, Element Value}
  * </p>
  * 
@@ -56,7 +68,41 @@ import root.hap.util.KeyUtilities;
  * 
  */
 public class ResponsibilityMapper extends
-Mapper<Text, VectorWritable, Text, Text> {
+Mapper<Text, VectorWritable, HapKey, HapMessage> {
+
+	// Output objects are reused; the framework serializes them on write.
+	// When streaming, the key is a HapSortKey carrying each message's column.
+	private HapKey keyOut;
+	private HapSortKey sortKey;
+	private final HapMessage valOut = new HapMessage();
+	private final Instrumentation.Emitted emitted = 
+			new Instrumentation.Emitted();
+
+	private boolean similarityStored;
+	private boolean sparse;
+	private Candidates candidates;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		similarityStored = SimilarityStore.isEnabled(
+				context.getConfiguration());
+		sparse = SparseEdges.isEnabled(context.getConfiguration());
+		candidates = Candidates.load(context.getConfiguration());
+		if (HapSortKey.isEnabled(context.getConfiguration())) {
+			sortKey = new HapSortKey();
+		}
+		keyOut = sortKey != null ? sortKey : new HapKey();
+		valOut.setPrecision(Precision.get(context.getConfiguration()));
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		emitted.flush(context);
+	}
 
 
 	/**
@@ -76,128 +122,89 @@ Mapper<Text, VectorWritable, Text, Text> {
 
 		String[] keyData = KeyUtilities.explode( keyIn , false );
 
-		String col = keyData[KeyUtilities.INDEX];
-		String level = keyData[KeyUtilities.LEVEL];
-		String id = keyData[KeyUtilities.ID];
+		int col = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		int level = Integer.valueOf(keyData[KeyUtilities.LEVEL]);
+		char id = keyData[KeyUtilities.ID].charAt(0);
 
-		int colInt= Integer.valueOf(col);
-		String diagID = id.toLowerCase();
-		
-		Text keyOut,keyOutLevelBelow,valOut;
+		Vector vector = valIn.get();
 
-		if( id.equals("A") ) { 
+		if( id == 'A' ) { 
 			
-			double elementValue = valIn.get().get(colInt);
+			emitColumn(context, vector, col, level, level, id, N);
 
-			for (int diagIter = 0; diagIter < N; diagIter++) {
-
-				keyOut = new Text();
-				keyOut.set(diagIter + "\t" + level);
-				valOut = new Text();
-
-				valOut.set(colInt + "\t" + level + "\t" + diagID + "\t"
-						+ elementValue);
-
-				context.write(keyOut, valOut);
-			}
-			
-			for( int row = 0; row < N; row++ ) { 
-				elementValue = valIn.get().get( row );
-
-				keyOut = new Text();
-				keyOut.set(row + "\t" + level);
-
-				valOut = new Text();
-				valOut.set(col + "\t" + level + "\t" + id
-						+ "\t" + elementValue);
-				context.write(keyOut, valOut);
-
-			}
-
-			int levelBelow = Integer.valueOf(level) - 1;
+			int levelBelow = level - 1;
 
 			if (levelBelow >= 0) {
-
-				for( int row = 0; row < N; row++ ) { 
-					
-					elementValue = valIn.get().get( row );
-
-					keyOutLevelBelow = new Text();
-					keyOutLevelBelow.set(row + "\t" + levelBelow);
-
-					valOut = new Text();
-					valOut.set(col + "\t" + level + "\t"
-							+ id + "\t" + elementValue);
-
-					context.write(keyOutLevelBelow, valOut);
-				}
+				emitColumn(context, vector, col, levelBelow, level, id, N);
 			}
-		} else if( id.equals("R") ) { 
+		} else if( id == 'R' ) { 
 			
-			double elementValue = valIn.get().get(colInt);
-
-			for (int diagIter = 0; diagIter < N; diagIter++) {
-
-				keyOut = new Text();
-				keyOut.set(diagIter + "\t" + level);
-				valOut = new Text();
-
-				valOut.set(colInt + "\t" + level + "\t" + diagID + "\t"
-						+ elementValue);
-
-				context.write(keyOut, valOut);
-			}
+			emitColumn(context, vector, col, level, level, id, N);
+			
+		} else if( id == 'S' && !similarityStored ) { 
 			
-			for( int row = 0; row < N; row++ ) { 
-				
-				elementValue = valIn.get().get( row );
+			for (int i = 0; i < numLevels; i++) {
+				emitColumn(context, vector, col, i, i, id, N);
+			}
+		} else if( id == 'T' || id == 'P' || id == 'C' ) { 
+			keyOut.set(col, level);
+			valOut.set(col, level, id, vector.get( 0 ));
+			write(context);
+		}
 
-				keyOut = new Text();
-				keyOut.set(row + "\t" + level);
 
-				valOut = new Text();
-				valOut.set(col + "\t" + level + "\t" + id
-						+ "\t" + elementValue);
+		keyIn = null;
+		valIn = null;
+		System.gc();
+	}
 
-				context.write(keyOut, valOut);
-			}
-			
-		} else if( id.equals("S") ) { 
-			
-			double elementValue;
-			
-			for (int i = 0; i < numLevels; i++) {
-				for( int row = 0; row < N; row++ ) { 
-					
-					elementValue = valIn.get().get( row );
 
-					keyOut = new Text();
-					keyOut.set(row + "\t" + i );
+	/*
+	 * Send every element of a column to the reducer of its row at the 
+	 * given level: all N elements, or only the non-zero ones in sparse 
+	 * mode. A column that is not a candidate exemplar at the level of its
+	 * matrix is not sent at all.
+	 */
+	private void emitColumn(Context context, Vector vector, int col, 
+			int keyLevel, int level, char id, int N) 
+					throws IOException, InterruptedException {
 
-					valOut = new Text();
-					valOut.set(col + "\t" + i + "\t" + id + "\t"
-							+ elementValue);
+		if (candidates != null && !candidates.contains(level, col)) {
+			return;
+		}
 
-					context.write(keyOut, valOut);
-					
-				}
+		if (sparse) {
+			Iterator<Vector.Element> elements = vector.iterateNonZero();
+			while (elements.hasNext()) {
+				Vector.Element element = elements.next();
+				keyOut.set(element.index(), keyLevel);
+				valOut.set(col, level, id, element.get());
+				write(context);
 			}
-		} else if( id.equals("T") || id.equals("P") || id.equals("C") ) { 
-			double elementValue = valIn.get().get( 0 );
-		
-			keyOut = new Text();
-			keyOut.set(col + "\t" + level);
-			valOut = new Text();
-
-			valOut.set(col + "\t" + level + "\t" + id + "\t"
-					+ elementValue);
+			return;
+		}
 
-			context.write(keyOut, valOut);
+		for( int row = 0; row < N; row++ ) { 
+			keyOut.set(row, keyLevel);
+			valOut.set(col, level, id, vector.get( row ));
+			write(context);
 		}
+	}
 
 
-		keyIn = null;
-		valIn = null;
-		System.gc();
+	/*
+	 * Write the current key and message, keyed by the column of the 
+	 * message as well when streaming.
+	 */
+	private void write(Context context) 
+			throws IOException, InterruptedException {
+		if (sortKey != null) {
+			sortKey.setElement(valOut);
+			emitted.record(valOut.getMatrixId(), 
+					HapSortKey.BYTES + valOut.getSerializedSize());
+		} else {
+			emitted.record(valOut);
+		}
+		context.write(keyOut, valOut);
 	}
-}
\ No newline at end of file
+}
@@ -16,14 +16,26 @@
 package root.hap.responsibility;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.VectorWritable;
 
-import root.hap.util.KeyUtilities;
+import root.hap.util.Candidates;
+import root.hap.util.ColumnAggregates;
+import root.hap.util.Compression;
+import root.hap.util.Convergence;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKernels;
+import root.hap.util.HapKey;
+import root.hap.util.HapMessage;
+import root.hap.util.HapSortKey;
+import root.hap.util.Instrumentation;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+import root.hap.util.SparseEdges;
 
 
 /**
@@ -37,9 +49,9 @@ import root.hap.util.KeyUtilities;
  * </p>
  * 
  * <p>
- * <code>Input key [Text]:</code> information about these columns<br />
- * <code>Input value [Iterable&lt;Text&gt;]:</code> the corresponding input 
- * columns
+ * <code>Input key [HapKey]:</code> information about these columns<br />
+ * <code>Input value [Iterable&lt;HapMessage&gt;]:</code> the corresponding 
+ * input column elements
  * </p>
  * 
  * <p>
@@ -49,6 +61,33 @@ import root.hap.util.KeyUtilities;
  * <code>Output value [VectorWritable]:</code> vector of appropriate data
  * </p>
  * 
+ * <p>
+ * The diagonals a(k,k) and r(k,k) needed to choose exemplars are loaded 
+ * once per task from the {@link Diagonals} side file of the input. When a 
+ * {@link SimilarityStore} is configured, rows of S are read from it rather 
+ * than from the shuffle, and S is not written back out.
+ * </p>
+ * 
+ * <p>
+ * When the similarity matrix is sparse (see {@link SparseEdges}), the row
+ * is rebuilt from its edges only, and the arrays passed to the update hold
+ * one element per edge. With {@link Candidates}, the row is rebuilt in the
+ * same way on the candidate exemplars of its level.
+ * </p>
+ * 
+ * <p>
+ * When streaming (see {@link HapSortKey}), the messages of a row arrive 
+ * sorted by column, and the maxima of the update are folded one column at
+ * a time instead of from the rebuilt row. Only A, R and S are kept, in 
+ * buffers allocated once per task, as the rows written out.
+ * </p>
+ * 
+ * <p>
+ * In fused mode, the {@link ColumnAggregates} of the updated rows are 
+ * written to a side file, from which the following fused iteration 
+ * finishes the availability update.
+ * </p>
+ * 
  * @author Dillon Rose
  * @author Michel Rouly
  * 
@@ -59,7 +98,68 @@ import root.hap.util.KeyUtilities;
  * 
  */
 public class ResponsibilityReducer extends
-Reducer<Text, Text, Text, VectorWritable> {
+Reducer<HapKey, HapMessage, Text, VectorWritable> {
+
+	private Diagonals diagonals;
+	private SimilarityStore store;
+
+	// Sparse mode: gatherer of the edges of a row, and its targets.
+	private static final int S_EDGES = 0;
+	private static final int R_EDGES = 1;
+	private static final int A_EDGES = 2;
+	private static final int A_ABOVE_EDGES = 3;
+
+	private SparseEdges.Row edges;
+	private boolean sparse;
+	private Candidates candidates;
+
+	// Streaming mode: row buffers reused by every row of the task, and the
+	// running reductions of the current row.
+	private double[] rowA;
+	private double[] rowR;
+	private double[] rowS;
+	private RowFold fold;
+
+	private ColumnAggregates.Writer aggregates;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		int N = context.getConfiguration().getInt("matrixN", -1);
+		diagonals = Diagonals.load(context.getConfiguration(), N);
+		store = SimilarityStore.open(context);
+		sparse = SparseEdges.isEnabled(context.getConfiguration());
+		candidates = Candidates.load(context.getConfiguration());
+		if (sparse || candidates != null) {
+			edges = new SparseEdges.Row(N);
+		} else if (HapSortKey.isEnabled(context.getConfiguration())) {
+			rowA = new double[N];
+			rowR = new double[N];
+			rowS = store == null ? new double[N] : null;
+			fold = new RowFold();
+		}
+		if (ColumnAggregates.isEnabled(context.getConfiguration())) {
+			aggregates = new ColumnAggregates.Writer(context);
+		}
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		if (store != null) {
+			store.close();
+		}
+		if (aggregates != null) {
+			aggregates.close();
+		}
+		Convergence.writeDelta(context);
+		Instrumentation.recordTask(context, startMillis);
+	}
 
 
 	/**
@@ -71,72 +171,66 @@ Reducer<Text, Text, Text, VectorWritable> {
 	 * @param keyIn vector identification block
 	 * @param valIn vector data
 	 */
-	public void reduce(Text keyIn, Iterable<Text> valIn, Context context)
+	public void reduce(HapKey keyIn, Iterable<HapMessage> valIn, Context context)
 			throws IOException, InterruptedException {
 
+		if (edges != null) {
+			reduceEdges(keyIn, valIn, context);
+			return;
+		}
+
+		if (fold != null) {
+			reduceStream(keyIn, valIn, context);
+			return;
+		}
+
 		int N = context.getConfiguration().getInt("matrixN", -1);
 		int numLevels = context.getConfiguration().getInt("numLevels", -1);
 
 		// data structures to reconstruct the rows we're working on
-		DenseVector A = new DenseVector(N);
-		DenseVector diagA = new DenseVector(N);
-		DenseVector ALevelAbove = new DenseVector(N);
-		DenseVector R = new DenseVector(N);
-		DenseVector diagR = new DenseVector(N);
-		DenseVector S = new DenseVector(N);
-		DenseVector T = new DenseVector(1);
-		DenseVector P = new DenseVector(1);
-		DenseVector C = new DenseVector(1);
-
-		int reducerRowNum = Integer.valueOf(keyIn.toString().split("\t")[0]);
-		int reducerLevelNum = Integer.valueOf(keyIn.toString().split("\t")[1]);
-
-		for (Text text : valIn) { 
-			// **** important, do not remove this conversion ****
-			// we must do this for some reason..not sure why.
-			// if we don't the loop doesn't iterate properly.
-			// **** important, do not remove this conversion ****
-			text = new Text(text.toString());
-
-			String[] textData = KeyUtilities.explode(text, true);
-
-			String col = textData[KeyUtilities.INDEX];
-			String val = textData[KeyUtilities.VALUE];
-			String level = textData[KeyUtilities.LEVEL];
-			String id = textData[KeyUtilities.ID];
-
-			int colInt = Integer.valueOf(col);
-			double valDouble = Double.valueOf(val);
-			int levelInt = Integer.valueOf(level);
-
-			switch (id.charAt(0)) {
+		double[] A = new double[N];
+		double[] ALevelAbove = new double[N];
+		double[] R = new double[N];
+		double[] S = new double[N];
+		double T = 0;
+		double P = 0;
+		double C = 0;
+
+		int reducerRowNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		double[] diagA = diagonals.getA(reducerLevelNum);
+		double[] diagR = diagonals.getR(reducerLevelNum);
+
+		for (HapMessage message : valIn) { 
+			// The framework reuses the message instance between iterations,
+			// so its fields are copied out before moving on.
+			int colInt = message.getIndex();
+			double valDouble = message.getValue();
+			int levelInt = message.getLevel();
+
+			switch (message.getMatrixId()) {
 			case 'R':
-				R.setQuick(colInt, valDouble);
-				break;
-			case 'r':
-				diagR.setQuick(colInt, valDouble);
+				R[colInt] = valDouble;
 				break;
 			case 'A':
 				if (reducerLevelNum == levelInt) {
-					A.setQuick(colInt, valDouble);
+					A[colInt] = valDouble;
 				} else {
-					ALevelAbove.set(colInt, valDouble);
+					ALevelAbove[colInt] = valDouble;
 				}
 				break;
-			case 'a':
-				diagA.setQuick(colInt, valDouble);
-				break;
 			case 'S':
-				S.setQuick(colInt, valDouble);
+				S[colInt] = valDouble;
 				break;
 			case 'C':
-				C.setQuick(0, valDouble);
+				C = valDouble;
 				break;
 			case 'T':
-				T.setQuick(0, valDouble);
+				T = valDouble;
 				break;
 			case 'P':
-				P.setQuick(0, valDouble);
+				P = valDouble;
 				break;
 			default:
 				System.err.println("[ERROR]: Invalid matrix ID.");
@@ -145,28 +239,412 @@ Reducer<Text, Text, Text, VectorWritable> {
 			}
 		}
 
+		if (store != null) {
+			S = store.getRow(reducerRowNum);
+		}
+
 		//		printInput(A, ALevelAbove, diagA, R, diagR, S, T, P, C);
 
+		updateRow(context, A, ALevelAbove, diagA, R, diagR, S, T, P, C,
+				reducerRowNum, reducerLevelNum, N, numLevels, null, 
+				aggregates);
+
+
+		keyIn = null;
+		valIn = null;
+		A = null;
+		ALevelAbove = null;
+		R = null;
+		S = null;
+		System.gc();
+	}
+
+
+	/*
+	 * Sparse counterpart of reduce: rebuild the row on its edges, the 
+	 * columns present in S. An edge whose column is not a candidate of the
+	 * level above has no availability there.
+	 */
+	private void reduceEdges(HapKey keyIn, Iterable<HapMessage> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		int N = context.getConfiguration().getInt("matrixN", -1);
+		int numLevels = context.getConfiguration().getInt("numLevels", -1);
+
+		double T = 0;
+		double P = 0;
+		double C = 0;
+
+		int reducerRowNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		edges.clear();
+
+		for (HapMessage message : valIn) { 
+			int colInt = message.getIndex();
+			double valDouble = message.getValue();
+
+			switch (message.getMatrixId()) {
+			case 'R':
+				edges.add(R_EDGES, colInt, valDouble);
+				break;
+			case 'A':
+				edges.add(reducerLevelNum == message.getLevel() 
+						? A_EDGES : A_ABOVE_EDGES, colInt, valDouble);
+				break;
+			case 'S':
+				edges.add(S_EDGES, colInt, valDouble);
+				break;
+			case 'C':
+				C = valDouble;
+				break;
+			case 'T':
+				T = valDouble;
+				break;
+			case 'P':
+				P = valDouble;
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit(1);
+				break;
+			}
+		}
+
+		int size = edges.build(S_EDGES);
+		if (edges.find(reducerRowNum) == -1 && (candidates == null 
+				|| candidates.contains(reducerLevelNum, reducerRowNum))) {
+			throw new IllegalStateException("Row " + reducerRowNum 
+					+ " of the sparse similarity matrix has no diagonal.");
+		}
+
+		int[] cols = edges.getIndices();
+		double[] ALevelAbove = edges.get(A_ABOVE_EDGES);
+		if (candidates != null && reducerLevelNum + 1 < numLevels) {
+			for (int e = 0; e < size; e++) {
+				if (!candidates.contains(reducerLevelNum + 1, cols[e])) {
+					ALevelAbove[e] = Double.NEGATIVE_INFINITY;
+				}
+			}
+		}
+
+		// A row on every column is written in full.
+		updateRow(context, edges.get(A_EDGES), ALevelAbove, 
+				edges.gather(diagonals.getA(reducerLevelNum)), 
+				edges.get(R_EDGES), 
+				edges.gather(diagonals.getR(reducerLevelNum)), 
+				edges.get(S_EDGES), T, P, C, reducerRowNum, reducerLevelNum, 
+				size, numLevels, sparse || size < N ? cols : null);
+	}
+
+
+	/*
+	 * Streaming counterpart of reduce: fold the row one column at a time,
+	 * in the column order of the HapSortKey. A column that sent no 
+	 * message is folded as zeros, as it is in a rebuilt row.
+	 */
+	private void reduceStream(HapKey keyIn, Iterable<HapMessage> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		int N = context.getConfiguration().getInt("matrixN", -1);
+		int numLevels = context.getConfiguration().getInt("numLevels", -1);
+
+		double T = 0;
+		double P = 0;
+		double C = 0;
+
+		int reducerRowNum = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		double[] diagA = diagonals.getA(reducerLevelNum);
+		double[] diagR = diagonals.getR(reducerLevelNum);
+		double[] S = store != null ? store.getRow(reducerRowNum) : rowS;
+
+		fold.reset();
+
+		// Elements of the column currently being received.
+		int col = -1;
+		double a = 0;
+		double aAbove = 0;
+		double r = 0;
+		double s = 0;
+
+		for (HapMessage message : valIn) { 
+			char id = message.getMatrixId();
+			double valDouble = message.getValue();
+
+			if (id == 'C' || id == 'T' || id == 'P') {
+				if (id == 'C') {
+					C = valDouble;
+				} else if (id == 'T') {
+					T = valDouble;
+				} else {
+					P = valDouble;
+				}
+				continue;
+			}
+
+			int colInt = message.getIndex();
+			if (colInt != col) {
+				if (colInt < col) {
+					throw new IllegalStateException("Row " + reducerRowNum 
+							+ " is not sorted by column; streaming requires " 
+							+ "the HapSortKey sort order.");
+				}
+				if (col >= 0) {
+					foldColumn(col, a, aAbove, r, s, S, diagA, diagR);
+				}
+				for (int k = col + 1; k < colInt; k++) {
+					foldColumn(k, 0, 0, 0, 0, S, diagA, diagR);
+				}
+				col = colInt;
+				a = 0;
+				aAbove = 0;
+				r = 0;
+				s = 0;
+			}
+
+			switch (id) {
+			case 'R':
+				r = valDouble;
+				break;
+			case 'A':
+				if (reducerLevelNum == message.getLevel()) {
+					a = valDouble;
+				} else {
+					aAbove = valDouble;
+				}
+				break;
+			case 'S':
+				s = valDouble;
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit(1);
+				break;
+			}
+		}
+
+		if (col >= 0) {
+			foldColumn(col, a, aAbove, r, s, S, diagA, diagR);
+		}
+		for (int k = col + 1; k < N; k++) {
+			foldColumn(k, 0, 0, 0, 0, S, diagA, diagR);
+		}
+
+		outputTau(context, T, reducerRowNum, reducerLevelNum, "T");
+
+		int numIteration = context.getConfiguration()
+				.getInt("numIteration", -1);
+
+		if (numIteration == 0) {
+			outputExemplars(context, C, reducerRowNum, reducerLevelNum, "C");
+		} else {
+			outputExemplars(context, fold.exemplarValue(), reducerRowNum, 
+					reducerLevelNum, "C");
+			int exemplar = fold.exemplarIndex();
+			if (exemplar >= 0) {
+				Instrumentation.recordSimilarity(context, reducerLevelNum, 
+						S[exemplar]);
+			}
+		}
+
+		if (reducerLevelNum != numLevels - 1 && numIteration != 0) {
+			outputPhi(context, fold.phi, reducerRowNum, reducerLevelNum, "P");
+		} else {
+			outputPhi(context, P, reducerRowNum, reducerLevelNum, "P");
+		}
+
+		outputAvailability(context, rowA, null, reducerRowNum, 
+				reducerLevelNum, "A");
+
+		if (store == null && reducerLevelNum == 0) {
+			outputSimilarity(context, S, null, reducerRowNum, 
+					reducerLevelNum, "S");
+		}
+
+		writeResponsibility(context, S, rowR, null, T, fold.maxIndex, 
+				fold.max, fold.secondMax, reducerLevelNum, reducerRowNum, N, 
+				"R");
+	}
+
+
+	/*
+	 * Store the elements of one column in the row buffers and fold them 
+	 * into the running reductions. With a similarity store, S already 
+	 * holds the row.
+	 */
+	private void foldColumn(int col, double a, double aAbove, double r, 
+			double s, double[] S, double[] diagA, double[] diagR) {
+		rowA[col] = a;
+		rowR[col] = r;
+		if (store == null) {
+			S[col] = s;
+		}
+		fold.add(col, a, aAbove, r, S[col], diagA[col] + diagR[col] > 0);
+	}
+
+
+	/*
+	 * Running reductions of a row in streaming mode, folded in column 
+	 * order: the largest a + s, the first column it is found at and the 
+	 * largest a + s elsewhere; the largest aAbove + s (phi); and the best
+	 * exemplar a + r, as chosen by HapKernels.exemplarValue and 
+	 * HapKernels.exemplarIndex.
+	 */
+	private static final class RowFold {
+
+		double max;
+		int maxIndex;
+		double secondMax;
+		double phi;
+
+		private double exemplarMax;
+		private int exemplarIndex;
+		private double validMax;
+		private int validIndex;
+		private boolean validExist;
+
+		void reset() {
+			max = Double.NEGATIVE_INFINITY;
+			maxIndex = 0;
+			secondMax = Double.NEGATIVE_INFINITY;
+			phi = Double.NEGATIVE_INFINITY;
+			exemplarMax = Double.NEGATIVE_INFINITY;
+			exemplarIndex = -1;
+			validMax = Double.NEGATIVE_INFINITY;
+			validIndex = -1;
+			validExist = false;
+		}
+
+		void add(int col, double a, double aAbove, double r, double s, 
+				boolean valid) {
+			double sum = a + s;
+			if (sum > max) {
+				secondMax = Math.max(secondMax, max);
+				max = sum;
+				maxIndex = col;
+			} else {
+				secondMax = Math.max(secondMax, sum);
+			}
+
+			phi = Math.max(phi, aAbove + s);
+
+			double exemplar = a + r;
+			if (exemplar > exemplarMax) {
+				exemplarMax = exemplar;
+				exemplarIndex = col;
+			}
+			if (valid && exemplar > validMax) {
+				validMax = exemplar;
+				validIndex = col;
+			}
+			validExist |= valid;
+		}
+
+		double exemplarValue() {
+			return validExist ? validMax : exemplarMax;
+		}
+
+		int exemplarIndex() {
+			return validIndex != -1 ? validIndex : exemplarIndex;
+		}
+	}
+
+
+	/**
+	 * <p>
+	 * Update every quantity owned by a single row once its input vectors 
+	 * have been assembled, and write the results to the given context.
+	 * </p>
+	 * 
+	 * <p>
+	 * This is shared by {@link ResponsibilityReducer} and 
+	 * {@link ResponsibilitySliceReducer}, which differ only in how the 
+	 * row vectors are rebuilt from the shuffle.
+	 * </p>
+	 */
+	static void updateRow(TaskInputOutputContext<?, ?, Text, VectorWritable> context,
+			double[] A, double[] ALevelAbove, double[] diagA,
+			double[] R, double[] diagR, double[] S, double T,
+			double P, double C, int reducerRowNum,
+			int reducerLevelNum, int N, int numLevels)
+					throws IOException, InterruptedException {
+		updateRow(context, A, ALevelAbove, diagA, R, diagR, S, T, P, C, 
+				reducerRowNum, reducerLevelNum, N, numLevels, null);
+	}
+
+
+	/**
+	 * <p>
+	 * Update a row given as compact arrays over some of its columns, as in
+	 * sparse mode: every array holds N elements, the elements at the 
+	 * given columns, and is written out as a sparse vector.
+	 * </p>
+	 * 
+	 * @param cols column of every element, or null for full rows
+	 */
+	static void updateRow(TaskInputOutputContext<?, ?, Text, VectorWritable> context,
+			double[] A, double[] ALevelAbove, double[] diagA,
+			double[] R, double[] diagR, double[] S, double T,
+			double P, double C, int reducerRowNum,
+			int reducerLevelNum, int N, int numLevels, int[] cols)
+					throws IOException, InterruptedException {
+		updateRow(context, A, ALevelAbove, diagA, R, diagR, S, T, P, C, 
+				reducerRowNum, reducerLevelNum, N, numLevels, cols, null);
+	}
+
+
+	/**
+	 * <p>
+	 * Update a row as above, and record the aggregates of the updated full
+	 * row, if given, for the availability update to be fused into the 
+	 * next job.
+	 * </p>
+	 * 
+	 * @param cols column of every element, or null for full rows
+	 * @param aggregates writer of the column aggregates, or null
+	 */
+	public static void updateRow(TaskInputOutputContext<?, ?, Text, VectorWritable> context,
+			double[] A, double[] ALevelAbove, double[] diagA,
+			double[] R, double[] diagR, double[] S, double T,
+			double P, double C, int reducerRowNum,
+			int reducerLevelNum, int N, int numLevels, int[] cols, 
+			ColumnAggregates.Writer aggregates)
+					throws IOException, InterruptedException {
+
 		outputTau(context, T, reducerRowNum, reducerLevelNum, "T");
 
 		// We want this part to get skipped on the 1st iteration
 		int numIteration = context.getConfiguration()
 				.getInt("numIteration", -1);
 
+		double exemplars = C;
+		double phi = P;
+
 		if (numIteration == 0) {
 
 			outputExemplars(context, C, reducerRowNum, reducerLevelNum, "C");
 
 		} else {
 
-			updateExemplars(context, A, R, diagA, diagR, C, reducerRowNum, reducerLevelNum, 
+			exemplars = updateExemplars(context, A, R, diagA, diagR, reducerRowNum, reducerLevelNum, 
 					N, "C");
 
+			// Similarity of this point to the exemplar it is assigned to
+			// by the messages entering this iteration.
+			int exemplar = HapKernels.exemplarIndex(A, 0, R, 0, diagA, diagR, 
+					null, N);
+			if (exemplar >= 0) {
+				Instrumentation.recordSimilarity(context, reducerLevelNum, 
+						S[exemplar]);
+			}
+
 		}
 
 		if (reducerLevelNum != numLevels - 1 && numIteration != 0) {
 
-			updatePhi(context, ALevelAbove, S, P, reducerRowNum, 
+			phi = updatePhi(context, ALevelAbove, S, reducerRowNum, 
 					reducerLevelNum, N, "P");
 
 		} else {
@@ -175,28 +653,25 @@ Reducer<Text, Text, Text, VectorWritable> {
 
 		}
 
-		outputAvailability(context, A, reducerRowNum, reducerLevelNum, "A");
+		outputAvailability(context, A, cols, reducerRowNum, reducerLevelNum, 
+				"A");
 
-		if( reducerLevelNum == 0 ) { 
-			outputSimilarity(context, S, reducerRowNum, reducerLevelNum, "S");
+		if( reducerLevelNum == 0 
+				&& !SimilarityStore.isEnabled(context.getConfiguration()) ) { 
+			outputSimilarity(context, S, cols, reducerRowNum, 
+					reducerLevelNum, "S");
 		}
 
-		updateResponsibility(context, A, S, R, T, reducerLevelNum,
-				reducerRowNum, N, "R");
+		// a(k,k) as written, before R is updated in place
+		double diagonal = cols == null ? A[reducerRowNum] : 0;
 
+		updateResponsibility(context, A, S, R, cols, T, reducerLevelNum,
+				reducerRowNum, N, "R");
 
-		keyIn = null;
-		valIn = null;
-		A = null;
-		diagA = null;
-		ALevelAbove = null;
-		R = null;
-		diagR = null;
-		S = null;
-		T = null;
-		P = null;
-		C = null;
-		System.gc();
+		if (aggregates != null) {
+			aggregates.record(reducerRowNum, reducerLevelNum, exemplars, phi, 
+					R, diagonal);
+		}
 	}
 
 
@@ -221,11 +696,12 @@ Reducer<Text, Text, Text, VectorWritable> {
 	/*
 	 * Output Tau directly.
 	 */
-	private void outputTau(Context context, DenseVector T, int reducerRowNum,
+	private static void outputTau(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double T, int reducerRowNum,
 			int reducerLevelNum, String tau) throws IOException,
 			InterruptedException {
 
-		VectorWritable TWritable = new VectorWritable(T);
+		VectorWritable TWritable = new VectorWritable(
+				new DenseVector(new double[] { T }, true));
 
 		context.write(new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
 				+ tau), TWritable);
@@ -235,11 +711,12 @@ Reducer<Text, Text, Text, VectorWritable> {
 	/*
 	 * Output Exemplar Preferences directly.
 	 */
-	private void outputExemplars(Context context, DenseVector C,
+	private static void outputExemplars(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double C,
 			int reducerRowNum, int reducerLevelNum, String exemplar)
 					throws IOException, InterruptedException {
 
-		VectorWritable CWritable = new VectorWritable(C);
+		VectorWritable CWritable = new VectorWritable(
+				new DenseVector(new double[] { C }, true));
 
 		context.write(new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
 				+ exemplar), CWritable);
@@ -252,61 +729,29 @@ Reducer<Text, Text, Text, VectorWritable> {
 	 * A(j,j,l) + R(i,j,l) > 0 Find the maximum of A+R keeping row constant
 	 * varying column for level equal level to lower C level
 	 */
-	private void updateExemplars(Context context, DenseVector A, DenseVector R,
-			DenseVector diagA, DenseVector diagR, DenseVector C, int reducerRowNum, 
+	private static double updateExemplars(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] A, double[] R,
+			double[] diagA, double[] diagR, int reducerRowNum, 
 			int reducerLevelNum, int N, String exemplar) 
 					throws IOException, InterruptedException {
 
-		boolean [] validExemplars = new boolean [N];
-		boolean validExist = false;
-		Arrays.fill(validExemplars, false);
-		
-		for ( int diagIter = 0; diagIter < N ; diagIter++ ){
-			double diagVal = diagA.get( diagIter ) + diagR.get( diagIter );
-			if( diagVal > 0 ){
-				validExemplars[diagIter] = true;
-				validExist = true;
-			}
-		}
-		
-		DenseVector sum = (DenseVector) A.plus(R);
-		double maxValue = Double.NEGATIVE_INFINITY;
-		
-		if( validExist ){
-			
-			for ( int diagIter = 0; diagIter < N ; diagIter++ ){
-				
-				double validValue = sum.get( diagIter );
-				if( validExemplars [diagIter] && validValue > maxValue){
-					maxValue = validValue;
-				}
-				
-			}
-			
-		}else{
-			
-			maxValue = sum.maxValue();
-			
-		}
-		
-		C.setQuick(0, maxValue);
+		double maxValue = HapKernels.exemplarValue(A, 0, R, 0, diagA, diagR, N);
 
-		VectorWritable CWritable = new VectorWritable(C);
-
-		context.write(new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
-				+ exemplar), CWritable);
+		outputExemplars(context, maxValue, reducerRowNum, reducerLevelNum, 
+				exemplar);
 
+		return maxValue;
 	}
 
 
 	/*
 	 * Output Phi directly.
 	 */
-	private void outputPhi(Context context, DenseVector P, int reducerRowNum,
+	private static void outputPhi(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double P, int reducerRowNum,
 			int reducerLevelNum, String phi) throws IOException,
 			InterruptedException {
 
-		VectorWritable PWritable = new VectorWritable(P);
+		VectorWritable PWritable = new VectorWritable(
+				new DenseVector(new double[] { P }, true));
 
 		context.write(new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
 				+ phi), PWritable);
@@ -320,34 +765,32 @@ Reducer<Text, Text, Text, VectorWritable> {
 	 * Find the maximum of A+S keeping row constant varying column for level one
 	 * above level of lower P level
 	 */
-	private void updatePhi(Context context, DenseVector ALevelAbove,
-			DenseVector SLevelAbove, DenseVector P, int reducerRowNum, 
+	private static double updatePhi(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] ALevelAbove,
+			double[] SLevelAbove, int reducerRowNum, 
 			int reducerLevelNum, int N, String phi) 
 					throws IOException, InterruptedException {
 
-		DenseVector sum = (DenseVector) ALevelAbove.plus(SLevelAbove);
-		double maxValue = sum.maxValue();
-
-		P.setQuick( 0, maxValue );
+		double maxValue = HapKernels.maxSum(ALevelAbove, 0, SLevelAbove, 0, N);
 
-		VectorWritable PWritable = new VectorWritable(P);
+		outputPhi(context, maxValue, reducerRowNum, reducerLevelNum, phi);
 
-		context.write(new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
-				+ phi), PWritable);
+		return maxValue;
 	}
 
 
 	/*
 	 * Output Availability directly.
 	 */
-	private void outputAvailability(Context context, DenseVector A,
-			int reducerRowNum, int reducerLevelNum, String availability)
-					throws IOException, InterruptedException {
+	private static void outputAvailability(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] A,
+			int[] cols, int reducerRowNum, int reducerLevelNum, 
+			String availability) throws IOException, InterruptedException {
 
-		VectorWritable AWritable = new VectorWritable(A);
+		VectorWritable AWritable = writable(context, A, cols);
 
-		context.write(new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
-				+ availability), AWritable);
+		Text AKey = new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
+				+ availability);
+		context.write(AKey, AWritable);
+		Compression.recordState(context, AKey, A.length);
 
 	}
 
@@ -355,14 +798,16 @@ Reducer<Text, Text, Text, VectorWritable> {
 	/*
 	 * Output Similarity directly.
 	 */
-	private void outputSimilarity(Context context, DenseVector S,
-			int reducerRowNum, int reducerLevelNum, String similarity)
-					throws IOException, InterruptedException {
+	private static void outputSimilarity(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] S,
+			int[] cols, int reducerRowNum, int reducerLevelNum, 
+			String similarity) throws IOException, InterruptedException {
 
-		VectorWritable SWritable = new VectorWritable(S);
+		VectorWritable SWritable = writable(context, S, cols);
 
-		context.write(new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
-				+ similarity), SWritable);
+		Text SKey = new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
+				+ similarity);
+		context.write(SKey, SWritable);
+		Compression.recordState(context, SKey, S.length);
 
 	}
 
@@ -371,44 +816,68 @@ Reducer<Text, Text, Text, VectorWritable> {
 	 * ALGORITHM: Update Responsibilty R(i,k) = S(i,k) - max[ S(i,j) + A(i,j) ]
 	 * 
 	 * Find the maximum of S+A excluding self, subtract this from S, store this
-	 * in self (R).
+	 * in self (R). R is updated in place.
 	 */
-	private void updateResponsibility(Context context, DenseVector A,
-			DenseVector S, DenseVector R, DenseVector T, int reducerLevelNum,
+	private static void updateResponsibility(TaskInputOutputContext<?, ?, Text, VectorWritable> context, double[] A,
+			double[] S, double[] R, int[] cols, double T, int reducerLevelNum,
 			int reducerRowNum, int N, String responsibilty) throws IOException,
 			InterruptedException {
 
-		DenseVector oldR = R.clone();
-		DenseVector sum = (DenseVector) A.plus(S);
-
-		double maxValue = sum.maxValue();
-		int maxValueIndex = sum.maxValueIndex();
-		maxValue *= -1;
+		int maxValueIndex = HapKernels.argMaxSum(A, 0, S, 0, N);
+		writeResponsibility(context, S, R, cols, T, maxValueIndex, 
+				A[maxValueIndex] + S[maxValueIndex], 
+				HapKernels.maxSumExcept(A, 0, S, 0, N, maxValueIndex), 
+				reducerLevelNum, reducerRowNum, N, responsibilty);
 
-		sum.set(maxValueIndex, Double.NEGATIVE_INFINITY);
-
-		double tau = T.get(0);
+	}
 
-		double YH = Math.min(maxValue, tau);
 
-		double actualMax = sum.maxValue();
-		actualMax*=-1;
+	/*
+	 * Dampen R in place given the largest A + S, the first column it is 
+	 * found at and the largest A + S elsewhere, and write it out.
+	 */
+	private static void writeResponsibility(TaskInputOutputContext<?, ?, Text, VectorWritable> context, 
+			double[] S, double[] R, int[] cols, double T, int maxValueIndex, 
+			double max, double secondMax, int reducerLevelNum, 
+			int reducerRowNum, int N, String responsibilty) 
+					throws IOException, InterruptedException {
 
-		double YH2 = Math.min(actualMax, tau);
+		double maxValue = -1 * max;
+		double actualMax = -1 * secondMax;
 
-		R=(DenseVector) S.plus(YH);
-		R.setQuick(maxValueIndex, S.get(maxValueIndex)+YH2);
+		double YH = Math.min(maxValue, T);
+		double YH2 = Math.min(actualMax, T);
 
 		// Dampen
 		double lambda = context.getConfiguration().getFloat("lambda", 0);
-		R = (DenseVector) R.times(1 - lambda);
-		oldR = (DenseVector) oldR.times(lambda);
-		R = (DenseVector) R.plus(oldR);
+		double delta = HapKernels.dampedResponsibility(S, 0, R, 0, N, 
+				maxValueIndex, YH, YH2, lambda);
 
-		VectorWritable RWritable = new VectorWritable(R);
+		Convergence.recordDelta(context, delta);
+		Instrumentation.recordUpdate(context, reducerLevelNum, delta);
 
-		context.write(new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
-				+ responsibilty), RWritable);
+		VectorWritable RWritable = writable(context, R, cols);
 
+		Text RKey = new Text(reducerRowNum + "\t" + reducerLevelNum + "\t"
+				+ responsibilty);
+		context.write(RKey, RWritable);
+		Compression.recordState(context, RKey, R.length);
+
+	}
+
+
+	/*
+	 * Wrap a row for output: in full, or as a sparse vector of matrixN 
+	 * elements if the columns of its elements are given.
+	 */
+	private static VectorWritable writable(
+			TaskInputOutputContext<?, ?, Text, VectorWritable> context, 
+			double[] values, int[] cols) {
+		Precision precision = Precision.get(context.getConfiguration());
+		if (cols == null) {
+			return precision.writable(values);
+		}
+		return precision.writable(values, cols, 
+				context.getConfiguration().getInt("matrixN", -1));
 	}
 }
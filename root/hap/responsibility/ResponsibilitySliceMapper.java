@@ -0,0 +1,184 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.responsibility;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+import root.hap.util.KeyUtilities;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+
+
+/**
+ * <p>
+ * Mapper class for updating responsibility in the block ("slice") shuffle 
+ * mode.
+ * </p>
+ * 
+ * <p>
+ * This mapper distributes the same data as {@link ResponsibilityMapper}, 
+ * but instead of one record per element it cuts each input column into 
+ * contiguous blocks of rows and writes one record per block.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> information about this column<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding input column
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [HapKey]:</code> {Block Number, Level}
+ * <br />
+ * <code>Output value [HapSlice]:</code> 
+ * {Column Number, Level, Matrix ID, First Row, Element Values}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalResponsibilityDriver
+ * @see ResponsibilitySliceReducer
+ * 
+ */
+public class ResponsibilitySliceMapper extends
+Mapper<Text, VectorWritable, HapKey, HapSlice> {
+
+	private int N;
+	private int numLevels;
+	private int numBlocks;
+	private boolean similarityStored;
+
+	private double[] column;
+	private double[] block;
+	private final double[] single = new double[1];
+
+	private final HapKey keyOut = new HapKey();
+	private final HapSlice valOut = new HapSlice();
+	private final Instrumentation.Emitted emitted = 
+			new Instrumentation.Emitted();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numLevels = conf.getInt("numLevels", -1);
+		numBlocks = BlockUtilities.getNumBlocks(conf, N, 
+				context.getNumReduceTasks());
+		similarityStored = SimilarityStore.isEnabled(conf);
+		valOut.setPrecision(Precision.get(conf));
+
+		column = new double[N];
+		block = new double[BlockUtilities.blockEnd(0, N, numBlocks) + 1];
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		emitted.flush(context);
+	}
+
+
+	/**
+	 * <p>
+	 * This method takes in a vector or matrix column and outputs its 
+	 * elements block by block in a fashion usable by the Reducer.
+	 * </p>
+	 * 
+	 * @param keyIn vector identification text
+	 * @param valIn vector data
+	 */
+	public void map(Text keyIn, VectorWritable valIn, Context context)
+			throws IOException, InterruptedException {
+
+		String[] keyData = KeyUtilities.explode( keyIn , false );
+
+		int col = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		int level = Integer.valueOf(keyData[KeyUtilities.LEVEL]);
+		char id = keyData[KeyUtilities.ID].charAt(0);
+
+		Vector vector = valIn.get();
+
+		if( id == 'A' || id == 'R' ) { 
+
+			copyColumn(vector);
+			writeBlocks(context, col, level, level, id);
+
+			if( id == 'A' && level - 1 >= 0 ) { 
+				writeBlocks(context, col, level, level - 1, id);
+			}
+
+		} else if( id == 'S' && !similarityStored ) { 
+
+			copyColumn(vector);
+			for (int i = 0; i < numLevels; i++) {
+				writeBlocks(context, col, i, i, id);
+			}
+
+		} else if( id == 'T' || id == 'P' || id == 'C' ) { 
+
+			single[0] = vector.get(0);
+			keyOut.set(BlockUtilities.blockOf(col, N, numBlocks), level);
+			valOut.set(col, level, id, col, single, 1);
+			context.write(keyOut, valOut);
+			emitted.record(valOut);
+
+		}
+	}
+
+
+	/*
+	 * Unpack the input vector into the reusable column buffer.
+	 */
+	private void copyColumn(Vector vector) { 
+		for( int row = 0; row < N; row++ ) { 
+			column[row] = vector.getQuick(row);
+		}
+	}
+
+
+	/*
+	 * Cut the column buffer into one slice per block of rows.
+	 */
+	private void writeBlocks(Context context, int col, int level, 
+			int targetLevel, char id) throws IOException, InterruptedException {
+		for( int b = 0; b < numBlocks; b++ ) { 
+			int start = BlockUtilities.blockStart(b, N, numBlocks);
+			int length = BlockUtilities.blockEnd(b, N, numBlocks) - start;
+
+			System.arraycopy(column, start, block, 0, length);
+
+			keyOut.set(b, targetLevel);
+			valOut.set(col, level, id, start, block, length);
+			context.write(keyOut, valOut);
+			emitted.record(valOut);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.responsibility;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.Convergence;
+import root.hap.util.Diagonals;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+import root.hap.util.SimilarityStore;
+
+
+/**
+ * <p>
+ * Reducer class for updating responsibility in the block ("slice") shuffle 
+ * mode.
+ * </p>
+ * 
+ * <p>
+ * Each call receives every slice destined for one block of rows at one 
+ * level. Slices are copied in bulk into source-major tiles, after which 
+ * each row of the block is gathered and updated exactly as in 
+ * {@link ResponsibilityReducer}. A reduce call holds four N by block-size 
+ * tiles in memory.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [HapKey]:</code> {Block Number, Level}<br />
+ * <code>Input value [Iterable&lt;HapSlice&gt;]:</code> the slices of the 
+ * input columns covering this block
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Row Number, Level, 
+ * Matrix ID}
+ * <br />
+ * <code>Output value [VectorWritable]:</code> vector of appropriate data
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalResponsibilityDriver
+ * @see ResponsibilitySliceMapper
+ * 
+ */
+public class ResponsibilitySliceReducer extends
+Reducer<HapKey, HapSlice, Text, VectorWritable> {
+
+	private int N;
+	private int numLevels;
+	private int numBlocks;
+
+	// source-major tiles: tile[ column * blockLength + row - blockStart ]
+	private double[] ATile;
+	private double[] ALevelAboveTile;
+	private double[] RTile;
+	private double[] STile;
+
+	private Diagonals diagonals;
+	private SimilarityStore store;
+	private int storedBlock = -1;
+	private double[] T;
+	private double[] P;
+	private double[] C;
+
+	// reusable row buffers
+	private double[] ARow;
+	private double[] ALevelAboveRow;
+	private double[] RRow;
+	private double[] SRow;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numLevels = conf.getInt("numLevels", -1);
+		numBlocks = BlockUtilities.getNumBlocks(conf, N, 
+				context.getNumReduceTasks());
+
+		int maxBlockLength = BlockUtilities.blockEnd(0, N, numBlocks) + 1;
+		long tileSize = (long) N * maxBlockLength;
+		if( tileSize > Integer.MAX_VALUE ) { 
+			System.err.println("[ERROR]: Block too large, increase the "
+					+ "number of blocks.");
+			System.exit(1);
+		}
+
+		ATile = new double[(int) tileSize];
+		ALevelAboveTile = new double[(int) tileSize];
+		RTile = new double[(int) tileSize];
+		STile = new double[(int) tileSize];
+
+		diagonals = Diagonals.load(conf, N);
+		store = SimilarityStore.open(context);
+		T = new double[maxBlockLength];
+		P = new double[maxBlockLength];
+		C = new double[maxBlockLength];
+
+		ARow = new double[N];
+		ALevelAboveRow = new double[N];
+		RRow = new double[N];
+		SRow = new double[N];
+	}
+
+
+	/**
+	 * <p>
+	 * This method serves to update the responsibility matrix for a block of
+	 * rows by accessing the slices of each matrix covering that block.
+	 * </p>
+	 * 
+	 * @param keyIn block identification
+	 * @param valIn slice data
+	 */
+	public void reduce(HapKey keyIn, Iterable<HapSlice> valIn, Context context)
+			throws IOException, InterruptedException {
+
+		int block = keyIn.getIndex();
+		int reducerLevelNum = keyIn.getLevel();
+
+		int blockStart = BlockUtilities.blockStart(block, N, numBlocks);
+		int blockLength = BlockUtilities.blockEnd(block, N, numBlocks) 
+				- blockStart;
+		int tileLength = N * blockLength;
+
+		Arrays.fill(ATile, 0, tileLength, 0);
+		Arrays.fill(ALevelAboveTile, 0, tileLength, 0);
+		Arrays.fill(RTile, 0, tileLength, 0);
+		if (store == null) {
+			Arrays.fill(STile, 0, tileLength, 0);
+		}
+		Arrays.fill(T, 0);
+		Arrays.fill(P, 0);
+		Arrays.fill(C, 0);
+
+		for (HapSlice slice : valIn) { 
+			switch (slice.getMatrixId()) {
+			case 'R':
+				BlockUtilities.copyIntoTile(slice, RTile, blockStart, blockLength);
+				break;
+			case 'A':
+				if (reducerLevelNum == slice.getLevel()) {
+					BlockUtilities.copyIntoTile(slice, ATile, blockStart, blockLength);
+				} else {
+					BlockUtilities.copyIntoTile(slice, ALevelAboveTile, blockStart, blockLength);
+				}
+				break;
+			case 'S':
+				BlockUtilities.copyIntoTile(slice, STile, blockStart, blockLength);
+				break;
+			case 'C':
+				copy(slice, C, blockStart);
+				break;
+			case 'T':
+				copy(slice, T, blockStart);
+				break;
+			case 'P':
+				copy(slice, P, blockStart);
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit(1);
+				break;
+			}
+		}
+
+		// S is the same at every level, so its rows are read from the store
+		// once per block and kept for the remaining levels.
+		if (store != null && storedBlock != block) {
+			for( int i = 0; i < blockLength; i++ ) { 
+				double[] row = store.getRow(blockStart + i);
+				for( int col = 0; col < N; col++ ) { 
+					STile[col * blockLength + i] = row[col];
+				}
+			}
+			storedBlock = block;
+		}
+
+		double[] diagA = diagonals.getA(reducerLevelNum);
+		double[] diagR = diagonals.getR(reducerLevelNum);
+
+		for( int i = 0; i < blockLength; i++ ) { 
+			BlockUtilities.gather(ATile, i, blockLength, ARow, N);
+			BlockUtilities.gather(ALevelAboveTile, i, blockLength, ALevelAboveRow, N);
+			BlockUtilities.gather(RTile, i, blockLength, RRow, N);
+			BlockUtilities.gather(STile, i, blockLength, SRow, N);
+
+			ResponsibilityReducer.updateRow(context, ARow, ALevelAboveRow, 
+					diagA, RRow, diagR, SRow, T[i], P[i], C[i],
+					blockStart + i, reducerLevelNum, N, numLevels);
+		}
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		if (store != null) {
+			store.close();
+		}
+		Convergence.writeDelta(context);
+		Instrumentation.recordTask(context, startMillis);
+	}
+
+
+	/*
+	 * Copy a slice into a flat array indexed relative to the given offset.
+	 */
+	private static void copy(HapSlice slice, double[] dest, int offset) { 
+		System.arraycopy(slice.getValues(), 0, dest, 
+				slice.getStart() - offset, slice.getLength());
+	}
+}
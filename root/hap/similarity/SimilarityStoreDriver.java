@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.similarity;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.common.AbstractJob;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.Compression;
+import root.hap.util.HapBlockPartitioner;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.Precision;
+import root.hap.util.SimilarityStore;
+
+
+/**
+ * <p>
+ * This is a driver for building the similarity store used by the 
+ * Hierarchical Affinity Propagation job.
+ * </p>
+ * 
+ * <p>
+ * The similarity matrix is read once from the initial input and written 
+ * row-wise, one file per reduce task, partitioned exactly like the keys of 
+ * the Responsibility and Availability jobs. It must therefore be run with 
+ * the same number of reduce tasks and blocks as those jobs. Only rows are 
+ * stored: the Availability update never reads S, so the Responsibility 
+ * reducers are its only consumers.
+ * </p>
+ * 
+ * <p>
+ * The exact breakdown of the MapReduce implementation is discussed in the 
+ * appropriate {@link SimilarityStoreMapper} and 
+ * {@link SimilarityStoreReducer}.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see SimilarityStore
+ * 
+ */
+public class SimilarityStoreDriver extends AbstractJob {
+
+	private static String inputDirectory;
+	private static String outputDirectory;
+	private static String matrixN;
+	private static String numBlocks;
+	private static String precision;
+	private static String quantization;
+	private static String stateCodec;
+	private static String shuffleCodec;
+
+	private Counters counters;
+
+
+	/*
+	 * Construct arguments list.
+	 */
+	private void addArguments() {
+
+		addOption("input", "i", "Input Directory", true);
+		addOption("out", "o", "Output Directory", true);
+		addOption("N", "n", "Size of Matrix (NxN)", true);
+		addOption("numBlocks", "blocks", 
+				"Number of Blocks (0: one per reduce task)", "0");
+		addOption("precision", "precision", 
+				"Storage Precision (double, float, bfloat16)", "double");
+		addOption("quantize", "q", 
+				"Quantization Bits of S (0: none, 8, 16)", "0");
+		addOption("stateCodec", "stateCodec", 
+				"Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("shuffleCodec", "shuffleCodec", 
+				"Map Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+
+	}
+
+
+	/*
+	 * Grab arguments from the user.
+	 */
+	private void initArguments() {
+
+		inputDirectory = getOption("input");
+		outputDirectory = getOption("out");
+		matrixN = getOption("N");
+		numBlocks = getOption("numBlocks");
+		precision = getOption("precision");
+		quantization = getOption("quantize");
+		stateCodec = getOption("stateCodec");
+		shuffleCodec = getOption("shuffleCodec");
+
+	}
+
+
+	/**
+	 * This method allows {@link SimilarityStoreDriver} to act as a 
+	 * {@link ToolRunner} and interface properly with any Driver.
+	 * 
+	 * @param args Configuration arguments
+	 * @return Exit status
+	 * @see ToolRunner
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		Configuration conf = getConf();
+
+		addArguments();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initArguments();
+
+		conf.setInt("matrixN",Integer.valueOf(matrixN));
+		conf.setInt(BlockUtilities.NUM_BLOCKS_KEY,Integer.valueOf(numBlocks));
+		Precision.configure(conf,precision,Integer.valueOf(quantization));
+
+		Job job = new Job(conf, "SimilarityStore");
+		job.setJarByClass(SimilarityStoreDriver.class);
+		Compression.configure(job, stateCodec, shuffleCodec);
+
+		job.setMapperClass(SimilarityStoreMapper.class);
+		job.setReducerClass(SimilarityStoreReducer.class);
+
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		job.setMapOutputKeyClass(HapKey.class);
+		job.setMapOutputValueClass(HapSlice.class);
+		job.setSortComparatorClass(HapKey.Comparator.class);
+		job.setPartitionerClass(HapBlockPartitioner.class);
+
+		job.setOutputKeyClass(IntWritable.class);
+		job.setOutputValueClass(HapSlice.class);
+
+		FileInputFormat.addInputPath(job, new Path(inputDirectory));
+		FileOutputFormat.setOutputPath(job, new Path(outputDirectory));
+
+		boolean success = job.waitForCompletion(true);
+		counters = job.getCounters();
+
+		return success ? 0 : 1;
+
+	}
+
+
+	/**
+	 * @return the counters of the last job run by this driver
+	 */
+	public Counters getCounters() {
+		return counters;
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run( 
+				new Configuration(), 
+				new SimilarityStoreDriver(), 
+				args);
+		System.exit(res);
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.similarity;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.KeyUtilities;
+import root.hap.util.Precision;
+
+
+/**
+ * <p>
+ * Mapper class for building the similarity store.
+ * </p>
+ * 
+ * <p>
+ * This mapper takes in the columns of the initial similarity matrix, ignores
+ * every other matrix, and cuts each column into contiguous blocks of rows 
+ * for the {@link SimilarityStoreReducer}s.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> information about this column<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding input column
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [HapKey]:</code> {Block Number, 0}
+ * <br />
+ * <code>Output value [HapSlice]:</code> 
+ * {Column Number, 0, S, First Row, Element Values}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see SimilarityStoreDriver
+ * @see SimilarityStoreReducer
+ * 
+ */
+public class SimilarityStoreMapper extends
+Mapper<Text, VectorWritable, HapKey, HapSlice> {
+
+	private int N;
+	private int numBlocks;
+
+	private double[] block;
+
+	private final HapKey keyOut = new HapKey();
+	private final HapSlice valOut = new HapSlice();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numBlocks = BlockUtilities.getNumBlocks(conf, N, 
+				context.getNumReduceTasks());
+		valOut.setPrecision(Precision.get(conf));
+
+		block = new double[BlockUtilities.blockEnd(0, N, numBlocks) + 1];
+	}
+
+
+	/**
+	 * <p>
+	 * This method takes in a column of S and outputs it block by block.
+	 * </p>
+	 * 
+	 * @param keyIn vector identification text
+	 * @param valIn vector data
+	 */
+	public void map(Text keyIn, VectorWritable valIn, Context context)
+			throws IOException, InterruptedException {
+
+		String[] keyData = KeyUtilities.explode( keyIn , false );
+
+		if( !keyData[KeyUtilities.ID].equals("S") ) { 
+			return;
+		}
+
+		int col = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		Vector vector = valIn.get();
+
+		for( int b = 0; b < numBlocks; b++ ) { 
+			int start = BlockUtilities.blockStart(b, N, numBlocks);
+			int length = BlockUtilities.blockEnd(b, N, numBlocks) - start;
+
+			for( int i = 0; i < length; i++ ) { 
+				block[i] = vector.getQuick(start + i);
+			}
+
+			keyOut.set(b, 0);
+			valOut.set(col, 0, 'S', start, block, length);
+			context.write(keyOut, valOut);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.similarity;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+import root.hap.util.Precision;
+
+
+/**
+ * <p>
+ * Reducer class for building the similarity store.
+ * </p>
+ * 
+ * <p>
+ * Each call receives the slices of every column of S covering one block of 
+ * rows, assembles them into a tile and writes the rows of the block in 
+ * ascending order. Since blocks are partitioned exactly as in the HAP jobs,
+ * each output file holds the rows owned by one HAP reduce task.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [HapKey]:</code> {Block Number, 0}<br />
+ * <code>Input value [Iterable&lt;HapSlice&gt;]:</code> the slices of the 
+ * columns of S covering this block
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [IntWritable]:</code> Row Number<br />
+ * <code>Output value [HapSlice]:</code> the corresponding row of S, 
+ * encoded (and possibly quantized) as configured by {@link Precision}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see SimilarityStoreDriver
+ * @see SimilarityStoreMapper
+ * 
+ */
+public class SimilarityStoreReducer extends
+Reducer<HapKey, HapSlice, IntWritable, HapSlice> {
+
+	private int N;
+	private int numBlocks;
+
+	private double[] STile;
+	private double[] row;
+
+	private final IntWritable keyOut = new IntWritable();
+	private final HapSlice valOut = new HapSlice();
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numBlocks = BlockUtilities.getNumBlocks(conf, N, 
+				context.getNumReduceTasks());
+
+		int maxBlockLength = BlockUtilities.blockEnd(0, N, numBlocks) + 1;
+		STile = new double[N * maxBlockLength];
+		row = new double[N];
+
+		valOut.setPrecision(Precision.get(conf), Precision.getSimilarity(conf));
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		Instrumentation.recordTask(context, startMillis);
+	}
+
+
+	/**
+	 * <p>
+	 * This method assembles and writes the rows of S belonging to a block.
+	 * </p>
+	 * 
+	 * @param keyIn block identification
+	 * @param valIn slice data
+	 */
+	public void reduce(HapKey keyIn, Iterable<HapSlice> valIn, Context context)
+			throws IOException, InterruptedException {
+
+		int block = keyIn.getIndex();
+		int blockStart = BlockUtilities.blockStart(block, N, numBlocks);
+		int blockLength = BlockUtilities.blockEnd(block, N, numBlocks) 
+				- blockStart;
+
+		Arrays.fill(STile, 0, N * blockLength, 0);
+
+		for (HapSlice slice : valIn) { 
+			BlockUtilities.copyIntoTile(slice, STile, blockStart, blockLength);
+		}
+
+		for( int i = 0; i < blockLength; i++ ) { 
+			BlockUtilities.gather(STile, i, blockLength, row, N);
+
+			keyOut.set(blockStart + i);
+			valOut.set(blockStart + i, 0, 'S', 0, row, N);
+			context.write(keyOut, valOut);
+		}
+	}
+}
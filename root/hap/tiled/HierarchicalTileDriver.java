@@ -0,0 +1,288 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.common.AbstractJob;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.Compression;
+import root.hap.util.Convergence;
+import root.hap.util.HapKey;
+import root.hap.util.HapSlice;
+
+
+/**
+ * <p>
+ * This is a driver for running one step of the tiled Hierarchical Affinity
+ * Propagation job, in which S, A and R are cut into a <code>g</code> x 
+ * <code>g</code> grid of tiles (see {@link Tile}).
+ * </p>
+ * 
+ * <p>
+ * The <code>init</code> step cuts the similarity matrix into tiles, one 
+ * reduce task per tile, and writes every similarity tile once to its own 
+ * side file in its output directory, which the later steps read through 
+ * <code>-ss</code>. The <code>responsibility</code> and 
+ * <code>availability</code> steps are map-only: every input file, holding
+ * whole tiles, is read by a single map task which updates its tiles in 
+ * place. Tiles exchange only the per-row and per-column aggregates of 
+ * {@link TileAggregates}, <code>O(g N L)</code> values per step, instead 
+ * of shuffling the <code>O(N^2 L)</code> matrix elements. The 
+ * <code>cluster</code> step shuffles one exemplar choice per tile and row.
+ * </p>
+ * 
+ * <p>
+ * With <code>-sweeps k</code>, every Availability task runs k - 1 further
+ * local sweeps over its tiles before the next exchange (see 
+ * {@link TileAvailabilityMapper}), so that a Responsibility and 
+ * Availability step pair covers k iterations.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see TileScatterMapper
+ * @see TileAssembleReducer
+ * @see TileResponsibilityMapper
+ * @see TileAvailabilityMapper
+ * @see TileClusterMapper
+ * @see TileClusterReducer
+ * 
+ */
+public class HierarchicalTileDriver extends AbstractJob {
+
+	/** Step cutting the similarity matrix into tiles. */
+	public static final String STEP_INIT = "init";
+
+	/** Step updating R, C and P. */
+	public static final String STEP_RESPONSIBILITY = "responsibility";
+
+	/** Step updating A and T. */
+	public static final String STEP_AVAILABILITY = "availability";
+
+	/** Step extracting the clusters. */
+	public static final String STEP_CLUSTER = "cluster";
+
+	private static String inputDirectory;
+	private static String outputDirectory;
+	private static String similarityDirectory;
+	private static String step;
+	private static String matrixN;
+	private static String lambda;
+	private static String numLevels;
+	private static String numIteration;
+	private static String gridSize;
+	private static String numSweeps;
+	private static String previousDirectory;
+	private static String stateCodec;
+	private static String shuffleCodec;
+
+	private Counters counters;
+
+
+	/*
+	 * Construct arguments list.
+	 */
+	private void addArguments() {
+
+		addOption("input", "i", "Input Directory", true);
+		addOption("out", "o", "Output Directory", true);
+		addOption("similarityStore", "ss", 
+				"Similarity Tile Directory (the output of the init step)", false);
+		addOption("step", "step", 
+				"Step (init, responsibility, availability, cluster)", true);
+		addOption("N", "n", "Size of Matrix (NxN)", true);
+		addOption("lambda", "lambda", "Dampening Factor", "0");
+		addOption("numLevels", "l", "Number of Levels", true);
+		addOption("numIter", "iter", "Number of Iterations", "0");
+		addOption("grid", "grid", "Tiles per Dimension", true);
+		addOption("numSweeps", "sweeps", 
+				"Local Sweeps per Availability Task (1: no local sweeps)", "1");
+		addOption("prev", "prev", 
+				"Input Directory of the previous Step (for local sweeps)", false);
+		addOption("stateCodec", "stateCodec", 
+				"Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+		addOption("shuffleCodec", "shuffleCodec", 
+				"Map Output Compression Codec (none, deflate, snappy, lz4, zstd)", 
+				Compression.NONE);
+
+	}
+
+
+	/*
+	 * Grab arguments from the user.
+	 */
+	private void initArguments() {
+
+		inputDirectory = getOption("input");
+		outputDirectory = getOption("out");
+		similarityDirectory = getOption("similarityStore");
+		step = getOption("step");
+		matrixN = getOption("N");
+		lambda = getOption("lambda");
+		numLevels = getOption("numLevels");
+		numIteration = getOption("numIter");
+		gridSize = getOption("grid");
+		numSweeps = getOption("numSweeps");
+		previousDirectory = getOption("prev");
+		stateCodec = getOption("stateCodec");
+		shuffleCodec = getOption("shuffleCodec");
+
+	}
+
+
+	/**
+	 * This method allows {@link HierarchicalTileDriver} to act as a 
+	 * {@link ToolRunner} and interface properly with any Driver.
+	 * 
+	 * @param args Configuration arguments
+	 * @return Exit status
+	 * @see ToolRunner
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		Configuration conf = getConf();
+
+		addArguments();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initArguments();
+
+		int grid = Integer.valueOf(gridSize);
+
+		conf.setInt("matrixN",Integer.valueOf(matrixN));
+		conf.setFloat("lambda",Float.valueOf(lambda));
+		conf.setInt("numLevels",Integer.valueOf(numLevels));
+		conf.setInt("numIteration",Integer.valueOf(numIteration));
+		conf.setInt(Tile.GRID_KEY,grid);
+		conf.set(TileAggregates.PATH_KEY,inputDirectory);
+		if (similarityDirectory != null) {
+			conf.set(TileAggregates.SIMILARITY_KEY,similarityDirectory);
+		}
+		conf.setInt(TileAvailabilityMapper.SWEEPS_KEY,Integer.valueOf(numSweeps));
+		if (previousDirectory != null) {
+			conf.set(TileAggregates.PREVIOUS_KEY,previousDirectory);
+		}
+
+		Job job = new Job(conf, "HierarchicalTile-" + step);
+		job.setJarByClass(HierarchicalTileDriver.class);
+		Compression.configure(job, stateCodec, shuffleCodec);
+
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(VectorWritable.class);
+
+		if (step.equals(STEP_INIT)) {
+
+			// One reduce task, and one output file, per tile.
+			job.setMapperClass(TileScatterMapper.class);
+			job.setReducerClass(TileAssembleReducer.class);
+			job.setMapOutputKeyClass(IntWritable.class);
+			job.setMapOutputValueClass(HapSlice.class);
+			job.setNumReduceTasks(grid * grid);
+
+		} else {
+
+			// Every file of whole tiles is read by a single map task.
+			FileInputFormat.setMinInputSplitSize(job, Long.MAX_VALUE);
+
+			if (step.equals(STEP_RESPONSIBILITY)) {
+				job.setMapperClass(TileResponsibilityMapper.class);
+				job.setNumReduceTasks(0);
+			} else if (step.equals(STEP_AVAILABILITY)) {
+				job.setMapperClass(TileAvailabilityMapper.class);
+				job.setNumReduceTasks(0);
+			} else if (step.equals(STEP_CLUSTER)) {
+				job.setMapperClass(TileClusterMapper.class);
+				job.setReducerClass(TileClusterReducer.class);
+				job.setMapOutputKeyClass(HapKey.class);
+				job.setMapOutputValueClass(VectorWritable.class);
+				job.setSortComparatorClass(HapKey.Comparator.class);
+				job.setOutputValueClass(Text.class);
+			} else {
+				System.err.println("[ERROR]: Unknown step \'" + step + "\'.");
+				return -1;
+			}
+
+			if (similarityDirectory == null && !step.equals(STEP_CLUSTER)) {
+				System.err.println("[ERROR]: The " + step 
+						+ " step requires the similarity tiles (-ss).");
+				return -1;
+			}
+
+			if (Integer.valueOf(numSweeps) > 1 && previousDirectory == null 
+					&& step.equals(STEP_AVAILABILITY)) {
+				System.err.println("[ERROR]: Local sweeps require the input "
+						+ "directory of the Responsibility step (-prev).");
+				return -1;
+			}
+		}
+
+		FileInputFormat.addInputPath(job, new Path(inputDirectory));
+		FileOutputFormat.setOutputPath(job, new Path(outputDirectory));
+
+		boolean success = job.waitForCompletion(true);
+		counters = job.getCounters();
+		Convergence.collectMaxDelta(conf, new Path(outputDirectory), counters);
+
+		return success ? 0 : 1;
+
+	}
+
+
+	/**
+	 * @return the counters of the last job run by this driver, used by 
+	 * the calling job to detect convergence
+	 * @see Convergence
+	 */
+	public Counters getCounters() {
+		return counters;
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run( 
+				new Configuration(), 
+				new HierarchicalTileDriver(), 
+				args);
+		System.exit(res);
+	}
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.HapKernels;
+import root.hap.util.KeyUtilities;
+
+
+/**
+ * <p>
+ * One tile of the tiled Hierarchical Affinity Propagation state: the 
+ * elements of S, and of A and R at every level, whose row and column fall
+ * in one block of rows and one block of columns.
+ * </p>
+ * 
+ * <p>
+ * The N indices are cut into <code>g</code> blocks as by 
+ * {@link BlockUtilities}, and tile <code>(bi, bj)</code> has the ID 
+ * <code>bi * g + bj</code>. Every matrix of a tile is a single row-major 
+ * <code>double[]</code>. A tile computes the updates of its own elements 
+ * and the partial row and column aggregates it shares with the other tiles
+ * of its row and column of the grid (see {@link TileAggregates}); no 
+ * matrix element ever leaves its tile.
+ * </p>
+ * 
+ * <p>
+ * <code>Record key [Text]:</code> tab separated list: {Tile ID, Level, 
+ * Matrix ID}<br />
+ * <code>Record value [VectorWritable]:</code> the row-major elements of 
+ * the tile
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see TileAggregates
+ * @see HierarchicalTileDriver
+ * 
+ */
+public class Tile {
+
+	/** Configuration key holding the number of tiles per dimension. */
+	public static final String GRID_KEY = "hap.tiled.grid";
+
+	private final int id;
+	private final int rowBlock;
+	private final int columnBlock;
+	private final int rowStart;
+	private final int height;
+	private final int columnStart;
+	private final int width;
+	private final int numLevels;
+
+	// row-major height x width matrices; S is shared by every level
+	private double[] S;
+	private final double[][] A;
+	private final double[][] R;
+
+
+	/**
+	 * Allocate a tile of the grid, with all-zero A and R.
+	 * 
+	 * @param id tile ID
+	 * @param N size of the dataset
+	 * @param grid number of tiles per dimension
+	 * @param numLevels number of levels of the hierarchy
+	 */
+	public Tile( int id, int N, int grid, int numLevels ) { 
+
+		this.id = id;
+		this.numLevels = numLevels;
+
+		rowBlock = id / grid;
+		columnBlock = id % grid;
+		rowStart = BlockUtilities.blockStart( rowBlock, N, grid );
+		height = BlockUtilities.blockEnd( rowBlock, N, grid ) - rowStart;
+		columnStart = BlockUtilities.blockStart( columnBlock, N, grid );
+		width = BlockUtilities.blockEnd( columnBlock, N, grid ) - columnStart;
+
+		S = new double[height * width];
+		A = new double[numLevels][height * width];
+		R = new double[numLevels][height * width];
+	}
+
+
+	public int getId() { 
+		return id;
+	}
+
+	public int getRowBlock() { 
+		return rowBlock;
+	}
+
+	public int getColumnBlock() { 
+		return columnBlock;
+	}
+
+	public int getRowStart() { 
+		return rowStart;
+	}
+
+	public int getHeight() { 
+		return height;
+	}
+
+	public int getColumnStart() { 
+		return columnStart;
+	}
+
+	public int getWidth() { 
+		return width;
+	}
+
+	/**
+	 * @return whether the tile holds the diagonal of its rows
+	 */
+	public boolean isDiagonal() { 
+		return rowBlock == columnBlock;
+	}
+
+	/**
+	 * @return the row-major elements of S
+	 */
+	public double[] getSimilarity() { 
+		return S;
+	}
+
+	/**
+	 * Use the given row-major elements as S.
+	 */
+	public void setSimilarity( double[] similarity ) { 
+		S = similarity;
+	}
+
+
+	/**
+	 * Store one matrix of a tile record.
+	 * 
+	 * @param matrixId matrix ID (S, A or R)
+	 * @param level level of the hierarchy
+	 * @param vector row-major elements
+	 */
+	public void set( char matrixId, int level, Vector vector ) { 
+		double[] m = matrixId == 'S' ? S : matrixId == 'A' ? A[level] : R[level];
+		for( int i = 0; i < m.length; i++ ) { 
+			m[i] = vector.getQuick( i );
+		}
+	}
+
+
+	/**
+	 * Store one element of S, A or R, given its global row and column.
+	 */
+	public void set( char matrixId, int level, int row, int col, 
+			double value ) { 
+		double[] m = matrixId == 'S' ? S : matrixId == 'A' ? A[level] : R[level];
+		m[( row - rowStart ) * width + ( col - columnStart )] = value;
+	}
+
+
+	/**
+	 * Write A and R of every level as tile records.
+	 */
+	public void write( TaskInputOutputContext<?, ?, Text, VectorWritable> 
+			context ) throws IOException, InterruptedException { 
+		VectorWritable value = new VectorWritable();
+		for( int l = 0; l < numLevels; l++ ) { 
+			value.set( new DenseVector( A[l], true ) );
+			context.write( KeyUtilities.getInstance( id, l, "A" ), value );
+			value.set( new DenseVector( R[l], true ) );
+			context.write( KeyUtilities.getInstance( id, l, "R" ), value );
+		}
+	}
+
+
+	/**
+	 * Partial maxima of <code>A(i,j,l) + S(i,j)</code> of every row: 
+	 * {max, global column of the first max, largest value at any other 
+	 * column}.
+	 * 
+	 * @param level level of the hierarchy
+	 * @param out three values per row
+	 */
+	public void rowMaxima( int level, double[] out ) { 
+		double[] a = A[level];
+		for( int i = 0; i < height; i++ ) { 
+			int base = i * width;
+			int maxIndex = HapKernels.argMaxSum( a, base, S, base, width );
+			out[3 * i] = a[base + maxIndex] + S[base + maxIndex];
+			out[3 * i + 1] = columnStart + maxIndex;
+			out[3 * i + 2] = 
+					HapKernels.maxSumExcept( a, base, S, base, width, maxIndex );
+		}
+	}
+
+
+	/**
+	 * Partial exemplar values of every row: {max of 
+	 * <code>A(i,j,l) + R(i,j,l)</code>, the same over valid exemplars j, 1
+	 * if any column is a valid exemplar, max of 
+	 * <code>A(i,j,l+1) + S(i,j)</code>}.
+	 * 
+	 * @param level level of the hierarchy
+	 * @param diagonals {a(j,j), r(j,j)} of the columns of the tile
+	 * @param out four values per row
+	 */
+	public void exemplarValues( int level, double[] diagonals, 
+			double[] out ) { 
+		double[] a = A[level];
+		double[] r = R[level];
+		for( int i = 0; i < height; i++ ) { 
+			int base = i * width;
+			double max = Double.NEGATIVE_INFINITY;
+			double validMax = Double.NEGATIVE_INFINITY;
+			boolean validExist = false;
+			for( int j = 0; j < width; j++ ) { 
+				double sum = a[base + j] + r[base + j];
+				boolean valid = diagonals[2 * j] + diagonals[2 * j + 1] > 0;
+				max = Math.max( max, sum );
+				validMax = valid ? Math.max( validMax, sum ) : validMax;
+				validExist |= valid;
+			}
+			out[4 * i] = max;
+			out[4 * i + 1] = validMax;
+			out[4 * i + 2] = validExist ? 1 : 0;
+			out[4 * i + 3] = level + 1 < numLevels 
+					? HapKernels.maxSum( A[level + 1], base, S, base, width ) 
+					: Double.NEGATIVE_INFINITY;
+		}
+	}
+
+
+	/**
+	 * Dampened responsibility update of every row, in place, as in 
+	 * <code>ResponsibilityReducer</code>.
+	 * 
+	 * @param level level of the hierarchy
+	 * @param maxima combined row maxima, as by {@link #rowMaxima}
+	 * @param tau T(i,l) of the rows of the tile
+	 * @param lambda dampening factor
+	 * @return the largest absolute change of any element
+	 */
+	public double updateResponsibility( int level, double[] maxima, 
+			double[] tau, double lambda ) { 
+		double delta = 0;
+		for( int i = 0; i < height; i++ ) { 
+			int maxIndex = (int) maxima[3 * i + 1] - columnStart;
+			double y = Math.min( -maxima[3 * i], tau[i] );
+			double yMax = Math.min( -maxima[3 * i + 2], tau[i] );
+
+			// The largest element lies in another tile.
+			if( maxIndex < 0 || maxIndex >= width ) { 
+				maxIndex = 0;
+				yMax = y;
+			}
+
+			delta = Math.max( delta, HapKernels.dampedResponsibility( S, 
+					i * width, R[level], i * width, width, maxIndex, y, yMax, 
+					lambda ) );
+		}
+		return delta;
+	}
+
+
+	/**
+	 * Partial sums of the positive elements of R plus its diagonal, of 
+	 * every column.
+	 * 
+	 * @param level level of the hierarchy
+	 * @param out one value per column
+	 */
+	public void columnSums( int level, double[] out ) { 
+		Arrays.fill( out, 0, width, 0 );
+		for( int i = 0; i < height; i++ ) { 
+			HapKernels.addPositive( R[level], i * width, out, 0, width, 
+					diagonal( i ) );
+		}
+	}
+
+
+	/**
+	 * Dampened availability update of every column, in place, as in 
+	 * <code>AvailabilityReducer</code>.
+	 * 
+	 * @param level level of the hierarchy
+	 * @param totals combined availability totals of the columns of the tile
+	 * @param lambda dampening factor
+	 * @return the largest absolute change of any element
+	 */
+	public double updateAvailability( int level, double[] totals, 
+			double lambda ) { 
+		double delta = 0;
+		for( int i = 0; i < height; i++ ) { 
+			delta = Math.max( delta, HapKernels.dampedAvailabilityRow( 
+					R[level], i * width, A[level], i * width, totals, width, 
+					diagonal( i ), lambda ) );
+		}
+		return delta;
+	}
+
+
+	/**
+	 * Copy the diagonals {a(k,k), r(k,k)} of a diagonal tile.
+	 */
+	public void diagonals( int level, double[] out ) { 
+		for( int k = 0; k < width; k++ ) { 
+			out[2 * k] = A[level][k * width + k];
+			out[2 * k + 1] = R[level][k * width + k];
+		}
+	}
+
+
+	/**
+	 * Partial exemplar choice of every row, as in <code>ClusterReducer
+	 * </code>: {max of <code>A(i,j,l) + R(i,j,l)</code>, its first global
+	 * column or -1, the same over valid exemplars j}.
+	 * 
+	 * @param level level of the hierarchy
+	 * @param diagonals {a(j,j), r(j,j)} of the columns of the tile
+	 * @param out four values per row
+	 */
+	public void exemplarChoices( int level, double[] diagonals, 
+			double[] out ) { 
+		double[] a = A[level];
+		double[] r = R[level];
+		for( int i = 0; i < height; i++ ) { 
+			int base = i * width;
+			double max = Double.NEGATIVE_INFINITY;
+			int index = -1;
+			double validMax = Double.NEGATIVE_INFINITY;
+			int validIndex = -1;
+			for( int j = 0; j < width; j++ ) { 
+				double sum = a[base + j] + r[base + j];
+				if( sum > max ) { 
+					max = sum;
+					index = columnStart + j;
+				}
+				if( diagonals[2 * j] + diagonals[2 * j + 1] > 0 
+						&& sum > validMax ) { 
+					validMax = sum;
+					validIndex = columnStart + j;
+				}
+			}
+			out[4 * i] = max;
+			out[4 * i + 1] = index;
+			out[4 * i + 2] = validMax;
+			out[4 * i + 3] = validIndex;
+		}
+	}
+
+
+	/*
+	 * Position of the diagonal element within local row i, or -1 if the 
+	 * diagonal does not cross the row in this tile.
+	 */
+	private int diagonal( int i ) { 
+		int col = rowStart + i - columnStart;
+		return col >= 0 && col < width ? col : -1;
+	}
+
+}
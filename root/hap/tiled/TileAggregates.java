@@ -0,0 +1,393 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.HapKey;
+
+
+/**
+ * <p>
+ * Per-row and per-column aggregates exchanged between the tiles of the 
+ * tiled Hierarchical Affinity Propagation jobs.
+ * </p>
+ * 
+ * <p>
+ * Every tile writes the partial aggregates of its rows and columns as 
+ * small side files next to its regular output, one file per tile and kind,
+ * and the tiles of the next job read only the files of their own row or 
+ * column of the grid. Side files are named with a leading underscore so 
+ * that they are skipped by <code>FileInputFormat</code> when the directory
+ * is read as job input. The kinds are:
+ * </p>
+ * 
+ * <ul>
+ * <li><code>_rows-bi-bj</code>: {max, argmax, second max} of 
+ * <code>A + S</code> per row, written after the Availability update</li>
+ * <li><code>_exemplars-bi-bj</code>: the values C and P are the maxima 
+ * of, per row, written before the Responsibility update</li>
+ * <li><code>_columns-bi-bj</code>: the positive sums of R per column, 
+ * written after the Responsibility update</li>
+ * <li><code>_points-b-b</code>: {T, C, P} per point, kept by the diagonal
+ * tiles</li>
+ * <li><code>_diagonals-b-b</code>: {a(k,k), r(k,k)} per point, kept by the
+ * diagonal tiles</li>
+ * </ul>
+ * 
+ * <p>
+ * <code>Side file key [HapKey]:</code> {Row, Column or Point Number, 
+ * Level}<br />
+ * <code>Side file value [VectorWritable]:</code> the aggregate values
+ * </p>
+ * 
+ * <p>
+ * The similarity matrix is written once, one <code>_similarity-bi-bj</code>
+ * file per tile, and read back by the tile in every job.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see Tile
+ * 
+ */
+public class TileAggregates {
+
+	/** Configuration key holding the directory to load aggregates from. */
+	public static final String PATH_KEY = "hap.tiled.path";
+
+	/**
+	 * Configuration key holding the directory the input of the previous 
+	 * step was read from, whose aggregates the local sweeps read.
+	 */
+	public static final String PREVIOUS_KEY = "hap.tiled.previous";
+
+	/** Configuration key holding the directory of the similarity tiles. */
+	public static final String SIMILARITY_KEY = "hap.tiled.similarity";
+
+	/** Counter group holding the aggregate values written per kind. */
+	public static final String VALUES_GROUP = "HAP Tile Aggregates";
+
+	public static final String ROWS = "_rows";
+	public static final String EXEMPLARS = "_exemplars";
+	public static final String COLUMNS = "_columns";
+	public static final String POINTS = "_points";
+	public static final String DIAGONALS = "_diagonals";
+	public static final String SIMILARITY = "_similarity";
+
+
+	private TileAggregates() { 
+		;
+	}
+
+
+	/**
+	 * @return the name of the side file of a kind written by a tile
+	 */
+	public static String fileName( String kind, int rowBlock, 
+			int columnBlock ) { 
+		return String.format( "%s-%05d-%05d", kind, rowBlock, columnBlock );
+	}
+
+
+	/**
+	 * Read a side file of the directory named by {@link #PATH_KEY}; see
+	 * {@link #read(Configuration, String, String, int, int, int, int)}.
+	 */
+	public static double[][] read( Configuration conf, String name, 
+			int start, int length, int numLevels, int width ) 
+					throws IOException { 
+		return read( conf, conf.get( PATH_KEY ), name, start, length, 
+				numLevels, width );
+	}
+
+
+	/**
+	 * Read a side file.
+	 * 
+	 * @param conf job configuration
+	 * @param dir directory holding the side file
+	 * @param name side file name
+	 * @param start first index covered by the file
+	 * @param length number of indices covered by the file
+	 * @param numLevels number of levels of the hierarchy
+	 * @param width number of values per index
+	 * @return per level, the values of every index, index-major
+	 */
+	public static double[][] read( Configuration conf, String dir, 
+			String name, int start, int length, int numLevels, int width ) 
+					throws IOException { 
+
+		double[][] values = new double[numLevels][length * width];
+
+		Path path = new Path( dir, name );
+		FileSystem fs = path.getFileSystem( conf );
+		if( !fs.exists( path ) ) { 
+			throw new IOException( "Missing tile aggregates " + path );
+		}
+
+		HapKey key = new HapKey();
+		VectorWritable value = new VectorWritable();
+
+		SequenceFile.Reader reader = new SequenceFile.Reader( fs, path, conf );
+		while( reader.next( key, value ) ) { 
+			int offset = ( key.getIndex() - start ) * width;
+			Vector vector = value.get();
+			for( int f = 0; f < width; f++ ) { 
+				values[key.getLevel()][offset + f] = vector.getQuick( f );
+			}
+		}
+		reader.close();
+
+		return values;
+	}
+
+
+	/**
+	 * Read the side files of the directory named by {@link #PATH_KEY}; see
+	 * {@link #readAll(Configuration, String, String, int, boolean, int, int,
+	 * int, int, int)}.
+	 */
+	public static double[][][] readAll( Configuration conf, String kind, 
+			int block, boolean byRow, int grid, int start, int length, 
+			int numLevels, int width ) throws IOException { 
+		return readAll( conf, conf.get( PATH_KEY ), kind, block, byRow, grid,
+				start, length, numLevels, width );
+	}
+
+
+	/**
+	 * Read the side file of every tile of a row of the grid (fixed row 
+	 * block), or of a column of the grid (fixed column block).
+	 * 
+	 * @param conf job configuration
+	 * @param dir directory holding the side files
+	 * @param kind side file kind
+	 * @param block fixed row or column block
+	 * @param byRow whether the row block is the fixed one
+	 * @param grid number of tiles per dimension
+	 * @return per tile, the values of {@link #read}
+	 */
+	public static double[][][] readAll( Configuration conf, String dir, 
+			String kind, int block, boolean byRow, int grid, int start, 
+			int length, int numLevels, int width ) throws IOException { 
+		double[][][] parts = new double[grid][][];
+		for( int b = 0; b < grid; b++ ) { 
+			String name = byRow 
+					? fileName( kind, block, b ) : fileName( kind, b, block );
+			parts[b] = read( conf, dir, name, start, length, numLevels, width );
+		}
+		return parts;
+	}
+
+
+	/**
+	 * Combine partial row maxima, as written by {@link Tile#rowMaxima}, in
+	 * column order, so that ties go to the first column as in 
+	 * <code>HapKernels.argMaxSum</code>.
+	 * 
+	 * @param parts per tile, the partial maxima of one level
+	 * @param length number of rows
+	 * @param out three values per row
+	 */
+	public static void combineMaxima( double[][] parts, int length, 
+			double[] out ) { 
+		for( int i = 0; i < length; i++ ) { 
+			int best = 0;
+			for( int b = 1; b < parts.length; b++ ) { 
+				if( parts[b][3 * i] > parts[best][3 * i] ) { 
+					best = b;
+				}
+			}
+			double second = parts[best][3 * i + 2];
+			for( int b = 0; b < parts.length; b++ ) { 
+				if( b != best ) { 
+					second = Math.max( second, parts[b][3 * i] );
+				}
+			}
+			out[3 * i] = parts[best][3 * i];
+			out[3 * i + 1] = parts[best][3 * i + 1];
+			out[3 * i + 2] = second;
+		}
+	}
+
+
+	/**
+	 * Combine partial exemplar values, as written by 
+	 * {@link Tile#exemplarValues}, into C and P.
+	 * 
+	 * @param parts per tile, the partial values of one level
+	 * @param length number of rows
+	 * @param C output C(i,l) per row
+	 * @param P output P(i,l) per row
+	 */
+	public static void combineExemplars( double[][] parts, int length, 
+			double[] C, double[] P ) { 
+		for( int i = 0; i < length; i++ ) { 
+			double max = Double.NEGATIVE_INFINITY;
+			double validMax = Double.NEGATIVE_INFINITY;
+			boolean validExist = false;
+			double phi = Double.NEGATIVE_INFINITY;
+			for( int b = 0; b < parts.length; b++ ) { 
+				max = Math.max( max, parts[b][4 * i] );
+				validMax = Math.max( validMax, parts[b][4 * i + 1] );
+				validExist |= parts[b][4 * i + 2] != 0;
+				phi = Math.max( phi, parts[b][4 * i + 3] );
+			}
+			C[i] = validExist ? validMax : max;
+			P[i] = phi;
+		}
+	}
+
+
+	/**
+	 * Add up partial column sums, as written by {@link Tile#columnSums}.
+	 * 
+	 * @param parts per tile, the partial sums of one level
+	 * @param length number of columns
+	 * @param out one sum per column
+	 */
+	public static void sumColumns( double[][] parts, int length, 
+			double[] out ) { 
+		for( int k = 0; k < length; k++ ) { 
+			double sum = 0;
+			for( int b = 0; b < parts.length; b++ ) { 
+				sum += parts[b][k];
+			}
+			out[k] = sum;
+		}
+	}
+
+
+	/**
+	 * Write the similarity tile of a tile as its own side file.
+	 */
+	public static void writeSimilarity( 
+			TaskInputOutputContext<?, ?, ?, ?> context, Tile tile ) 
+					throws IOException, InterruptedException { 
+		Configuration conf = context.getConfiguration();
+		Path path = new Path( FileOutputFormat.getWorkOutputPath( context ), 
+				fileName( SIMILARITY, tile.getRowBlock(), 
+						tile.getColumnBlock() ) );
+		SequenceFile.Writer writer = new SequenceFile.Writer( 
+				path.getFileSystem( conf ), conf, path, HapKey.class, 
+				VectorWritable.class );
+		writer.append( new HapKey( tile.getId(), 0 ), 
+				new VectorWritable( new DenseVector( tile.getSimilarity(), true ) ) );
+		writer.close();
+	}
+
+
+	/**
+	 * Load the similarity tile of a tile from the directory named by 
+	 * {@link #SIMILARITY_KEY}.
+	 */
+	public static void readSimilarity( Configuration conf, Tile tile ) 
+			throws IOException { 
+		tile.setSimilarity( read( conf, conf.get( SIMILARITY_KEY ), 
+				fileName( SIMILARITY, tile.getRowBlock(), tile.getColumnBlock() ),
+				tile.getId(), 1, 1, tile.getHeight() * tile.getWidth() )[0] );
+	}
+
+
+	/**
+	 * @return the number of aggregate values the tiles of a job wrote
+	 */
+	public static long getValues( Counters counters ) { 
+		long total = 0;
+		for( Counter counter : counters.getGroup( VALUES_GROUP ) ) { 
+			total += counter.getValue();
+		}
+		return total;
+	}
+
+
+	/**
+	 * <p>
+	 * Task side writer for one side file. The file is created in the 
+	 * task's work output directory, so it is committed (or discarded) 
+	 * together with the task's regular output.
+	 * </p>
+	 */
+	public static class Writer { 
+
+		private final SequenceFile.Writer writer;
+		private final HapKey key = new HapKey();
+		private final DenseVector vector;
+		private final VectorWritable value;
+		private final TaskInputOutputContext<?, ?, ?, ?> context;
+		private final String kind;
+		private final int width;
+		private long values;
+
+		public Writer( TaskInputOutputContext<?, ?, ?, ?> context, 
+				String kind, int rowBlock, int columnBlock, int width ) 
+						throws IOException, InterruptedException { 
+			this.context = context;
+			this.kind = kind;
+			this.width = width;
+			vector = new DenseVector( width );
+			value = new VectorWritable( vector );
+			Configuration conf = context.getConfiguration();
+			Path path = new Path( FileOutputFormat.getWorkOutputPath( context ),
+					fileName( kind, rowBlock, columnBlock ) );
+			writer = new SequenceFile.Writer( path.getFileSystem( conf ), 
+					conf, path, HapKey.class, VectorWritable.class );
+		}
+
+		/**
+		 * Record the values of consecutive indices of one level.
+		 * 
+		 * @param start first index
+		 * @param level level of the hierarchy
+		 * @param data values, index-major
+		 * @param length number of indices
+		 */
+		public void write( int start, int level, double[] data, int length ) 
+				throws IOException { 
+			for( int i = 0; i < length; i++ ) { 
+				key.set( start + i, level );
+				for( int f = 0; f < width; f++ ) { 
+					vector.setQuick( f, data[i * width + f] );
+				}
+				writer.append( key, value );
+			}
+			values += (long) length * width;
+		}
+
+		public void close() throws IOException { 
+			writer.close();
+			context.getCounter( VALUES_GROUP, kind.substring( 1 ) )
+			.increment( values );
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+
+
+/**
+ * <p>
+ * Reducer class for cutting the similarity matrix into tiles.
+ * </p>
+ * 
+ * <p>
+ * This reducer assembles one tile from its column slices and writes it, 
+ * together with its similarity tile and the initial partial maxima of its
+ * rows. Diagonal tiles also write the initial T, C and P of their points,
+ * and their diagonals.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [IntWritable]:</code> Tile ID<br />
+ * <code>Input value [Iterable&lt;HapSlice&gt;]:</code> the slices and 
+ * single elements of the tile
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Tile ID, Level, 
+ * Matrix ID}<br />
+ * <code>Output value [VectorWritable]:</code> the row-major elements of 
+ * the tile
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalTileDriver
+ * @see TileScatterMapper
+ * 
+ */
+public class TileAssembleReducer extends 
+Reducer<IntWritable, HapSlice, Text, VectorWritable> {
+
+	private int N;
+	private int numLevels;
+	private int grid;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numLevels = conf.getInt("numLevels", -1);
+		grid = conf.getInt(Tile.GRID_KEY, -1);
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		Instrumentation.recordTask(context, startMillis);
+	}
+
+
+	/**
+	 * <p>
+	 * This method serves to assemble and write a single tile.
+	 * </p>
+	 * 
+	 * @param keyIn tile identification
+	 * @param valIn tile data
+	 */
+	public void reduce(IntWritable keyIn, Iterable<HapSlice> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		Tile tile = new Tile(keyIn.get(), N, grid, numLevels);
+		int start = tile.getColumnStart();
+		int width = tile.getWidth();
+
+		// T, C and P of the points of a diagonal tile.
+		double[][] points = new double[numLevels][3 * width];
+
+		for (HapSlice slice : valIn) {
+			char id = slice.getMatrixId();
+			int level = slice.getLevel();
+			double[] values = slice.getValues();
+
+			switch (id) {
+			case 'S':
+			case 'A':
+			case 'R':
+				for (int row = 0; row < slice.getLength(); row++) {
+					tile.set(id, level, slice.getStart() + row, 
+							slice.getIndex(), values[row]);
+				}
+				break;
+			case 'T':
+				points[level][3 * (slice.getIndex() - start)] = values[0];
+				break;
+			case 'C':
+				points[level][3 * (slice.getIndex() - start) + 1] = values[0];
+				break;
+			case 'P':
+				points[level][3 * (slice.getIndex() - start) + 2] = values[0];
+				break;
+			default:
+				System.err.println("[ERROR]: Invalid matrix ID.");
+				System.exit(1);
+				break;
+			}
+		}
+
+		TileAggregates.writeSimilarity(context, tile);
+
+		TileAggregates.Writer rowsOut = new TileAggregates.Writer(context, 
+				TileAggregates.ROWS, tile.getRowBlock(), tile.getColumnBlock(), 
+				3);
+		double[] maxima = new double[3 * tile.getHeight()];
+		for (int l = 0; l < numLevels; l++) {
+			tile.rowMaxima(l, maxima);
+			rowsOut.write(tile.getRowStart(), l, maxima, tile.getHeight());
+		}
+		rowsOut.close();
+
+		if (tile.isDiagonal()) {
+			int b = tile.getColumnBlock();
+			TileAggregates.Writer pointsOut = new TileAggregates.Writer(
+					context, TileAggregates.POINTS, b, b, 3);
+			TileAggregates.Writer diagonalsOut = new TileAggregates.Writer(
+					context, TileAggregates.DIAGONALS, b, b, 2);
+			double[] diagonals = new double[2 * width];
+			for (int l = 0; l < numLevels; l++) {
+				pointsOut.write(start, l, points[l], width);
+				tile.diagonals(l, diagonals);
+				diagonalsOut.write(start, l, diagonals, width);
+			}
+			pointsOut.close();
+			diagonalsOut.close();
+		}
+
+		tile.write(context);
+	}
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.Convergence;
+
+
+/**
+ * <p>
+ * Map-only task for the Availability update of the tiled job.
+ * </p>
+ * 
+ * <p>
+ * Every tile combines the positive column sums of R written by every tile
+ * of its column of the grid, and the partial exemplar values written by 
+ * every tile of the row of the grid that holds its columns as points, into
+ * C, P and T of its columns and their availability totals. It then updates
+ * its elements of A as <code>AvailabilityReducer</code> would and records 
+ * the partial maxima of <code>A + S</code> of its rows. Every tile of a 
+ * column of the grid computes the same per-point values; the diagonal tile
+ * keeps them, and its diagonals, for the next jobs.
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Tile ID, Level, 
+ * Matrix ID}<br />
+ * <code>Output value [VectorWritable]:</code> the row-major elements of 
+ * the tile
+ * </p>
+ * 
+ * <p>
+ * Side files read: <code>_columns-*-bj</code>, <code>_exemplars-bj-*</code>
+ * (after the first iteration), <code>_points-bj-bj</code>, 
+ * <code>_diagonals-bj-bj</code> in the diagonal tiles, and with local 
+ * sweeps <code>_points-bi-bi</code> and the previous <code>_rows-bi-*</code>.
+ * Side files written:
+ * <code>_rows-bi-bj</code>, and the updated <code>_points</code> and 
+ * <code>_diagonals</code> of the diagonal tiles.
+ * </p>
+ * 
+ * <p>
+ * With more than one sweep per task (see {@link #SWEEPS_KEY}), every tile
+ * then runs further Responsibility and Availability sweeps on its own 
+ * before the next exchange, using its own fresh row maxima and column sums
+ * together with the stale ones of the other tiles, and T, C and P as they
+ * were at the exchange. With k sweeps, the aggregates are at most k - 1 
+ * iterations stale, and the number of jobs per iteration is divided by k.
+ * </p>
+ * 
+ * <p>
+ * The diagonal tiles count the exemplar decisions; see {@link Convergence}.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalTileDriver
+ * @see TileAggregates
+ * 
+ */
+public class TileAvailabilityMapper extends 
+TileMapper<Text, VectorWritable> {
+
+	/** 
+	 * Configuration key holding the number of local sweeps per task, the 
+	 * first of which follows the exchange of aggregates.
+	 */
+	public static final String SWEEPS_KEY = "hap.tiled.sweeps";
+
+	@Override
+	protected void process(Tile tile, Context context) 
+			throws IOException, InterruptedException {
+
+		Configuration conf = context.getConfiguration();
+
+		int bi = tile.getRowBlock();
+		int bj = tile.getColumnBlock();
+		int height = tile.getHeight();
+		int width = tile.getWidth();
+		int start = tile.getColumnStart();
+
+		double[][][] columns = TileAggregates.readAll(conf, 
+				TileAggregates.COLUMNS, bj, false, grid, start, width, 
+				numLevels, 1);
+		double[][] points = TileAggregates.read(conf, 
+				TileAggregates.fileName(TileAggregates.POINTS, bj, bj), 
+				start, width, numLevels, 3);
+
+		// C and P are first computed by the second Responsibility update.
+		double[][][] exemplars = null;
+		if (iteration != 0) {
+			exemplars = TileAggregates.readAll(conf, 
+					TileAggregates.EXEMPLARS, bj, true, grid, start, width, 
+					numLevels, 4);
+		}
+
+		double[][] sums = new double[numLevels][width];
+		double[][] T = new double[numLevels][width];
+		double[][] C = new double[numLevels][width];
+		double[][] P = new double[numLevels][width];
+		double[] phi = new double[width];
+		double[][] parts = new double[grid][];
+
+		for (int l = 0; l < numLevels; l++) {
+			for (int b = 0; b < grid; b++) {
+				parts[b] = columns[b][l];
+			}
+			TileAggregates.sumColumns(parts, width, sums[l]);
+
+			for (int k = 0; k < width; k++) {
+				T[l][k] = points[l][3 * k];
+				C[l][k] = points[l][3 * k + 1];
+				P[l][k] = points[l][3 * k + 2];
+			}
+
+			if (exemplars != null) {
+				for (int b = 0; b < grid; b++) {
+					parts[b] = exemplars[b][l];
+				}
+				TileAggregates.combineExemplars(parts, width, C[l], phi);
+				if (l != numLevels - 1) {
+					System.arraycopy(phi, 0, P[l], 0, width);
+				}
+			}
+		}
+
+		double delta = updateAvailability(tile, T, C, P, sums);
+
+		int sweeps = conf.getInt(SWEEPS_KEY, 1);
+		if (sweeps > 1) {
+
+			// The maxima of the other tiles of the row of the grid are those
+			// the Responsibility step read, T of the rows is the one it used.
+			double[][][] rows = TileAggregates.readAll(conf, 
+					conf.get(TileAggregates.PREVIOUS_KEY), TileAggregates.ROWS,
+					bi, true, grid, tile.getRowStart(), height, numLevels, 3);
+			double[][] tau = TileAggregates.read(conf, 
+					TileAggregates.fileName(TileAggregates.POINTS, bi, bi), 
+					tile.getRowStart(), height, numLevels, 3);
+			// Keep T, the first of the three values of every point, in place.
+			for (int l = 0; l < numLevels; l++) {
+				for (int i = 0; i < height; i++) {
+					tau[l][i] = tau[l][3 * i];
+				}
+			}
+
+			for (int s = 1; s < sweeps; s++) {
+				delta = Math.max(delta, 
+						sweep(tile, rows, tau, columns, T, C, P, sums));
+			}
+		}
+
+		Convergence.recordDelta(context, delta);
+
+		TileAggregates.Writer rowsOut = new TileAggregates.Writer(context, 
+				TileAggregates.ROWS, bi, bj, 3);
+		double[] maxima = new double[3 * height];
+		for (int l = 0; l < numLevels; l++) {
+			tile.rowMaxima(l, maxima);
+			rowsOut.write(tile.getRowStart(), l, maxima, height);
+		}
+		rowsOut.close();
+
+		if (tile.isDiagonal()) {
+			writeDiagonal(tile, context, T, C, P);
+		}
+
+		tile.write(context);
+	}
+
+
+	/*
+	 * Compute T and the availability totals of the columns of the tile 
+	 * from their positive column sums, C and P, and update A at every 
+	 * level. Returns the largest absolute change of any element.
+	 */
+	private double updateAvailability(Tile tile, double[][] T, double[][] C,
+			double[][] P, double[][] sums) {
+
+		int width = tile.getWidth();
+		double[] totals = new double[width];
+		double delta = 0;
+
+		for (int l = 0; l < numLevels; l++) {
+
+			// T(k,l) = C(k,l-1) + r(k,k,l-1) + sum of positive R(i,k,l-1)
+			if (l != 0) {
+				for (int k = 0; k < width; k++) {
+					T[l][k] = C[l - 1][k] + sums[l - 1][k];
+				}
+			}
+
+			for (int k = 0; k < width; k++) {
+				totals[k] = sums[l][k] + (C[l][k] + P[l][k]);
+			}
+
+			delta = Math.max(delta, 
+					tile.updateAvailability(l, totals, lambda));
+		}
+
+		return delta;
+	}
+
+
+	/*
+	 * Run one local Responsibility and Availability sweep over the tile, 
+	 * combining its own fresh row maxima and column sums with the stale 
+	 * ones of the other tiles of its row and column of the grid. T of the
+	 * rows, C and P are held at their values of the last exchange. Returns
+	 * the largest absolute change of any element.
+	 */
+	private double sweep(Tile tile, double[][][] rows, double[][] tau, 
+			double[][][] columns, double[][] T, double[][] C, double[][] P,
+			double[][] sums) {
+
+		int bi = tile.getRowBlock();
+		int bj = tile.getColumnBlock();
+		int height = tile.getHeight();
+		int width = tile.getWidth();
+
+		double[] ownMaxima = new double[3 * height];
+		double[] maxima = new double[3 * height];
+		double[] ownSums = new double[width];
+		double[][] parts = new double[grid][];
+		double delta = 0;
+
+		for (int l = 0; l < numLevels; l++) {
+			tile.rowMaxima(l, ownMaxima);
+			for (int b = 0; b < grid; b++) {
+				parts[b] = b == bj ? ownMaxima : rows[b][l];
+			}
+			TileAggregates.combineMaxima(parts, height, maxima);
+
+			delta = Math.max(delta, 
+					tile.updateResponsibility(l, maxima, tau[l], lambda));
+		}
+
+		for (int l = 0; l < numLevels; l++) {
+			tile.columnSums(l, ownSums);
+			for (int b = 0; b < grid; b++) {
+				parts[b] = b == bi ? ownSums : columns[b][l];
+			}
+			TileAggregates.sumColumns(parts, width, sums[l]);
+		}
+
+		return Math.max(delta, updateAvailability(tile, T, C, P, sums));
+	}
+
+
+	/*
+	 * Write the per-point values and diagonals of a diagonal tile, and 
+	 * count its exemplar decisions against those of the previous iteration.
+	 */
+	private void writeDiagonal(Tile tile, Context context, double[][] T, 
+			double[][] C, double[][] P) 
+					throws IOException, InterruptedException {
+
+		int b = tile.getColumnBlock();
+		int start = tile.getColumnStart();
+		int width = tile.getWidth();
+
+		double[][] previous = TileAggregates.read(
+				context.getConfiguration(), 
+				TileAggregates.fileName(TileAggregates.DIAGONALS, b, b), 
+				start, width, numLevels, 2);
+
+		TileAggregates.Writer pointsOut = new TileAggregates.Writer(context, 
+				TileAggregates.POINTS, b, b, 3);
+		TileAggregates.Writer diagonalsOut = new TileAggregates.Writer(
+				context, TileAggregates.DIAGONALS, b, b, 2);
+
+		double[] values = new double[3 * width];
+		double[] diagonals = new double[2 * width];
+
+		for (int l = 0; l < numLevels; l++) {
+			for (int k = 0; k < width; k++) {
+				values[3 * k] = T[l][k];
+				values[3 * k + 1] = C[l][k];
+				values[3 * k + 2] = P[l][k];
+			}
+			pointsOut.write(start, l, values, width);
+
+			tile.diagonals(l, diagonals);
+			diagonalsOut.write(start, l, diagonals, width);
+
+			for (int k = 0; k < width; k++) {
+				Convergence.recordExemplar(context, l, 
+						previous[l][2 * k], previous[l][2 * k + 1], 
+						diagonals[2 * k], diagonals[2 * k + 1]);
+			}
+		}
+
+		pointsOut.close();
+		diagonalsOut.close();
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.HapKey;
+
+
+/**
+ * <p>
+ * Mapper class for extracting clusters from the tiled state.
+ * </p>
+ * 
+ * <p>
+ * Every tile chooses the best exemplar of each of its rows among its own
+ * columns, using the final diagonals of its columns, and emits the choice 
+ * for {@link TileClusterReducer} to combine with those of the other tiles
+ * of its row of the grid.
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [HapKey]:</code> {Row Number, Level}<br />
+ * <code>Output value [VectorWritable]:</code> {Column Block, max of 
+ * A + R, its column, the same over valid exemplars}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalTileDriver
+ * @see TileClusterReducer
+ * 
+ */
+public class TileClusterMapper extends TileMapper<HapKey, VectorWritable> {
+
+	private final HapKey keyOut = new HapKey();
+	private final DenseVector choice = new DenseVector(5);
+	private final VectorWritable valOut = new VectorWritable(choice);
+
+
+	@Override
+	protected boolean needsSimilarity() {
+		return false;
+	}
+
+
+	@Override
+	protected void process(Tile tile, Context context) 
+			throws IOException, InterruptedException {
+
+		int bj = tile.getColumnBlock();
+		int height = tile.getHeight();
+
+		double[][] diagonals = TileAggregates.read(
+				context.getConfiguration(), 
+				TileAggregates.fileName(TileAggregates.DIAGONALS, bj, bj), 
+				tile.getColumnStart(), tile.getWidth(), numLevels, 2);
+
+		double[] choices = new double[4 * height];
+
+		for (int l = 0; l < numLevels; l++) {
+			tile.exemplarChoices(l, diagonals[l], choices);
+			for (int i = 0; i < height; i++) {
+				choice.setQuick(0, bj);
+				for (int f = 0; f < 4; f++) {
+					choice.setQuick(f + 1, choices[4 * i + f]);
+				}
+				keyOut.set(tile.getRowStart() + i, l);
+				context.write(keyOut, valOut);
+			}
+		}
+	}
+}
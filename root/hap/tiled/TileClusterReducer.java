@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.HapKey;
+import root.hap.util.Instrumentation;
+
+
+/**
+ * <p>
+ * Reducer class for extracting clusters from the tiled state.
+ * </p>
+ * 
+ * <p>
+ * This reducer combines the exemplar choices of every tile of a row of the
+ * grid in column order, so that the exemplar is the one 
+ * <code>ClusterReducer</code> would choose from the whole row: the first 
+ * column of the largest <code>A + R</code> over valid exemplars, or over 
+ * every column if there are none.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [HapKey]:</code> {Row Number, Level}<br />
+ * <code>Input value [Iterable&lt;VectorWritable&gt;]:</code> the choices 
+ * of the tiles of the row
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> ignored, not used<br />
+ * <code>Output value [Text]:</code> tab separated list: 
+ * {Exemplar ID, Vector ID, Level}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalTileDriver
+ * @see TileClusterMapper
+ * 
+ */
+public class TileClusterReducer extends 
+Reducer<HapKey, VectorWritable, Text, Text> {
+
+	private double[][] choices;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		choices = new double[context.getConfiguration()
+		                     .getInt(Tile.GRID_KEY, -1)][4];
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		Instrumentation.recordTask(context, startMillis);
+	}
+
+
+	/**
+	 * <p>
+	 * This method serves to choose the exemplar of a single row and level.
+	 * </p>
+	 * 
+	 * @param keyIn row identification
+	 * @param valIn exemplar choices of the tiles of the row
+	 */
+	public void reduce(HapKey keyIn, Iterable<VectorWritable> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		// Tile choices arrive in no particular order.
+		for (VectorWritable value : valIn) {
+			Vector choice = value.get();
+			double[] slot = choices[(int) choice.getQuick(0)];
+			for (int f = 0; f < 4; f++) {
+				slot[f] = choice.getQuick(f + 1);
+			}
+		}
+
+		double max = Double.NEGATIVE_INFINITY;
+		int index = -1;
+		double validMax = Double.NEGATIVE_INFINITY;
+		int validIndex = -1;
+
+		for (double[] choice : choices) {
+			if (choice[1] != -1 && choice[0] > max) {
+				max = choice[0];
+				index = (int) choice[1];
+			}
+			if (choice[3] != -1 && choice[2] > validMax) {
+				validMax = choice[2];
+				validIndex = (int) choice[3];
+			}
+		}
+
+		int exemplar = validIndex != -1 ? validIndex : index;
+
+		// Sentinel: In case an invalid exemplar ID is passed to output.
+		if (exemplar != -1) {
+			context.write(new Text(), new Text(exemplar + "\t" 
+					+ keyIn.getIndex() + "\t" + keyIn.getLevel()));
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.Convergence;
+import root.hap.util.Instrumentation;
+import root.hap.util.KeyUtilities;
+
+
+/**
+ * <p>
+ * Common part of the mappers of the tiled jobs.
+ * </p>
+ * 
+ * <p>
+ * Every input file holds whole tiles, their records written one after the
+ * other, and is read by a single map task. This mapper gathers the records
+ * of each tile, loads its similarity tile, and hands the tile to 
+ * {@link #process} once it is complete.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> tab separated list: {Tile ID, Level, 
+ * Matrix ID}<br />
+ * <code>Input value [VectorWritable]:</code> the row-major elements of the
+ * tile
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see Tile
+ * @see HierarchicalTileDriver
+ * 
+ */
+public abstract class TileMapper<KEYOUT, VALUEOUT> extends 
+Mapper<Text, VectorWritable, KEYOUT, VALUEOUT> {
+
+	protected int N;
+	protected int numLevels;
+	protected int grid;
+	protected int iteration;
+	protected double lambda;
+
+	private Tile tile;
+
+	private long startMillis;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		startMillis = Instrumentation.startTask();
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		numLevels = conf.getInt("numLevels", -1);
+		grid = conf.getInt(Tile.GRID_KEY, -1);
+		iteration = conf.getInt("numIteration", 0);
+		lambda = conf.getFloat("lambda", 0);
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		finish(context);
+		Convergence.writeDelta(context);
+		Instrumentation.recordTask(context, startMillis);
+	}
+
+
+	/**
+	 * <p>
+	 * This method gathers one record into the tile it belongs to.
+	 * </p>
+	 * 
+	 * @param keyIn tile record identification
+	 * @param valIn tile record data
+	 */
+	public void map(Text keyIn, VectorWritable valIn, Context context)
+			throws IOException, InterruptedException {
+
+		String[] keyData = KeyUtilities.explode(keyIn, false);
+
+		int tileId = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		int level = Integer.valueOf(keyData[KeyUtilities.LEVEL]);
+		char id = keyData[KeyUtilities.ID].charAt(0);
+
+		if (tile == null || tile.getId() != tileId) {
+			finish(context);
+			tile = new Tile(tileId, N, grid, numLevels);
+		}
+
+		tile.set(id, level, valIn.get());
+	}
+
+
+	/**
+	 * Update a complete tile and write its records and side files.
+	 * 
+	 * @param tile the complete tile
+	 * @param context map task context
+	 */
+	protected abstract void process(Tile tile, Context context) 
+			throws IOException, InterruptedException;
+
+
+	/**
+	 * @return whether {@link #process} needs the similarity tile
+	 */
+	protected boolean needsSimilarity() {
+		return true;
+	}
+
+
+	/*
+	 * Process the tile gathered so far, if any.
+	 */
+	private void finish(Context context) 
+			throws IOException, InterruptedException {
+		if (tile == null) {
+			return;
+		}
+		if (needsSimilarity()) {
+			TileAggregates.readSimilarity(context.getConfiguration(), tile);
+		}
+		process(tile, context);
+		tile = null;
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.Convergence;
+
+
+/**
+ * <p>
+ * Map-only task for the Responsibility update of the tiled job.
+ * </p>
+ * 
+ * <p>
+ * Every tile first records the partial exemplar values of its rows, from
+ * which the Availability update derives C and P, using the diagonals of 
+ * its columns. It then combines the partial maxima of 
+ * <code>A + S</code> written by every tile of its row of the grid, 
+ * updates its elements of R as <code>ResponsibilityReducer</code> would,
+ * and records the positive sums of its columns of R.
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Tile ID, Level, 
+ * Matrix ID}<br />
+ * <code>Output value [VectorWritable]:</code> the row-major elements of 
+ * the tile
+ * </p>
+ * 
+ * <p>
+ * Side files read: <code>_rows-bi-*</code>, <code>_points-bi-bi</code> 
+ * and <code>_diagonals-bj-bj</code>. Side files written: 
+ * <code>_exemplars-bi-bj</code> and <code>_columns-bi-bj</code>, and the 
+ * unchanged <code>_points</code> and <code>_diagonals</code> of the 
+ * diagonal tiles.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalTileDriver
+ * @see TileAggregates
+ * 
+ */
+public class TileResponsibilityMapper extends 
+TileMapper<Text, VectorWritable> {
+
+	@Override
+	protected void process(Tile tile, Context context) 
+			throws IOException, InterruptedException {
+
+		Configuration conf = context.getConfiguration();
+
+		int bi = tile.getRowBlock();
+		int bj = tile.getColumnBlock();
+		int height = tile.getHeight();
+		int width = tile.getWidth();
+
+		double[][][] rows = TileAggregates.readAll(conf, TileAggregates.ROWS, 
+				bi, true, grid, tile.getRowStart(), height, numLevels, 3);
+		double[][] points = TileAggregates.read(conf, 
+				TileAggregates.fileName(TileAggregates.POINTS, bi, bi), 
+				tile.getRowStart(), height, numLevels, 3);
+		double[][] diagonals = TileAggregates.read(conf, 
+				TileAggregates.fileName(TileAggregates.DIAGONALS, bj, bj), 
+				tile.getColumnStart(), width, numLevels, 2);
+
+		TileAggregates.Writer exemplarsOut = new TileAggregates.Writer(
+				context, TileAggregates.EXEMPLARS, bi, bj, 4);
+		TileAggregates.Writer columnsOut = new TileAggregates.Writer(
+				context, TileAggregates.COLUMNS, bi, bj, 1);
+
+		double[] values = new double[4 * height];
+		double[] maxima = new double[3 * height];
+		double[] tau = new double[height];
+		double[] sums = new double[width];
+		double[][] parts = new double[grid][];
+		double delta = 0;
+
+		for (int l = 0; l < numLevels; l++) {
+
+			// Partial C(i,l) and P(i,l), from A and R before the update.
+			tile.exemplarValues(l, diagonals[l], values);
+			exemplarsOut.write(tile.getRowStart(), l, values, height);
+
+			for (int b = 0; b < grid; b++) {
+				parts[b] = rows[b][l];
+			}
+			TileAggregates.combineMaxima(parts, height, maxima);
+
+			for (int i = 0; i < height; i++) {
+				tau[i] = points[l][3 * i];
+			}
+
+			delta = Math.max(delta, 
+					tile.updateResponsibility(l, maxima, tau, lambda));
+
+			tile.columnSums(l, sums);
+			columnsOut.write(tile.getColumnStart(), l, sums, width);
+		}
+
+		exemplarsOut.close();
+		columnsOut.close();
+		Convergence.recordDelta(context, delta);
+
+		if (tile.isDiagonal()) {
+			copy(context, TileAggregates.POINTS, bi, points, 
+					tile.getRowStart(), height, 3);
+			copy(context, TileAggregates.DIAGONALS, bi, diagonals, 
+					tile.getRowStart(), height, 2);
+		}
+
+		tile.write(context);
+	}
+
+
+	/*
+	 * Write the per-point side file of a diagonal tile unchanged.
+	 */
+	private void copy(Context context, String kind, int block, 
+			double[][] values, int start, int length, int width) 
+					throws IOException, InterruptedException {
+		TileAggregates.Writer writer = new TileAggregates.Writer(context, 
+				kind, block, block, width);
+		for (int l = 0; l < numLevels; l++) {
+			writer.write(start, l, values[l], length);
+		}
+		writer.close();
+	}
+}
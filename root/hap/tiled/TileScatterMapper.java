@@ -0,0 +1,148 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.tiled;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.BlockUtilities;
+import root.hap.util.HapSlice;
+import root.hap.util.Instrumentation;
+import root.hap.util.KeyUtilities;
+
+
+/**
+ * <p>
+ * Mapper class for cutting the similarity matrix into tiles.
+ * </p>
+ * 
+ * <p>
+ * This mapper cuts every column of S, A and R into one slice per block of
+ * rows and sends each slice to the tile holding it. The single element 
+ * vectors T, C and P go to the diagonal tile of their point.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> information about this column<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding input column
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [IntWritable]:</code> Tile ID<br />
+ * <code>Output value [HapSlice]:</code> 
+ * {Column Number, Level, Matrix ID, First Row, Element Values}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HierarchicalTileDriver
+ * @see TileAssembleReducer
+ * 
+ */
+public class TileScatterMapper extends 
+Mapper<Text, VectorWritable, IntWritable, HapSlice> {
+
+	private int N;
+	private int grid;
+
+	private double[] block;
+	private final double[] single = new double[1];
+
+	private final IntWritable keyOut = new IntWritable();
+	private final HapSlice valOut = new HapSlice();
+	private final Instrumentation.Emitted emitted = 
+			new Instrumentation.Emitted();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		N = conf.getInt("matrixN", -1);
+		grid = conf.getInt(Tile.GRID_KEY, -1);
+
+		block = new double[BlockUtilities.blockEnd(0, N, grid) + 1];
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		emitted.flush(context);
+	}
+
+
+	/**
+	 * <p>
+	 * This method takes in a matrix column or a single element vector and
+	 * outputs it to the tiles holding its elements.
+	 * </p>
+	 * 
+	 * @param keyIn vector identification text
+	 * @param valIn vector data
+	 */
+	public void map(Text keyIn, VectorWritable valIn, Context context)
+			throws IOException, InterruptedException {
+
+		String[] keyData = KeyUtilities.explode(keyIn, false);
+
+		int index = Integer.valueOf(keyData[KeyUtilities.INDEX]);
+		int level = Integer.valueOf(keyData[KeyUtilities.LEVEL]);
+		char id = keyData[KeyUtilities.ID].charAt(0);
+
+		Vector vector = valIn.get();
+		int columnBlock = BlockUtilities.blockOf(index, N, grid);
+
+		if (id == 'S' || id == 'A' || id == 'R') {  // Matrix columns
+
+			for (int b = 0; b < grid; b++) {
+				int start = BlockUtilities.blockStart(b, N, grid);
+				int length = BlockUtilities.blockEnd(b, N, grid) - start;
+
+				for (int row = 0; row < length; row++) {
+					block[row] = vector.getQuick(start + row);
+				}
+
+				keyOut.set(b * grid + columnBlock);
+				valOut.set(index, level, id, start, block, length);
+				context.write(keyOut, valOut);
+				emitted.record(valOut);
+			}
+
+		} else if (id == 'T' || id == 'P' || id == 'C') {  // 1D vectors
+
+			single[0] = vector.get(0);
+
+			keyOut.set(columnBlock * grid + columnBlock);
+			valOut.set(index, level, id, index, single, 1);
+			context.write(keyOut, valOut);
+			emitted.record(valOut);
+
+		} else {
+			System.err.println("[ERROR]: Invalid matrix ID.");
+			System.exit(1);
+		}
+	}
+}
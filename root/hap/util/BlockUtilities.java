@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import org.apache.hadoop.conf.Configuration;
+
+
+/**
+ * <p>
+ * This is a utilities class which provides tools relevant to the block 
+ * ("slice") shuffle mode, in which the N target indices of a job are cut 
+ * into contiguous blocks and each block is handled by one reduce call.
+ * </p>
+ * 
+ * <p>
+ * Block <code>b</code> of <code>B</code> covers the target indices 
+ * <code>[ floor(b*N/B), floor((b+1)*N/B) )</code>, so block sizes differ 
+ * by at most one.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HapSlice
+ * @see HapBlockPartitioner
+ * 
+ */
+public class BlockUtilities {
+
+	/** Shuffle mode sending one record per matrix element. */
+	public static final String SHUFFLE_ELEMENT = "element";
+
+	/** Shuffle mode sending one record per block of a matrix row. */
+	public static final String SHUFFLE_SLICE = "slice";
+
+	/** Configuration key holding the number of blocks. */
+	public static final String NUM_BLOCKS_KEY = "hap.slice.numBlocks";
+
+
+	/**
+	 * Determine the number of blocks to cut N indices into. Defaults to one
+	 * block per reduce task, and never exceeds N.
+	 * 
+	 * @param conf job configuration
+	 * @param N size of the dataset
+	 * @param numReduceTasks number of reduce tasks of the job
+	 * @return number of blocks
+	 */
+	public static int getNumBlocks( Configuration conf, int N, 
+			int numReduceTasks ) { 
+		int numBlocks = conf.getInt( NUM_BLOCKS_KEY, 0 );
+		if( numBlocks <= 0 ) { 
+			numBlocks = numReduceTasks;
+		}
+		return Math.max( 1, Math.min( numBlocks, N ) );
+	}
+
+
+	/**
+	 * @return first index covered by the given block
+	 */
+	public static int blockStart( int block, int N, int numBlocks ) { 
+		return (int) ( (long) block * N / numBlocks );
+	}
+
+
+	/**
+	 * @return one past the last index covered by the given block
+	 */
+	public static int blockEnd( int block, int N, int numBlocks ) { 
+		return blockStart( block + 1, N, numBlocks );
+	}
+
+
+	/**
+	 * @return the block covering the given index
+	 */
+	public static int blockOf( int index, int N, int numBlocks ) { 
+		return (int) ( ( (long) ( index + 1 ) * numBlocks - 1 ) / N );
+	}
+
+
+
+	/**
+	 * Copy the contents of a slice into a source-major tile, where the tile
+	 * holds <code>blockLength</code> consecutive values per source index.
+	 * 
+	 * @param slice the slice to copy
+	 * @param tile the destination tile
+	 * @param blockStart first target index of the tile's block
+	 * @param blockLength number of targets in the tile's block
+	 */
+	public static void copyIntoTile( HapSlice slice, double[] tile, 
+			int blockStart, int blockLength ) { 
+		int offset = slice.getIndex() * blockLength 
+				+ ( slice.getStart() - blockStart );
+		System.arraycopy( slice.getValues(), 0, tile, offset, 
+				slice.getLength() );
+	}
+
+
+	/**
+	 * Gather the N values belonging to one target out of a source-major tile.
+	 * 
+	 * @param tile the source tile
+	 * @param target position of the target within its block
+	 * @param blockLength number of targets in the tile's block
+	 * @param out destination array of length N
+	 * @param N size of the dataset
+	 */
+	public static void gather( double[] tile, int target, int blockLength,
+			double[] out, int N ) { 
+		for( int source = 0, i = target; source < N; 
+				source++, i += blockLength ) { 
+			out[source] = tile[i];
+		}
+	}
+
+}
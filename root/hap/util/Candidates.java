@@ -0,0 +1,216 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+
+/**
+ * <p>
+ * Candidate exemplars of every level of the hierarchy.
+ * </p>
+ * 
+ * <p>
+ * At level 0 every point is a candidate exemplar. At every level l &gt; 0
+ * only the exemplars of level l - 1 are, as found from the diagonals 
+ * <code>a(k,k) + r(k,k) &gt; 0</code> entering the iteration (see 
+ * {@link Diagonals}); while level l - 1 has no exemplar yet, as in the 
+ * first iterations, the candidates of level l - 1 are kept. The candidates
+ * of a level are thus always among those of the level below.
+ * </p>
+ * 
+ * <p>
+ * Only the levels named by {@link #RESTRICTED_KEY} are restricted; every 
+ * other level keeps the candidates of the level below. The calling job 
+ * restricts a level once the exemplars of the level below have been 
+ * unchanged for a number of iterations, as they are unstable early on and
+ * a column dropped from the candidates loses its messages.
+ * </p>
+ * 
+ * <p>
+ * Every other column of a level is taken to have a similarity of negative
+ * infinity: its responsibilities and availabilities are neither shuffled,
+ * computed nor stored, and the rows of the upper levels shrink to the 
+ * columns of their candidates. Both jobs of an iteration load the same 
+ * diagonals, the output of the previous iteration, so they agree on the 
+ * candidates. A column that becomes a candidate starts from zero messages.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see Diagonals
+ * 
+ */
+public final class Candidates {
+
+	/** Configuration key enabling candidate restriction. */
+	public static final String CANDIDATES_KEY = "hap.candidates";
+
+	/** 
+	 * Configuration key holding the restricted levels: {@link #ALL}, 
+	 * {@link #NONE}, or a comma separated list of levels. 
+	 */
+	public static final String RESTRICTED_KEY = "hap.candidates.restricted";
+
+	/** Every level above the first is restricted. */
+	public static final String ALL = "all";
+
+	/** No level is restricted. */
+	public static final String NONE = "none";
+
+	/** Counter group of the number of candidates of every level. */
+	public static final String CANDIDATES_GROUP = "HAP Candidates";
+
+	private final boolean[][] candidates;
+	private final int[] counts;
+
+
+	private Candidates( int N, int numLevels ) { 
+		candidates = new boolean[numLevels][N];
+		counts = new int[numLevels];
+	}
+
+
+	/**
+	 * @return whether candidate restriction is enabled for this job
+	 */
+	public static boolean isEnabled( Configuration conf ) { 
+		return conf.getBoolean( CANDIDATES_KEY, false );
+	}
+
+
+	/**
+	 * Find the candidates of every level from the diagonals of the 
+	 * directory named by {@link Diagonals#PATH_KEY}.
+	 * 
+	 * @param conf job configuration
+	 * @return the candidates, or null if candidate restriction is disabled
+	 */
+	public static Candidates load( Configuration conf ) throws IOException { 
+
+		if( !isEnabled( conf ) ) { 
+			return null;
+		}
+
+		int N = conf.getInt( "matrixN", -1 );
+		int numLevels = conf.getInt( "numLevels", -1 );
+		Diagonals diagonals = Diagonals.load( conf, N );
+
+		boolean[] restricted = getRestricted( conf, numLevels );
+
+		Candidates found = new Candidates( N, numLevels );
+		Arrays.fill( found.candidates[0], true );
+		found.counts[0] = N;
+
+		for( int l = 1; l < numLevels; l++ ) { 
+			boolean[] below = found.candidates[l - 1];
+			boolean[] level = found.candidates[l];
+			double[] diagA = diagonals.getA( l - 1 );
+			double[] diagR = diagonals.getR( l - 1 );
+			int count = 0;
+			for( int j = 0; j < N && restricted[l]; j++ ) { 
+				level[j] = below[j] && diagA[j] + diagR[j] > 0;
+				count += level[j] ? 1 : 0;
+			}
+			if( count == 0 ) { 
+				System.arraycopy( below, 0, level, 0, N );
+				count = found.counts[l - 1];
+			}
+			found.counts[l] = count;
+		}
+
+		return found;
+	}
+
+
+	/*
+	 * Parse the restricted levels of the configuration; every level is 
+	 * restricted by default.
+	 */
+	private static boolean[] getRestricted( Configuration conf, 
+			int numLevels ) { 
+
+		boolean[] restricted = new boolean[numLevels];
+		String levels = conf.get( RESTRICTED_KEY, ALL );
+
+		if( ALL.equals( levels ) ) { 
+			Arrays.fill( restricted, true );
+		} else if( !NONE.equals( levels ) ) { 
+			for( String level : levels.split( "," ) ) { 
+				int l = Integer.valueOf( level.trim() );
+				if( l < numLevels ) { 
+					restricted[l] = true;
+				}
+			}
+		}
+
+		return restricted;
+	}
+
+
+	/**
+	 * @return whether a column is a candidate exemplar at a level; there is
+	 * no candidate above the top level
+	 */
+	public boolean contains( int level, int index ) { 
+		return level < candidates.length && candidates[level][index];
+	}
+
+
+	/**
+	 * @return the candidate exemplars of a level, by column
+	 */
+	public boolean[] get( int level ) { 
+		return candidates[level];
+	}
+
+
+	/**
+	 * @return the number of candidates of a level
+	 */
+	public int count( int level ) { 
+		return counts[level];
+	}
+
+
+	/**
+	 * Count the candidate columns updated by a reduce task.
+	 */
+	public static void record( TaskInputOutputContext<?, ?, ?, ?> context, 
+			int level ) { 
+		context.getCounter( CANDIDATES_GROUP, "Level " + level )
+		.increment( 1 );
+	}
+
+
+
+	/**
+	 * @return the number of candidate columns updated at a level by a job
+	 */
+	public static long getCandidates( Counters counters, int level ) { 
+		return counters.findCounter( CANDIDATES_GROUP, "Level " + level )
+				.getValue();
+	}
+
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Per-column aggregates of a Responsibility update, from which the 
+ * following Availability update of every row can be finished without 
+ * transposing R.
+ * </p>
+ * 
+ * <p>
+ * The availability of column k at level l depends on the rows only 
+ * through <code>total(k) = c(k) + p(k) + r(k,k) + sum of positive 
+ * r(i,k), i != k</code>, and the tau of column k at level l is 
+ * <code>c(k) + r(k,k) + sum of positive r(i,k), i != k</code> at level 
+ * l - 1. In fused mode, every Responsibility reduce task sums the positive
+ * elements of the rows it updates into one partial column sum per level, 
+ * and records c, p, r(k,k) and the a(k,k) entering the update of its own
+ * rows. The next job loads every partial sum once per task, like 
+ * {@link Diagonals}, and finishes A row by row.
+ * </p>
+ * 
+ * <p>
+ * <code>Side file key [HapKey]:</code> {Index, Level}, or {-1, Level} for
+ * a partial column sum<br />
+ * <code>Side file value [VectorWritable]:</code> {c(k), p(k), r(k,k), 
+ * a(k,k)}, or the N partial column sums
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see Diagonals
+ * 
+ */
+public class ColumnAggregates {
+
+	/** Configuration key enabling fused iterations. */
+	public static final String FUSED_KEY = "hap.fused";
+
+	/** Configuration key holding the directory to load aggregates from. */
+	public static final String PATH_KEY = "hap.aggregates.path";
+
+	/** Name prefix of the aggregate side files. */
+	public static final String FILE_PREFIX = "_aggregates";
+
+	// Index of the records holding partial column sums.
+	private static final int SUMS = -1;
+
+	private final int N;
+	private final double lambda;
+	private final List<double[]> sums = new ArrayList<double[]>();
+	private final List<double[]> C = new ArrayList<double[]>();
+	private final List<double[]> P = new ArrayList<double[]>();
+	private final List<double[]> R = new ArrayList<double[]>();
+	private final List<double[]> A = new ArrayList<double[]>();
+
+	// Derived on first use.
+	private final List<double[]> totals = new ArrayList<double[]>();
+	private final List<double[]> diagA = new ArrayList<double[]>();
+
+
+	private ColumnAggregates( int N, double lambda ) { 
+		this.N = N;
+		this.lambda = lambda;
+	}
+
+
+	/**
+	 * @return whether the iterations of this run are fused
+	 */
+	public static boolean isEnabled( Configuration conf ) { 
+		return conf.getBoolean( FUSED_KEY, false );
+	}
+
+
+	/**
+	 * Load and sum the aggregates from the directory named by 
+	 * {@link #PATH_KEY}.
+	 * 
+	 * @param conf job configuration
+	 * @param N size of the dataset
+	 * @return the loaded aggregates
+	 */
+	public static ColumnAggregates load( Configuration conf, int N ) 
+			throws IOException { 
+
+		ColumnAggregates aggregates = 
+				new ColumnAggregates( N, conf.getFloat( "lambda", 0 ) );
+
+		String dir = conf.get( PATH_KEY );
+		if( dir == null ) { 
+			throw new IllegalStateException( 
+					"No aggregates directory configured." );
+		}
+
+		Path pattern = new Path( dir, FILE_PREFIX + "-*" );
+		FileSystem fs = pattern.getFileSystem( conf );
+		FileStatus[] files = fs.globStatus( pattern );
+		if( files == null || files.length == 0 ) { 
+			throw new IllegalStateException( "No aggregates found in " + dir
+					+ "; fused iterations must follow a fused job." );
+		}
+
+		HapKey key = new HapKey();
+		VectorWritable value = new VectorWritable();
+
+		for( FileStatus file : files ) { 
+			SequenceFile.Reader reader = 
+					new SequenceFile.Reader( fs, file.getPath(), conf );
+			while( reader.next( key, value ) ) { 
+				int level = key.getLevel();
+				aggregates.grow( level );
+				Vector vector = value.get();
+				if( key.getIndex() == SUMS ) { 
+					double[] sum = aggregates.sums.get( level );
+					for( int k = 0; k < N; k++ ) { 
+						sum[k] += vector.getQuick( k );
+					}
+				} else { 
+					int k = key.getIndex();
+					aggregates.C.get( level )[k] = vector.getQuick( 0 );
+					aggregates.P.get( level )[k] = vector.getQuick( 1 );
+					aggregates.R.get( level )[k] = vector.getQuick( 2 );
+					aggregates.A.get( level )[k] = vector.getQuick( 3 );
+				}
+			}
+			reader.close();
+		}
+
+		return aggregates;
+	}
+
+
+	/**
+	 * @return the availability total of every column at the given level,
+	 * as passed to {@link HapKernels#dampedAvailabilityRow}
+	 */
+	public double[] getTotals( int level ) { 
+		grow( level );
+		double[] total = totals.get( level );
+		if( total == null ) { 
+			total = new double[N];
+			double[] c = C.get( level );
+			double[] p = P.get( level );
+			double[] sum = sums.get( level );
+			for( int k = 0; k < N; k++ ) { 
+				total[k] = c[k] + p[k] + sum[k];
+			}
+			totals.set( level, total );
+		}
+		return total;
+	}
+
+
+	/**
+	 * @return the updated tau of an index at a level above the first
+	 */
+	public double getTau( int level, int index ) { 
+		grow( level - 1 );
+		return C.get( level - 1 )[index] + sums.get( level - 1 )[index];
+	}
+
+
+	/**
+	 * @return the diagonal of A at the given level, once finished
+	 */
+	public double[] getDiagonalA( int level ) { 
+		double[] total = getTotals( level );
+		double[] diag = diagA.get( level );
+		if( diag == null ) { 
+			diag = new double[N];
+			double[] r = R.get( level );
+			double[] a = A.get( level );
+			for( int k = 0; k < N; k++ ) { 
+				diag[k] = ( total[k] - r[k] ) * ( 1 - lambda ) + a[k] * lambda;
+			}
+			diagA.set( level, diag );
+		}
+		return diag;
+	}
+
+
+	/**
+	 * @return the diagonal of R at the given level
+	 */
+	public double[] getDiagonalR( int level ) { 
+		grow( level );
+		return R.get( level );
+	}
+
+
+	/*
+	 * Make sure vectors exist for every level up to the given one.
+	 */
+	private void grow( int level ) { 
+		while( sums.size() <= level ) { 
+			sums.add( new double[N] );
+			C.add( new double[N] );
+			P.add( new double[N] );
+			R.add( new double[N] );
+			A.add( new double[N] );
+			totals.add( null );
+			diagA.add( null );
+		}
+	}
+
+
+	/**
+	 * <p>
+	 * Task side writer for the aggregate side file. The partial column sums 
+	 * are kept for the whole task and written when it is closed.
+	 * </p>
+	 */
+	public static class Writer { 
+
+		private final SequenceFile.Writer writer;
+		private final HapKey key = new HapKey();
+		private final DenseVector scalars = new DenseVector( 4 );
+		private final VectorWritable value = new VectorWritable();
+		private final int N;
+		private final List<double[]> sums = new ArrayList<double[]>();
+
+		public Writer( TaskInputOutputContext<?, ?, ?, ?> context ) 
+				throws IOException, InterruptedException { 
+			Configuration conf = context.getConfiguration();
+			N = conf.getInt( "matrixN", -1 );
+			int task = context.getTaskAttemptID().getTaskID().getId();
+			Path path = new Path( FileOutputFormat.getWorkOutputPath( context ),
+					String.format( "%s-r-%05d", FILE_PREFIX, task ) );
+			writer = new SequenceFile.Writer( path.getFileSystem( conf ), 
+					conf, path, HapKey.class, VectorWritable.class );
+		}
+
+		/**
+		 * Record an updated row of R and the scalars of its index.
+		 * 
+		 * @param index row index
+		 * @param level level of the hierarchy
+		 * @param c updated exemplar value of the row
+		 * @param p updated phi of the row
+		 * @param r updated row of R, N elements
+		 * @param a a(k,k) entering the update
+		 */
+		public void record( int index, int level, double c, double p, 
+				double[] r, double a ) throws IOException { 
+			while( sums.size() <= level ) { 
+				sums.add( null );
+			}
+			if( sums.get( level ) == null ) { 
+				sums.set( level, new double[N] );
+			}
+			HapKernels.addPositive( r, 0, sums.get( level ), 0, N, index );
+
+			key.set( index, level );
+			scalars.setQuick( 0, c );
+			scalars.setQuick( 1, p );
+			scalars.setQuick( 2, r[index] );
+			scalars.setQuick( 3, a );
+			value.set( scalars );
+			writer.append( key, value );
+		}
+
+		public void close() throws IOException { 
+			for( int level = 0; level < sums.size(); level++ ) { 
+				if( sums.get( level ) != null ) { 
+					key.set( SUMS, level );
+					value.set( new DenseVector( sums.get( level ), true ) );
+					writer.append( key, value );
+				}
+			}
+			writer.close();
+		}
+	}
+
+}
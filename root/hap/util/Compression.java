@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+
+/**
+ * <p>
+ * Compression of the intermediate state and the map output of the 
+ * Hierarchical Affinity Propagation jobs.
+ * </p>
+ * 
+ * <p>
+ * The state written between iterations (the RD and AD directories, and the
+ * similarity store) may be written as block-compressed SequenceFiles, and 
+ * the map output of every job may be compressed before the shuffle. Each 
+ * is configured with a codec name: none, deflate, snappy, lz4 or zstd. 
+ * Codecs are looked up by class name, so a codec missing from the Hadoop 
+ * build in use is reported up front.
+ * </p>
+ * 
+ * <p>
+ * To report compression ratios, the reducers count the serialized size of
+ * the S, R and A vectors they write, which is compared with the size of the
+ * output directory on disk. Map output ratios come from the framework's 
+ * own counters. Neither raw size includes the framing of the stored data 
+ * (SequenceFile record headers and sync markers, IFile checksums), so a 
+ * ratio is only reported when a codec is set; without one, the stored size
+ * is reported as is.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+public class Compression {
+
+	/** Codec name disabling compression. */
+	public static final String NONE = "none";
+
+	/** Counter group holding the uncompressed size of the state written. */
+	public static final String STATE_GROUP = "HAP State Bytes";
+
+	/** Counter holding the uncompressed size of the state written. */
+	public static final String UNCOMPRESSED_COUNTER = "Uncompressed";
+
+	private static final String[] CODEC_NAMES = { 
+		"deflate", "snappy", "lz4", "zstd" };
+
+	private static final String[] CODEC_CLASSES = { 
+		"org.apache.hadoop.io.compress.DefaultCodec",
+		"org.apache.hadoop.io.compress.SnappyCodec",
+		"org.apache.hadoop.io.compress.Lz4Codec",
+		"org.apache.hadoop.io.compress.ZStandardCodec" };
+
+	// Task counters are grouped differently by Hadoop 1 and 2.
+	private static final String[] TASK_GROUPS = { 
+		"org.apache.hadoop.mapred.Task$Counter",
+		"org.apache.hadoop.mapreduce.TaskCounter" };
+
+
+	/**
+	 * Look up a codec by name.
+	 * 
+	 * @param conf job configuration
+	 * @param name codec name
+	 * @return the codec class, or null for {@link #NONE}
+	 * @throws IllegalArgumentException if the codec is unknown or not part
+	 * of this Hadoop build
+	 */
+	public static Class<? extends CompressionCodec> getCodec( 
+			Configuration conf, String name ) { 
+
+		if( name == null || name.equalsIgnoreCase( NONE ) ) { 
+			return null;
+		}
+
+		for( int i = 0; i < CODEC_NAMES.length; i++ ) { 
+			if( CODEC_NAMES[i].equalsIgnoreCase( name ) ) { 
+				try { 
+					return conf.getClassByName( CODEC_CLASSES[i] )
+							.asSubclass( CompressionCodec.class );
+				} catch( ClassNotFoundException e ) { 
+					throw new IllegalArgumentException( "Codec \'" + name 
+							+ "\' is not supported by this Hadoop build." );
+				}
+			}
+		}
+
+		throw new IllegalArgumentException( "Unknown codec \'" + name 
+				+ "\'. Use none, deflate, snappy, lz4 or zstd." );
+	}
+
+
+	/**
+	 * Configure the compression of a job.
+	 * 
+	 * @param job the job to configure
+	 * @param stateCodec codec of the SequenceFile output, or none
+	 * @param shuffleCodec codec of the map output, or none
+	 */
+	public static void configure( Job job, String stateCodec, 
+			String shuffleCodec ) { 
+
+		Configuration conf = job.getConfiguration();
+
+		Class<? extends CompressionCodec> codec = getCodec( conf, stateCodec );
+		if( codec != null ) { 
+			FileOutputFormat.setCompressOutput( job, true );
+			FileOutputFormat.setOutputCompressorClass( job, codec );
+			SequenceFileOutputFormat.setOutputCompressionType( job, 
+					SequenceFile.CompressionType.BLOCK );
+		}
+
+		codec = getCodec( conf, shuffleCodec );
+		if( codec != null ) { 
+			conf.setBoolean( "mapred.compress.map.output", true );
+			conf.setClass( "mapred.map.output.compression.codec", codec, 
+					CompressionCodec.class );
+		}
+	}
+
+
+	/**
+	 * Count the serialized size of a state vector written by a reducer: the
+	 * key, the vector header and the values at the configured precision.
+	 * 
+	 * @param context reduce task context
+	 * @param key key the vector was written under
+	 * @param numValues number of values of the vector
+	 */
+	public static void recordState( 
+			TaskInputOutputContext<?, ?, ?, ?> context, Text key, 
+			int numValues ) { 
+		int valueBytes = 
+				Precision.get( context.getConfiguration() ) == Precision.DOUBLE 
+				? 8 : 4;
+		context.getCounter( STATE_GROUP, UNCOMPRESSED_COUNTER ).increment( 
+				1 + key.getLength() + 6 + (long) numValues * valueBytes );
+	}
+
+
+	/**
+	 * @return the uncompressed size of the state written by a job
+	 */
+	public static long getUncompressedState( Counters counters ) { 
+		return counters.findCounter( STATE_GROUP, UNCOMPRESSED_COUNTER )
+				.getValue();
+	}
+
+
+	/**
+	 * @return the size of the map output of a job before compression
+	 */
+	public static long getMapOutputBytes( Counters counters ) { 
+		return getTaskCounter( counters, "MAP_OUTPUT_BYTES" );
+	}
+
+
+	/**
+	 * @return the size of the map output of a job as spilled and shuffled
+	 */
+	public static long getMaterializedMapOutputBytes( Counters counters ) { 
+		return getTaskCounter( counters, "MAP_OUTPUT_MATERIALIZED_BYTES" );
+	}
+
+
+	/**
+	 * @return the size of a directory on disk
+	 */
+	public static long getStoredBytes( FileSystem fs, Path path ) 
+			throws IOException { 
+		return fs.exists( path ) ? fs.getContentSummary( path ).getLength() : 0;
+	}
+
+
+	/**
+	 * @param codec codec name the data was stored with
+	 * @return the ratio of raw to stored bytes, formatted for reporting, or
+	 * only the stored bytes for {@link #NONE}
+	 */
+	public static String formatRatio( String codec, long raw, long stored ) { 
+		if( codec == null || codec.equalsIgnoreCase( NONE ) ) { 
+			return NONE + " (" + stored + " bytes)";
+		}
+		if( raw <= 0 || stored <= 0 ) { 
+			return "n/a";
+		}
+		return String.format( "%.2f (%d / %d bytes)", 
+				(double) raw / stored, raw, stored );
+	}
+
+
+	/*
+	 * Find a framework task counter under either version's group name.
+	 */
+	static long getTaskCounter( Counters counters, String name ) { 
+		for( String group : TASK_GROUPS ) { 
+			Counter counter = counters.findCounter( group, name );
+			if( counter != null && counter.getValue() != 0 ) { 
+				return counter.getValue();
+			}
+		}
+		return 0;
+	}
+
+}
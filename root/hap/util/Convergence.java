@@ -0,0 +1,274 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+
+/**
+ * <p>
+ * Counters used to detect convergence of the Hierarchical Affinity 
+ * Propagation iterations.
+ * </p>
+ * 
+ * <p>
+ * The Availability reducers count, per level, the points chosen as 
+ * exemplars (<code>a(k,k) + r(k,k) &gt; 0</code>) and the points whose 
+ * decision changed since the previous iteration. The Responsibility and 
+ * Availability reducers also report the largest absolute change of any 
+ * message they produced.
+ * </p>
+ * 
+ * <p>
+ * Counters are summed across tasks, and a counter per task would soon 
+ * exceed the limit of counters per job, so every task writes its maximum 
+ * delta to a small side file of its output instead (see 
+ * {@link #writeDelta(TaskInputOutputContext)}). Once the job is done, the 
+ * driver folds the maximum of these files into a single counter of the 
+ * job's counters, on the client only (see 
+ * {@link #collectMaxDelta(Configuration, Path, Counters)}), from which it
+ * is read by {@link #getMaxDelta(Counters)}.
+ * </p>
+ * 
+ * <p>
+ * <code>Side file key [IntWritable]:</code> {Task}<br />
+ * <code>Side file value [DoubleWritable]:</code> {Max Message Delta}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+public class Convergence {
+
+	/** Counter group holding the number of exemplars of each level. */
+	public static final String EXEMPLARS_GROUP = "HAP Exemplars";
+
+	/** Counter group holding the changed exemplar decisions per level. */
+	public static final String CHANGES_GROUP = "HAP Exemplar Changes";
+
+	/** 
+	 * Counter group holding the maximum message delta of a job, filled in
+	 * by the driver. 
+	 */
+	public static final String DELTA_GROUP = "HAP Max Message Delta";
+
+	/** Name prefix of the maximum message delta side files. */
+	public static final String DELTA_PREFIX = "_delta";
+
+	// Deltas are stored in counters in units of 1 / DELTA_SCALE.
+	private static final double DELTA_SCALE = 1e9;
+
+	// Largest delta recorded so far by every running task of this JVM.
+	private static final Map<TaskAttemptID, Double> deltas = 
+			new HashMap<TaskAttemptID, Double>();
+
+
+	/**
+	 * Record the exemplar decision of a single point at a single level.
+	 * 
+	 * @param context reduce task context
+	 * @param level level of the hierarchy
+	 * @param oldA previous value of a(k,k)
+	 * @param oldR previous value of r(k,k)
+	 * @param a updated value of a(k,k)
+	 * @param r updated value of r(k,k)
+	 */
+	public static void recordExemplar( 
+			TaskInputOutputContext<?, ?, ?, ?> context, int level, 
+			double oldA, double oldR, double a, double r ) { 
+
+		boolean wasExemplar = oldA + oldR > 0;
+		boolean isExemplar = a + r > 0;
+
+		if( isExemplar ) { 
+			context.getCounter( EXEMPLARS_GROUP, "Level " + level )
+			.increment( 1 );
+		}
+		if( isExemplar != wasExemplar ) { 
+			context.getCounter( CHANGES_GROUP, "Level " + level )
+			.increment( 1 );
+		}
+	}
+
+
+	/**
+	 * Record the largest absolute change of the messages of one update, if
+	 * it exceeds the largest seen so far by this task.
+	 * 
+	 * @param context task context
+	 * @param delta largest absolute change of the update
+	 */
+	public static void recordDelta( 
+			TaskInputOutputContext<?, ?, ?, ?> context, double delta ) { 
+
+		TaskAttemptID task = context.getTaskAttemptID();
+		synchronized( deltas ) { 
+			Double max = deltas.get( task );
+			if( max == null || delta > max ) { 
+				deltas.put( task, delta );
+			}
+		}
+	}
+
+
+	/**
+	 * Write the largest delta recorded by this task to a side file of its 
+	 * work output directory, so that it is committed together with the 
+	 * task's regular output. Tasks that recorded no delta write nothing.
+	 * 
+	 * @param context task context, at cleanup
+	 */
+	public static void writeDelta( TaskInputOutputContext<?, ?, ?, ?> context )
+			throws IOException, InterruptedException { 
+
+		TaskAttemptID task = context.getTaskAttemptID();
+		Double max;
+		synchronized( deltas ) { 
+			max = deltas.remove( task );
+		}
+		if( max == null ) { 
+			return;
+		}
+
+		Configuration conf = context.getConfiguration();
+		int id = task.getTaskID().getId();
+		Path path = new Path( FileOutputFormat.getWorkOutputPath( context ),
+				String.format( "%s-%s-%05d", DELTA_PREFIX, 
+						task.isMap() ? "m" : "r", id ) );
+		SequenceFile.Writer writer = new SequenceFile.Writer( 
+				path.getFileSystem( conf ), conf, path, IntWritable.class, 
+				DoubleWritable.class );
+		try { 
+			writer.append( new IntWritable( id ), new DoubleWritable( max ) );
+		} finally { 
+			writer.close();
+		}
+	}
+
+
+	/**
+	 * Read the maximum delta side files of a finished job and record their
+	 * largest value in the job's counters, on the client.
+	 * 
+	 * @param conf job configuration
+	 * @param output output directory of the job
+	 * @param counters counters of the job
+	 */
+	public static void collectMaxDelta( Configuration conf, Path output, 
+			Counters counters ) throws IOException { 
+
+		if( counters == null ) { 
+			return;
+		}
+
+		Path pattern = new Path( output, DELTA_PREFIX + "-*" );
+		FileSystem fs = pattern.getFileSystem( conf );
+		FileStatus[] files = fs.globStatus( pattern );
+		if( files == null || files.length == 0 ) { 
+			return;
+		}
+
+		IntWritable key = new IntWritable();
+		DoubleWritable value = new DoubleWritable();
+		double max = 0;
+
+		for( FileStatus file : files ) { 
+			SequenceFile.Reader reader = 
+					new SequenceFile.Reader( fs, file.getPath(), conf );
+			while( reader.next( key, value ) ) { 
+				max = Math.max( max, value.get() );
+			}
+			reader.close();
+		}
+
+		long scaled = max * DELTA_SCALE >= Long.MAX_VALUE 
+				? Long.MAX_VALUE : (long) Math.ceil( max * DELTA_SCALE );
+		Counter counter = counters.findCounter( DELTA_GROUP, "Max" );
+		counter.increment( scaled - counter.getValue() );
+	}
+
+
+	/**
+	 * @return the total number of changed exemplar decisions of a job
+	 */
+	public static long getExemplarChanges( Counters counters ) { 
+		return sum( counters.getGroup( CHANGES_GROUP ) );
+	}
+
+
+	/**
+	 * @return the number of changed exemplar decisions of a job at the 
+	 * given level
+	 */
+	public static long getExemplarChanges( Counters counters, int level ) { 
+		return counters.findCounter( CHANGES_GROUP, "Level " + level )
+				.getValue();
+	}
+
+
+	/**
+	 * @return the number of exemplars of a job at the given level
+	 */
+	public static long getExemplars( Counters counters, int level ) { 
+		return counters.findCounter( EXEMPLARS_GROUP, "Level " + level )
+				.getValue();
+	}
+
+
+	/**
+	 * @return the largest message delta of any task of a job, once 
+	 * collected by {@link #collectMaxDelta(Configuration, Path, Counters)}
+	 */
+	public static double getMaxDelta( Counters counters ) { 
+		long max = 0;
+		for( Counter counter : counters.getGroup( DELTA_GROUP ) ) { 
+			max = Math.max( max, counter.getValue() );
+		}
+		return max / DELTA_SCALE;
+	}
+
+
+	/*
+	 * Sum every counter of a group.
+	 */
+	private static long sum( CounterGroup group ) { 
+		long total = 0;
+		for( Counter counter : group ) { 
+			total += counter.getValue();
+		}
+		return total;
+	}
+
+}
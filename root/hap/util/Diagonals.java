@@ -0,0 +1,198 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Per-level diagonals <code>a(k,k)</code> and <code>r(k,k)</code> of the 
+ * Availability and Responsibility matrices.
+ * </p>
+ * 
+ * <p>
+ * The Availability job writes the diagonals as a small side file next to its
+ * regular output, and the Responsibility and Cluster jobs load them once per
+ * task instead of receiving N copies of every diagonal through the shuffle.
+ * Side files are named with a leading underscore so that they are skipped 
+ * by <code>FileInputFormat</code> when the directory is read as job input.
+ * </p>
+ * 
+ * <p>
+ * <code>Side file key [HapKey]:</code> {Index, Level}<br />
+ * <code>Side file value [VectorWritable]:</code> {a(k,k), r(k,k)}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+public class Diagonals {
+
+	/** Configuration key holding the directory to load diagonals from. */
+	public static final String PATH_KEY = "hap.diagonals.path";
+
+	/** Name prefix of the diagonal side files. */
+	public static final String FILE_PREFIX = "_diagonals";
+
+	private final int N;
+	private final List<double[]> A = new ArrayList<double[]>();
+	private final List<double[]> R = new ArrayList<double[]>();
+
+
+	private Diagonals( int N ) { 
+		this.N = N;
+	}
+
+
+	/**
+	 * Load the diagonals from the directory named by {@link #PATH_KEY}. A
+	 * directory without side files (such as the initial similarity matrix)
+	 * yields all-zero diagonals, matching the initial all-zero A and R.
+	 * 
+	 * @param conf job configuration
+	 * @param N size of the dataset
+	 * @return the loaded diagonals
+	 */
+	public static Diagonals load( Configuration conf, int N ) 
+			throws IOException { 
+
+		Diagonals diagonals = new Diagonals( N );
+
+		String dir = conf.get( PATH_KEY );
+		if( dir == null ) { 
+			return diagonals;
+		}
+
+		Path pattern = new Path( dir, FILE_PREFIX + "-*" );
+		FileSystem fs = pattern.getFileSystem( conf );
+		FileStatus[] files = fs.globStatus( pattern );
+		if( files == null ) { 
+			return diagonals;
+		}
+
+		HapKey key = new HapKey();
+		VectorWritable value = new VectorWritable();
+
+		for( FileStatus file : files ) { 
+			SequenceFile.Reader reader = 
+					new SequenceFile.Reader( fs, file.getPath(), conf );
+			while( reader.next( key, value ) ) { 
+				int level = key.getLevel();
+				diagonals.getA( level )[key.getIndex()] = value.get().get( 0 );
+				diagonals.getR( level )[key.getIndex()] = value.get().get( 1 );
+			}
+			reader.close();
+		}
+
+		return diagonals;
+	}
+
+
+	/**
+	 * @return the diagonal of A at the given level
+	 */
+	public double[] getA( int level ) { 
+		grow( level );
+		return A.get( level );
+	}
+
+
+	/**
+	 * @return the diagonal of R at the given level
+	 */
+	public double[] getR( int level ) { 
+		grow( level );
+		return R.get( level );
+	}
+
+
+	/*
+	 * Make sure vectors exist for every level up to the given one.
+	 */
+	private void grow( int level ) { 
+		while( A.size() <= level ) { 
+			A.add( new double[N] );
+			R.add( new double[N] );
+		}
+	}
+
+
+	/**
+	 * <p>
+	 * Task side writer for the diagonal side file. The file is created in 
+	 * the task's work output directory, so it is committed (or discarded) 
+	 * together with the task's regular output.
+	 * </p>
+	 */
+	public static class Writer { 
+
+		private final SequenceFile.Writer writer;
+		private final HapKey key = new HapKey();
+		private final DenseVector pair = new DenseVector( 2 );
+		private final VectorWritable value = new VectorWritable( pair );
+		private final TaskInputOutputContext<?, ?, ?, ?> context;
+		private final Instrumentation.Emitted emitted = 
+				new Instrumentation.Emitted();
+
+		public Writer( TaskInputOutputContext<?, ?, ?, ?> context ) 
+				throws IOException, InterruptedException { 
+			this.context = context;
+			Configuration conf = context.getConfiguration();
+			int task = context.getTaskAttemptID().getTaskID().getId();
+			Path path = new Path( FileOutputFormat.getWorkOutputPath( context ),
+					String.format( "%s-r-%05d", FILE_PREFIX, task ) );
+			writer = new SequenceFile.Writer( path.getFileSystem( conf ), 
+					conf, path, HapKey.class, VectorWritable.class );
+		}
+
+		/**
+		 * Record the diagonal elements of one index and level.
+		 */
+		public void write( int index, int level, double a, double r ) 
+				throws IOException { 
+			key.set( index, level );
+			pair.setQuick( 0, a );
+			pair.setQuick( 1, r );
+			writer.append( key, value );
+
+			// The key and vector header are counted with a(k,k).
+			emitted.record( 'a', 6 + 2 + 8 );
+			emitted.record( 'r', 8 );
+		}
+
+		public void close() throws IOException { 
+			writer.close();
+			emitted.flush( context );
+		}
+	}
+
+}
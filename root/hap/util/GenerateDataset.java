@@ -4,9 +4,9 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- *
+ * 
  *     http://www.apache.org/licenses/LICENSE-2.0
- *
+ * 
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -16,24 +16,68 @@
 package root.hap.util;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.input.InputJob;
 
 
 /**
  * <p>
- * Utility class to generate randomized datasets. All values generated will be 
- * integers in the range [-100,0].
+ * Utility job to generate synthetic similarity matrices, ready to be 
+ * clustered by the Hierarchical Affinity Propagation jobs.
+ * </p>
+ * 
+ * <p>
+ * N points are drawn from a mixture of k spherical Gaussians in d 
+ * dimensions, with centers uniform in the unit cube and a common standard
+ * deviation. S holds the negative squared distances between the points, and
+ * the diagonal holds the preference: a given value, or by default the 
+ * median similarity, estimated from a sample of pairs.
+ * </p>
+ * 
+ * <p>
+ * A fraction of the off-diagonal similarities may be dropped. The choice
+ * is symmetric, and a dropped similarity is set to twice the negative 
+ * squared diameter of the points' bounding box, below every kept one.
+ * </p>
+ * 
+ * <p>
+ * The output is written in the <code>similarityMatrix</code> layout the 
+ * input jobs produce: <code>Text</code> keys <code>{Index, Level, ID}</code>
+ * with <code>VectorWritable</code> values, a row of S and, for every level,
+ * zero rows of R and A and the initial C, T and P. Rows are split into 
+ * part files written in parallel. Every value depends only on the seed, 
+ * never on the number of parts or threads.
+ * </p>
+ * 
+ * <p>
+ * Optionally, the planted cluster of every point is written to a text file
+ * of <code>Index \t Cluster</code> lines.
  * </p>
  * 
  * <p>
- * Discussion of implementation.
+ * To run this program from the command line:<br/>
+ * <code>$ bin/hadoop root.hap.util.GenerateDataset -n 100000 -l 3 
+ * -k 50 -o /data/synthetic</code>
  * </p>
  * 
  * @author Dillon Rose
@@ -41,77 +85,356 @@ import org.apache.hadoop.io.Text;
  * 
  * @since 2013.06.25
  * 
- * @deprecated
- * 
  */
-public class GenerateDataset {
+public class GenerateDataset extends InputJob {
+
+	private static final double TAU_INIT = Double.POSITIVE_INFINITY;
+
+	// Number of pairs sampled to estimate the median similarity.
+	private static final int PREFERENCE_SAMPLES = 10000;
+
+	private static String outputDirectory;
+	private static String N;
+	private static String numLevels;
+	private static String numClusters;
+	private static String dimensions;
+	private static String spread;
+	private static String sparsity;
+	private static String preference;
+	private static String seed;
+	private static String numParts;
+	private static String numThreads;
+	private static String labelsFile;
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void constructParameterList() {
+
+		addOption("out", "o", "Output Directory", true);
+		addOption("inputSize", "n", "Number of Points", true);
+		addOption("numLevels", "l", "Number of Levels", "1");
+		addOption("numClusters", "k", "Number of Planted Clusters", "10");
+		addOption("dimensions", "d", "Dimensions of the Points", "2");
+		addOption("spread", "spread", 
+				"Standard Deviation of every Cluster", "0.05");
+		addOption("sparsity", "sparsity", 
+				"Fraction of Similarities to Drop (0: dense)", "0");
+		addOption("preference", "pref", 
+				"Preference on the Diagonal of S (median: median similarity)", 
+				"median");
+		addOption("seed", "seed", "Random Seed", "42");
+		addOption("numParts", "parts", 
+				"Number of Part Files (0: one per core)", "0");
+		addOption("numThreads", "threads", 
+				"Number of Threads (0: one per core)", "0");
+		addOption("labels", "labels", 
+				"Text File for the Planted Clusters (default: none)", false);
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void printConfiguredParameters() {
+		System.out.println("[INFO]: Generate Dataset Job");
+		System.out.println("\t-o\t\t" + outputDirectory);
+		System.out.println("\t-n\t\t" + N);
+		System.out.println("\t-l\t\t" + numLevels);
+		System.out.println("\t-k\t\t" + numClusters);
+		System.out.println("\t-d\t\t" + dimensions);
+		System.out.println("\t-spread\t" + spread);
+		System.out.println("\t-sparsity\t" + sparsity);
+		System.out.println("\t-pref\t\t" + preference);
+		System.out.println("\t-seed\t\t" + seed);
+		System.out.println("\t-parts\t\t" + numParts);
+		System.out.println("\t-threads\t" + numThreads);
+		System.out.println("\t-labels\t" + labelsFile);
+		System.out.println();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void initializeConfigurationParameters() {
+
+		outputDirectory = cleanDirectoryName(getOption("out"));
+		N = getOption("inputSize");
+		numLevels = getOption("numLevels");
+		numClusters = getOption("numClusters");
+		dimensions = getOption("dimensions");
+		spread = getOption("spread");
+		sparsity = getOption("sparsity");
+		preference = getOption("preference");
+		seed = getOption("seed");
+		numParts = getOption("numParts");
+		numThreads = getOption("numThreads");
+		labelsFile = getOption("labels");
 
-	public static void main(String[] args) throws IOException, URISyntaxException { 
-		
-		if( args.length != 3 ) { 
-			System.err.println("Usage: GenerateDataset <N> <L> <outputfile>");
-			System.exit(2);
+		if (Integer.valueOf(N) <= 0 || Integer.valueOf(numLevels) <= 0
+				|| Integer.valueOf(numClusters) <= 0 
+				|| Integer.valueOf(dimensions) <= 0) {
+			System.err.println("[ERROR]: N, levels, clusters and dimensions must be positive.");
+			System.exit(1);
 		}
-		int N = Integer.valueOf(args[0]);
-		int L = Integer.valueOf(args[1]);
-		
-		Configuration workingConf = new Configuration();
-		URI workingURI = new URI( workingConf.get("fs.default.name") );
-		FileSystem workingFS = FileSystem.get(workingURI, workingConf);
-		
-		Path path = new Path(args[2]);
-		
-		SequenceFile.Writer writer = new SequenceFile.Writer(workingFS, workingConf,
-				path, Text.class, Text.class);
-		
-		String[] IDs = {"S", "R", "A"};
-		
-		for( int id = 0; id < 3; id++ ) {
-			
-			for( int row = 0; row < N; row++ ) {
-				for( int col = 0; col < N; col++ ) { 
-					
-					if(IDs[id].equals("S")){
-						int value = id > 0 ? 0 : (int)(Math.random() * -100);
-						if(row==col){
-							writer.append(new Text(row+"\t"+col+"\t0\t"+IDs[id]), new Text(-100000+""));
-						}else{
-							writer.append(new Text(row+"\t"+col+ "\t0\t"+IDs[id]), new Text(value+""));
-						}
-					}
-					
-					for( int level = 0; level < L; level++ ) { 
-						
-						int value = id > 0 ? 0 : (int)(Math.random() * -100);
-						if(!IDs[id].equals("S")){
-							writer.append(new Text(row+"\t"+col+"\t"+ level+ "\t"+IDs[id]), new Text(value+""));
-						}
-						
-					}
+
+		double drop = Double.valueOf(sparsity);
+		if (drop < 0 || drop >= 1) {
+			System.err.println("[ERROR]: Sparsity must be in [0, 1).");
+			System.err.println("[INFO]: sparsity = " + sparsity);
+			System.exit(1);
+		}
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		constructParameterList();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initializeConfigurationParameters();
+
+		printJobHeader();
+
+		final Configuration conf = getConf();
+
+		URI workingURI = new URI(conf.get("fs.default.name"));
+		final FileSystem workingFS = FileSystem.get(workingURI, conf);
+
+		final int n = Integer.valueOf(N);
+		final int levels = Integer.valueOf(numLevels);
+		final long seedValue = Long.valueOf(seed);
+		final double drop = Double.valueOf(sparsity);
+
+		int[] labels = new int[n];
+		final double[][] points = drawPoints(n, Integer.valueOf(numClusters),
+				Integer.valueOf(dimensions), Double.valueOf(spread), 
+				new Random(seedValue), labels);
+
+		final double floor = -2 * squaredDiameter(points);
+		final double pref = "median".equals(preference) 
+				? medianSimilarity(points, new Random(seedValue + 1)) 
+				: Double.valueOf(preference);
+
+		int threads = Integer.valueOf(numThreads);
+		ForkJoinPool pool = threads > 0 
+				? new ForkJoinPool(threads) : new ForkJoinPool();
+
+		int parts = Integer.valueOf(numParts);
+		parts = Math.min(n, parts > 0 ? parts : pool.getParallelism());
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int p = 0; p < parts; p++) {
+			final int start = (int) ((long) n * p / parts);
+			final int end = (int) ((long) n * (p + 1) / parts);
+			final Path path = new Path(outputDirectory 
+					+ String.format("/part-m-%05d", p));
+			tasks.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					writePart(workingFS, conf, path, points, start, end, 
+							levels, pref, floor, drop, seedValue);
+					return null;
 				}
+			});
+		}
+
+		try {
+			for (Future<Void> task : pool.invokeAll(tasks)) {
+				task.get();
+			}
+		} catch (ExecutionException e) {
+			System.err.println("[ERROR]: Unable to write the dataset.");
+			System.err.println(e.getCause());
+			System.exit(1);
+		} finally {
+			pool.shutdown();
+		}
+
+		if (labelsFile != null) {
+			writeLabels(workingFS, new Path(labelsFile), labels);
+		}
+
+		System.out.println("[INFO]: Wrote " + n + " points in " + parts 
+				+ " part(s), preference " + pref + ".");
+
+		return 0;
+
+	}
+
+
+	/*
+	 * Draw N points from the Gaussian mixture, recording the cluster each
+	 * came from.
+	 */
+	private static double[][] drawPoints(int N, int k, int d, double sigma,
+			Random random, int[] labels) {
+
+		double[][] centers = new double[k][d];
+		for (double[] center : centers) {
+			for (int c = 0; c < d; c++) {
+				center[c] = random.nextDouble();
+			}
+		}
+
+		double[][] points = new double[N][d];
+		for (int i = 0; i < N; i++) {
+			labels[i] = random.nextInt(k);
+			for (int c = 0; c < d; c++) {
+				points[i][c] = centers[labels[i]][c] 
+						+ sigma * random.nextGaussian();
 			}
 		}
-		
-		String [] IDs2 = {"T", "P", "C"};
-		
-		for( int id = 0; id < 3; id++ ) {
-			
-			for( int index = 0; index < N; index++ ) {
-				for( int level = 0; level < L; level++ ) { 
-					
-					int value =  0 ;
-					if(IDs2[id].equals("T")){
-						writer.append(new Text(index+"\t"+ level+ "\t"+IDs2[id]), new Text(100000+""));
-					}else{
-						writer.append(new Text(index+"\t"+ level+ "\t"+IDs2[id]), new Text(value+""));
+		return points;
+	}
+
+
+	private static double similarity(double[] x, double[] y) {
+		double sum = 0;
+		for (int c = 0; c < x.length; c++) {
+			double diff = x[c] - y[c];
+			sum += diff * diff;
+		}
+		return -sum;
+	}
+
+
+	/*
+	 * Squared length of the diagonal of the bounding box of the points, an
+	 * upper bound on every squared distance.
+	 */
+	private static double squaredDiameter(double[][] points) {
+		int d = points[0].length;
+		double[] min = new double[d];
+		double[] max = new double[d];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (double[] point : points) {
+			for (int c = 0; c < d; c++) {
+				min[c] = Math.min(min[c], point[c]);
+				max[c] = Math.max(max[c], point[c]);
+			}
+		}
+		return -similarity(min, max);
+	}
+
+
+	/*
+	 * Median similarity of a sample of distinct pairs.
+	 */
+	private static double medianSimilarity(double[][] points, Random random) {
+		int N = points.length;
+		if (N < 2) {
+			return 0;
+		}
+		double[] sample = new double[PREFERENCE_SAMPLES];
+		for (int s = 0; s < sample.length; s++) {
+			int i = random.nextInt(N);
+			int j = random.nextInt(N - 1);
+			sample[s] = similarity(points[i], points[j < i ? j : j + 1]);
+		}
+		Arrays.sort(sample);
+		return sample[sample.length / 2];
+	}
+
+
+	/*
+	 * Decide whether the similarity between i and j is dropped, the same
+	 * way for (i, j) and (j, i), from a hash of the pair and the seed.
+	 */
+	private static boolean dropped(int i, int j, long seed, double drop) {
+		long z = seed + 0x9E3779B97F4A7C15L * 
+				(((long) Math.min(i, j) << 32) | Math.max(i, j));
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		return (z >>> 11) * 0x1.0p-53 < drop;
+	}
+
+
+	/*
+	 * Write the rows of points [start, end) to a single part file.
+	 */
+	private static void writePart(FileSystem fs, Configuration conf, 
+			Path path, double[][] points, int start, int end, int numLevels,
+			double preference, double floor, double drop, long seed) 
+					throws IOException {
+
+		int N = points.length;
+
+		VectorWritable zeroRow = new VectorWritable(new DenseVector(N));
+		VectorWritable zero = new VectorWritable(new DenseVector(1));
+		VectorWritable tau = new VectorWritable(new DenseVector(
+				new double[] { TAU_INIT }, true));
+
+		double[] S = new double[N];
+		VectorWritable SWritable = new VectorWritable();
+
+		SequenceFile.Writer writer = new SequenceFile.Writer(fs, conf, path,
+				Text.class, VectorWritable.class);
+		try {
+			for (int i = start; i < end; i++) {
+				for (int j = 0; j < N; j++) {
+					if (i == j) {
+						S[j] = preference;
+					} else if (drop > 0 && dropped(i, j, seed, drop)) {
+						S[j] = floor;
+					} else {
+						S[j] = similarity(points[i], points[j]);
 					}
-					
 				}
+				SWritable.set(new DenseVector(S, true));
+				writer.append(new Text(i + "\t0\tS"), SWritable);
+
+				for (int l = 0; l < numLevels; l++) {
+					writer.append(new Text(i + "\t" + l + "\tR"), zeroRow);
+					writer.append(new Text(i + "\t" + l + "\tA"), zeroRow);
+				}
+
+				for (int l = 0; l < numLevels; l++) {
+					writer.append(new Text(i + "\t" + l + "\tC"), zero);
+					writer.append(new Text(i + "\t" + l + "\tT"), tau);
+					writer.append(new Text(i + "\t" + l + "\tP"), zero);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+
+	private static void writeLabels(FileSystem fs, Path path, int[] labels) 
+			throws IOException {
+		Writer writer = new OutputStreamWriter(fs.create(path, true), "UTF-8");
+		try {
+			for (int i = 0; i < labels.length; i++) {
+				writer.write(i + "\t" + labels[i] + "\n");
 			}
+		} finally {
+			writer.close();
 		}
-		
-		writer.close();
-		
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new GenerateDataset(), 
+				args);
+		System.exit(res);
 	}
 
 }
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import org.apache.hadoop.mapreduce.Partitioner;
+
+
+/**
+ * <p>
+ * Partitioner for the block ("slice") shuffle mode. The index of a 
+ * {@link HapKey} is a block number in this mode, and blocks are dealt to 
+ * reduce tasks round-robin so that, with one block per reduce task, each 
+ * task owns exactly one contiguous range of targets at every level.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see BlockUtilities
+ * 
+ */
+public class HapBlockPartitioner<V> extends Partitioner<HapKey, V> {
+
+	@Override
+	public int getPartition( HapKey key, V value, int numPartitions ) { 
+		return key.getIndex() % numPartitions;
+	}
+
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+
+/**
+ * <p>
+ * Allocation-free kernels for the dense row and column arithmetic of the 
+ * Hierarchical Affinity Propagation updates.
+ * </p>
+ * 
+ * <p>
+ * Every kernel works on plain <code>double[]</code> slices given by an 
+ * array, an offset and a length, so the same code serves the reducers 
+ * (one row or column per array) and the in-memory engine (rows of a 
+ * row-major matrix). They avoid the allocations and virtual calls of the
+ * former <code>DenseVector</code> arithmetic, with identical results. The
+ * loops are not vectorized: they hold selects and <code>Math.max</code> 
+ * reductions, which the JIT of Java 7 and 8 compiles to scalar code.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+public final class HapKernels {
+
+	private HapKernels() { 
+		;
+	}
+
+
+	/**
+	 * @return the largest <code>a[i] + b[i]</code>, or negative infinity 
+	 * for an empty range
+	 */
+	public static double maxSum( double[] a, int aOff, double[] b, int bOff, 
+			int n ) { 
+		double max = Double.NEGATIVE_INFINITY;
+		for( int i = 0; i < n; i++ ) { 
+			max = Math.max( max, a[aOff + i] + b[bOff + i] );
+		}
+		return max;
+	}
+
+
+	/**
+	 * @return the largest <code>a[i] + b[i]</code> over every i other than
+	 * <code>skip</code>
+	 */
+	public static double maxSumExcept( double[] a, int aOff, double[] b, 
+			int bOff, int n, int skip ) { 
+		return Math.max( maxSum( a, aOff, b, bOff, skip ), 
+				maxSum( a, aOff + skip + 1, b, bOff + skip + 1, n - skip - 1 ) );
+	}
+
+
+	/**
+	 * @return the first index of the largest <code>a[i] + b[i]</code>, or 0
+	 * if no element is larger than negative infinity
+	 */
+	public static int argMaxSum( double[] a, int aOff, double[] b, int bOff, 
+			int n ) { 
+		double max = Double.NEGATIVE_INFINITY;
+		int index = 0;
+		for( int i = 0; i < n; i++ ) { 
+			double sum = a[aOff + i] + b[bOff + i];
+			if( sum > max ) { 
+				max = sum;
+				index = i;
+			}
+		}
+		return index;
+	}
+
+
+	/**
+	 * Value of the best exemplar of a row: the largest 
+	 * <code>a[j] + r[j]</code> over the valid exemplars j 
+	 * (<code>diagA[j] + diagR[j] &gt; 0</code>), or over every j if there are
+	 * no valid exemplars.
+	 */
+	public static double exemplarValue( double[] a, int aOff, double[] r, 
+			int rOff, double[] diagA, double[] diagR, int n ) { 
+		double max = Double.NEGATIVE_INFINITY;
+		double validMax = Double.NEGATIVE_INFINITY;
+		boolean validExist = false;
+		for( int j = 0; j < n; j++ ) { 
+			double sum = a[aOff + j] + r[rOff + j];
+			boolean valid = diagA[j] + diagR[j] > 0;
+			max = Math.max( max, sum );
+			validMax = valid ? Math.max( validMax, sum ) : validMax;
+			validExist |= valid;
+		}
+		return validExist ? validMax : max;
+	}
+
+
+	/**
+	 * Index of the best exemplar of a row: the first index of the largest 
+	 * <code>a[j] + r[j]</code> over the valid exemplars j, or over every j
+	 * if no valid exemplar has a finite value. Columns that are not 
+	 * candidate exemplars, if candidates are given, count as negative 
+	 * infinity, as their messages are not kept.
+	 * 
+	 * @param candidates candidate exemplars by column, or null for every 
+	 * column
+	 * @return the exemplar index, or -1 if no element is larger than 
+	 * negative infinity
+	 */
+	public static int exemplarIndex( double[] a, int aOff, double[] r, 
+			int rOff, boolean[] valid, boolean[] candidates, int n ) { 
+		double max = Double.NEGATIVE_INFINITY;
+		int index = -1;
+		double validMax = Double.NEGATIVE_INFINITY;
+		int validIndex = -1;
+		for( int j = 0; j < n; j++ ) { 
+			double sum = candidates == null || candidates[j] 
+					? a[aOff + j] + r[rOff + j] : Double.NEGATIVE_INFINITY;
+			if( sum > max ) { 
+				max = sum;
+				index = j;
+			}
+			if( valid[j] && sum > validMax ) { 
+				validMax = sum;
+				validIndex = j;
+			}
+		}
+		return validIndex != -1 ? validIndex : index;
+	}
+
+
+	/**
+	 * Index of the best exemplar of a row, as 
+	 * {@link #exemplarIndex(double[], int, double[], int, boolean[], boolean[], int)}, 
+	 * with the valid exemplars given by their diagonal elements 
+	 * (<code>diagA[j] + diagR[j] &gt; 0</code>).
+	 */
+	public static int exemplarIndex( double[] a, int aOff, double[] r, 
+			int rOff, double[] diagA, double[] diagR, boolean[] candidates, 
+			int n ) { 
+		double max = Double.NEGATIVE_INFINITY;
+		int index = -1;
+		double validMax = Double.NEGATIVE_INFINITY;
+		int validIndex = -1;
+		for( int j = 0; j < n; j++ ) { 
+			double sum = candidates == null || candidates[j] 
+					? a[aOff + j] + r[rOff + j] : Double.NEGATIVE_INFINITY;
+			if( sum > max ) { 
+				max = sum;
+				index = j;
+			}
+			if( diagA[j] + diagR[j] > 0 && sum > validMax ) { 
+				validMax = sum;
+				validIndex = j;
+			}
+		}
+		return validIndex != -1 ? validIndex : index;
+	}
+
+
+	/**
+	 * <p>
+	 * Dampened responsibility update of one row, in place:
+	 * <code>r[j] = (1 - lambda) (s[j] + y) + lambda r[j]</code>, where 
+	 * <code>y</code> is <code>yMax</code> at <code>maxIndex</code> and 
+	 * <code>y</code> elsewhere.
+	 * </p>
+	 * 
+	 * @return the largest absolute change of any element
+	 */
+	public static double dampedResponsibility( double[] s, int sOff, 
+			double[] r, int rOff, int n, int maxIndex, double y, double yMax, 
+			double lambda ) { 
+		double delta = damped( s, sOff, r, rOff, maxIndex, y, lambda );
+		delta = Math.max( delta, damped( s, sOff + maxIndex, r, 
+				rOff + maxIndex, 1, yMax, lambda ) );
+		return Math.max( delta, damped( s, sOff + maxIndex + 1, r, 
+				rOff + maxIndex + 1, n - maxIndex - 1, y, lambda ) );
+	}
+
+
+	/**
+	 * @return the sum of the positive elements, except for the element at
+	 * <code>diag</code> which is added as is
+	 */
+	public static double positiveSum( double[] r, int off, int n, int diag ) { 
+		double sum = 0;
+		for( int i = 0; i < n; i++ ) { 
+			double value = r[off + i];
+			sum += i == diag ? value : Math.max( 0, value );
+		}
+		return sum;
+	}
+
+
+	/**
+	 * Add the positive elements of a row segment to the matching running 
+	 * sums, except for the element at <code>diag</code> (if any) which is 
+	 * added as is.
+	 */
+	public static void addPositive( double[] r, int rOff, double[] sums, 
+			int sumsOff, int n, int diag ) { 
+		for( int k = 0; k < n; k++ ) { 
+			double value = r[rOff + k];
+			sums[sumsOff + k] += k == diag ? value : Math.max( 0, value );
+		}
+	}
+
+
+	/**
+	 * <p>
+	 * Dampened availability update of one column, in place:
+	 * <code>a[i] = (1 - lambda) min(0, total - max(0, r[i])) + lambda a[i]
+	 * </code> for i other than <code>diag</code>, and 
+	 * <code>(1 - lambda) (total - r[diag]) + lambda a[diag]</code> on the
+	 * diagonal.
+	 * </p>
+	 * 
+	 * @return the largest absolute change of any element
+	 */
+	public static double dampedAvailability( double[] r, int rOff, 
+			double[] a, int aOff, int n, int diag, double total, 
+			double lambda ) { 
+		double delta = 0;
+		for( int i = 0; i < n; i++ ) { 
+			double rValue = r[rOff + i];
+			double value = i == diag 
+					? total - rValue : Math.min( 0, total - Math.max( 0, rValue ) );
+			double old = a[aOff + i];
+			value = value * ( 1 - lambda ) + old * lambda;
+			delta = Math.max( delta, Math.abs( value - old ) );
+			a[aOff + i] = value;
+		}
+		return delta;
+	}
+
+
+	/**
+	 * Dampened availability update of one row segment of a block of 
+	 * columns, in place, with one total per column; see 
+	 * {@link #dampedAvailability}. The largest change of each column is 
+	 * folded into <code>deltas</code>.
+	 */
+	public static void dampedAvailabilityRow( double[] r, int rOff, 
+			double[] a, int aOff, double[] totals, double[] deltas, 
+			int colOff, int n, int diag, double lambda ) { 
+		for( int k = 0; k < n; k++ ) { 
+			double rValue = r[rOff + k];
+			double total = totals[k];
+			double value = k == diag 
+					? total - rValue : Math.min( 0, total - Math.max( 0, rValue ) );
+			double old = a[aOff + k];
+			value = value * ( 1 - lambda ) + old * lambda;
+			deltas[colOff + k] = Math.max( deltas[colOff + k], 
+					Math.abs( value - old ) );
+			a[aOff + k] = value;
+		}
+	}
+
+
+	/**
+	 * Dampened availability update of a whole row, in place, with one total
+	 * per column; see {@link #dampedAvailability}.
+	 * 
+	 * @return the largest absolute change of any element
+	 */
+	public static double dampedAvailabilityRow( double[] r, int rOff, 
+			double[] a, int aOff, double[] totals, int n, int diag, 
+			double lambda ) { 
+		double delta = 0;
+		for( int k = 0; k < n; k++ ) { 
+			double rValue = r[rOff + k];
+			double total = totals[k];
+			double value = k == diag 
+					? total - rValue : Math.min( 0, total - Math.max( 0, rValue ) );
+			double old = a[aOff + k];
+			value = value * ( 1 - lambda ) + old * lambda;
+			delta = Math.max( delta, Math.abs( value - old ) );
+			a[aOff + k] = value;
+		}
+		return delta;
+	}
+
+
+	/*
+	 * r[j] = (1 - lambda) (s[j] + y) + lambda r[j], returning the largest 
+	 * absolute change.
+	 */
+	private static double damped( double[] s, int sOff, double[] r, int rOff,
+			int n, double y, double lambda ) { 
+		double delta = 0;
+		for( int j = 0; j < n; j++ ) { 
+			double old = r[rOff + j];
+			double value = ( s[sOff + j] + y ) * ( 1 - lambda ) + old * lambda;
+			delta = Math.max( delta, Math.abs( value - old ) );
+			r[rOff + j] = value;
+		}
+		return delta;
+	}
+
+}
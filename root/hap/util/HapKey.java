@@ -0,0 +1,170 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+
+/**
+ * <p>
+ * Binary map output key used by the Hierarchical Affinity Propagation jobs.
+ * </p>
+ * 
+ * <p>
+ * A key identifies a single reducer task by the row (or column) index it is
+ * responsible for and the level of the hierarchy it operates on. It replaces
+ * the tab separated <code>Text</code> key <code>{Index, Level}</code>.
+ * </p>
+ * 
+ * <p>
+ * Serialized form: <code>int index, short level</code> (6 bytes). Keys sort
+ * by index, then level, and may be compared without deserialization by
+ * {@link HapKey.Comparator}.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HapMessage
+ * 
+ */
+public class HapKey implements WritableComparable<HapKey> {
+
+	private int index;
+	private short level;
+
+
+	public HapKey() {
+		;
+	}
+
+
+	public HapKey( int index, int level ) {
+		set( index, level );
+	}
+
+
+	/**
+	 * Set the contents of this key.
+	 *
+	 * @param index row or column index
+	 * @param level level of the hierarchy
+	 */
+	public void set( int index, int level ) {
+		this.index = index;
+		this.level = (short) level;
+	}
+
+
+	public int getIndex() {
+		return index;
+	}
+
+
+	public int getLevel() {
+		return level;
+	}
+
+
+	@Override
+	public void write( DataOutput out ) throws IOException {
+		out.writeInt( index );
+		out.writeShort( level );
+	}
+
+
+	@Override
+	public void readFields( DataInput in ) throws IOException {
+		index = in.readInt();
+		level = in.readShort();
+	}
+
+
+	@Override
+	public int compareTo( HapKey other ) {
+		return compare( index, level, other.index, other.level );
+	}
+
+
+	@Override
+	public boolean equals( Object o ) {
+		if( !( o instanceof HapKey ) ) {
+			return false;
+		}
+		HapKey other = (HapKey) o;
+		return index == other.index && level == other.level;
+	}
+
+
+	@Override
+	public int hashCode() {
+		return index * 31 + level;
+	}
+
+
+	@Override
+	public String toString() {
+		return index + "\t" + level;
+	}
+
+
+	/*
+	 * Order by index, then by level.
+	 */
+	static int compare( int index1, int level1, int index2, int level2 ) {
+		if( index1 != index2 ) {
+			return index1 < index2 ? -1 : 1;
+		}
+		if( level1 != level2 ) {
+			return level1 < level2 ? -1 : 1;
+		}
+		return 0;
+	}
+
+
+	/**
+	 * Raw comparator for {@link HapKey}, comparing the serialized bytes
+	 * directly during the sort and merge phases.
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super( HapKey.class );
+		}
+
+		@Override
+		public int compare( byte[] b1, int s1, int l1,
+				byte[] b2, int s2, int l2 ) {
+			int index1 = readInt( b1, s1 );
+			int index2 = readInt( b2, s2 );
+			short level1 = (short) readUnsignedShort( b1, s1 + 4 );
+			short level2 = (short) readUnsignedShort( b2, s2 + 4 );
+			return HapKey.compare( index1, level1, index2, level2 );
+		}
+	}
+
+	static {
+		WritableComparator.define( HapKey.class, new Comparator() );
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+
+/**
+ * <p>
+ * Partitioner for the element shuffle mode. Indices are cut into the same 
+ * contiguous blocks as in the block ("slice") shuffle mode, and blocks are 
+ * dealt to reduce tasks round-robin, so every level of an index lands on 
+ * the same task and an index is owned by the same task in both modes.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HapBlockPartitioner
+ * @see BlockUtilities
+ * 
+ */
+public class HapKeyPartitioner<V> extends Partitioner<HapKey, V> 
+implements Configurable {
+
+	private Configuration conf;
+
+
+	@Override
+	public int getPartition( HapKey key, V value, int numPartitions ) { 
+		int N = conf.getInt( "matrixN", -1 );
+		int numBlocks = BlockUtilities.getNumBlocks( conf, N, numPartitions );
+		int block = BlockUtilities.blockOf( key.getIndex(), N, numBlocks );
+		return block % numPartitions;
+	}
+
+
+	@Override
+	public void setConf( Configuration conf ) { 
+		this.conf = conf;
+	}
+
+
+	@Override
+	public Configuration getConf() { 
+		return conf;
+	}
+
+}
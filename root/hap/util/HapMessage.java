@@ -0,0 +1,154 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+
+/**
+ * <p>
+ * Binary map output value used by the Hierarchical Affinity Propagation jobs.
+ * </p>
+ * 
+ * <p>
+ * A message carries a single matrix element to a reducer. It replaces the
+ * tab separated <code>Text</code> value
+ * <code>{Index, Level, Matrix ID, Element Value}</code>.
+ * </p>
+ * 
+ * <p>
+ * Serialized form: <code>int index, short level, byte header,
+ * value</code>. The header holds the matrix ID, the single character used
+ * throughout the application (A, R, S, C, T, P), as an offset from 'A' in 
+ * its low five bits, and the {@link Precision} code of the value in its 
+ * high three bits. A message takes 15 bytes in double precision, 11 in 
+ * float and 9 in bfloat16; T, C and P values are always doubles.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HapKey
+ * 
+ */
+public class HapMessage implements Writable {
+
+	private int index;
+	private short level;
+	private byte matrixId;
+	private double value;
+	private Precision precision = Precision.DOUBLE;
+
+
+	public HapMessage() {
+		;
+	}
+
+
+	public HapMessage( int index, int level, char matrixId, double value ) {
+		set( index, level, matrixId, value );
+	}
+
+
+	/**
+	 * Set the contents of this message.
+	 *
+	 * @param index row or column index of the element
+	 * @param level level of the hierarchy the element belongs to
+	 * @param matrixId matrix ID character
+	 * @param value element value
+	 */
+	public void set( int index, int level, char matrixId, double value ) {
+		this.index = index;
+		this.level = (short) level;
+		this.matrixId = (byte) matrixId;
+		this.value = value;
+	}
+
+
+	/**
+	 * Set the precision this message is written in, if it carries an 
+	 * element of S, R or A. Quantized encodings are written as floats.
+	 * 
+	 * @param precision value precision
+	 */
+	public void setPrecision( Precision precision ) {
+		this.precision = precision.isQuantized() ? Precision.FLOAT : precision;
+	}
+
+
+	public int getIndex() {
+		return index;
+	}
+
+
+	public int getLevel() {
+		return level;
+	}
+
+
+	public char getMatrixId() {
+		return (char) matrixId;
+	}
+
+
+	public double getValue() {
+		return value;
+	}
+
+
+	/**
+	 * @return the number of bytes {@link #write(DataOutput)} produces
+	 */
+	public int getSerializedSize() {
+		return 7 + Precision.forMatrix( (char) matrixId, precision, precision )
+				.bytes( 1 );
+	}
+
+
+	@Override
+	public void write( DataOutput out ) throws IOException {
+		out.writeInt( index );
+		out.writeShort( level );
+		Precision encoding = Precision.forMatrix( (char) matrixId, 
+				precision, precision );
+		out.writeByte( encoding.code() << 5 | ( matrixId - 'A' ) );
+		encoding.write( out, value );
+	}
+
+
+	@Override
+	public void readFields( DataInput in ) throws IOException {
+		index = in.readInt();
+		level = in.readShort();
+		int header = in.readUnsignedByte();
+		matrixId = (byte) ( 'A' + ( header & 0x1F ) );
+		value = Precision.forCode( header >>> 5 ).read( in );
+	}
+
+
+	@Override
+	public String toString() {
+		return index + "\t" + level + "\t" + getMatrixId() + "\t" + value;
+	}
+
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.io.Writable;
+
+
+/**
+ * <p>
+ * Binary map output value used by the block ("slice") shuffle mode of the 
+ * Hierarchical Affinity Propagation jobs.
+ * </p>
+ * 
+ * <p>
+ * A slice carries a contiguous run of elements from one source row or 
+ * column, namely the elements destined for a single block of target 
+ * indices. One slice replaces up to one {@link HapMessage} per element.
+ * </p>
+ * 
+ * <p>
+ * Serialized form: <code>int index, short level, byte header, int start, 
+ * int length, values</code>. The header packs the matrix ID and the 
+ * {@link Precision} code of the values like {@link HapMessage} does. The 
+ * values are written and read in bulk through a reusable buffer. Slices of 
+ * S may be quantized; this is used for the rows of the 
+ * {@link SimilarityStore}, which are quantized once and never rewritten.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HapKey
+ * @see BlockUtilities
+ * 
+ */
+public class HapSlice implements Writable {
+
+	private int index;
+	private short level;
+	private byte matrixId;
+	private int start;
+	private int length;
+	private double[] values = new double[0];
+	private Precision precision = Precision.DOUBLE;
+	private Precision similarityPrecision = Precision.DOUBLE;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+
+	public HapSlice() {
+		;
+	}
+
+
+	/**
+	 * Set the contents of this slice. The values are referenced, not copied,
+	 * so the caller must not modify them until the slice has been written.
+	 * 
+	 * @param index source row or column index
+	 * @param level level of the hierarchy the elements belong to
+	 * @param matrixId matrix ID character
+	 * @param start first target index covered by this slice
+	 * @param values element values
+	 * @param length number of values to use
+	 */
+	public void set( int index, int level, char matrixId, int start, 
+			double[] values, int length ) { 
+		this.index = index;
+		this.level = (short) level;
+		this.matrixId = (byte) matrixId;
+		this.start = start;
+		this.values = values;
+		this.length = length;
+	}
+
+
+	/**
+	 * Set the precision this slice is written in, if it carries elements of
+	 * S, R or A. Quantized encodings are written as floats.
+	 * 
+	 * @param precision value precision
+	 */
+	public void setPrecision( Precision precision ) {
+		Precision p = precision.isQuantized() ? Precision.FLOAT : precision;
+		setPrecision( p, p );
+	}
+
+
+	/**
+	 * Set the encoding this slice is written in, allowing slices of S to be
+	 * quantized.
+	 * 
+	 * @param precision encoding of R, A and single values
+	 * @param similarityPrecision encoding of slices of S, possibly quantized
+	 */
+	public void setPrecision( Precision precision, 
+			Precision similarityPrecision ) {
+		this.precision = precision;
+		this.similarityPrecision = similarityPrecision;
+	}
+
+
+	public int getIndex() {
+		return index;
+	}
+
+
+	public int getLevel() {
+		return level;
+	}
+
+
+	public char getMatrixId() {
+		return (char) matrixId;
+	}
+
+
+	public int getStart() {
+		return start;
+	}
+
+
+	public int getLength() {
+		return length;
+	}
+
+
+	/**
+	 * Access the backing value array. Only the first {@link #getLength()} 
+	 * entries are meaningful, and the array is overwritten by the next
+	 * call to {@link #readFields(DataInput)}.
+	 * 
+	 * @return the backing value array
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+
+	/**
+	 * @return the number of bytes {@link #write(DataOutput)} produces
+	 */
+	public int getSerializedSize() {
+		return 15 + Precision.forMatrix( (char) matrixId, precision, 
+				similarityPrecision ).bytes( length );
+	}
+
+
+	@Override
+	public void write( DataOutput out ) throws IOException {
+		out.writeInt( index );
+		out.writeShort( level );
+		Precision encoding = Precision.forMatrix( (char) matrixId, 
+				precision, similarityPrecision );
+		out.writeByte( encoding.code() << 5 | ( matrixId - 'A' ) );
+		out.writeInt( start );
+		out.writeInt( length );
+
+		ensureBuffer( encoding.bytes( length ) );
+		encoding.encode( values, 0, length, buffer );
+		out.write( buffer.array(), 0, buffer.position() );
+	}
+
+
+	@Override
+	public void readFields( DataInput in ) throws IOException {
+		index = in.readInt();
+		level = in.readShort();
+		int header = in.readUnsignedByte();
+		matrixId = (byte) ( 'A' + ( header & 0x1F ) );
+		Precision encoding = Precision.forCode( header >>> 5 );
+		start = in.readInt();
+		length = in.readInt();
+
+		if( values.length < length ) { 
+			values = new double[length];
+		}
+		int numBytes = encoding.bytes( length );
+		ensureBuffer( numBytes );
+		in.readFully( buffer.array(), 0, numBytes );
+		encoding.decode( buffer, values, 0, length );
+	}
+
+
+	/*
+	 * Grow the serialization buffer to hold the given number of bytes.
+	 */
+	private void ensureBuffer( int numBytes ) { 
+		if( buffer.capacity() < numBytes ) { 
+			buffer = ByteBuffer.allocate( numBytes );
+		}
+		buffer.clear();
+	}
+
+
+	@Override
+	public String toString() {
+		return index + "\t" + level + "\t" + getMatrixId() + "\t" + start
+				+ "\t" + length;
+	}
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableComparator;
+
+
+/**
+ * <p>
+ * Map output key of the streaming Responsibility job, a {@link HapKey} 
+ * that also carries the column and matrix ID of the message it is sent 
+ * with, as a secondary sort key.
+ * </p>
+ * 
+ * <p>
+ * Keys sort by index and level, then by column and matrix ID, and are 
+ * grouped by index and level only (with {@link HapKey.Comparator}) and 
+ * partitioned by {@link HapKeyPartitioner}. A reducer then receives the 
+ * messages of its row column by column, every element of a column 
+ * together, and can fold them into running maxima and sums as they 
+ * arrive instead of rebuilding the row in full first.
+ * </p>
+ * 
+ * <p>
+ * Serialized form: <code>int index, short level, int column, byte matrix
+ * ID</code> (11 bytes). The column and matrix ID are repeated from the 
+ * message, so every message grows by 5 bytes in the shuffle.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HapMessage
+ * 
+ */
+public class HapSortKey extends HapKey {
+
+	/** Configuration key enabling the streaming reducers. */
+	public static final String STREAMING_KEY = "hap.streaming";
+
+	/** Serialized size of a key. */
+	public static final int BYTES = 11;
+
+	private int element;
+	private byte matrixId;
+
+
+	public HapSortKey() {
+		;
+	}
+
+
+	/**
+	 * @return whether the reducers of this job stream their input
+	 */
+	public static boolean isEnabled( Configuration conf ) { 
+		return conf.getBoolean( STREAMING_KEY, false );
+	}
+
+
+	/**
+	 * Set the secondary sort key to the element a message carries.
+	 *
+	 * @param message message this key is written with
+	 */
+	public void setElement( HapMessage message ) {
+		this.element = message.getIndex();
+		this.matrixId = (byte) message.getMatrixId();
+	}
+
+
+	public int getElement() {
+		return element;
+	}
+
+
+	public char getMatrixId() {
+		return (char) matrixId;
+	}
+
+
+	@Override
+	public void write( DataOutput out ) throws IOException {
+		super.write( out );
+		out.writeInt( element );
+		out.writeByte( matrixId );
+	}
+
+
+	@Override
+	public void readFields( DataInput in ) throws IOException {
+		super.readFields( in );
+		element = in.readInt();
+		matrixId = in.readByte();
+	}
+
+
+	@Override
+	public int compareTo( HapKey other ) {
+		int result = super.compareTo( other );
+		if( result != 0 || !( other instanceof HapSortKey ) ) {
+			return result;
+		}
+		HapSortKey sortKey = (HapSortKey) other;
+		return compare( element, matrixId, sortKey.element, sortKey.matrixId );
+	}
+
+
+	@Override
+	public boolean equals( Object o ) {
+		if( !( o instanceof HapSortKey ) || !super.equals( o ) ) {
+			return false;
+		}
+		HapSortKey other = (HapSortKey) o;
+		return element == other.element && matrixId == other.matrixId;
+	}
+
+
+	@Override
+	public int hashCode() {
+		return super.hashCode();
+	}
+
+
+	@Override
+	public String toString() {
+		return super.toString() + "\t" + element + "\t" + getMatrixId();
+	}
+
+
+	/*
+	 * Order by column, then by matrix ID.
+	 */
+	private static int compare( int element1, byte id1, int element2, 
+			byte id2 ) {
+		if( element1 != element2 ) {
+			return element1 < element2 ? -1 : 1;
+		}
+		return id1 - id2;
+	}
+
+
+	/**
+	 * Raw sort comparator for {@link HapSortKey}. Grouping uses 
+	 * {@link HapKey.Comparator}, which reads the first 6 bytes only.
+	 */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super( HapSortKey.class );
+		}
+
+		@Override
+		public int compare( byte[] b1, int s1, int l1,
+				byte[] b2, int s2, int l2 ) {
+			int result = HapKey.compare( 
+					readInt( b1, s1 ), 
+					(short) readUnsignedShort( b1, s1 + 4 ), 
+					readInt( b2, s2 ), 
+					(short) readUnsignedShort( b2, s2 + 4 ) );
+			if( result != 0 ) {
+				return result;
+			}
+			return HapSortKey.compare( readInt( b1, s1 + 6 ), b1[s1 + 10], 
+					readInt( b2, s2 + 6 ), b2[s2 + 10] );
+		}
+	}
+
+	static {
+		WritableComparator.define( HapSortKey.class, new Comparator() );
+	}
+
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+
+/**
+ * <p>
+ * Counters describing where the volume and time of the Hierarchical 
+ * Affinity Propagation jobs go. They are collected by the calling job 
+ * after every step and written to a {@link Timeline}.
+ * </p>
+ * 
+ * <p>
+ * The mappers count the records and bytes they emit per matrix ID 
+ * (A, R, S, C, T, P), and the Availability reducers count the diagonal 
+ * side file records (a, r). Byte counts are serialized sizes before any 
+ * compression. The reducers count, per level, the rows or columns they 
+ * updated together with the sum of the largest message change of each, 
+ * and the net similarity of the exemplar assignment they see. Every 
+ * reduce task also adds its wall time and peak heap usage.
+ * </p>
+ * 
+ * <p>
+ * Counters are summed across tasks, so real values are kept in fixed 
+ * point, and per-task values (time, heap) are reported as totals and 
+ * means over the tasks.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see Timeline
+ * @see Convergence
+ * 
+ */
+public class Instrumentation {
+
+	/** Counter group holding the records emitted per matrix ID. */
+	public static final String RECORDS_GROUP = "HAP Emitted Records";
+
+	/** Counter group holding the bytes emitted per matrix ID. */
+	public static final String BYTES_GROUP = "HAP Emitted Bytes";
+
+	/** Counter group holding the per level statistics. */
+	public static final String LEVELS_GROUP = "HAP Level Statistics";
+
+	/** Counter group holding the reduce task statistics. */
+	public static final String TASKS_GROUP = "HAP Reduce Tasks";
+
+	/** Matrix IDs counted; lower case IDs are the diagonal side file. */
+	public static final String MATRIX_IDS = "ARSCTPar";
+
+	// Real values are stored in counters in units of 1 / VALUE_SCALE.
+	private static final double VALUE_SCALE = 1e6;
+
+	// Serialized size of a HapKey.
+	private static final int KEY_BYTES = 6;
+
+
+	/**
+	 * <p>
+	 * Task-local tally of emitted records, flushed to the counters once at 
+	 * the end of the task to keep counter updates out of the inner loops.
+	 * </p>
+	 */
+	public static class Emitted { 
+
+		private final long[] records = new long[MATRIX_IDS.length()];
+		private final long[] bytes = new long[MATRIX_IDS.length()];
+
+		public void record( char matrixId, long numBytes ) { 
+			int i = MATRIX_IDS.indexOf( matrixId );
+			if( i >= 0 ) { 
+				records[i]++;
+				bytes[i] += numBytes;
+			}
+		}
+
+		public void record( HapMessage message ) { 
+			record( message.getMatrixId(), 
+					KEY_BYTES + message.getSerializedSize() );
+		}
+
+		public void record( HapSlice slice ) { 
+			record( slice.getMatrixId(), 
+					KEY_BYTES + slice.getSerializedSize() );
+		}
+
+		public void flush( TaskInputOutputContext<?, ?, ?, ?> context ) { 
+			for( int i = 0; i < records.length; i++ ) { 
+				if( records[i] != 0 ) { 
+					String id = String.valueOf( MATRIX_IDS.charAt( i ) );
+					context.getCounter( RECORDS_GROUP, id ).increment( records[i] );
+					context.getCounter( BYTES_GROUP, id ).increment( bytes[i] );
+					records[i] = 0;
+					bytes[i] = 0;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Record the update of one row or column.
+	 * 
+	 * @param context reduce task context
+	 * @param level level of the hierarchy
+	 * @param delta largest absolute change of the update
+	 */
+	public static void recordUpdate( 
+			TaskInputOutputContext<?, ?, ?, ?> context, int level, 
+			double delta ) { 
+		context.getCounter( LEVELS_GROUP, "Level " + level + " Updates" )
+				.increment( 1 );
+		context.getCounter( LEVELS_GROUP, "Level " + level + " Delta Sum" )
+				.increment( toFixed( delta ) );
+	}
+
+
+	/**
+	 * Record the similarity of one point to its exemplar.
+	 * 
+	 * @param context reduce task context
+	 * @param level level of the hierarchy
+	 * @param similarity similarity of the point to its exemplar
+	 */
+	public static void recordSimilarity( 
+			TaskInputOutputContext<?, ?, ?, ?> context, int level, 
+			double similarity ) { 
+		context.getCounter( LEVELS_GROUP, 
+				"Level " + level + " Net Similarity" )
+				.increment( toFixed( similarity ) );
+	}
+
+
+	/**
+	 * Mark the start of a reduce task: reset the peak heap usage, so that
+	 * {@link #recordTask} sees the peak of this task alone when several 
+	 * tasks share a JVM (JVM reuse, or the local job runner).
+	 * 
+	 * @return the start time of the task
+	 */
+	public static long startTask() { 
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) { 
+			if( pool.getType() == MemoryType.HEAP ) { 
+				pool.resetPeakUsage();
+			}
+		}
+		return System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Record the wall time and peak heap usage of a finished reduce task.
+	 * 
+	 * @param context reduce task context
+	 * @param startMillis time the task started, from {@link #startTask}
+	 */
+	public static void recordTask( 
+			TaskInputOutputContext<?, ?, ?, ?> context, long startMillis ) { 
+
+		long peakHeap = 0;
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) { 
+			if( pool.getType() == MemoryType.HEAP ) { 
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		context.getCounter( TASKS_GROUP, "Tasks" ).increment( 1 );
+		context.getCounter( TASKS_GROUP, "Wall Millis" ).increment( 
+				System.currentTimeMillis() - startMillis );
+		context.getCounter( TASKS_GROUP, "Peak Heap Bytes" )
+				.increment( peakHeap );
+	}
+
+
+	/**
+	 * @return the records a job emitted for a matrix ID
+	 */
+	public static long getRecords( Counters counters, char matrixId ) { 
+		return get( counters, RECORDS_GROUP, String.valueOf( matrixId ) );
+	}
+
+
+	/**
+	 * @return the bytes a job emitted for a matrix ID
+	 */
+	public static long getBytes( Counters counters, char matrixId ) { 
+		return get( counters, BYTES_GROUP, String.valueOf( matrixId ) );
+	}
+
+
+	/**
+	 * @return the rows or columns a job updated at a level
+	 */
+	public static long getUpdates( Counters counters, int level ) { 
+		return get( counters, LEVELS_GROUP, "Level " + level + " Updates" );
+	}
+
+
+	/**
+	 * @return the mean of the largest message change of every row or 
+	 * column a job updated at a level
+	 */
+	public static double getMeanDelta( Counters counters, int level ) { 
+		long updates = getUpdates( counters, level );
+		return updates == 0 ? 0 : get( counters, LEVELS_GROUP, 
+				"Level " + level + " Delta Sum" ) / VALUE_SCALE / updates;
+	}
+
+
+	/**
+	 * @return the net similarity a job saw at a level
+	 */
+	public static double getNetSimilarity( Counters counters, int level ) { 
+		return get( counters, LEVELS_GROUP, 
+				"Level " + level + " Net Similarity" ) / VALUE_SCALE;
+	}
+
+
+	/**
+	 * @return the number of reduce tasks of a job
+	 */
+	public static long getTasks( Counters counters ) { 
+		return get( counters, TASKS_GROUP, "Tasks" );
+	}
+
+
+	/**
+	 * @return the total wall time of the reduce tasks of a job
+	 */
+	public static long getTaskMillis( Counters counters ) { 
+		return get( counters, TASKS_GROUP, "Wall Millis" );
+	}
+
+
+	/**
+	 * @return the number of records spilled to disk by the map and reduce
+	 * tasks of a job
+	 */
+	public static long getSpilledRecords( Counters counters ) { 
+		return Compression.getTaskCounter( counters, "SPILLED_RECORDS" );
+	}
+
+
+	/**
+	 * @return the mean peak heap usage of the reduce tasks of a job
+	 */
+	public static long getMeanPeakHeap( Counters counters ) { 
+		long tasks = getTasks( counters );
+		return tasks == 0 ? 0 
+				: get( counters, TASKS_GROUP, "Peak Heap Bytes" ) / tasks;
+	}
+
+
+	/*
+	 * Convert a real value to fixed point. Math.round saturates at the long
+	 * range and maps NaN to zero.
+	 */
+	private static long toFixed( double value ) { 
+		return Math.round( value * VALUE_SCALE );
+	}
+
+
+	private static long get( Counters counters, String group, String name ) { 
+		Counter counter = counters.findCounter( group, name );
+		return counter == null ? 0 : counter.getValue();
+	}
+
+}
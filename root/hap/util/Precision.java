@@ -0,0 +1,424 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Precision in which the Hierarchical Affinity Propagation jobs store and
+ * ship the S, R and A matrices.
+ * </p>
+ * 
+ * <p>
+ * Exemplar decisions only depend on the order of sums of matrix elements,
+ * which is robust to much lower precision than double. Values are therefore
+ * stored and shuffled as 64, 32 or 16 bit (bfloat16: the upper half of a 
+ * float) values, while every computation inside the reducers still 
+ * accumulates in double. The scalar T, C and P values and the diagonals 
+ * side file always stay in double precision.
+ * </p>
+ * 
+ * <p>
+ * The rows of S kept in the {@link SimilarityStore} may in addition be 
+ * linearly quantized to 8 or 16 bit codes: each row is stored as a double 
+ * offset and scale followed by one code per value, 
+ * <code>value = offset + code * scale</code>. The highest code is reserved
+ * for negative infinity. S is only quantized there, since it is written 
+ * once; S shuffled between the iteration jobs would be requantized on a 
+ * different grid every time.
+ * </p>
+ * 
+ * <p>
+ * Map output values ({@link HapMessage}, {@link HapSlice}) record their 
+ * encoding in the serialized form, so readers need no configuration. The
+ * R and A vectors written between jobs use the float format of 
+ * {@link VectorWritable} for both reduced precisions, rounded to bfloat16 
+ * where requested; Mahout has no 16 bit vector format.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see HapMessage
+ * @see HapSlice
+ * 
+ */
+public enum Precision {
+
+	DOUBLE, FLOAT, BFLOAT16, QUANTIZED8, QUANTIZED16;
+
+	/** Configuration key holding the storage precision. */
+	public static final String PRECISION_KEY = "hap.precision";
+
+	/** Configuration key holding the number of quantization bits of S. */
+	public static final String QUANTIZATION_KEY = "hap.precision.quantizeS";
+
+
+	/**
+	 * Validate the precision options of a job and store them in its 
+	 * configuration.
+	 * 
+	 * @param conf job configuration
+	 * @param precision one of double, float, bfloat16
+	 * @param quantizationBits 0 (no quantization), 8 or 16
+	 */
+	public static void configure( Configuration conf, String precision, 
+			int quantizationBits ) { 
+		Precision p = parse( precision );
+		if( p == QUANTIZED8 || p == QUANTIZED16 ) { 
+			throw new IllegalArgumentException( "Invalid precision \'" 
+					+ precision + "\'. Use double, float or bfloat16." );
+		}
+		if( quantizationBits != 0 && quantizationBits != 8 
+				&& quantizationBits != 16 ) { 
+			throw new IllegalArgumentException( "Invalid number of "
+					+ "quantization bits \'" + quantizationBits 
+					+ "\'. Use 0, 8 or 16." );
+		}
+		conf.set( PRECISION_KEY, p.name() );
+		conf.setInt( QUANTIZATION_KEY, quantizationBits );
+	}
+
+
+	/**
+	 * @return the precision of R, A and single values of a job
+	 */
+	public static Precision get( Configuration conf ) { 
+		return parse( conf.get( PRECISION_KEY, DOUBLE.name() ) );
+	}
+
+
+	/**
+	 * @return the encoding of the rows of the similarity store of a job
+	 */
+	public static Precision getSimilarity( Configuration conf ) { 
+		switch( conf.getInt( QUANTIZATION_KEY, 0 ) ) { 
+		case 8:
+			return QUANTIZED8;
+		case 16:
+			return QUANTIZED16;
+		default:
+			return get( conf );
+		}
+	}
+
+
+	/**
+	 * Select the encoding of the values of a matrix.
+	 * 
+	 * @param matrixId matrix ID character
+	 * @param precision precision of R and A
+	 * @param similarityPrecision encoding of S
+	 * @return the encoding to use; double for the scalar matrices
+	 */
+	public static Precision forMatrix( char matrixId, Precision precision, 
+			Precision similarityPrecision ) { 
+		switch( matrixId ) { 
+		case 'S':
+			return similarityPrecision;
+		case 'A':
+		case 'R':
+			return precision;
+		default:
+			return DOUBLE;
+		}
+	}
+
+
+	/**
+	 * @return the precision with the given serialized code
+	 */
+	public static Precision forCode( int code ) { 
+		Precision[] values = values();
+		if( code < 0 || code >= values.length ) { 
+			throw new IllegalStateException( "Unknown precision code " + code );
+		}
+		return values[code];
+	}
+
+
+	/**
+	 * @return the serialized code of this precision
+	 */
+	public int code() { 
+		return ordinal();
+	}
+
+
+	/**
+	 * @return whether this is a quantized encoding, which only applies to 
+	 * runs of values
+	 */
+	public boolean isQuantized() { 
+		return this == QUANTIZED8 || this == QUANTIZED16;
+	}
+
+
+	/**
+	 * @return the number of bytes taken by <code>n</code> encoded values
+	 */
+	public int bytes( int n ) { 
+		switch( this ) { 
+		case FLOAT:
+			return 4 * n;
+		case BFLOAT16:
+			return 2 * n;
+		case QUANTIZED8:
+			return 16 + n;
+		case QUANTIZED16:
+			return 16 + 2 * n;
+		default:
+			return 8 * n;
+		}
+	}
+
+
+	/**
+	 * @return the value a single value is stored as in this precision
+	 */
+	public double round( double value ) { 
+		switch( this ) { 
+		case FLOAT:
+			return (float) value;
+		case BFLOAT16:
+			return fromBfloat16( toBfloat16( value ) );
+		default:
+			return value;
+		}
+	}
+
+
+	/**
+	 * Write a single value. Quantized encodings apply to runs of values 
+	 * only, and write single values as floats.
+	 */
+	public void write( DataOutput out, double value ) throws IOException { 
+		switch( this ) { 
+		case DOUBLE:
+			out.writeDouble( value );
+			break;
+		case BFLOAT16:
+			out.writeShort( toBfloat16( value ) );
+			break;
+		default:
+			out.writeFloat( (float) value );
+		}
+	}
+
+
+	/**
+	 * Read a single value written by {@link #write(DataOutput, double)}.
+	 */
+	public double read( DataInput in ) throws IOException { 
+		switch( this ) { 
+		case DOUBLE:
+			return in.readDouble();
+		case BFLOAT16:
+			return fromBfloat16( in.readShort() );
+		default:
+			return in.readFloat();
+		}
+	}
+
+
+	/**
+	 * Encode a run of values into a buffer holding at least 
+	 * {@link #bytes(int)} remaining bytes.
+	 */
+	public void encode( double[] values, int off, int n, ByteBuffer out ) { 
+		switch( this ) { 
+		case DOUBLE:
+			out.asDoubleBuffer().put( values, off, n );
+			out.position( out.position() + 8 * n );
+			break;
+		case FLOAT:
+			for( int i = off; i < off + n; i++ ) { 
+				out.putFloat( (float) values[i] );
+			}
+			break;
+		case BFLOAT16:
+			for( int i = off; i < off + n; i++ ) { 
+				out.putShort( toBfloat16( values[i] ) );
+			}
+			break;
+		default:
+			quantize( values, off, n, out );
+		}
+	}
+
+
+	/**
+	 * Decode a run of values written by 
+	 * {@link #encode(double[], int, int, ByteBuffer)}.
+	 */
+	public void decode( ByteBuffer in, double[] values, int off, int n ) { 
+		switch( this ) { 
+		case DOUBLE:
+			in.asDoubleBuffer().get( values, off, n );
+			in.position( in.position() + 8 * n );
+			break;
+		case FLOAT:
+			for( int i = off; i < off + n; i++ ) { 
+				values[i] = in.getFloat();
+			}
+			break;
+		case BFLOAT16:
+			for( int i = off; i < off + n; i++ ) { 
+				values[i] = fromBfloat16( in.getShort() );
+			}
+			break;
+		default:
+			dequantize( in, values, off, n );
+		}
+	}
+
+
+	/**
+	 * Wrap a vector to be written between jobs in this precision. Values are
+	 * rounded in place to bfloat16 where requested.
+	 * 
+	 * @param values vector contents, referenced by the returned writable
+	 * @return the writable to output
+	 */
+	public VectorWritable writable( double[] values ) { 
+		if( this == BFLOAT16 ) { 
+			for( int i = 0; i < values.length; i++ ) { 
+				values[i] = round( values[i] );
+			}
+		}
+		VectorWritable writable = new VectorWritable( 
+				new DenseVector( values, true ) );
+		writable.setWritesLaxPrecision( this != DOUBLE );
+		return writable;
+	}
+
+
+	/**
+	 * Wrap the elements of a sparse vector to be written between jobs in 
+	 * this precision; see {@link SparseEdges}. Zero values are not stored.
+	 * 
+	 * @param values element values
+	 * @param indices element indices, in ascending order
+	 * @param size size of the vector
+	 * @return the writable to output
+	 */
+	public VectorWritable writable( double[] values, int[] indices, 
+			int size ) { 
+		Vector vector = new SequentialAccessSparseVector( size, 
+				indices.length );
+		for( int i = 0; i < indices.length; i++ ) { 
+			vector.setQuick( indices[i], round( values[i] ) );
+		}
+		VectorWritable writable = new VectorWritable( vector );
+		writable.setWritesLaxPrecision( this != DOUBLE );
+		return writable;
+	}
+
+
+	/*
+	 * Round a value to the nearest bfloat16, ties to even.
+	 */
+	private static short toBfloat16( double value ) { 
+		int bits = Float.floatToRawIntBits( (float) value );
+		if( Float.isNaN( (float) value ) ) { 
+			return (short) 0x7FC0;
+		}
+		bits += 0x7FFF + ( ( bits >>> 16 ) & 1 );
+		return (short) ( bits >>> 16 );
+	}
+
+
+	private static double fromBfloat16( short value ) { 
+		return Float.intBitsToFloat( value << 16 );
+	}
+
+
+	/*
+	 * Write the offset and scale of a run, followed by one code per value.
+	 */
+	private void quantize( double[] values, int off, int n, ByteBuffer out ) { 
+
+		int maxCode = this == QUANTIZED8 ? 0xFE : 0xFFFE;
+
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for( int i = off; i < off + n; i++ ) { 
+			double v = values[i];
+			if( v != Double.NEGATIVE_INFINITY ) { 
+				min = Math.min( min, v );
+				max = Math.max( max, v );
+			}
+		}
+		if( min > max ) { 
+			min = max = 0;
+		}
+
+		double scale = ( max - min ) / maxCode;
+		out.putDouble( min );
+		out.putDouble( scale );
+
+		for( int i = off; i < off + n; i++ ) { 
+			double v = values[i];
+			int code = v == Double.NEGATIVE_INFINITY ? maxCode + 1 
+					: scale == 0 ? 0 
+					: (int) Math.round( ( v - min ) / scale );
+			if( this == QUANTIZED8 ) { 
+				out.put( (byte) code );
+			} else { 
+				out.putShort( (short) code );
+			}
+		}
+	}
+
+
+	private void dequantize( ByteBuffer in, double[] values, int off, int n ) { 
+
+		int maxCode = this == QUANTIZED8 ? 0xFE : 0xFFFE;
+		double min = in.getDouble();
+		double scale = in.getDouble();
+
+		for( int i = off; i < off + n; i++ ) { 
+			int code = this == QUANTIZED8 
+					? in.get() & 0xFF : in.getShort() & 0xFFFF;
+			values[i] = code > maxCode ? Double.NEGATIVE_INFINITY 
+					: min + code * scale;
+		}
+	}
+
+
+	private static Precision parse( String name ) { 
+		try { 
+			return valueOf( name.trim().toUpperCase() );
+		} catch( IllegalArgumentException e ) { 
+			throw new IllegalArgumentException( "Invalid precision \'" 
+					+ name + "\'. Use double, float or bfloat16." );
+		}
+	}
+
+}
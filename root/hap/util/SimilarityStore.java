@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+
+/**
+ * <p>
+ * Read access to the partitioned similarity store.
+ * </p>
+ * 
+ * <p>
+ * The similarity matrix never changes once created, so instead of being 
+ * shuffled to the Responsibility reducers in every iteration it may be 
+ * written once by the {@link root.hap.similarity.SimilarityStoreDriver}: 
+ * one file per reduce task, holding exactly the rows of S owned by that task
+ * in ascending order. Each reducer then streams its own file alongside its 
+ * (equally ordered) input keys.
+ * </p>
+ * 
+ * <p>
+ * <code>Store key [IntWritable]:</code> Row Number<br />
+ * <code>Store value [HapSlice]:</code> the corresponding row of S, in the
+ * encoding of {@link Precision#getSimilarity(Configuration)}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+public class SimilarityStore {
+
+	/** Configuration key holding the store directory, if one is used. */
+	public static final String PATH_KEY = "hap.similarity.path";
+
+	private final SequenceFile.Reader reader;
+	private final IntWritable key = new IntWritable( -1 );
+	private final HapSlice value = new HapSlice();
+	private boolean exhausted = false;
+
+
+	private SimilarityStore( SequenceFile.Reader reader ) { 
+		this.reader = reader;
+	}
+
+
+	/**
+	 * @return whether the similarity store is used by this job
+	 */
+	public static boolean isEnabled( Configuration conf ) { 
+		return conf.get( PATH_KEY ) != null;
+	}
+
+
+	/**
+	 * Open the store partition belonging to the calling reduce task.
+	 * 
+	 * @param context reduce task context
+	 * @return the opened store, or null if the store is not in use
+	 */
+	public static SimilarityStore open( TaskAttemptContext context ) 
+			throws IOException { 
+
+		Configuration conf = context.getConfiguration();
+		if( !isEnabled( conf ) ) { 
+			return null;
+		}
+
+		int partition = context.getTaskAttemptID().getTaskID().getId();
+		Path path = new Path( conf.get( PATH_KEY ), 
+				String.format( "part-r-%05d", partition ) );
+		FileSystem fs = path.getFileSystem( conf );
+
+		if( !fs.exists( path ) ) { 
+			throw new IllegalStateException( "Similarity store partition " 
+					+ path + " does not exist. The store must be built with "
+					+ "the same number of reduce tasks as the HAP jobs." );
+		}
+
+		return new SimilarityStore( new SequenceFile.Reader( fs, path, conf ) );
+	}
+
+
+	/**
+	 * Access a row of S. Rows must be requested in non-decreasing order, 
+	 * and the returned array is only valid until the next distinct row is
+	 * requested.
+	 * 
+	 * @param index row number
+	 * @return the requested row of S
+	 */
+	public double[] getRow( int index ) throws IOException { 
+		while( !exhausted && key.get() < index ) { 
+			exhausted = !reader.next( key, value );
+		}
+		if( exhausted || key.get() != index ) { 
+			throw new IllegalStateException( "Row " + index + " is not in this "
+					+ "similarity store partition. The store must be built "
+					+ "with the same number of reduce tasks and blocks as the "
+					+ "HAP jobs." );
+		}
+		return value.getValues();
+	}
+
+
+	public void close() throws IOException { 
+		reader.close();
+	}
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+
+
+/**
+ * <p>
+ * Sparse similarity matrices, holding only the edges of a k-nearest-
+ * neighbour graph and the diagonal.
+ * </p>
+ * 
+ * <p>
+ * In sparse mode every S, R and A record is a sparse vector. The elements 
+ * of S present in a row or column are its edges; every other element of S
+ * is taken to be negative infinity, so that its responsibility and 
+ * availability never take part in any maximum or positive sum and need 
+ * not be stored at all. Mappers emit only the non-zero elements of each 
+ * record, and reducers work on compact arrays of one element per edge, so
+ * memory, shuffle and compute scale with the number of edges instead of 
+ * N^2.
+ * </p>
+ * 
+ * <p>
+ * Zero elements are not stored by sparse vectors. A missing R or A element
+ * on an edge is zero, but S defines the edges, so a zero similarity is 
+ * stored as {@link #ZERO} instead.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ */
+public final class SparseEdges {
+
+	/** Configuration key enabling sparse mode. */
+	public static final String SPARSE_KEY = "hap.sparse";
+
+	/** 
+	 * Stored value of a zero similarity: the smallest normal float, exact 
+	 * in every {@link Precision}. 
+	 */
+	public static final double ZERO = -Float.MIN_NORMAL;
+
+
+	private SparseEdges() { 
+		;
+	}
+
+
+	/**
+	 * @return whether the similarity matrix of this job is sparse
+	 */
+	public static boolean isEnabled( Configuration conf ) { 
+		return conf.getBoolean( SPARSE_KEY, false );
+	}
+
+
+	/**
+	 * @return the value to store for a similarity on an edge
+	 */
+	public static double encode( double similarity ) { 
+		return similarity == 0 ? ZERO : similarity;
+	}
+
+
+	/**
+	 * <p>
+	 * The elements of one row or column of a reduce task, gathered from 
+	 * its messages into compact arrays of one element per edge.
+	 * </p>
+	 * 
+	 * <p>
+	 * Messages arrive in no particular order, so they are buffered until 
+	 * {@link #build(int)} has found the edges. Each message is filed under
+	 * a target, a small number chosen by the reducer for each array it 
+	 * rebuilds (R, A, S, ...). A gatherer is reused for every key of a task.
+	 * </p>
+	 */
+	public static final class Row { 
+
+		private final int[] slots;
+
+		private int[] indices = new int[0];
+
+		private byte[] messageTargets = new byte[64];
+		private int[] messageIndices = new int[64];
+		private double[] messageValues = new double[64];
+		private int messages;
+
+
+		/**
+		 * @param N size of the dataset
+		 */
+		public Row( int N ) { 
+			slots = new int[N];
+			Arrays.fill( slots, -1 );
+		}
+
+
+		/**
+		 * Forget the messages and edges of the previous key.
+		 */
+		public void clear() { 
+			for( int index : indices ) { 
+				slots[index] = -1;
+			}
+			indices = new int[0];
+			messages = 0;
+		}
+
+
+		/**
+		 * Buffer the value of one element.
+		 * 
+		 * @param target array the element belongs to
+		 * @param index row or column index of the element
+		 * @param value element value
+		 */
+		public void add( int target, int index, double value ) { 
+			if( messages == messageIndices.length ) { 
+				int capacity = 2 * messages;
+				messageTargets = Arrays.copyOf( messageTargets, capacity );
+				messageIndices = Arrays.copyOf( messageIndices, capacity );
+				messageValues = Arrays.copyOf( messageValues, capacity );
+			}
+			messageTargets[messages] = (byte) target;
+			messageIndices[messages] = index;
+			messageValues[messages] = value;
+			messages++;
+		}
+
+
+		/**
+		 * Take the indices of the elements of one target, in ascending 
+		 * order, as the edges.
+		 * 
+		 * @param target array defining the edges, normally S
+		 * @return the number of edges
+		 */
+		public int build( int target ) { 
+			int size = 0;
+			int[] found = new int[16];
+			for( int m = 0; m < messages; m++ ) { 
+				int index = messageIndices[m];
+				if( messageTargets[m] != target || slots[index] != -1 ) { 
+					continue;
+				}
+				if( size == found.length ) { 
+					found = Arrays.copyOf( found, 2 * size );
+				}
+				slots[index] = 0;
+				found[size++] = index;
+			}
+			indices = Arrays.copyOf( found, size );
+			Arrays.sort( indices );
+			for( int s = 0; s < size; s++ ) { 
+				slots[indices[s]] = s;
+			}
+			return size;
+		}
+
+
+		/**
+		 * @return the indices of the edges, in ascending order
+		 */
+		public int[] getIndices() { 
+			return indices;
+		}
+
+
+		/**
+		 * @return the position of an index among the edges, or -1 if it is
+		 * not an edge
+		 */
+		public int find( int index ) { 
+			return slots[index];
+		}
+
+
+		/**
+		 * @return the compact array of one target, with zero for every 
+		 * edge it has no message for; messages off the edges are dropped
+		 */
+		public double[] get( int target ) { 
+			double[] values = new double[indices.length];
+			for( int m = 0; m < messages; m++ ) { 
+				int slot = slots[messageIndices[m]];
+				if( messageTargets[m] == target && slot != -1 ) { 
+					values[slot] = messageValues[m];
+				}
+			}
+			return values;
+		}
+
+
+		/**
+		 * @return the elements of a full length array at the edges
+		 */
+		public double[] gather( double[] values ) { 
+			double[] gathered = new double[indices.length];
+			for( int s = 0; s < indices.length; s++ ) { 
+				gathered[s] = values[indices[s]];
+			}
+			return gathered;
+		}
+	}
+
+
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.hap.util;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+
+
+/**
+ * <p>
+ * JSON timeline of a Hierarchical Affinity Propagation run, built from the
+ * {@link Instrumentation} and {@link Convergence} counters of every 
+ * iteration.
+ * </p>
+ * 
+ * <p>
+ * The timeline is a JSON array with one object per iteration:
+ * </p>
+ * 
+ * <pre>
+ * { "iteration": 1, "exemplarChanges": 0, "maxDelta": 0.5,
+ *   "responsibility": { step }, "availability": { step },
+ *   "levels": [ { "level": 0, "exemplars": 12, "exemplarChanges": 0, 
+ *                 "meanResponsibilityDelta": 0.1, 
+ *                 "meanAvailabilityDelta": 0.2, "netSimilarity": -42.0 } ] }
+ * </pre>
+ * 
+ * <p>
+ * where each step holds its wall time, the records and bytes it emitted 
+ * per matrix ID, its map output bytes before and after compression, its 
+ * spilled records, the number of reduce tasks with their total wall time 
+ * and mean peak heap, and its largest message delta. The mean deltas are means
+ * over rows (columns) of the largest change of each row (column). The net 
+ * similarity is that of the assignment entering the iteration.
+ * </p>
+ * 
+ * <p>
+ * The whole file is rewritten after every iteration, so it is complete
+ * even if the run is interrupted. Every job of the run, including those
+ * outside the iterations, is also kept as a {@link Phase}.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see Instrumentation
+ * 
+ */
+public class Timeline {
+
+	private final int numLevels;
+	private final StringBuilder entries = new StringBuilder();
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+
+	public Timeline( int numLevels ) { 
+		this.numLevels = numLevels;
+	}
+
+
+	/**
+	 * Append an iteration to the timeline.
+	 * 
+	 * @param iteration iteration number, starting at 1
+	 * @param responsibilityMillis wall time of the Responsibility job
+	 * @param responsibility counters of the Responsibility job
+	 * @param availabilityMillis wall time of the Availability job
+	 * @param availability counters of the Availability job
+	 */
+	public void addIteration( int iteration, 
+			long responsibilityMillis, Counters responsibility, 
+			long availabilityMillis, Counters availability ) { 
+
+		addPhase( "responsibility", iteration, responsibilityMillis, 
+				responsibility );
+		addPhase( "availability", iteration, availabilityMillis, 
+				availability );
+
+		StringBuilder json = new StringBuilder();
+		json.append( "{\"iteration\": " ).append( iteration );
+		json.append( ", \"exemplarChanges\": " ).append( 
+				Convergence.getExemplarChanges( availability ) );
+		json.append( ", \"maxDelta\": " ).append( number( Math.max( 
+				Convergence.getMaxDelta( responsibility ), 
+				Convergence.getMaxDelta( availability ) ) ) );
+		json.append( ",\n  \"responsibility\": " ).append( 
+				step( responsibilityMillis, responsibility ) );
+		json.append( ",\n  \"availability\": " ).append( 
+				step( availabilityMillis, availability ) );
+		json.append( ",\n  \"levels\": [" );
+
+		for( int l = 0; l < numLevels; l++ ) { 
+			json.append( l == 0 ? "\n    " : ",\n    " );
+			json.append( "{\"level\": " ).append( l );
+			json.append( ", \"exemplars\": " ).append( 
+					Convergence.getExemplars( availability, l ) );
+			json.append( ", \"exemplarChanges\": " ).append( 
+					Convergence.getExemplarChanges( availability, l ) );
+			json.append( ", \"meanResponsibilityDelta\": " ).append( number( 
+					Instrumentation.getMeanDelta( responsibility, l ) ) );
+			json.append( ", \"meanAvailabilityDelta\": " ).append( number( 
+					Instrumentation.getMeanDelta( availability, l ) ) );
+			json.append( ", \"netSimilarity\": " ).append( number( 
+					Instrumentation.getNetSimilarity( responsibility, l ) ) );
+			json.append( "}" );
+		}
+		json.append( "]}" );
+
+		if( entries.length() > 0 ) { 
+			entries.append( ",\n" );
+		}
+		entries.append( json );
+	}
+
+
+	/**
+	 * Append a fused iteration to the timeline: a single job that finishes
+	 * the availability update of the previous iteration and updates 
+	 * responsibility. Its exemplars and exemplar changes are those of the 
+	 * previous iteration, and availability deltas are not broken down by 
+	 * level.
+	 * 
+	 * @param iteration iteration number, starting at 1
+	 * @param millis wall time of the job
+	 * @param counters counters of the job
+	 */
+	public void addIteration( int iteration, long millis, Counters counters ) { 
+
+		addPhase( "iteration", iteration, millis, counters );
+
+		StringBuilder json = new StringBuilder();
+		json.append( "{\"iteration\": " ).append( iteration );
+		json.append( ", \"exemplarChanges\": " ).append( 
+				Convergence.getExemplarChanges( counters ) );
+		json.append( ", \"maxDelta\": " ).append( number( 
+				Convergence.getMaxDelta( counters ) ) );
+		json.append( ",\n  \"fused\": " ).append( 
+				step( millis, counters ) );
+		json.append( ",\n  \"levels\": [" );
+
+		for( int l = 0; l < numLevels; l++ ) { 
+			json.append( l == 0 ? "\n    " : ",\n    " );
+			json.append( "{\"level\": " ).append( l );
+			json.append( ", \"exemplars\": " ).append( 
+					Convergence.getExemplars( counters, l ) );
+			json.append( ", \"exemplarChanges\": " ).append( 
+					Convergence.getExemplarChanges( counters, l ) );
+			json.append( ", \"meanResponsibilityDelta\": " ).append( number( 
+					Instrumentation.getMeanDelta( counters, l ) ) );
+			json.append( ", \"netSimilarity\": " ).append( number( 
+					Instrumentation.getNetSimilarity( counters, l ) ) );
+			json.append( "}" );
+		}
+		json.append( "]}" );
+
+		if( entries.length() > 0 ) { 
+			entries.append( ",\n" );
+		}
+		entries.append( json );
+	}
+
+
+	/**
+	 * Record a job that ran outside of the iterations, such as building the
+	 * similarity store or extracting the clusters. It is not part of the 
+	 * JSON timeline.
+	 * 
+	 * @param name name of the job
+	 * @param iteration number of iterations run before the job
+	 * @param millis wall time of the job
+	 * @param counters counters of the job
+	 */
+	public void addPhase( String name, int iteration, long millis, 
+			Counters counters ) { 
+		phases.add( new Phase( name, iteration, millis, counters ) );
+	}
+
+
+	/**
+	 * @return every job of the run so far, in order
+	 */
+	public List<Phase> getPhases() { 
+		return Collections.unmodifiableList( phases );
+	}
+
+
+	/**
+	 * Write the timeline, replacing any previous version.
+	 * 
+	 * @param fs file system to write to
+	 * @param path timeline file
+	 */
+	public void write( FileSystem fs, Path path ) throws IOException { 
+		Writer writer = new OutputStreamWriter( fs.create( path, true ), 
+				"UTF-8" );
+		try { 
+			writer.write( "[\n" );
+			writer.write( entries.toString() );
+			writer.write( "\n]\n" );
+		} finally { 
+			writer.close();
+		}
+	}
+
+
+	/*
+	 * Describe a single job of an iteration.
+	 */
+	private static String step( long millis, Counters counters ) { 
+		StringBuilder json = new StringBuilder();
+		json.append( "{\"millis\": " ).append( millis );
+		json.append( ", \"emitted\": {" );
+
+		boolean first = true;
+		for( char id : Instrumentation.MATRIX_IDS.toCharArray() ) { 
+			long records = Instrumentation.getRecords( counters, id );
+			if( records == 0 ) { 
+				continue;
+			}
+			json.append( first ? "" : ", " );
+			json.append( "\"" ).append( id ).append( "\": {\"records\": " )
+					.append( records ).append( ", \"bytes\": " )
+					.append( Instrumentation.getBytes( counters, id ) )
+					.append( "}" );
+			first = false;
+		}
+
+		json.append( "}, \"mapOutputBytes\": " ).append( 
+				Compression.getMapOutputBytes( counters ) );
+		json.append( ", \"shuffleBytes\": " ).append( 
+				Compression.getMaterializedMapOutputBytes( counters ) );
+		json.append( ", \"spilledRecords\": " ).append( 
+				Instrumentation.getSpilledRecords( counters ) );
+		json.append( ", \"reduceTasks\": " ).append( 
+				Instrumentation.getTasks( counters ) );
+		json.append( ", \"reduceMillis\": " ).append( 
+				Instrumentation.getTaskMillis( counters ) );
+		json.append( ", \"meanPeakHeapBytes\": " ).append( 
+				Instrumentation.getMeanPeakHeap( counters ) );
+		json.append( ", \"maxDelta\": " ).append( 
+				number( Convergence.getMaxDelta( counters ) ) );
+		json.append( "}" );
+		return json.toString();
+	}
+
+
+	/*
+	 * JSON has no infinities or NaN.
+	 */
+	private static String number( double value ) { 
+		return Double.isNaN( value ) || Double.isInfinite( value ) 
+				? "null" : String.valueOf( value );
+	}
+
+
+
+	/**
+	 * A single job of a HAP run, with its wall time and counters.
+	 */
+	public static class Phase { 
+
+		private final String name;
+		private final int iteration;
+		private final long millis;
+		private final Counters counters;
+
+
+		Phase( String name, int iteration, long millis, Counters counters ) { 
+			this.name = name;
+			this.iteration = iteration;
+			this.millis = millis;
+			this.counters = counters;
+		}
+
+
+		public String getName() { 
+			return name;
+		}
+
+
+		public int getIteration() { 
+			return iteration;
+		}
+
+
+		public long getMillis() { 
+			return millis;
+		}
+
+
+		public Counters getCounters() { 
+			return counters;
+		}
+
+	}
+
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.Precision;
+import root.input.InputJob;
+
+
+/**
+ * <p>
+ * Create similarity matrix, one block pair at a time.
+ * </p>
+ * 
+ * <p>
+ * Produces the same output as {@link CreateSimilarityMatrixJob}, without 
+ * loading every vector into every task and with every distance computed 
+ * once instead of twice:
+ * </p>
+ * 
+ * <ol>
+ * <li>{@link VectorBlockMapper} partitions the vectors into B blocks and 
+ * counts them to find N; {@link VectorBlockReducer} writes one file per 
+ * block.</li>
+ * <li>{@link SimilarityTileMapper} computes the B (B + 1) / 2 tiles of the
+ * upper triangle of S, one task per block pair, each holding only the 
+ * vectors of its two blocks (2N / B vectors, and an (N / B)^2 tile). Each 
+ * value is written into both of its rows.</li>
+ * <li>{@link SimilarityRowReducer} assembles the rows of S and writes them
+ * with the initial R, A, C, T and P records.</li>
+ * </ol>
+ * 
+ * <p>
+ * The distance measure must be symmetric, as Mahout's measures are. With 
+ * <code>-knn k</code>, the assembled rows keep only their k nearest 
+ * neighbours and are mirrored into a sparse matrix; see 
+ * {@link NearestNeighbours}.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see CreateSimilarityMatrixJob
+ * 
+ */
+public class BlockedSimilarityMatrixJob extends InputJob {
+
+	public static final String NUM_BLOCKS_KEY = "similarity.numBlocks";
+	public static final String BLOCKS_PATH_KEY = "similarity.blocksPath";
+
+	static final String BLOCK_FILE = "block-%05d";
+
+	static final String COUNTER_GROUP = "Similarity Matrix";
+	static final String VECTORS_COUNTER = "Vectors";
+
+	private static String inputDirectory;
+	private static String outputDirectory;
+	private static String distanceMeasure;
+	private static String numLevels;
+	private static String diagScale;
+	private static String precision;
+	private static String numBlocks;
+	private static String knn;
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void constructParameterList() {
+
+		addOption("input", "i", "Input Directory", true);
+		addOption("out", "o", "Output Directory", true);
+		addOption("distance", "dm", "Distance Measure", true);
+		addOption("numLevels","l","Number of Levels",true);
+		addOption("diagScale","smd","Similarity Matrix seed scale",true);
+		addOption("precision", "precision", 
+				"Storage Precision (double, float, bfloat16)", "double");
+		addOption("numBlocks", "blocks", "Number of Vector Blocks", "16");
+		addOption("knn", "knn", 
+				"Nearest Neighbours kept per Row (0: dense matrix)", "0");
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void initializeConfigurationParameters() {
+
+		inputDirectory = getOption("input");
+		inputDirectory = cleanDirectoryName(inputDirectory);
+		outputDirectory = getOption("out");
+		outputDirectory = cleanDirectoryName(outputDirectory);
+		distanceMeasure = getOption("distance");
+		numLevels = getOption("numLevels");
+		diagScale = getOption("diagScale");
+		precision = getOption("precision");
+		numBlocks = getOption("numBlocks");
+		knn = getOption("knn");
+
+		if (Integer.valueOf(numBlocks) <= 0) {
+			System.err.println("[ERROR]: Invalid number of blocks.");
+			System.err.println("[INFO]: blocks = " + numBlocks);
+			System.exit(1);
+		}
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void printConfiguredParameters() { 
+		System.out.println("[INFO]: Blocked Similarity Matrix Job" );
+		System.out.println("\t-i\t\t" + inputDirectory);
+		System.out.println("\t-o\t\t" + outputDirectory);
+		System.out.println("\t-dm\t\t" + distanceMeasure);
+		System.out.println("\t-l\t\t" + numLevels);
+		System.out.println("\t-smd\t\t" + diagScale);
+		System.out.println("\t-precision\t" + precision);
+		System.out.println("\t-blocks\t" + numBlocks);
+		System.out.println("\t-knn\t\t" + knn);
+		System.out.println();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		constructParameterList();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initializeConfigurationParameters();
+
+		printJobHeader();
+
+		Configuration conf = getConf();
+
+		int blocks = Integer.valueOf(numBlocks);
+		String blocksDirectory = outputDirectory + "-blocks";
+		String pairsDirectory = outputDirectory + "-pairs";
+		int k = Integer.valueOf(knn);
+		String rowsDirectory = k > 0 
+				? outputDirectory + NearestNeighbours.ROWS_SUFFIX 
+				: outputDirectory;
+
+		conf.setInt("numLevels", Integer.valueOf(numLevels));
+		conf.setLong("diagScale", Long.valueOf(diagScale));
+		CreateSimilarityMatrixJob.configureDistance(conf, distanceMeasure);
+		conf.setInt(NUM_BLOCKS_KEY, blocks);
+		conf.set(BLOCKS_PATH_KEY, blocksDirectory);
+		conf.setInt(NearestNeighbours.KNN_KEY, k);
+		Precision.configure(conf, precision, 0);
+
+		URI workingURI = new URI(conf.get("fs.default.name"));
+		FileSystem workingFS = FileSystem.get(workingURI, conf);
+
+		// Clear the temporary directories of a failed run.
+		workingFS.delete(new Path(blocksDirectory), true);
+		workingFS.delete(new Path(pairsDirectory), true);
+		if (k > 0) {
+			workingFS.delete(new Path(rowsDirectory), true);
+		}
+
+		try {
+			createRows(conf, workingFS, blocks, blocksDirectory, 
+					pairsDirectory, rowsDirectory);
+		} finally {
+			workingFS.delete(new Path(blocksDirectory), true);
+			workingFS.delete(new Path(pairsDirectory), true);
+		}
+
+		// 4: With -knn, mirror the kept neighbours into the sparse matrix.
+		if (k > 0) {
+			NearestNeighbours.symmetrize(conf, rowsDirectory, outputDirectory,
+					conf.getInt("matrixN", -1));
+			workingFS.delete(new Path(rowsDirectory), true);
+		}
+
+		return 0;
+
+	}
+
+
+	/**
+	 * @return the name of the file holding the vectors of a block
+	 */
+	static String blockFile(int block) {
+		return String.format(BLOCK_FILE, block);
+	}
+
+
+	/*
+	 * Partition the vectors, set matrixN, and write the rows of S with the 
+	 * initial state to the rows directory.
+	 */
+	private static void createRows(Configuration conf, FileSystem workingFS,
+			int blocks, String blocksDirectory, String pairsDirectory, 
+			String rowsDirectory) throws Exception {
+
+		// 1: Partition the vectors into blocks, one file per block.
+		Job partition = new Job(conf, "PartitionVectors: " + inputDirectory);
+
+		partition.setInputFormatClass(SequenceFileInputFormat.class);
+		partition.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		partition.setMapOutputKeyClass(IntWritable.class);
+		partition.setMapOutputValueClass(VectorWritable.class);
+		partition.setOutputKeyClass(IntWritable.class);
+		partition.setOutputValueClass(VectorWritable.class);
+		partition.setMapperClass(VectorBlockMapper.class);
+		partition.setReducerClass(VectorBlockReducer.class);
+
+		partition.setNumReduceTasks(blocks);
+		FileInputFormat.addInputPath(partition, new Path(inputDirectory));
+		FileOutputFormat.setOutputPath(partition, new Path(blocksDirectory));
+
+		partition.setJarByClass(BlockedSimilarityMatrixJob.class);
+
+		if (!partition.waitForCompletion(true)) {
+			throw new IllegalStateException(
+					"PartitionVectors failed processing " + inputDirectory);
+		}
+
+		long N = partition.getCounters().findCounter(COUNTER_GROUP, 
+				VECTORS_COUNTER).getValue();
+		conf.setInt("matrixN", (int) N);
+
+		// 2: One input file per block pair, so every pair is its own task.
+		for (int p = 0; p < blocks; p++) {
+			for (int q = p; q < blocks; q++) {
+				SequenceFile.Writer writer = new SequenceFile.Writer(
+						workingFS, conf, 
+						new Path(pairsDirectory + "/pair-" + p + "-" + q), 
+						IntWritable.class, IntWritable.class);
+				writer.append(new IntWritable(p), new IntWritable(q));
+				writer.close();
+			}
+		}
+
+		// 3: Compute the tiles and assemble the rows.
+		Job job = new Job(conf, "CreateSimilarityMatrix: " + inputDirectory);
+
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		job.setMapOutputKeyClass(IntWritable.class);
+		job.setMapOutputValueClass(VectorWritable.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(VectorWritable.class);
+		job.setMapperClass(SimilarityTileMapper.class);
+		job.setReducerClass(SimilarityRowReducer.class);
+
+		job.setNumReduceTasks(blocks);
+		FileInputFormat.addInputPath(job, new Path(pairsDirectory));
+		FileOutputFormat.setOutputPath(job, new Path(rowsDirectory));
+
+		job.setJarByClass(BlockedSimilarityMatrixJob.class);
+
+		if (!job.waitForCompletion(true)) {
+			throw new IllegalStateException(
+					"CreateSimilarityMatrix failed processing " + inputDirectory);
+		}
+
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), 
+				new BlockedSimilarityMatrixJob(), args);
+		System.exit(res);
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.SparseEdges;
+
+
+/**
+ * <p>
+ * Reducer class for comparing the vectors of a bucket of candidate 
+ * neighbours: an LSH bucket (see {@link LshSimilarityMatrixJob}) or a 
+ * canopy (see {@link CanopySimilarityMatrixJob}).
+ * </p>
+ * 
+ * <p>
+ * The exact similarity of every pair of vectors in the bucket is computed
+ * by a {@link SimilarityTile}. With <code>-knn k</code> each vector is 
+ * sent the k most similar of them as a partial row, to be merged by 
+ * {@link NeighbourMergeReducer}; otherwise it is sent all of them, to be 
+ * merged by {@link SimilarityRowReducer}. A bucket holding more than 
+ * <code>lsh.maxBucket</code> vectors, if positive, is split into chunks of
+ * that size which are searched separately, which bounds the work of a 
+ * degenerate bucket at the cost of the pairs split apart. Every vector is 
+ * sent a partial row, if only an empty one, so that it has a row of S 
+ * even when no bucket holds another vector.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> bucket name<br />
+ * <code>Input value [Iterable&lt;VectorWritable&gt;]:</code> the vectors 
+ * of the bucket, named by their index
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [IntWritable]:</code> row number<br />
+ * <code>Output value [VectorWritable]:</code> the similarities found in 
+ * the bucket
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see LshSimilarityMatrixJob
+ * @see CanopySimilarityMatrixJob
+ * 
+ */
+public final class BucketSimilarityReducer extends
+Reducer<Text, VectorWritable, IntWritable, VectorWritable> {
+
+	static final String BUCKETS_COUNTER = "Buckets";
+	static final String PAIRS_COUNTER = "Candidate Pairs";
+
+	private SimilarityTile similarities;
+	private NearestNeighbours.TopK top;
+	private int knn;
+	private int maxBucket;
+
+	private final IntWritable keyOut = new IntWritable();
+	private final VectorWritable valOut = new VectorWritable();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		similarities = new SimilarityTile(context.getConfiguration());
+		knn = NearestNeighbours.get(context.getConfiguration());
+		top = new NearestNeighbours.TopK(knn);
+		maxBucket = context.getConfiguration().getInt(
+				LshSignatures.MAX_BUCKET_KEY, 1000);
+		maxBucket = maxBucket > 0 ? Math.max(2, maxBucket) : Integer.MAX_VALUE;
+	}
+
+
+	@Override
+	protected void reduce(Text keyIn, Iterable<VectorWritable> valIn,
+			Context context) throws IOException, InterruptedException {
+
+		List<NamedVector> chunk = new ArrayList<NamedVector>();
+
+		for (VectorWritable value : valIn) {
+			chunk.add((NamedVector) value.get());
+			if (chunk.size() == maxBucket) {
+				search(chunk, context);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			search(chunk, context);
+		}
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		similarities.close();
+	}
+
+
+	/*
+	 * Send every vector of a chunk its nearest neighbours in the chunk, or
+	 * its similarity to every other one.
+	 */
+	private void search(List<NamedVector> chunk, Context context) 
+			throws IOException, InterruptedException {
+
+		int n = chunk.size();
+		int[] indices = new int[n];
+		for (int i = 0; i < n; i++) {
+			indices[i] = Integer.valueOf(chunk.get(i).getName());
+		}
+
+		double[] tile = n > 1 
+				? similarities.compute(chunk, chunk, true, context) 
+				: new double[0];
+
+		for (int i = 0; i < n; i++) {
+			keyOut.set(indices[i]);
+			valOut.set(knn > 0 
+					? nearest(indices, tile, i, n) : row(indices, tile, i, n));
+			context.write(keyOut, valOut);
+		}
+
+		context.getCounter(BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BUCKETS_COUNTER).increment(1);
+		context.getCounter(BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				PAIRS_COUNTER).increment((long) n * (n - 1) / 2);
+	}
+
+
+
+	private Vector nearest(int[] indices, double[] tile, int i, int n) {
+		top.clear();
+		for (int j = 0; j < n; j++) {
+			if (j != i) {
+				top.offer(indices[j], tile[i * n + j]);
+			}
+		}
+		return top.toVector(Integer.MAX_VALUE);
+	}
+
+
+	private static Vector row(int[] indices, double[] tile, int i, int n) {
+		Vector row = new RandomAccessSparseVector(Integer.MAX_VALUE, n);
+		for (int j = 0; j < n; j++) {
+			if (j != i) {
+				row.setQuick(indices[j], SparseEdges.encode(tile[i * n + j]));
+			}
+		}
+		return new SequentialAccessSparseVector(row);
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.clustering.iterator.ClusterWritable;
+import org.apache.mahout.common.ClassUtils;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Mapper class for assigning the input vectors to canopies.
+ * </p>
+ * 
+ * <p>
+ * The canopy centers found by the canopy pass are loaded once per task. A
+ * vector belongs to every canopy whose center is within the loose 
+ * threshold T1 of it, and is sent once to each; a vector within T1 of no 
+ * center, which the merging of the canopies of several map tasks can 
+ * leave, belongs to the canopy of the nearest center. Every vector is 
+ * counted.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> vector name, a prefix character followed 
+ * by the index<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding vector
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> canopy number<br />
+ * <code>Output value [VectorWritable]:</code> the vector, named by its 
+ * index
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see CanopySimilarityMatrixJob
+ * @see BucketSimilarityReducer
+ * 
+ */
+public final class CanopyBucketMapper extends
+Mapper<WritableComparable<?>, VectorWritable, Text, VectorWritable> {
+
+	private DistanceMeasure measure;
+	private double t1;
+	private List<Vector> centers;
+
+	private final Text keyOut = new Text();
+	private final VectorWritable valOut = new VectorWritable();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+		measure = ClassUtils.instantiateAs(
+				conf.get(CreateSimilarityMatrixJob.DISTANCE_MEASURE_KEY),
+				DistanceMeasure.class);
+		measure.configure(conf);
+		t1 = conf.getFloat(CanopySimilarityMatrixJob.T1_KEY, -1);
+		try {
+			centers = loadCenters(conf);
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+		if (centers.isEmpty()) {
+			throw new IllegalStateException("No canopy centers found in " 
+					+ conf.get(CanopySimilarityMatrixJob.CENTERS_PATH_KEY));
+		}
+	}
+
+
+	@Override
+	protected void map(WritableComparable<?> key, VectorWritable value,
+			Context context) throws IOException, InterruptedException {
+
+		String keyName = key.toString().substring(1);
+		Vector vector = value.get();
+		valOut.set(new NamedVector(vector, keyName));
+
+		int nearest = -1;
+		double nearestDistance = Double.POSITIVE_INFINITY;
+		boolean covered = false;
+
+		for (int c = 0; c < centers.size(); c++) {
+			double distance = measure.distance(centers.get(c), vector);
+			if (distance < t1) {
+				keyOut.set(c + "");
+				context.write(keyOut, valOut);
+				covered = true;
+			}
+			if (distance < nearestDistance) {
+				nearestDistance = distance;
+				nearest = c;
+			}
+		}
+
+		if (!covered) {
+			keyOut.set(nearest + "");
+			context.write(keyOut, valOut);
+		}
+
+		context.getCounter(BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BlockedSimilarityMatrixJob.VECTORS_COUNTER).increment(1);
+	}
+
+
+	/*
+	 * Load the centers of the final canopies.
+	 */
+	private static List<Vector> loadCenters(Configuration conf)
+			throws IOException, URISyntaxException {
+
+		Path centersPath = new Path(
+				conf.get(CanopySimilarityMatrixJob.CENTERS_PATH_KEY));
+
+		URI uri = new URI( conf.get("fs.default.name") );
+		FileSystem fs = FileSystem.get(uri, conf);
+
+		List<Vector> centers = new ArrayList<Vector>();
+		Text key = new Text();
+		ClusterWritable value = new ClusterWritable();
+
+		for (FileStatus file : fs.listStatus(centersPath)) {
+			if (!file.getPath().getName().startsWith("part-")) {
+				continue;
+			}
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, 
+					file.getPath(), conf);
+			try {
+				while (reader.next(key, value)) {
+					centers.add(value.getValue().getCenter());
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		return centers;
+	}
+
+}
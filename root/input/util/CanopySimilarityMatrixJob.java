@@ -0,0 +1,319 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.clustering.canopy.CanopyDriver;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.Precision;
+import root.hap.util.SparseEdges;
+import root.input.InputJob;
+
+
+/**
+ * <p>
+ * Create a sparse similarity matrix restricted to points sharing a canopy.
+ * </p>
+ * 
+ * <p>
+ * A cheap canopy pass, Mahout canopy clustering with thresholds T1 &gt; 
+ * T2, first covers the points with overlapping canopies. Each point is 
+ * then assigned to every canopy within T1 of it by 
+ * {@link CanopyBucketMapper}, and the similarities of the points sharing 
+ * a canopy are computed by {@link BucketSimilarityReducer}. All other 
+ * pairs are left out of S: they are -inf in the <code>-sparse</code> mode 
+ * of the Hierarchical Affinity Propagation job, so those points can never
+ * choose each other as exemplars. The size of S, and the cost of the 
+ * messages, is thus set by the overlap of the canopies rather than by 
+ * N<sup>2</sup>.
+ * </p>
+ * 
+ * <p>
+ * With <code>-knn k</code>, only the k nearest neighbours of every point 
+ * within its canopies are kept, and made symmetric as for
+ * <code>CreateSimilarityMatrixJob -knn</code> (see 
+ * {@link NearestNeighbours}). A canopy larger than <code>-maxBucket</code>,
+ * if positive, is split into chunks compared separately.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> vector name, a prefix character followed 
+ * by the index<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding vector
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Row Number,
+ * LevelNumber, ID}<br />
+ * <code>Output value [VectorWritable]:</code> sparse vector of 
+ * appropriate data
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see CreateSimilarityMatrixJob
+ * @see CanopyDriver
+ * 
+ */
+public class CanopySimilarityMatrixJob extends InputJob {
+
+	static final String CENTERS_PATH_KEY = "canopy.centersPath";
+	static final String T1_KEY = "canopy.t1";
+
+	private static String inputDirectory;
+	private static String outputDirectory;
+	private static String distanceMeasure;
+	private static String numLevels;
+	private static String diagScale;
+	private static String precision;
+	private static String threshold1;
+	private static String threshold2;
+	private static String knn;
+	private static String maxBucket;
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void constructParameterList() {
+
+		addOption("input", "i", "Input Directory", true);
+		addOption("out", "o", "Output Directory", true);
+		addOption("distance", "dm", "Distance Measure", true);
+		addOption("numLevels","l","Number of Levels",true);
+		addOption("diagScale","smd","Similarity Matrix seed scale",true);
+		addOption("precision", "precision", 
+				"Storage Precision (double, float, bfloat16)", "double");
+		addOption("threshold1", "t1", "Canopy Outer Threshold", true);
+		addOption("threshold2", "t2", "Canopy Inner Threshold", true);
+		addOption("knn", "knn", 
+				"Nearest Neighbours kept per Row (0: every canopy pair)", "0");
+		addOption("maxBucket", "maxBucket", 
+				"Vectors compared together at most (0: whole canopies)", "0");
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void initializeConfigurationParameters() {
+
+		inputDirectory = getOption("input");
+		inputDirectory = cleanDirectoryName(inputDirectory);
+		outputDirectory = getOption("out");
+		outputDirectory = cleanDirectoryName(outputDirectory);
+		distanceMeasure = getOption("distance");
+		numLevels = getOption("numLevels");
+		diagScale = getOption("diagScale");
+		precision = getOption("precision");
+		threshold1 = getOption("threshold1");
+		threshold2 = getOption("threshold2");
+		knn = getOption("knn");
+		maxBucket = getOption("maxBucket");
+
+		if (Double.valueOf(threshold2) <= 0 
+				|| Double.valueOf(threshold1) < Double.valueOf(threshold2)) {
+			System.err.println("[ERROR]: Canopy thresholds must satisfy "
+					+ "T1 >= T2 > 0.");
+			System.err.println("[INFO]: t1 = " + threshold1 
+					+ ", t2 = " + threshold2);
+			System.exit(1);
+		}
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void printConfiguredParameters() { 
+		System.out.println("[INFO]: Canopy Similarity Matrix Job" );
+		System.out.println("\t-i\t\t" + inputDirectory);
+		System.out.println("\t-o\t\t" + outputDirectory);
+		System.out.println("\t-dm\t\t" + distanceMeasure);
+		System.out.println("\t-l\t\t" + numLevels);
+		System.out.println("\t-smd\t\t" + diagScale);
+		System.out.println("\t-precision\t" + precision);
+		System.out.println("\t-t1\t\t" + threshold1);
+		System.out.println("\t-t2\t\t" + threshold2);
+		System.out.println("\t-knn\t\t" + knn);
+		System.out.println("\t-maxBucket\t" + maxBucket);
+		System.out.println();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		constructParameterList();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initializeConfigurationParameters();
+
+		printJobHeader();
+
+		Configuration conf = getConf();
+
+		String canopiesDirectory = outputDirectory + "-canopies";
+		String candidatesDirectory = outputDirectory + "-candidates";
+		int k = Integer.valueOf(knn);
+		String rowsDirectory = k > 0 
+				? outputDirectory + NearestNeighbours.ROWS_SUFFIX 
+				: outputDirectory;
+
+		conf.setInt("numLevels", Integer.valueOf(numLevels));
+		conf.setLong("diagScale", Long.valueOf(diagScale));
+		CreateSimilarityMatrixJob.configureDistance(conf, distanceMeasure);
+		conf.setInt(NearestNeighbours.KNN_KEY, k);
+		conf.setInt(LshSignatures.MAX_BUCKET_KEY, Integer.valueOf(maxBucket));
+		conf.setFloat(T1_KEY, Float.valueOf(threshold1));
+		conf.set(CENTERS_PATH_KEY, canopiesDirectory + "/clusters-0-final");
+		Precision.configure(conf, precision, 0);
+
+		URI workingURI = new URI(conf.get("fs.default.name"));
+		FileSystem workingFS = FileSystem.get(workingURI, conf);
+
+		// 1: Find the canopy centers, with the Mahout measure of the 
+		// distance.
+		String[] canopyArgs = {
+				"-i",  inputDirectory,
+				"-o",  canopiesDirectory,
+				"-dm", conf.get(CreateSimilarityMatrixJob.DISTANCE_MEASURE_KEY),
+				"-t1", threshold1,
+				"-t2", threshold2,
+				"-ow" };
+		if (ToolRunner.run(new Configuration(conf), new CanopyDriver(), 
+				canopyArgs) != 0) {
+			throw new IllegalStateException(
+					"Canopy failed processing " + inputDirectory);
+		}
+
+		// 2: Compare the points of every canopy.
+		Job buckets = new Job(conf, "CanopyBuckets: " + inputDirectory);
+
+		buckets.setInputFormatClass(SequenceFileInputFormat.class);
+		buckets.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		buckets.setMapOutputKeyClass(Text.class);
+		buckets.setMapOutputValueClass(VectorWritable.class);
+		buckets.setOutputKeyClass(IntWritable.class);
+		buckets.setOutputValueClass(VectorWritable.class);
+		buckets.setMapperClass(CanopyBucketMapper.class);
+		buckets.setReducerClass(BucketSimilarityReducer.class);
+
+		FileInputFormat.addInputPath(buckets, new Path(inputDirectory));
+		FileOutputFormat.setOutputPath(buckets, new Path(candidatesDirectory));
+
+		buckets.setJarByClass(CanopySimilarityMatrixJob.class);
+
+		if (!buckets.waitForCompletion(true)) {
+			throw new IllegalStateException(
+					"CanopyBuckets failed processing " + inputDirectory);
+		}
+
+		long N = buckets.getCounters().findCounter(
+				BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BlockedSimilarityMatrixJob.VECTORS_COUNTER).getValue();
+		long canopies = buckets.getCounters().findCounter(
+				BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BucketSimilarityReducer.BUCKETS_COUNTER).getValue();
+		long pairs = buckets.getCounters().findCounter(
+				BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BucketSimilarityReducer.PAIRS_COUNTER).getValue();
+		conf.setInt("matrixN", (int) N);
+
+		System.out.println("[INFO]: Canopies: " + canopies 
+				+ ", pairs compared: " + pairs + " of " + (N * (N - 1) / 2));
+
+		// 3: Merge the partial rows of every point: into the sparse 
+		// matrix, or into its nearest neighbours.
+		Configuration mergeConf = new Configuration(conf);
+		mergeConf.setBoolean(SparseEdges.SPARSE_KEY, k == 0);
+
+		Job merge = new Job(mergeConf, "CanopyRows: " + inputDirectory);
+
+		merge.setInputFormatClass(SequenceFileInputFormat.class);
+		merge.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		merge.setMapOutputKeyClass(IntWritable.class);
+		merge.setMapOutputValueClass(VectorWritable.class);
+		merge.setOutputKeyClass(Text.class);
+		merge.setOutputValueClass(VectorWritable.class);
+		merge.setMapperClass(Mapper.class);
+		merge.setReducerClass(k > 0 
+				? NeighbourMergeReducer.class : SimilarityRowReducer.class);
+
+		FileInputFormat.addInputPath(merge, new Path(candidatesDirectory));
+		FileOutputFormat.setOutputPath(merge, new Path(rowsDirectory));
+
+		merge.setJarByClass(CanopySimilarityMatrixJob.class);
+
+		if (!merge.waitForCompletion(true)) {
+			throw new IllegalStateException(
+					"CanopyRows failed processing " + candidatesDirectory);
+		}
+
+		workingFS.delete(new Path(canopiesDirectory), true);
+		workingFS.delete(new Path(candidatesDirectory), true);
+
+		// 4: With -knn, mirror the kept neighbours into the sparse matrix.
+		if (k > 0) {
+			NearestNeighbours.symmetrize(conf, rowsDirectory, outputDirectory,
+					(int) N);
+			workingFS.delete(new Path(rowsDirectory), true);
+		}
+
+		return 0;
+
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), 
+				new CanopySimilarityMatrixJob(), args);
+		System.exit(res);
+	}
+
+}
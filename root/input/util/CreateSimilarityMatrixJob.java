@@ -29,6 +29,7 @@ import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.VectorWritable;
 
+import root.hap.util.Precision;
 import root.input.InputJob;
 
 
@@ -42,6 +43,31 @@ import root.input.InputJob;
  * </p>
  * 
  * <p>
+ * With <code>-blocks B</code>, the work is done by 
+ * {@link BlockedSimilarityMatrixJob} instead, which computes each distance
+ * once and never holds more than 2N / B vectors in a task.
+ * </p>
+ * 
+ * <p>
+ * With <code>-knn k</code>, only the k nearest neighbours of every point 
+ * are kept, and the output is a sparse similarity matrix for the 
+ * <code>-sparse</code> mode of the Hierarchical Affinity Propagation job;
+ * see {@link NearestNeighbours}. With <code>-lsh</code> as well, the 
+ * neighbours are searched among locality sensitive hash candidates by 
+ * {@link LshSimilarityMatrixJob} instead of among all points, with its 
+ * <code>-tables</code>, <code>-hashes</code>, <code>-width</code>, 
+ * <code>-maxBucket</code>, <code>-seed</code> and <code>-recall</code> 
+ * options.
+ * </p>
+ * 
+ * <p>
+ * With <code>-canopy</code>, similarities are only computed between points
+ * sharing a canopy of thresholds <code>-t1</code> and <code>-t2</code>, 
+ * and the output is a sparse similarity matrix as well; see 
+ * {@link CanopySimilarityMatrixJob}.
+ * </p>
+ * 
+ * <p>
  * <code>Input key [Text]:</code> column number<br />
  * <code>Input value [VectorWritable]:</code> the corresponding vector
  * </p>
@@ -75,6 +101,19 @@ public class CreateSimilarityMatrixJob extends InputJob {
 	public static String distanceMeasure;
 	public static String numLevels;
 	public static String diagScale;
+	public static String precision;
+	public static String numBlocks;
+	public static String knn;
+	public static String lsh;
+	public static String canopy;
+	public static String threshold1;
+	public static String threshold2;
+	public static String tables;
+	public static String hashes;
+	public static String width;
+	public static String maxBucket;
+	public static String seed;
+	public static String recall;
 
 
 	/**
@@ -84,9 +123,38 @@ public class CreateSimilarityMatrixJob extends InputJob {
 
 		addOption("input", "i", "Input Directory", true);
 		addOption("out", "o", "Output Directory", true);
-		addOption("distance", "dm", "Distance Measure", true);
+		addOption("distance", "dm", 
+				"Distance Measure (class name, or dense:squaredeuclidean, "
+				+ "dense:euclidean, dense:cosine, sparse:cosine, "
+				+ "sparse:tanimoto)", true);
 		addOption("numLevels","l","Number of Levels",true);
 		addOption("diagScale","smd","Similarity Matrix seed scale",true);
+		addOption("precision", "precision", 
+				"Storage Precision (double, float, bfloat16)", "double");
+		addOption("numBlocks", "blocks", 
+				"Number of Vector Blocks (0: every task loads every vector)", 
+				"0");
+		addOption("knn", "knn", 
+				"Nearest Neighbours kept per Row (0: dense matrix)", "0");
+		addOption("lsh", "lsh", 
+				"Search Neighbours among LSH Candidates (with -knn)", "false");
+		addOption("canopy", "canopy", 
+				"Compare only Points sharing a Canopy", "false");
+		addOption("threshold1", "t1", "Canopy Outer Threshold", "0");
+		addOption("threshold2", "t2", "Canopy Inner Threshold", "0");
+		addOption("tables", "tables", "Number of LSH Hash Tables", "8");
+		addOption("hashes", "hashes", 
+				"LSH Hashes per Table (0: 12 for cosine and tanimoto, 4 "
+				+ "otherwise)", "0");
+		addOption("width", "width", 
+				"LSH Bucket Width of the Euclidean Hashes (0: estimated from "
+				+ "a sample)", "0");
+		addOption("maxBucket", "maxBucket", 
+				"Vectors of an LSH Bucket compared together at most", "1000");
+		addOption("seed", "seed", "Seed of the LSH Hash Functions", "1");
+		addOption("recall", "recall", 
+				"Vectors sampled for the LSH Recall Report (0: no report)", 
+				"100");
 
 	}
 
@@ -103,6 +171,19 @@ public class CreateSimilarityMatrixJob extends InputJob {
 		distanceMeasure = getOption("distance");
 		numLevels = getOption("numLevels");
 		diagScale = getOption("diagScale");
+		precision = getOption("precision");
+		numBlocks = getOption("numBlocks");
+		knn = getOption("knn");
+		lsh = getOption("lsh");
+		canopy = getOption("canopy");
+		threshold1 = getOption("threshold1");
+		threshold2 = getOption("threshold2");
+		tables = getOption("tables");
+		hashes = getOption("hashes");
+		width = getOption("width");
+		maxBucket = getOption("maxBucket");
+		seed = getOption("seed");
+		recall = getOption("recall");
 
 	}
 
@@ -117,6 +198,19 @@ public class CreateSimilarityMatrixJob extends InputJob {
 		System.out.println("\t-dm\t\t" + distanceMeasure);
 		System.out.println("\t-l\t\t" + numLevels);
 		System.out.println("\t-smd\t\t" + diagScale);
+		System.out.println("\t-precision\t" + precision);
+		System.out.println("\t-blocks\t" + numBlocks);
+		System.out.println("\t-knn\t\t" + knn);
+		System.out.println("\t-lsh\t\t" + lsh);
+		System.out.println("\t-canopy\t" + canopy);
+		System.out.println("\t-t1\t\t" + threshold1);
+		System.out.println("\t-t2\t\t" + threshold2);
+		System.out.println("\t-tables\t" + tables);
+		System.out.println("\t-hashes\t" + hashes);
+		System.out.println("\t-width\t\t" + width);
+		System.out.println("\t-maxBucket\t" + maxBucket);
+		System.out.println("\t-seed\t\t" + seed);
+		System.out.println("\t-recall\t" + recall);
 		System.out.println();
 	}
 
@@ -139,13 +233,64 @@ public class CreateSimilarityMatrixJob extends InputJob {
 
 		Configuration conf = getConf();
 
-		DistanceMeasure measure = ClassUtils.instantiateAs(distanceMeasure,
-				DistanceMeasure.class);
+		if (Boolean.valueOf(canopy)) {
+			String[] canopyArgs = { 
+					"-i",         inputDirectory,
+					"-o",         outputDirectory,
+					"-dm",        distanceMeasure,
+					"-l",         numLevels,
+					"-smd",       diagScale,
+					"-precision", precision,
+					"-t1",        threshold1,
+					"-t2",        threshold2,
+					"-knn",       knn };
+			return ToolRunner.run(conf, new CanopySimilarityMatrixJob(), 
+					canopyArgs);
+		}
+
+		if (Boolean.valueOf(lsh)) {
+			String[] lshArgs = { 
+					"-i",         inputDirectory,
+					"-o",         outputDirectory,
+					"-dm",        distanceMeasure,
+					"-l",         numLevels,
+					"-smd",       diagScale,
+					"-precision", precision,
+					"-knn",       knn,
+					"-tables",    tables,
+					"-hashes",    hashes,
+					"-width",     width,
+					"-maxBucket", maxBucket,
+					"-seed",      seed,
+					"-recall",    recall };
+			return ToolRunner.run(conf, new LshSimilarityMatrixJob(), lshArgs);
+		}
+
+		if (Integer.valueOf(numBlocks) > 0) {
+			String[] blockedArgs = { 
+					"-i",         inputDirectory,
+					"-o",         outputDirectory,
+					"-dm",        distanceMeasure,
+					"-l",         numLevels,
+					"-smd",       diagScale,
+					"-precision", precision,
+					"-blocks",    numBlocks,
+					"-knn",       knn };
+			return ToolRunner.run(conf, new BlockedSimilarityMatrixJob(), 
+					blockedArgs);
+		}
+
+		configureDistance(conf, distanceMeasure);
 
 		conf.setInt("numLevels", Integer.valueOf(numLevels));
 		conf.setLong("diagScale", Long.valueOf(diagScale));
-		conf.set(DISTANCE_MEASURE_KEY, measure.getClass().getName());
 		conf.set(SEEDS_PATH_KEY, inputDirectory.toString());
+		int k = Integer.valueOf(knn);
+		conf.setInt(NearestNeighbours.KNN_KEY, k);
+		String rowsDirectory = k > 0 
+				? outputDirectory + NearestNeighbours.ROWS_SUFFIX 
+				: outputDirectory;
+		Precision.configure(conf, precision, 0);
 
 		Job job = new Job(conf, "CreateSimilarityMatrix: " + inputDirectory);
 
@@ -160,7 +305,7 @@ public class CreateSimilarityMatrixJob extends InputJob {
 
 		job.setNumReduceTasks(0);
 		FileInputFormat.addInputPath(job, new Path(inputDirectory));
-		FileOutputFormat.setOutputPath(job, new Path(outputDirectory));
+		FileOutputFormat.setOutputPath(job, new Path(rowsDirectory));
 
 		job.setJarByClass(CreateSimilarityMatrixJob.class);
 
@@ -169,11 +314,52 @@ public class CreateSimilarityMatrixJob extends InputJob {
 					"CreateSimilarityMatrix failed processing " + inputDirectory);
 		}
 
+		if (k > 0) {
+			long N = job.getCounters().findCounter(
+					BlockedSimilarityMatrixJob.COUNTER_GROUP,
+					BlockedSimilarityMatrixJob.VECTORS_COUNTER).getValue();
+			NearestNeighbours.symmetrize(conf, rowsDirectory, outputDirectory,
+					(int) N);
+			Path rows = new Path(rowsDirectory);
+			rows.getFileSystem(conf).delete(rows, true);
+		}
+
 		return 0;
 
 	}
 
 
+	/**
+	 * Configure the distance selected by the <code>-dm</code> option: either
+	 * a {@link DistanceMeasure} class name, or the name of a 
+	 * {@link DenseDistance} or {@link SparseDistance} metric.
+	 * 
+	 * @param conf job configuration
+	 * @param distanceMeasure value of the <code>-dm</code> option
+	 */
+	static void configureDistance(Configuration conf, String distanceMeasure) {
+		DenseDistance.Metric metric = null;
+		SparseDistance.Metric sparseMetric = null;
+		try {
+			metric = DenseDistance.forName(distanceMeasure);
+			sparseMetric = SparseDistance.forName(distanceMeasure);
+		} catch (IllegalArgumentException e) {
+			System.err.println("[ERROR]: " + e.getMessage());
+			System.exit(1);
+		}
+
+		if (metric != null) {
+			DenseDistance.configure(conf, metric);
+		} else if (sparseMetric != null) {
+			SparseDistance.configure(conf, sparseMetric);
+		} else {
+			DistanceMeasure measure = ClassUtils.instantiateAs(
+					distanceMeasure, DistanceMeasure.class);
+			conf.set(DISTANCE_MEASURE_KEY, measure.getClass().getName());
+		}
+	}
+
+
 	/**
 	 * Redirects user input to be parsed and used as configuration values.
 	 * 
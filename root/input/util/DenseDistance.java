@@ -0,0 +1,375 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.EuclideanDistanceMeasure;
+import org.apache.mahout.common.distance.SquaredEuclideanDistanceMeasure;
+import org.apache.mahout.math.Vector;
+
+
+/**
+ * <p>
+ * Bulk distance kernel for dense vectors, computing whole tiles of 
+ * distances from a single matrix product instead of one 
+ * {@link DistanceMeasure} call per pair.
+ * </p>
+ * 
+ * <p>
+ * Vectors are copied once into row-major <code>double[]</code> blocks with
+ * their squared norms. A tile of dot products <code>X Y^T</code> is then 
+ * computed by a cache-blocked matrix multiplication, split over the rows of
+ * X on a {@link ForkJoinPool}, and turned into distances:
+ * </p>
+ * 
+ * <ul>
+ * <li>squared Euclidean: <code>|x|^2 + |y|^2 - 2 x.y</code>, clamped at 
+ * zero,</li>
+ * <li>Euclidean: the square root of the above,</li>
+ * <li>cosine: <code>1 - x.y / (|x| |y|)</code>, with the zero vector 
+ * handling of {@link CosineDistanceMeasure}.</li>
+ * </ul>
+ * 
+ * <p>
+ * The kernel is selected with <code>-dm dense:squaredeuclidean</code>, 
+ * <code>-dm dense:euclidean</code> or <code>-dm dense:cosine</code>. The 
+ * matching Mahout measure is configured as well, for any per-pair use. 
+ * Results agree with the Mahout measures up to rounding; the expanded 
+ * Euclidean form loses relative precision for points much closer together
+ * than their norms.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see CreateSimilarityMatrixJob
+ * 
+ */
+public final class DenseDistance {
+
+	public static final String PREFIX = "dense:";
+	public static final String METRIC_KEY = "similarity.dense.metric";
+	public static final String THREADS_KEY = "similarity.threads";
+
+	// Rows of X per task and per cache block, columns of Y per cache 
+	// block, and dimensions per cache block.
+	private static final int ROWS = 32;
+	private static final int COLS = 64;
+	private static final int DEPTH = 256;
+
+
+	/**
+	 * Distances the kernel computes, with their equivalent Mahout measures.
+	 */
+	public enum Metric { 
+		SQUARED_EUCLIDEAN( "squaredeuclidean", 
+				SquaredEuclideanDistanceMeasure.class ),
+		EUCLIDEAN( "euclidean", EuclideanDistanceMeasure.class ),
+		COSINE( "cosine", CosineDistanceMeasure.class );
+
+		private final String name;
+		private final Class<? extends DistanceMeasure> measure;
+
+		private Metric( String name, Class<? extends DistanceMeasure> measure ) { 
+			this.name = name;
+			this.measure = measure;
+		}
+
+		/**
+		 * @return the class name of the equivalent Mahout measure
+		 */
+		public String getMeasureClassName() { 
+			return measure.getName();
+		}
+	}
+
+
+	private DenseDistance() { 
+		;
+	}
+
+
+	/**
+	 * @param distanceMeasure value of the <code>-dm</code> option
+	 * @return the metric it selects, or null if it names a Mahout measure
+	 * @throws IllegalArgumentException if it names an unknown dense metric
+	 */
+	public static Metric forName( String distanceMeasure ) { 
+		if( !distanceMeasure.startsWith( PREFIX ) ) { 
+			return null;
+		}
+		String name = distanceMeasure.substring( PREFIX.length() );
+		for( Metric metric : Metric.values() ) { 
+			if( metric.name.equalsIgnoreCase( name ) ) { 
+				return metric;
+			}
+		}
+		throw new IllegalArgumentException( 
+				"Unknown dense distance measure: " + distanceMeasure );
+	}
+
+
+	/**
+	 * @return the dense metric configured for a job, or null if the job 
+	 * uses a Mahout measure
+	 */
+	public static Metric get( Configuration conf ) { 
+		String metric = conf.get( METRIC_KEY );
+		return metric == null ? null : Metric.valueOf( metric );
+	}
+
+
+	/**
+	 * Configure a job for a dense metric.
+	 */
+	public static void configure( Configuration conf, Metric metric ) { 
+		conf.set( METRIC_KEY, metric.name() );
+		conf.set( CreateSimilarityMatrixJob.DISTANCE_MEASURE_KEY, 
+				metric.getMeasureClassName() );
+	}
+
+
+	/**
+	 * @return a pool with the configured number of threads, one per core 
+	 * by default
+	 */
+	public static ForkJoinPool newPool( Configuration conf ) { 
+		int threads = conf.getInt( THREADS_KEY, 0 );
+		return threads > 0 ? new ForkJoinPool( threads ) : new ForkJoinPool();
+	}
+
+
+	/**
+	 * Copy vectors into a row-major block.
+	 * 
+	 * @param vectors vectors of d dimensions
+	 * @param d dimension of every vector
+	 * @return <code>n * d</code> values
+	 */
+	public static double[] flatten( List<? extends Vector> vectors, int d ) { 
+		double[] x = new double[vectors.size() * d];
+		for( int i = 0; i < vectors.size(); i++ ) { 
+			copy( vectors.get( i ), x, i, d );
+		}
+		return x;
+	}
+
+
+	/**
+	 * Copy one vector into row i of a row-major block.
+	 */
+	public static void copy( Vector vector, double[] x, int i, int d ) { 
+		if( vector.size() != d ) { 
+			throw new IllegalArgumentException( "Vector of " + vector.size()
+					+ " dimensions, expected " + d );
+		}
+		for( int k = 0; k < d; k++ ) { 
+			x[i * d + k] = vector.getQuick( k );
+		}
+	}
+
+
+	/**
+	 * @return the squared norms of the first n rows of a row-major block
+	 */
+	public static double[] norms( double[] x, int n, int d ) { 
+		double[] norms = new double[n];
+		for( int i = 0; i < n; i++ ) { 
+			double sum = 0;
+			for( int k = 0; k < d; k++ ) { 
+				double value = x[i * d + k];
+				sum += value * value;
+			}
+			norms[i] = sum;
+		}
+		return norms;
+	}
+
+
+	/**
+	 * Compute the distance of every row of X to every row of Y.
+	 * 
+	 * @param metric distance to compute
+	 * @param x row-major block of nx rows
+	 * @param xNorms squared norms of the rows of x
+	 * @param nx number of rows of x
+	 * @param y row-major block of ny rows
+	 * @param yNorms squared norms of the rows of y
+	 * @param ny number of rows of y
+	 * @param d dimension of every row
+	 * @param out row-major <code>nx * ny</code> distances
+	 * @param pool pool to run on
+	 */
+	public static void distances( final Metric metric, 
+			final double[] x, final double[] xNorms, int nx, 
+			final double[] y, final double[] yNorms, final int ny, 
+			final int d, final double[] out, ForkJoinPool pool ) { 
+		pool.invoke( new RowAction( metric, x, xNorms, 0, nx, y, yNorms, ny, 
+				d, out ) );
+	}
+
+
+	/*
+	 * Tile of rows [from, to) of X against every row of Y.
+	 */
+	private static void tile( Metric metric, double[] x, double[] xNorms, 
+			int from, int to, double[] y, double[] yNorms, int ny, int d, 
+			double[] out ) { 
+
+		for( int i = from; i < to; i++ ) { 
+			for( int j = 0; j < ny; j++ ) { 
+				out[i * ny + j] = 0;
+			}
+		}
+
+		for( int k0 = 0; k0 < d; k0 += DEPTH ) { 
+			int k1 = Math.min( d, k0 + DEPTH );
+			for( int j0 = 0; j0 < ny; j0 += COLS ) { 
+				int j1 = Math.min( ny, j0 + COLS );
+				for( int i = from; i < to; i++ ) { 
+					dot( x, i * d, y, d, j0, j1, k0, k1, out, i * ny );
+				}
+			}
+		}
+
+		for( int i = from; i < to; i++ ) { 
+			for( int j = 0; j < ny; j++ ) { 
+				out[i * ny + j] = distance( metric, out[i * ny + j], 
+						xNorms[i], yNorms[j] );
+			}
+		}
+	}
+
+
+	/*
+	 * Add the partial dot products over [k0, k1) of row xOff of X with 
+	 * rows [j0, j1) of Y, four rows of Y at a time.
+	 */
+	private static void dot( double[] x, int xOff, double[] y, int d, 
+			int j0, int j1, int k0, int k1, double[] out, int outOff ) { 
+		int j = j0;
+		for( ; j + 4 <= j1; j += 4 ) { 
+			int y0 = j * d;
+			int y1 = y0 + d;
+			int y2 = y1 + d;
+			int y3 = y2 + d;
+			double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+			for( int k = k0; k < k1; k++ ) { 
+				double xk = x[xOff + k];
+				s0 += xk * y[y0 + k];
+				s1 += xk * y[y1 + k];
+				s2 += xk * y[y2 + k];
+				s3 += xk * y[y3 + k];
+			}
+			out[outOff + j] += s0;
+			out[outOff + j + 1] += s1;
+			out[outOff + j + 2] += s2;
+			out[outOff + j + 3] += s3;
+		}
+		for( ; j < j1; j++ ) { 
+			int y0 = j * d;
+			double s = 0;
+			for( int k = k0; k < k1; k++ ) { 
+				s += x[xOff + k] * y[y0 + k];
+			}
+			out[outOff + j] += s;
+		}
+	}
+
+
+	/*
+	 * Distance from a dot product and the squared norms.
+	 */
+	private static double distance( Metric metric, double dot, 
+			double xNorm, double yNorm ) { 
+		switch( metric ) { 
+		case SQUARED_EUCLIDEAN:
+			return Math.max( 0, xNorm + yNorm - 2 * dot );
+		case EUCLIDEAN:
+			return Math.sqrt( Math.max( 0, xNorm + yNorm - 2 * dot ) );
+		default:
+			double denominator = Math.sqrt( xNorm ) * Math.sqrt( yNorm );
+			// Same corrections as CosineDistanceMeasure.
+			if( denominator < dot ) { 
+				denominator = dot;
+			}
+			// A zero vector is at distance 1 of every vector.
+			if( denominator == 0 && dot == 0 ) { 
+				return 1.0;
+			}
+			return 1.0 - dot / denominator;
+		}
+	}
+
+
+	/*
+	 * Fork/join task splitting the rows of X in halves down to a single 
+	 * cache block of rows.
+	 */
+	private static class RowAction extends RecursiveAction { 
+
+		private static final long serialVersionUID = 1L;
+
+		private final Metric metric;
+		private final double[] x;
+		private final double[] xNorms;
+		private final int from;
+		private final int to;
+		private final double[] y;
+		private final double[] yNorms;
+		private final int ny;
+		private final int d;
+		private final double[] out;
+
+		RowAction( Metric metric, double[] x, double[] xNorms, int from, 
+				int to, double[] y, double[] yNorms, int ny, int d, 
+				double[] out ) { 
+			this.metric = metric;
+			this.x = x;
+			this.xNorms = xNorms;
+			this.from = from;
+			this.to = to;
+			this.y = y;
+			this.yNorms = yNorms;
+			this.ny = ny;
+			this.d = d;
+			this.out = out;
+		}
+
+		@Override
+		protected void compute() { 
+			if( to - from <= ROWS ) { 
+				tile( metric, x, xNorms, from, to, y, yNorms, ny, d, out );
+				return;
+			}
+			int mid = ( from + to ) >>> 1;
+			invokeAll( 
+					new RowAction( metric, x, xNorms, from, mid, y, yNorms, 
+							ny, d, out ), 
+					new RowAction( metric, x, xNorms, mid, to, y, yNorms, 
+							ny, d, out ) );
+		}
+	}
+
+}
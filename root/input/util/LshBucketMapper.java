@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Mapper class for hashing the input vectors into LSH buckets.
+ * </p>
+ * 
+ * <p>
+ * Every vector is sent once to each hash table, keyed by its signature in
+ * that table (see {@link LshSignatures}), and counted.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> vector name, a prefix character followed 
+ * by the index<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding vector
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Table, Signature}<br />
+ * <code>Output value [VectorWritable]:</code> the vector, named by its 
+ * index
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see LshSimilarityMatrixJob
+ * @see BucketSimilarityReducer
+ * 
+ */
+public final class LshBucketMapper extends
+Mapper<WritableComparable<?>, VectorWritable, Text, VectorWritable> {
+
+	private LshSignatures lsh;
+	private long[] signatures;
+
+	private final Text keyOut = new Text();
+	private final VectorWritable valOut = new VectorWritable();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		lsh = new LshSignatures(context.getConfiguration());
+		signatures = new long[lsh.getTables()];
+	}
+
+
+	@Override
+	protected void map(WritableComparable<?> key, VectorWritable value,
+			Context context) throws IOException, InterruptedException {
+
+		String keyName = key.toString().substring(1);
+
+		lsh.sign(value.get(), signatures);
+		valOut.set(new NamedVector(value.get(), keyName));
+
+		for (int t = 0; t < signatures.length; t++) {
+			keyOut.set(t + "\t" + Long.toHexString(signatures[t]));
+			context.write(keyOut, valOut);
+		}
+
+		context.getCounter(BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BlockedSimilarityMatrixJob.VECTORS_COUNTER).increment(1);
+	}
+
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.TanimotoDistanceMeasure;
+import org.apache.mahout.math.Vector;
+
+
+/**
+ * <p>
+ * Locality sensitive hash signatures of the input vectors.
+ * </p>
+ * 
+ * <p>
+ * Every vector is hashed into L tables with K hash functions each; two 
+ * vectors are candidate neighbours if their K hashes agree in at least 
+ * one table. For angular distances (cosine, Tanimoto) a hash is the side 
+ * of a random hyperplane the vector falls on, and the K bits of a table 
+ * are packed into its signature. For Euclidean distances a hash is 
+ * <code>floor((a.v + b) / w)</code>, with a drawn from a Gaussian (a 
+ * 2-stable distribution) and b uniform in [0, w), and the K buckets of a 
+ * table are mixed into its signature.
+ * </p>
+ * 
+ * <p>
+ * More hashes per table make buckets smaller and faster to search but 
+ * miss more neighbours; more tables, or a wider w, find more of them at 
+ * the cost of more candidate pairs. The projections are drawn from a 
+ * seeded generator, so every task builds the same ones.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see LshSimilarityMatrixJob
+ * @see LshBucketMapper
+ * 
+ */
+final class LshSignatures {
+
+	public static final String TABLES_KEY = "lsh.tables";
+	public static final String HASHES_KEY = "lsh.hashes";
+	public static final String WIDTH_KEY = "lsh.width";
+	public static final String SEED_KEY = "lsh.seed";
+	public static final String FAMILY_KEY = "lsh.family";
+	public static final String MAX_BUCKET_KEY = "lsh.maxBucket";
+
+	/** Hash families. */
+	enum Family { 
+		/** Signed random projections, for angular distances. */
+		HYPERPLANE,
+		/** Quantized Gaussian projections, for Euclidean distances. */
+		P_STABLE
+	}
+
+	private final Family family;
+	private final int tables;
+	private final int hashes;
+	private final double width;
+	private final long seed;
+
+	// Projections, dimension major: proj[j * tables * hashes + h].
+	private double[] proj;
+	private double[] offsets;
+	private int dimension = -1;
+
+	private final double[] dots;
+
+
+	LshSignatures(Configuration conf) { 
+		family = Family.valueOf(conf.get(FAMILY_KEY, Family.P_STABLE.name()));
+		tables = conf.getInt(TABLES_KEY, 8);
+		hashes = conf.getInt(HASHES_KEY, 12);
+		width = conf.getFloat(WIDTH_KEY, 4.0f);
+		seed = conf.getLong(SEED_KEY, 1L);
+		if (tables < 1 || hashes < 1 || width <= 0) { 
+			throw new IllegalArgumentException("LSH needs at least one "
+					+ "table, one hash and a positive bucket width");
+		}
+		if (family == Family.HYPERPLANE && hashes > 64) { 
+			throw new IllegalArgumentException(
+					"At most 64 hyperplanes fit a signature: " + hashes);
+		}
+		dots = new double[tables * hashes];
+	}
+
+
+	/**
+	 * The hash family suited to a distance: hyperplanes for the angular 
+	 * ones, 2-stable projections for the others.
+	 * 
+	 * @param conf configuration holding the distance of the job
+	 */
+	static Family familyOf(Configuration conf) { 
+		String measure = conf.get(
+				CreateSimilarityMatrixJob.DISTANCE_MEASURE_KEY, "");
+		if (measure.equals(CosineDistanceMeasure.class.getName())
+				|| measure.equals(TanimotoDistanceMeasure.class.getName())) { 
+			return Family.HYPERPLANE;
+		}
+		return Family.P_STABLE;
+	}
+
+
+	int getTables() { 
+		return tables;
+	}
+
+
+	/**
+	 * Hash a vector into every table.
+	 * 
+	 * @param v vector to hash
+	 * @param signatures filled with the signature of each table
+	 */
+	void sign(Vector v, long[] signatures) { 
+
+		if (dimension != v.size()) { 
+			initialize(v.size());
+		}
+
+		int count = tables * hashes;
+		Arrays.fill(dots, 0.0);
+		Iterator<Vector.Element> elements = v.iterateNonZero();
+		while (elements.hasNext()) { 
+			Vector.Element element = elements.next();
+			double x = element.get();
+			int offset = element.index() * count;
+			for (int h = 0; h < count; h++) { 
+				dots[h] += x * proj[offset + h];
+			}
+		}
+
+		for (int t = 0; t < tables; t++) { 
+			long signature = 0;
+			for (int h = t * hashes; h < (t + 1) * hashes; h++) { 
+				if (family == Family.HYPERPLANE) { 
+					signature = signature << 1 | (dots[h] >= 0 ? 1 : 0);
+				} else { 
+					long bucket = (long) Math.floor(
+							(dots[h] + offsets[h]) / width);
+					signature = mix(signature * 31 + bucket);
+				}
+			}
+			signatures[t] = signature;
+		}
+	}
+
+
+	/*
+	 * Draw the projections for vectors of the given dimension.
+	 */
+	private void initialize(int d) { 
+		Random random = new Random(seed);
+		int count = tables * hashes;
+		proj = new double[d * count];
+		for (int k = 0; k < proj.length; k++) { 
+			proj[k] = random.nextGaussian();
+		}
+		offsets = new double[count];
+		for (int h = 0; h < count; h++) { 
+			offsets[h] = random.nextDouble() * width;
+		}
+		dimension = d;
+	}
+
+
+	/*
+	 * SplitMix64 finalizer.
+	 */
+	private static long mix(long z) { 
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+}
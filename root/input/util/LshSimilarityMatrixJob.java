@@ -0,0 +1,542 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.common.ClassUtils;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.Precision;
+import root.input.InputJob;
+
+
+/**
+ * <p>
+ * Create a sparse k-nearest-neighbour similarity matrix from locality 
+ * sensitive hash candidates.
+ * </p>
+ * 
+ * <p>
+ * Instead of comparing every pair of vectors, each vector is hashed into 
+ * several tables by {@link LshBucketMapper}, and only the vectors sharing
+ * a bucket are compared, exactly, by {@link BucketSimilarityReducer}. 
+ * {@link NeighbourMergeReducer} keeps the k nearest candidates of every 
+ * vector, and the kept edges are made symmetric as for 
+ * <code>CreateSimilarityMatrixJob -knn</code> (see 
+ * {@link NearestNeighbours}). The output is the sparse similarity matrix 
+ * read by the Hierarchical Affinity Propagation job in 
+ * <code>-sparse</code> mode.
+ * </p>
+ * 
+ * <p>
+ * Cosine and Tanimoto distances are hashed with random hyperplanes, other 
+ * distances with 2-stable projections of bucket width <code>-width</code> 
+ * (see {@link LshSignatures}). <code>-tables</code>, <code>-hashes</code>,
+ * <code>-width</code> and <code>-maxBucket</code> trade recall for speed.
+ * With <code>-recall m</code>, the nearest neighbours of m sampled vectors
+ * are also found by brute force, and the fraction of them the hash tables
+ * found is reported together with the number of pairs compared.
+ * </p>
+ * 
+ * <p>
+ * A fixed bucket width only suits data of one scale, so by default the 
+ * width is estimated from a sample of the input: four times the median 
+ * distance of a sampled vector to its k-th nearest neighbour, with 4 
+ * hashes per table. A pair at that distance then shares a bucket of one of
+ * the 8 default tables with a probability of about 0.98. Angular hashes 
+ * do not depend on scale and default to 12 per table.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> vector name, a prefix character followed 
+ * by the index<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding vector
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Row Number,
+ * LevelNumber, ID}<br />
+ * <code>Output value [VectorWritable]:</code> sparse vector of 
+ * appropriate data
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see CreateSimilarityMatrixJob
+ * @see LshSignatures
+ * 
+ */
+public class LshSimilarityMatrixJob extends InputJob {
+
+	private static String inputDirectory;
+	private static String outputDirectory;
+	private static String distanceMeasure;
+	private static String numLevels;
+	private static String diagScale;
+	private static String precision;
+	private static String knn;
+	private static String tables;
+	private static String hashes;
+	private static String width;
+	private static String maxBucket;
+	private static String seed;
+	private static String recall;
+
+	// Vectors sampled to estimate the bucket width.
+	private static final int WIDTH_SAMPLES = 1000;
+
+	// Bucket width, in distances to the k-th nearest neighbour.
+	private static final double WIDTH_SCALE = 4.0;
+
+	// Default hashes per table of each family.
+	private static final int HYPERPLANE_HASHES = 12;
+	private static final int P_STABLE_HASHES = 4;
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void constructParameterList() {
+
+		addOption("input", "i", "Input Directory", true);
+		addOption("out", "o", "Output Directory", true);
+		addOption("distance", "dm", "Distance Measure", true);
+		addOption("numLevels","l","Number of Levels",true);
+		addOption("diagScale","smd","Similarity Matrix seed scale",true);
+		addOption("precision", "precision", 
+				"Storage Precision (double, float, bfloat16)", "double");
+		addOption("knn", "knn", "Nearest Neighbours kept per Row", "10");
+		addOption("tables", "tables", "Number of Hash Tables", "8");
+		addOption("hashes", "hashes", 
+				"Hashes per Table (0: 12 for cosine and tanimoto, 4 otherwise;"
+				+ " at most 64 for cosine and tanimoto)", "0");
+		addOption("width", "width", 
+				"Bucket Width of the Euclidean Hashes (0: estimated from a " 
+				+ "sample)", "0");
+		addOption("maxBucket", "maxBucket", 
+				"Vectors compared together at most", "1000");
+		addOption("seed", "seed", "Seed of the Hash Functions", "1");
+		addOption("recall", "recall", 
+				"Vectors sampled for the Recall Report (0: no report)", "100");
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void initializeConfigurationParameters() {
+
+		inputDirectory = getOption("input");
+		inputDirectory = cleanDirectoryName(inputDirectory);
+		outputDirectory = getOption("out");
+		outputDirectory = cleanDirectoryName(outputDirectory);
+		distanceMeasure = getOption("distance");
+		numLevels = getOption("numLevels");
+		diagScale = getOption("diagScale");
+		precision = getOption("precision");
+		knn = getOption("knn");
+		tables = getOption("tables");
+		hashes = getOption("hashes");
+		width = getOption("width");
+		maxBucket = getOption("maxBucket");
+		seed = getOption("seed");
+		recall = getOption("recall");
+
+		if (Integer.valueOf(knn) <= 0) {
+			System.err.println("[ERROR]: Invalid number of neighbours.");
+			System.err.println("[INFO]: knn = " + knn);
+			System.exit(1);
+		}
+
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void printConfiguredParameters() { 
+		System.out.println("[INFO]: LSH Similarity Matrix Job" );
+		System.out.println("\t-i\t\t" + inputDirectory);
+		System.out.println("\t-o\t\t" + outputDirectory);
+		System.out.println("\t-dm\t\t" + distanceMeasure);
+		System.out.println("\t-l\t\t" + numLevels);
+		System.out.println("\t-smd\t\t" + diagScale);
+		System.out.println("\t-precision\t" + precision);
+		System.out.println("\t-knn\t\t" + knn);
+		System.out.println("\t-tables\t" + tables);
+		System.out.println("\t-hashes\t" + hashes);
+		System.out.println("\t-width\t\t" + width);
+		System.out.println("\t-maxBucket\t" + maxBucket);
+		System.out.println("\t-seed\t\t" + seed);
+		System.out.println("\t-recall\t" + recall);
+		System.out.println();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int run(String[] args) throws Exception {
+
+		constructParameterList();
+
+		if (parseArguments(args) == null) {
+			return -1;
+		}
+
+		initializeConfigurationParameters();
+
+		printJobHeader();
+
+		Configuration conf = getConf();
+
+		String candidatesDirectory = outputDirectory + "-candidates";
+		String rowsDirectory = outputDirectory + NearestNeighbours.ROWS_SUFFIX;
+		int k = Integer.valueOf(knn);
+
+		conf.setInt("numLevels", Integer.valueOf(numLevels));
+		conf.setLong("diagScale", Long.valueOf(diagScale));
+		CreateSimilarityMatrixJob.configureDistance(conf, distanceMeasure);
+		conf.setInt(NearestNeighbours.KNN_KEY, k);
+		conf.setInt(LshSignatures.MAX_BUCKET_KEY, Integer.valueOf(maxBucket));
+		conf.setLong(LshSignatures.SEED_KEY, Long.valueOf(seed));
+		Precision.configure(conf, precision, 0);
+
+		URI workingURI = new URI(conf.get("fs.default.name"));
+		FileSystem workingFS = FileSystem.get(workingURI, conf);
+
+		LshSignatures.Family family = LshSignatures.familyOf(conf);
+		int K = Integer.valueOf(hashes);
+		if (K <= 0) {
+			K = family == LshSignatures.Family.HYPERPLANE 
+					? HYPERPLANE_HASHES : P_STABLE_HASHES;
+		}
+		double w = Double.valueOf(width);
+		if (w <= 0) {
+			w = family == LshSignatures.Family.HYPERPLANE 
+					? 1.0 : estimateWidth(conf, workingFS, k);
+		}
+
+		conf.set(LshSignatures.FAMILY_KEY, family.name());
+		conf.setInt(LshSignatures.TABLES_KEY, Integer.valueOf(tables));
+		conf.setInt(LshSignatures.HASHES_KEY, K);
+		conf.setFloat(LshSignatures.WIDTH_KEY, (float) w);
+
+		System.out.println("[INFO]: Hashes per table: " + K);
+		if (family == LshSignatures.Family.P_STABLE) {
+			System.out.println("[INFO]: Bucket width: " + w);
+		}
+
+		// 1: Hash the vectors and search every bucket.
+		Job buckets = new Job(conf, "LshBuckets: " + inputDirectory);
+
+		buckets.setInputFormatClass(SequenceFileInputFormat.class);
+		buckets.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		buckets.setMapOutputKeyClass(Text.class);
+		buckets.setMapOutputValueClass(VectorWritable.class);
+		buckets.setOutputKeyClass(IntWritable.class);
+		buckets.setOutputValueClass(VectorWritable.class);
+		buckets.setMapperClass(LshBucketMapper.class);
+		buckets.setReducerClass(BucketSimilarityReducer.class);
+
+		FileInputFormat.addInputPath(buckets, new Path(inputDirectory));
+		FileOutputFormat.setOutputPath(buckets, new Path(candidatesDirectory));
+
+		buckets.setJarByClass(LshSimilarityMatrixJob.class);
+
+		if (!buckets.waitForCompletion(true)) {
+			throw new IllegalStateException(
+					"LshBuckets failed processing " + inputDirectory);
+		}
+
+		long N = buckets.getCounters().findCounter(
+				BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BlockedSimilarityMatrixJob.VECTORS_COUNTER).getValue();
+		long pairs = buckets.getCounters().findCounter(
+				BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BucketSimilarityReducer.PAIRS_COUNTER).getValue();
+		conf.setInt("matrixN", (int) N);
+
+		// 2: Keep the k nearest candidates of every vector.
+		Job merge = new Job(conf, "LshCandidates: " + inputDirectory);
+
+		merge.setInputFormatClass(SequenceFileInputFormat.class);
+		merge.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		merge.setMapOutputKeyClass(IntWritable.class);
+		merge.setMapOutputValueClass(VectorWritable.class);
+		merge.setOutputKeyClass(Text.class);
+		merge.setOutputValueClass(VectorWritable.class);
+		merge.setMapperClass(Mapper.class);
+		merge.setReducerClass(NeighbourMergeReducer.class);
+
+		FileInputFormat.addInputPath(merge, new Path(candidatesDirectory));
+		FileOutputFormat.setOutputPath(merge, new Path(rowsDirectory));
+
+		merge.setJarByClass(LshSimilarityMatrixJob.class);
+
+		if (!merge.waitForCompletion(true)) {
+			throw new IllegalStateException(
+					"LshCandidates failed processing " + candidatesDirectory);
+		}
+
+		workingFS.delete(new Path(candidatesDirectory), true);
+
+		// A pair sharing a bucket in several tables is compared in each.
+		System.out.println("[INFO]: Pair comparisons over all tables: " 
+				+ pairs + " (" + (N * (N - 1) / 2) + " distinct pairs exist)");
+
+		// 3: Compare the neighbours found with brute force on a sample.
+		int samples = (int) Math.min(Integer.valueOf(recall), N);
+		if (samples > 0) {
+			reportRecall(conf, workingFS, rowsDirectory, (int) N, k, samples);
+		}
+
+		// 4: Mirror the kept neighbours into the sparse matrix.
+		NearestNeighbours.symmetrize(conf, rowsDirectory, outputDirectory,
+				(int) N);
+		workingFS.delete(new Path(rowsDirectory), true);
+
+		return 0;
+
+	}
+
+
+	/*
+	 * Estimate the bucket width of the Euclidean hashes from a uniform 
+	 * sample of the input: the median distance of a sampled vector to its 
+	 * r-th nearest sampled neighbour, where r is scaled by the sampled 
+	 * fraction to stand for the k-th nearest neighbour of all vectors, 
+	 * times WIDTH_SCALE.
+	 */
+	private static double estimateWidth(Configuration conf, FileSystem fs, 
+			int k) throws IOException {
+
+		Random random = new Random(conf.getLong(LshSignatures.SEED_KEY, 1L));
+		Vector[] sampled = new Vector[WIDTH_SAMPLES];
+		long seen = 0;
+
+		// Reservoir sample of the input.
+		for (Path part : parts(fs, inputDirectory)) {
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, part, conf);
+			Writable key = (Writable) ReflectionUtils.newInstance(
+					reader.getKeyClass(), conf);
+			VectorWritable value = new VectorWritable();
+			try {
+				while (reader.next(key, value)) {
+					long slot = seen < WIDTH_SAMPLES 
+							? seen : (long) (random.nextDouble() * (seen + 1));
+					if (slot < WIDTH_SAMPLES) {
+						sampled[(int) slot] = value.get();
+					}
+					seen++;
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		int samples = (int) Math.min(seen, WIDTH_SAMPLES);
+		if (samples < 2) {
+			return WIDTH_SCALE;
+		}
+		int rank = (int) Math.min(samples - 1, 
+				Math.max(1, Math.ceil((double) k * samples / seen)));
+
+		double[] distances = new double[samples - 1];
+		double[] kth = new double[samples];
+		for (int s = 0; s < samples; s++) {
+			int count = 0;
+			for (int t = 0; t < samples; t++) {
+				if (t != s) {
+					distances[count++] = 
+							Math.sqrt(sampled[s].getDistanceSquared(sampled[t]));
+				}
+			}
+			Arrays.sort(distances);
+			kth[s] = distances[rank - 1];
+		}
+		Arrays.sort(kth);
+
+		double median = kth[samples / 2];
+		return median > 0 ? WIDTH_SCALE * median : WIDTH_SCALE;
+	}
+
+
+	/*
+	 * Find the k nearest neighbours of sampled vectors by brute force, in 
+	 * two passes over the input, and report the fraction of them among the 
+	 * neighbours found through the hash tables.
+	 */
+	private static void reportRecall(Configuration conf, FileSystem fs, 
+			String rowsDirectory, int N, int k, int samples) 
+					throws Exception {
+
+		DistanceMeasure measure = ClassUtils.instantiateAs(
+				conf.get(CreateSimilarityMatrixJob.DISTANCE_MEASURE_KEY),
+				DistanceMeasure.class);
+		measure.configure(conf);
+
+		// Draw distinct sample indices.
+		Random random = new Random(conf.getLong(LshSignatures.SEED_KEY, 1L));
+		Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+		while (positions.size() < samples) {
+			int index = random.nextInt(N);
+			if (!positions.containsKey(index)) {
+				positions.put(index, positions.size());
+			}
+		}
+		Vector[] sampled = new Vector[samples];
+		NearestNeighbours.TopK[] truth = new NearestNeighbours.TopK[samples];
+		for (int s = 0; s < samples; s++) {
+			truth[s] = new NearestNeighbours.TopK(k);
+		}
+
+		// First pass: load the sampled vectors.
+		for (Path part : parts(fs, inputDirectory)) {
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, part, conf);
+			Writable key = (Writable) ReflectionUtils.newInstance(
+					reader.getKeyClass(), conf);
+			VectorWritable value = new VectorWritable();
+			try {
+				while (reader.next(key, value)) {
+					Integer s = positions.get(
+							Integer.valueOf(key.toString().substring(1)));
+					if (s != null) {
+						sampled[s] = value.get();
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		// Second pass: compare every vector with the sampled ones.
+		for (Path part : parts(fs, inputDirectory)) {
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, part, conf);
+			Writable key = (Writable) ReflectionUtils.newInstance(
+					reader.getKeyClass(), conf);
+			VectorWritable value = new VectorWritable();
+			try {
+				while (reader.next(key, value)) {
+					int j = Integer.valueOf(key.toString().substring(1));
+					for (Map.Entry<Integer, Integer> sample 
+							: positions.entrySet()) {
+						int s = sample.getValue();
+						if (sample.getKey() != j && sampled[s] != null) {
+							truth[s].offer(j, 
+									-1 * measure.distance(sampled[s], value.get()));
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		// Count the true neighbours among the rows found by the job.
+		long found = 0;
+		long expected = 0;
+		for (Path part : parts(fs, rowsDirectory)) {
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, part, conf);
+			Text key = new Text();
+			VectorWritable value = new VectorWritable();
+			try {
+				while (reader.next(key, value)) {
+					Integer s = positions.get(Integer.valueOf(key.toString()));
+					if (s == null) {
+						continue;
+					}
+					expected += truth[s].size();
+					Iterator<Vector.Element> elements = 
+							value.get().iterateNonZero();
+					while (elements.hasNext()) {
+						if (truth[s].contains(elements.next().index())) {
+							found++;
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		System.out.println("[INFO]: Recall@" + k + " over " + samples 
+				+ " sampled vectors: " 
+				+ (expected > 0 ? (double) found / expected : 1.0));
+	}
+
+
+	/*
+	 * The part files of a job output directory.
+	 */
+	private static Path[] parts(FileSystem fs, String directory) 
+			throws IOException {
+		FileStatus[] files = fs.listStatus(new Path(directory));
+		int count = 0;
+		Path[] paths = new Path[files.length];
+		for (FileStatus file : files) {
+			if (file.getPath().getName().startsWith("part-")) {
+				paths[count++] = file.getPath();
+			}
+		}
+		return Arrays.copyOf(paths, count);
+	}
+
+
+	/**
+	 * Redirects user input to be parsed and used as configuration values.
+	 * 
+	 * @param args User arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), 
+				new LshSimilarityMatrixJob(), args);
+		System.exit(res);
+	}
+
+}
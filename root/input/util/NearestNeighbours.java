@@ -0,0 +1,279 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.SparseEdges;
+
+
+/**
+ * <p>
+ * Sparse k-nearest-neighbour similarity matrices.
+ * </p>
+ * 
+ * <p>
+ * With <code>-knn k</code>, {@link CreateSimilarityMatrixJob} and 
+ * {@link BlockedSimilarityMatrixJob} compute every row of S as usual, but
+ * keep only its k largest similarities (the diagonal aside) and write them
+ * as a sparse row. The kept edges are then made symmetric: 
+ * {@link NeighbourMirrorMapper} sends every edge to both of its rows, and 
+ * {@link SimilarityRowReducer} merges them, adds the diagonal and writes 
+ * the sparse records read by the Hierarchical Affinity Propagation job in
+ * <code>-sparse</code> mode (see {@link SparseEdges}). Row i therefore 
+ * holds its own k nearest neighbours and every point that has i among 
+ * its own, so the rows of S and its columns have the same edges.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see CreateSimilarityMatrixJob
+ * @see BlockedSimilarityMatrixJob
+ * 
+ */
+public final class NearestNeighbours {
+
+	public static final String KNN_KEY = "similarity.knn";
+
+	/** Suffix of the directory holding the rows before they are mirrored. */
+	static final String ROWS_SUFFIX = "-knn";
+
+
+	private NearestNeighbours() { 
+		;
+	}
+
+
+	/**
+	 * @return the number of neighbours kept per row, or 0 for a dense 
+	 * similarity matrix
+	 */
+	public static int get(Configuration conf) { 
+		return conf.getInt(KNN_KEY, 0);
+	}
+
+
+	/**
+	 * Keep the k largest elements of a row of S, other than the diagonal.
+	 * Only the stored elements of a sparse row are candidates.
+	 * 
+	 * @param row row of similarities
+	 * @param self index of the diagonal element
+	 * @param k number of elements to keep
+	 * @return the kept elements, as a sparse vector of the same size
+	 */
+	static Vector select(Vector row, int self, int k) { 
+
+		TopK top = new TopK(Math.min(k, row.size() - 1));
+
+		Iterator<Vector.Element> elements = row.isDense() 
+				? row.iterator() : row.iterateNonZero();
+		while (elements.hasNext()) { 
+			Vector.Element element = elements.next();
+			if (element.index() != self) { 
+				top.offer(element.index(), element.get());
+			}
+		}
+
+		return top.toVector(row.size());
+	}
+
+
+	/**
+	 * Write the k nearest neighbours of a row, keyed by its index, and 
+	 * count the row.
+	 */
+	static void writeRow(
+			TaskInputOutputContext<?, ?, Text, VectorWritable> context, 
+			String keyName, Vector row, int k) 
+					throws IOException, InterruptedException {
+
+		Vector kept = select(row, Integer.valueOf(keyName), k);
+		context.write(new Text(keyName), new VectorWritable(kept));
+
+		context.getCounter(BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BlockedSimilarityMatrixJob.VECTORS_COUNTER).increment(1);
+	}
+
+
+	/**
+	 * Mirror the kept edges and write the final sparse similarity matrix.
+	 * 
+	 * @param conf configuration of the similarity job
+	 * @param rowsDirectory rows written by {@link #writeRow}
+	 * @param outputDirectory similarity matrix directory
+	 * @param N number of rows
+	 */
+	static void symmetrize(Configuration conf, String rowsDirectory, 
+			String outputDirectory, int N) throws IOException, 
+			InterruptedException, ClassNotFoundException {
+
+		Configuration mirrorConf = new Configuration(conf);
+		mirrorConf.setInt(KNN_KEY, 0);
+		mirrorConf.setBoolean(SparseEdges.SPARSE_KEY, true);
+		mirrorConf.setInt("matrixN", N);
+
+		Job job = new Job(mirrorConf, "MirrorNeighbours: " + rowsDirectory);
+
+		job.setInputFormatClass(SequenceFileInputFormat.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+		job.setMapOutputKeyClass(IntWritable.class);
+		job.setMapOutputValueClass(VectorWritable.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(VectorWritable.class);
+		job.setMapperClass(NeighbourMirrorMapper.class);
+		job.setReducerClass(SimilarityRowReducer.class);
+
+		FileInputFormat.addInputPath(job, new Path(rowsDirectory));
+		FileOutputFormat.setOutputPath(job, new Path(outputDirectory));
+
+		job.setJarByClass(NearestNeighbours.class);
+
+		if (!job.waitForCompletion(true)) {
+			throw new IllegalStateException(
+					"MirrorNeighbours failed processing " + rowsDirectory);
+		}
+	}
+
+
+	/**
+	 * The k largest values offered, with their indices, kept in a min-heap.
+	 */
+	static final class TopK { 
+
+		private final double[] values;
+		private final int[] indices;
+		private int size;
+
+
+		TopK(int k) { 
+			values = new double[Math.max(k, 0)];
+			indices = new int[values.length];
+		}
+
+
+		void clear() { 
+			size = 0;
+		}
+
+
+		int size() { 
+			return size;
+		}
+
+
+		void offer(int index, double value) { 
+			if (size < values.length) { 
+				values[size] = value;
+				indices[size] = index;
+				siftUp(values, indices, size++);
+			} else if (size > 0 && value > values[0]) { 
+				values[0] = value;
+				indices[0] = index;
+				siftDown(values, indices, size);
+			}
+		}
+
+
+		/**
+		 * @return whether index is among the values kept
+		 */
+		boolean contains(int index) { 
+			for (int h = 0; h < size; h++) { 
+				if (indices[h] == index) { 
+					return true;
+				}
+			}
+			return false;
+		}
+
+
+		/**
+		 * @param n size of the vector
+		 * @return the kept values, encoded as edges of a sparse row
+		 */
+		Vector toVector(int n) { 
+			Vector kept = new SequentialAccessSparseVector(n, size);
+			for (int h = 0; h < size; h++) { 
+				kept.setQuick(indices[h], SparseEdges.encode(values[h]));
+			}
+			return kept;
+		}
+	}
+
+
+	private static void siftUp(double[] values, int[] indices, int i) { 
+		while (i > 0) { 
+			int parent = (i - 1) >>> 1;
+			if (values[parent] <= values[i]) { 
+				return;
+			}
+			swap(values, indices, parent, i);
+			i = parent;
+		}
+	}
+
+
+	private static void siftDown(double[] values, int[] indices, int size) { 
+		int i = 0;
+		while (true) { 
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < size && values[left] < values[smallest]) { 
+				smallest = left;
+			}
+			if (right < size && values[right] < values[smallest]) { 
+				smallest = right;
+			}
+			if (smallest == i) { 
+				return;
+			}
+			swap(values, indices, smallest, i);
+			i = smallest;
+		}
+	}
+
+
+	private static void swap(double[] values, int[] indices, int a, int b) { 
+		double value = values[a];
+		values[a] = values[b];
+		values[b] = value;
+		int index = indices[a];
+		indices[a] = indices[b];
+		indices[b] = index;
+	}
+
+}
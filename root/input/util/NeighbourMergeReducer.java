@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Reducer class for merging the neighbours found in the candidate buckets.
+ * </p>
+ * 
+ * <p>
+ * A vector meets its candidate neighbours once in every bucket they share;
+ * the partial rows of all its buckets are merged, and the k nearest 
+ * candidates kept, as {@link NearestNeighbours#select} does for a 
+ * full row.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [IntWritable]:</code> row number<br />
+ * <code>Input value [Iterable&lt;VectorWritable&gt;]:</code> partial rows
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> row number<br />
+ * <code>Output value [VectorWritable]:</code> the kept neighbours of the 
+ * row
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see LshSimilarityMatrixJob
+ * @see CanopySimilarityMatrixJob
+ * @see BucketSimilarityReducer
+ * 
+ */
+public final class NeighbourMergeReducer extends
+Reducer<IntWritable, VectorWritable, Text, VectorWritable> {
+
+	private int N;
+	private int knn;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		N = context.getConfiguration().getInt("matrixN", -1);
+		knn = NearestNeighbours.get(context.getConfiguration());
+	}
+
+
+	@Override
+	protected void reduce(IntWritable keyIn, Iterable<VectorWritable> valIn,
+			Context context) throws IOException, InterruptedException {
+
+		Vector merged = new RandomAccessSparseVector(N);
+
+		for (VectorWritable partial : valIn) {
+			Iterator<Vector.Element> elements = partial.get().iterateNonZero();
+			while (elements.hasNext()) {
+				Vector.Element element = elements.next();
+				merged.setQuick(element.index(), element.get());
+			}
+		}
+
+		NearestNeighbours.writeRow(context, keyIn.get() + "", merged, knn);
+	}
+
+}
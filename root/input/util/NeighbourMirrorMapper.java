@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Mapper class for making the k-nearest-neighbour edges symmetric.
+ * </p>
+ * 
+ * <p>
+ * Every row of kept neighbours is sent to its own row as is, and each of 
+ * its edges (i, j) to row j as a partial row holding the single element 
+ * (j, i). {@link SimilarityRowReducer} merges them.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> row number<br />
+ * <code>Input value [VectorWritable]:</code> the kept neighbours of the row
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [IntWritable]:</code> row number<br />
+ * <code>Output value [VectorWritable]:</code> partial row
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see NearestNeighbours
+ * 
+ */
+public final class NeighbourMirrorMapper extends
+Mapper<Text, VectorWritable, IntWritable, VectorWritable> {
+
+	private final IntWritable keyOut = new IntWritable();
+	private final VectorWritable valOut = new VectorWritable();
+
+
+	@Override
+	protected void map(Text key, VectorWritable value, Context context) 
+			throws IOException, InterruptedException {
+
+		int row = Integer.valueOf(key.toString());
+		Vector neighbours = value.get();
+
+		keyOut.set(row);
+		context.write(keyOut, value);
+
+		Iterator<Vector.Element> elements = neighbours.iterateNonZero();
+		while (elements.hasNext()) {
+			Vector.Element element = elements.next();
+			Vector partial = new SequentialAccessSparseVector(
+					neighbours.size(), 1);
+			partial.setQuick(row, element.get());
+
+			keyOut.set(element.index());
+			valOut.set(partial);
+			context.write(keyOut, valOut);
+		}
+	}
+
+}
@@ -17,18 +17,23 @@ package root.input.util;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.mahout.common.ClassUtils;
 import org.apache.mahout.common.distance.DistanceMeasure;
 import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
+import root.hap.util.Precision;
+
 
 /**
  * <p>
@@ -43,6 +48,19 @@ import org.apache.mahout.math.VectorWritable;
  * </p>
  * 
  * <p>
+ * With a {@link DenseDistance} metric, input vectors are batched and each
+ * batch is compared with every seed vector as a single tile. With a 
+ * {@link SparseDistance} metric, each input vector is compared with an 
+ * inverted index over the seed vectors' terms.
+ * </p>
+ * 
+ * <p>
+ * With <code>-knn k</code>, only the k nearest neighbours of each row are
+ * written, to be mirrored into a sparse matrix; see 
+ * {@link NearestNeighbours}.
+ * </p>
+ * 
+ * <p>
  * <code>Input key [Text]:</code> column number<br />
  * <code>Input value [VectorWritable]:</code> the corresponding vector
  * </p>
@@ -70,9 +88,31 @@ Mapper<WritableComparable<?>, VectorWritable, Text, VectorWritable> {
 	private DistanceMeasure measure;
 	private List<NamedVector> seedVectors;
 
-	private final double TAU_INIT = Double.POSITIVE_INFINITY;
+	// Dense kernel state: the seed vectors in position order, and a batch
+	// of input vectors waiting to be compared with them as one tile.
+	private static final int BATCH = 256;
+
+	private DenseDistance.Metric metric;
+	private ForkJoinPool pool;
+	private int dimensions;
+	private double[] seeds;
+	private double[] seedNorms;
+	private double[] batch;
+	private double[] distances;
+	private int[] batchIndex;
+	private String[] batchNames;
+	private int batchSize;
+
+	// Sparse kernel state: an inverted index over the seed vectors in 
+	// position order.
+	private SparseDistance.Metric sparseMetric;
+	private SparseDistance.Index sparseIndex;
+	private double[] sparseDistances;
+
+	private static final double TAU_INIT = Double.POSITIVE_INFINITY;
 
 	private double smatDiagScale;
+	private int knn;
 
 	@Override
 	protected void map(WritableComparable<?> key, VectorWritable value,
@@ -80,20 +120,42 @@ Mapper<WritableComparable<?>, VectorWritable, Text, VectorWritable> {
 
 		smatDiagScale = context.getConfiguration().getLong("diagScale", -1);
 		int levels = context.getConfiguration().getInt("numLevels", -1);
+		Precision precision = Precision.get(context.getConfiguration());
 
 		String keyName = key.toString().substring(1);
 		Vector valVec = value.get();
 
+		if (metric != null) {
+			DenseDistance.copy(valVec, batch, batchSize, dimensions);
+			batchIndex[batchSize] = Integer.valueOf(keyName);
+			batchNames[batchSize] = keyName;
+			if (++batchSize == BATCH) {
+				flush(context);
+			}
+			return;
+		}
+
 		int N = seedVectors.size();
 
 		DenseVector outSVec = new DenseVector(N);
 		outSVec.assign(0.0);
-		DenseVector out0Vec = new DenseVector(N);
-		out0Vec.assign(0.0);
 
-		Text outSKey = new Text(keyName + "\t0\tS");
-		Text outRKey = new Text();
-		Text outAKey = new Text();
+		if (sparseMetric != null) {
+			sparseIndex.distances(sparseMetric, 
+					SparseDistance.Row.of(valVec), sparseDistances, 0);
+			int keyPos = Integer.valueOf(keyName);
+			for (int j = 0; j < N; j++) {
+				if (j == keyPos) {
+					double diagValue = generateSMatDiagValue( smatDiagScale );
+					outSVec.setQuick(j, precision.round(diagValue));
+				} else {
+					outSVec.setQuick(j, 
+							precision.round(-1 * sparseDistances[j]));
+				}
+			}
+			writeRow(context, keyName, outSVec, levels, precision);
+			return;
+		}
 
 		for (NamedVector seedVector : seedVectors) {
 			double distance = measure.distance(seedVector, valVec);
@@ -103,18 +165,107 @@ Mapper<WritableComparable<?>, VectorWritable, Text, VectorWritable> {
 
 			if (keyName.equals(seedVectorName)) {
 				double diagValue = generateSMatDiagValue( smatDiagScale );
-				outSVec.set(seedVectorPos, diagValue );
+				outSVec.set(seedVectorPos, precision.round(diagValue));
 			} else {
-				outSVec.set(seedVectorPos, -1 * distance);
+				outSVec.set(seedVectorPos, precision.round(-1 * distance));
 			}
 		}
 
 
+		writeRow(context, keyName, outSVec, levels, precision);
+
+	}
+
+
+	/*
+	 * Compare the batched vectors with every seed vector as one tile of the
+	 * dense kernel, and write their rows.
+	 */
+	private void flush(Context context) 
+			throws IOException, InterruptedException {
+
+		if (batchSize == 0) {
+			return;
+		}
+
+		int levels = context.getConfiguration().getInt("numLevels", -1);
+		Precision precision = Precision.get(context.getConfiguration());
+		int N = seedVectors.size();
+
+		DenseDistance.distances(metric, batch, 
+				DenseDistance.norms(batch, batchSize, dimensions), batchSize,
+				seeds, seedNorms, N, dimensions, distances, pool);
+
+		for (int b = 0; b < batchSize; b++) {
+			DenseVector outSVec = new DenseVector(N);
+			for (int j = 0; j < N; j++) {
+				if (j == batchIndex[b]) {
+					double diagValue = generateSMatDiagValue( smatDiagScale );
+					outSVec.setQuick(j, precision.round(diagValue));
+				} else {
+					outSVec.setQuick(j, 
+							precision.round(-1 * distances[b * N + j]));
+				}
+			}
+			writeRow(context, batchNames[b], outSVec, levels, precision);
+		}
+
+		batchSize = 0;
+	}
+
+
+	/*
+	 * Write a finished row: with its records, or only its nearest 
+	 * neighbours with -knn.
+	 */
+	private void writeRow(Context context, String keyName, 
+			DenseVector outSVec, int levels, Precision precision) 
+					throws IOException, InterruptedException {
+		if (knn > 0) {
+			NearestNeighbours.writeRow(context, keyName, outSVec, knn);
+		} else {
+			writeRecords(context, keyName, outSVec, levels, precision);
+		}
+	}
+
+
+	/**
+	 * <p>
+	 * Write a finished row of S, together with the initial R, A, C, T and 
+	 * P records of every level, in the similarity matrix layout read by 
+	 * the Hierarchical Affinity Propagation jobs.
+	 * </p>
+	 * 
+	 * <p>
+	 * This is shared by {@link SimilarityMatrixMapper} and 
+	 * {@link SimilarityRowReducer}, which differ only in how the row of S 
+	 * is computed. A sparse row of S is written with empty sparse rows of
+	 * R and A.
+	 * </p>
+	 */
+	static void writeRecords(
+			TaskInputOutputContext<?, ?, Text, VectorWritable> context,
+			String keyName, Vector outSVec, int levels, 
+			Precision precision) throws IOException, InterruptedException {
+
+		int N = outSVec.size();
+
+		Text outSKey = new Text(keyName + "\t0\tS");
+		Text outRKey = new Text();
+		Text outAKey = new Text();
+
+		Vector out0Vec = outSVec.isDense() 
+				? new DenseVector(N) : new SequentialAccessSparseVector(N);
+
+		// S, R and A are stored in the configured precision; the scalar
+		// vectors always stay double.
 		VectorWritable outSVecWritable = new VectorWritable(outSVec);
+		outSVecWritable.setWritesLaxPrecision(precision != Precision.DOUBLE);
 
 		context.write(outSKey, outSVecWritable);
 
 		VectorWritable out0VecWritable = new VectorWritable(out0Vec);
+		out0VecWritable.setWritesLaxPrecision(precision != Precision.DOUBLE);
 
 		for (int i = 0; i < levels; i++) {
 			outRKey = new Text(keyName + "\t" + i + "\tR");
@@ -152,7 +303,7 @@ Mapper<WritableComparable<?>, VectorWritable, Text, VectorWritable> {
 	 * Generate a random value in a range offset from the scale value by
 	 * some order of magnitude.
 	 */
-	private double generateSMatDiagValue( double scale ) { 
+	static double generateSMatDiagValue( double scale ) { 
 		if( scale < 0 ) { 
 			System.err.println("[ERROR]: Invalid Similarity Matrix diagonal scale.");
 			System.exit( 1 );
@@ -185,10 +336,54 @@ Mapper<WritableComparable<?>, VectorWritable, Text, VectorWritable> {
 					DistanceMeasure.class);
 			measure.configure(conf);
 			seedVectors = CreateSeedVector.loadSeedVectors(conf);
+			smatDiagScale = conf.getLong("diagScale", -1);
+			knn = NearestNeighbours.get(conf);
+
+			metric = DenseDistance.get(conf);
+			if (metric != null) {
+				int N = seedVectors.size();
+				dimensions = seedVectors.get(0).size();
+				seeds = new double[N * dimensions];
+				for (NamedVector seedVector : seedVectors) {
+					int seedVectorPos = Integer.valueOf(
+							seedVector.getName().substring(1));
+					DenseDistance.copy(seedVector, seeds, seedVectorPos, 
+							dimensions);
+				}
+				seedNorms = DenseDistance.norms(seeds, N, dimensions);
+				batch = new double[BATCH * dimensions];
+				distances = new double[BATCH * N];
+				batchIndex = new int[BATCH];
+				batchNames = new String[BATCH];
+				pool = DenseDistance.newPool(conf);
+			}
+
+			sparseMetric = SparseDistance.get(conf);
+			if (sparseMetric != null) {
+				SparseDistance.Row[] rows = 
+						new SparseDistance.Row[seedVectors.size()];
+				for (NamedVector seedVector : seedVectors) {
+					int seedVectorPos = Integer.valueOf(
+							seedVector.getName().substring(1));
+					rows[seedVectorPos] = SparseDistance.Row.of(seedVector);
+				}
+				sparseIndex = new SparseDistance.Index(rows);
+				sparseDistances = new double[rows.length];
+			}
 		} catch( Exception e ) { 
 			System.err.println("[ERROR]: Unable to proceed with setup.");
 			System.err.println( e );
 			System.exit( 1 );
 		}
 	}
+
+
+	@Override
+	protected void cleanup(Context context) throws IOException,
+	InterruptedException {
+		if (metric != null) {
+			flush(context);
+			pool.shutdown();
+		}
+	}
 }
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import root.hap.util.Precision;
+import root.hap.util.SparseEdges;
+
+
+/**
+ * <p>
+ * Reducer class for assembling the rows of the similarity matrix.
+ * </p>
+ * 
+ * <p>
+ * Each row is assembled from the partial rows computed by the tiles of
+ * {@link SimilarityTileMapper}, and written out together with the initial
+ * R, A, C, T and P records of every level, exactly as 
+ * {@link SimilarityMatrixMapper} does. Similarities a partial row does not
+ * store are zero.
+ * </p>
+ * 
+ * <p>
+ * For k-nearest-neighbour matrices (see {@link NearestNeighbours}) the 
+ * reducer serves twice: with <code>-knn</code> set it writes only the 
+ * kept neighbours of each assembled row, and when the kept edges are 
+ * mirrored it merges them into sparse rows instead, where similarities a 
+ * partial row does not store are missing.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [IntWritable]:</code> row number<br />
+ * <code>Input value [Iterable&lt;VectorWritable&gt;]:</code> partial rows
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [Text]:</code> tab separated list: {Row Number,
+ * LevelNumber, ID}<br />
+ * <code>Output value [VectorWritable]:</code> vector of appropriate data
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see BlockedSimilarityMatrixJob
+ * @see SimilarityTileMapper
+ * 
+ */
+public final class SimilarityRowReducer extends
+Reducer<IntWritable, VectorWritable, Text, VectorWritable> {
+
+	private int N;
+	private int levels;
+	private double smatDiagScale;
+	private Precision precision;
+	private int knn;
+	private boolean sparse;
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		N = context.getConfiguration().getInt("matrixN", -1);
+		levels = context.getConfiguration().getInt("numLevels", -1);
+		smatDiagScale = context.getConfiguration().getLong("diagScale", -1);
+		precision = Precision.get(context.getConfiguration());
+		knn = NearestNeighbours.get(context.getConfiguration());
+		sparse = SparseEdges.isEnabled(context.getConfiguration());
+	}
+
+
+	@Override
+	protected void reduce(IntWritable keyIn, Iterable<VectorWritable> valIn,
+			Context context) throws IOException, InterruptedException {
+
+		int row = keyIn.get();
+
+		if (sparse) {
+			reduceEdges(row, valIn, context);
+			return;
+		}
+
+		DenseVector outSVec = new DenseVector(N);
+		outSVec.assign(0.0);
+
+		for (VectorWritable partial : valIn) {
+			Iterator<Vector.Element> elements = partial.get().iterateNonZero();
+			while (elements.hasNext()) {
+				Vector.Element element = elements.next();
+				outSVec.setQuick(element.index(), 
+						precision.round(element.get()));
+			}
+		}
+
+		if (knn > 0) {
+			NearestNeighbours.writeRow(context, row + "", outSVec, knn);
+			return;
+		}
+
+		double diagValue = SimilarityMatrixMapper.generateSMatDiagValue(
+				smatDiagScale);
+		outSVec.setQuick(row, precision.round(diagValue));
+
+		SimilarityMatrixMapper.writeRecords(context, row + "", outSVec, 
+				levels, precision);
+	}
+
+
+	/*
+	 * Merge the mirrored edges of a row into a sparse row of S.
+	 */
+	private void reduceEdges(int row, Iterable<VectorWritable> valIn, 
+			Context context) throws IOException, InterruptedException {
+
+		Vector merged = new RandomAccessSparseVector(N);
+
+		for (VectorWritable partial : valIn) {
+			Iterator<Vector.Element> elements = partial.get().iterateNonZero();
+			while (elements.hasNext()) {
+				Vector.Element element = elements.next();
+				merged.setQuick(element.index(), 
+						SparseEdges.encode(precision.round(element.get())));
+			}
+		}
+
+		double diagValue = SimilarityMatrixMapper.generateSMatDiagValue(
+				smatDiagScale);
+		merged.setQuick(row, SparseEdges.encode(precision.round(diagValue)));
+
+		SimilarityMatrixMapper.writeRecords(context, row + "", 
+				new SequentialAccessSparseVector(merged), levels, precision);
+	}
+
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.mahout.common.ClassUtils;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.math.Vector;
+
+
+/**
+ * <p>
+ * Computes a tile of similarities between two lists of vectors with the 
+ * distance configured for the job.
+ * </p>
+ * 
+ * <p>
+ * With a {@link DenseDistance} metric the whole tile is computed by the 
+ * dense kernel; a diagonal tile is then computed in full, as a single 
+ * matrix product is cheaper than skipping its lower half. With a 
+ * {@link SparseDistance} metric the rows of the tile are compared with an
+ * inverted index over the terms of the columns. Otherwise every pair is 
+ * given to the configured {@link DistanceMeasure}, once on a diagonal 
+ * tile.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see SimilarityTileMapper
+ * @see BucketSimilarityReducer
+ * 
+ */
+final class SimilarityTile {
+
+	private final DistanceMeasure measure;
+	private final DenseDistance.Metric metric;
+	private final SparseDistance.Metric sparseMetric;
+	private final ForkJoinPool pool;
+
+
+	SimilarityTile(Configuration conf) {
+		measure = ClassUtils.instantiateAs(
+				conf.get(CreateSimilarityMatrixJob.DISTANCE_MEASURE_KEY),
+				DistanceMeasure.class);
+		measure.configure(conf);
+		metric = DenseDistance.get(conf);
+		sparseMetric = SparseDistance.get(conf);
+		pool = metric != null ? DenseDistance.newPool(conf) : null;
+	}
+
+
+	/**
+	 * Compute the similarity, the negative distance, of every row to every
+	 * column.
+	 * 
+	 * @param rows row vectors
+	 * @param cols column vectors
+	 * @param diagonal whether rows and cols are the same list
+	 * @param context task to report progress to
+	 * @return row-major similarities; the diagonal of a diagonal tile is 
+	 * left unspecified
+	 */
+	double[] compute(List<? extends Vector> rows, List<? extends Vector> cols,
+			boolean diagonal, TaskAttemptContext context) {
+
+		int width = cols.size();
+		double[] tile = new double[rows.size() * width];
+
+		if (metric != null && !rows.isEmpty() && !cols.isEmpty()) {
+			int d = rows.get(0).size();
+			double[] x = DenseDistance.flatten(rows, d);
+			double[] y = diagonal ? x : DenseDistance.flatten(cols, d);
+			DenseDistance.distances(metric, 
+					x, DenseDistance.norms(x, rows.size(), d), rows.size(),
+					y, DenseDistance.norms(y, width, d), width, d, tile, pool);
+			for (int k = 0; k < tile.length; k++) {
+				tile[k] = -1 * tile[k];
+			}
+		} else if (sparseMetric != null) {
+			SparseDistance.Row[] indexed = new SparseDistance.Row[width];
+			for (int j = 0; j < width; j++) {
+				indexed[j] = SparseDistance.Row.of(cols.get(j));
+			}
+			SparseDistance.Index index = new SparseDistance.Index(indexed);
+			for (int i = 0; i < rows.size(); i++) {
+				index.distances(sparseMetric, 
+						SparseDistance.Row.of(rows.get(i)), tile, i * width);
+				context.progress();
+			}
+			for (int k = 0; k < tile.length; k++) {
+				tile[k] = -1 * tile[k];
+			}
+		} else {
+			for (int i = 0; i < rows.size(); i++) {
+				for (int j = diagonal ? i + 1 : 0; j < width; j++) {
+					tile[i * width + j] = 
+							-1 * measure.distance(rows.get(i), cols.get(j));
+					if (diagonal) {
+						tile[j * width + i] = tile[i * width + j];
+					}
+				}
+				context.progress();
+			}
+		}
+
+		return tile;
+	}
+
+
+	/**
+	 * Release the threads of the dense kernel, if any.
+	 */
+	void close() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+}
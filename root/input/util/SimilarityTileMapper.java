@@ -0,0 +1,201 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Mapper class for computing one tile of the similarity matrix.
+ * </p>
+ * 
+ * <p>
+ * Each task is given a pair of blocks (p, q) with p &lt;= q, loads the 
+ * vectors of both blocks, and computes every similarity between them once.
+ * On a diagonal tile (p = q) only the pairs above the diagonal are 
+ * computed. Each value is then written into both of its rows: row i 
+ * receives its similarities to the vectors of the other block, and so does
+ * every row j of that block.
+ * </p>
+ * 
+ * <p>
+ * The tile itself is computed by {@link SimilarityTile}, with the dense or
+ * sparse kernels where configured.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [IntWritable]:</code> first block p<br />
+ * <code>Input value [IntWritable]:</code> second block q
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [IntWritable]:</code> row number<br />
+ * <code>Output value [VectorWritable]:</code> sparse partial row, 
+ * {Column Number : Similarity, ...}
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see BlockedSimilarityMatrixJob
+ * @see SimilarityRowReducer
+ * 
+ */
+public final class SimilarityTileMapper extends
+Mapper<IntWritable, IntWritable, IntWritable, VectorWritable> {
+
+	private SimilarityTile similarities;
+
+	private final IntWritable keyOut = new IntWritable();
+	private final VectorWritable valOut = new VectorWritable();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		similarities = new SimilarityTile(context.getConfiguration());
+	}
+
+
+	@Override
+	protected void cleanup(Context context) 
+			throws IOException, InterruptedException {
+		similarities.close();
+	}
+
+
+	@Override
+	protected void map(IntWritable p, IntWritable q, Context context) 
+			throws IOException, InterruptedException {
+
+		Configuration conf = context.getConfiguration();
+		List<NamedVector> rows;
+		List<NamedVector> cols;
+		try { 
+			rows = loadBlock(conf, p.get());
+			cols = p.get() == q.get() ? rows : loadBlock(conf, q.get());
+		} catch( URISyntaxException e ) { 
+			throw new IOException( e );
+		}
+
+		boolean diagonal = p.get() == q.get();
+		int[] rowIndex = indices(rows);
+		int[] colIndex = indices(cols);
+
+		int width = cols.size();
+		double[] tile = similarities.compute(rows, cols, diagonal, context);
+
+		// Rows of the tile, to the rows of block p.
+		for (int i = 0; i < rows.size(); i++) {
+			Vector partial = new SequentialAccessSparseVector(
+					Integer.MAX_VALUE, cols.size());
+			for (int j = 0; j < cols.size(); j++) {
+				partial.setQuick(colIndex[j], tile[i * width + j]);
+			}
+			keyOut.set(rowIndex[i]);
+			valOut.set(partial);
+			context.write(keyOut, valOut);
+		}
+
+		// Columns of the tile, mirrored to the rows of block q.
+		if (!diagonal) {
+			for (int j = 0; j < cols.size(); j++) {
+				Vector partial = new SequentialAccessSparseVector(
+						Integer.MAX_VALUE, rows.size());
+				for (int i = 0; i < rows.size(); i++) {
+					partial.setQuick(rowIndex[i], tile[i * width + j]);
+				}
+				keyOut.set(colIndex[j]);
+				valOut.set(partial);
+				context.write(keyOut, valOut);
+			}
+		}
+	}
+
+
+	private static int[] indices(List<NamedVector> vectors) {
+		int[] indices = new int[vectors.size()];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = Integer.valueOf(vectors.get(i).getName());
+		}
+		return indices;
+	}
+
+
+	/*
+	 * Load the vectors of one block, in index order.
+	 */
+	private static List<NamedVector> loadBlock(Configuration conf, int block)
+			throws IOException, URISyntaxException {
+
+		Path blockPath = new Path(conf.get(BlockedSimilarityMatrixJob.BLOCKS_PATH_KEY),
+				BlockedSimilarityMatrixJob.blockFile(block));
+
+		URI uri = new URI( conf.get("fs.default.name") );
+		FileSystem fs = FileSystem.get(uri, conf);
+
+		List<NamedVector> vectors = new ArrayList<NamedVector>();
+
+		// With fewer vectors than blocks, some blocks are empty.
+		if (!fs.exists(blockPath)) {
+			return vectors;
+		}
+
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, blockPath,
+				conf);
+
+		IntWritable key = new IntWritable();
+		VectorWritable value = new VectorWritable();
+
+		try {
+			while (reader.next(key, value)) {
+				vectors.add((NamedVector) value.get());
+			}
+		} finally {
+			reader.close();
+		}
+
+		Collections.sort(vectors, new Comparator<NamedVector>() {
+			public int compare(NamedVector a, NamedVector b) {
+				return Integer.valueOf(a.getName()).compareTo(
+						Integer.valueOf(b.getName()));
+			}
+		});
+
+		return vectors;
+	}
+
+}
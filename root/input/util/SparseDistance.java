@@ -0,0 +1,367 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.mahout.common.distance.CosineDistanceMeasure;
+import org.apache.mahout.common.distance.DistanceMeasure;
+import org.apache.mahout.common.distance.TanimotoDistanceMeasure;
+import org.apache.mahout.math.Vector;
+
+
+/**
+ * <p>
+ * Distance kernel for sparse term vectors, such as the TF and TF-IDF 
+ * vectors of the Reuters and LYRL pipelines.
+ * </p>
+ * 
+ * <p>
+ * Each vector is converted once into a {@link Row}: its non-zero term 
+ * indices in ascending order, their values and its squared norm. The rows
+ * one vector is compared with are gathered into an {@link Index}, an 
+ * inverted index from term to the rows containing it. A vector's dot 
+ * products with every indexed row are then accumulated by walking only the
+ * postings of its own terms, so pairs with no shared term cost nothing; 
+ * their dot product is zero. Distances follow from the dot products and 
+ * the cached norms:
+ * </p>
+ * 
+ * <ul>
+ * <li>cosine: <code>1 - x.y / (|x| |y|)</code>,</li>
+ * <li>Tanimoto: <code>1 - x.y / (|x|^2 + |y|^2 - x.y)</code>,</li>
+ * </ul>
+ * 
+ * <p>
+ * with the zero vector handling of {@link CosineDistanceMeasure} and 
+ * {@link TanimotoDistanceMeasure}. The kernel is selected with 
+ * <code>-dm sparse:cosine</code> or <code>-dm sparse:tanimoto</code>; the
+ * matching Mahout measure is configured as well, for any per-pair use.
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see CreateSimilarityMatrixJob
+ * @see DenseDistance
+ * 
+ */
+public final class SparseDistance {
+
+	public static final String PREFIX = "sparse:";
+	public static final String METRIC_KEY = "similarity.sparse.metric";
+
+
+	/**
+	 * Distances the kernel computes, with their equivalent Mahout measures.
+	 */
+	public enum Metric { 
+		COSINE( "cosine", CosineDistanceMeasure.class ),
+		TANIMOTO( "tanimoto", TanimotoDistanceMeasure.class );
+
+		private final String name;
+		private final Class<? extends DistanceMeasure> measure;
+
+		private Metric( String name, Class<? extends DistanceMeasure> measure ) { 
+			this.name = name;
+			this.measure = measure;
+		}
+
+		/**
+		 * @return the class name of the equivalent Mahout measure
+		 */
+		public String getMeasureClassName() { 
+			return measure.getName();
+		}
+	}
+
+
+	private SparseDistance() { 
+		;
+	}
+
+
+	/**
+	 * @param distanceMeasure value of the <code>-dm</code> option
+	 * @return the metric it selects, or null if it names another measure
+	 * @throws IllegalArgumentException if it names an unknown sparse metric
+	 */
+	public static Metric forName( String distanceMeasure ) { 
+		if( !distanceMeasure.startsWith( PREFIX ) ) { 
+			return null;
+		}
+		String name = distanceMeasure.substring( PREFIX.length() );
+		for( Metric metric : Metric.values() ) { 
+			if( metric.name.equalsIgnoreCase( name ) ) { 
+				return metric;
+			}
+		}
+		throw new IllegalArgumentException( 
+				"Unknown sparse distance measure: " + distanceMeasure );
+	}
+
+
+	/**
+	 * @return the sparse metric configured for a job, or null if the job 
+	 * uses another measure
+	 */
+	public static Metric get( Configuration conf ) { 
+		String metric = conf.get( METRIC_KEY );
+		return metric == null ? null : Metric.valueOf( metric );
+	}
+
+
+	/**
+	 * Configure a job for a sparse metric.
+	 */
+	public static void configure( Configuration conf, Metric metric ) { 
+		conf.set( METRIC_KEY, metric.name() );
+		conf.set( CreateSimilarityMatrixJob.DISTANCE_MEASURE_KEY, 
+				metric.getMeasureClassName() );
+	}
+
+
+	/**
+	 * Distance from a dot product and the squared norms.
+	 */
+	public static double distance( Metric metric, double dot, 
+			double xNorm, double yNorm ) { 
+		double denominator;
+		switch( metric ) { 
+		case COSINE:
+			denominator = Math.sqrt( xNorm ) * Math.sqrt( yNorm );
+			// Same corrections as CosineDistanceMeasure.
+			if( denominator < dot ) { 
+				denominator = dot;
+			}
+			// A zero vector is at distance 1 of every vector.
+			if( denominator == 0 && dot == 0 ) { 
+				return 1.0;
+			}
+			return 1.0 - dot / denominator;
+		default:
+			denominator = xNorm + yNorm - dot;
+			// Same corrections as TanimotoDistanceMeasure.
+			if( denominator < dot ) { 
+				denominator = dot;
+			}
+			return denominator > 0 ? 1.0 - dot / denominator : 0;
+		}
+	}
+
+
+	/**
+	 * A vector in sorted index/value form, with its squared norm.
+	 */
+	public static final class Row { 
+
+		final int[] indices;
+		final double[] values;
+		final double norm;
+
+		private Row( int[] indices, double[] values ) { 
+			this.indices = indices;
+			this.values = values;
+			double sum = 0;
+			for( double value : values ) { 
+				sum += value * value;
+			}
+			this.norm = sum;
+		}
+
+		/**
+		 * Convert a vector, dense or sparse, keeping its non-zero elements.
+		 */
+		public static Row of( Vector vector ) { 
+			int size = vector.getNumNondefaultElements();
+			long[] packed = new long[size];
+			double[] byPosition = new double[size];
+			int n = 0;
+			Iterator<Vector.Element> elements = vector.iterateNonZero();
+			while( elements.hasNext() ) { 
+				Vector.Element element = elements.next();
+				if( element.get() == 0 ) { 
+					continue;
+				}
+				if( n == packed.length ) { 
+					packed = Arrays.copyOf( packed, 2 * n + 1 );
+					byPosition = Arrays.copyOf( byPosition, 2 * n + 1 );
+				}
+				// Index in the high word, arrival position in the low word,
+				// so one sort orders the terms.
+				packed[n] = (long) element.index() << 32 | n;
+				byPosition[n] = element.get();
+				n++;
+			}
+			Arrays.sort( packed, 0, n );
+
+			int[] indices = new int[n];
+			double[] values = new double[n];
+			for( int k = 0; k < n; k++ ) { 
+				indices[k] = (int) ( packed[k] >>> 32 );
+				values[k] = byPosition[(int) packed[k]];
+			}
+			return new Row( indices, values );
+		}
+
+		/**
+		 * @return the number of non-zero elements
+		 */
+		public int size() { 
+			return indices.length;
+		}
+
+		/**
+		 * @return the squared L2 norm
+		 */
+		public double getNorm() { 
+			return norm;
+		}
+	}
+
+
+	/**
+	 * <p>
+	 * Inverted index over a fixed set of rows, stored as compressed 
+	 * columns: the postings of term t are the row numbers and values in 
+	 * <code>[offsets[t], offsets[t + 1])</code>.
+	 * </p>
+	 * 
+	 * <p>
+	 * An index is not thread safe; it keeps the dot product accumulator 
+	 * between calls.
+	 * </p>
+	 */
+	public static final class Index { 
+
+		private final double[] norms;
+		private final int[] offsets;
+		private final int[] postingRows;
+		private final double[] postingValues;
+
+		private final double[] dots;
+		private final boolean[] seen;
+		private final int[] touched;
+
+		/**
+		 * @param rows rows to index; the i-th row is row number i
+		 */
+		public Index( Row[] rows ) { 
+			int terms = 0;
+			int postings = 0;
+			norms = new double[rows.length];
+			for( int i = 0; i < rows.length; i++ ) { 
+				Row row = rows[i];
+				norms[i] = row.norm;
+				postings += row.size();
+				if( row.size() > 0 ) { 
+					terms = Math.max( terms, row.indices[row.size() - 1] + 1 );
+				}
+			}
+
+			offsets = new int[terms + 1];
+			for( Row row : rows ) { 
+				for( int term : row.indices ) { 
+					offsets[term + 1]++;
+				}
+			}
+			for( int t = 0; t < terms; t++ ) { 
+				offsets[t + 1] += offsets[t];
+			}
+
+			postingRows = new int[postings];
+			postingValues = new double[postings];
+			int[] next = Arrays.copyOf( offsets, terms );
+			for( int i = 0; i < rows.length; i++ ) { 
+				Row row = rows[i];
+				for( int k = 0; k < row.size(); k++ ) { 
+					int slot = next[row.indices[k]]++;
+					postingRows[slot] = i;
+					postingValues[slot] = row.values[k];
+				}
+			}
+
+			dots = new double[rows.length];
+			seen = new boolean[rows.length];
+			touched = new int[rows.length];
+		}
+
+		/**
+		 * @return the number of indexed rows
+		 */
+		public int size() { 
+			return norms.length;
+		}
+
+		/**
+		 * Compute the distance of a row to every indexed row. Only indexed 
+		 * rows sharing a term with x are visited; the others get the 
+		 * distance of a zero dot product.
+		 * 
+		 * @param metric distance to compute
+		 * @param x row to compare
+		 * @param out distances, one per indexed row
+		 * @param offset position of the first distance in out
+		 * @return the number of indexed rows sharing a term with x
+		 */
+		public int distances( Metric metric, Row x, double[] out, 
+				int offset ) { 
+			int shared = accumulate( x );
+
+			for( int j = 0; j < norms.length; j++ ) { 
+				out[offset + j] = distance( metric, 0, x.norm, norms[j] );
+			}
+			for( int s = 0; s < shared; s++ ) { 
+				int j = touched[s];
+				out[offset + j] = distance( metric, dots[j], x.norm, 
+						norms[j] );
+				dots[j] = 0;
+				seen[j] = false;
+			}
+			return shared;
+		}
+
+		/*
+		 * Add x's dot product with every row sharing one of its terms into
+		 * dots, and list those rows in touched.
+		 */
+		private int accumulate( Row x ) { 
+			int shared = 0;
+			int terms = offsets.length - 1;
+			for( int k = 0; k < x.size(); k++ ) { 
+				int term = x.indices[k];
+				if( term >= terms ) { 
+					break;
+				}
+				double value = x.values[k];
+				for( int p = offsets[term]; p < offsets[term + 1]; p++ ) { 
+					int j = postingRows[p];
+					if( !seen[j] ) { 
+						seen[j] = true;
+						touched[shared++] = j;
+					}
+					dots[j] += value * postingValues[p];
+				}
+			}
+			return shared;
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.math.NamedVector;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Mapper class for partitioning the input vectors into blocks.
+ * </p>
+ * 
+ * <p>
+ * Vector i belongs to block <code>i mod B</code>, so blocks are balanced 
+ * without knowing N in advance. Every vector is counted, and N is read from
+ * the job counters once the partitioning is done.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [Text]:</code> vector name, a prefix character followed 
+ * by the index<br />
+ * <code>Input value [VectorWritable]:</code> the corresponding vector
+ * </p>
+ * 
+ * <p>
+ * <code>Output key [IntWritable]:</code> block number<br />
+ * <code>Output value [VectorWritable]:</code> the vector, named by its 
+ * index
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see BlockedSimilarityMatrixJob
+ * 
+ */
+public final class VectorBlockMapper extends
+Mapper<WritableComparable<?>, VectorWritable, IntWritable, VectorWritable> {
+
+	private int numBlocks;
+
+	private final IntWritable keyOut = new IntWritable();
+	private final VectorWritable valOut = new VectorWritable();
+
+
+	@Override
+	protected void setup(Context context) 
+			throws IOException, InterruptedException {
+		numBlocks = context.getConfiguration().getInt(
+				BlockedSimilarityMatrixJob.NUM_BLOCKS_KEY, -1);
+	}
+
+
+	@Override
+	protected void map(WritableComparable<?> key, VectorWritable value,
+			Context context) throws IOException, InterruptedException {
+
+		String keyName = key.toString().substring(1);
+		int index = Integer.valueOf(keyName);
+
+		keyOut.set(index % numBlocks);
+		valOut.set(new NamedVector(value.get(), keyName));
+		context.write(keyOut, valOut);
+
+		context.getCounter(BlockedSimilarityMatrixJob.COUNTER_GROUP, 
+				BlockedSimilarityMatrixJob.VECTORS_COUNTER).increment(1);
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2013 AMALTHEA REU; Dillon Rose; Michel Rouly
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package root.input.util;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.mahout.math.VectorWritable;
+
+
+/**
+ * <p>
+ * Reducer class for writing the vector blocks.
+ * </p>
+ * 
+ * <p>
+ * Every block is written to its own file, named after the block rather 
+ * than the task, so the blocks may be read back by number however many 
+ * reduce tasks the framework actually runs (the local runner runs only 
+ * one). Nothing is written to the default output.
+ * </p>
+ * 
+ * <p>
+ * <code>Input key [IntWritable]:</code> block number<br />
+ * <code>Input value [VectorWritable]:</code> the vectors of the block
+ * </p>
+ * 
+ * @author Dillon Rose
+ * @author Michel Rouly
+ * 
+ * @since 2013.06.25
+ * 
+ * @see BlockedSimilarityMatrixJob
+ * @see VectorBlockMapper
+ * 
+ */
+public final class VectorBlockReducer extends
+Reducer<IntWritable, VectorWritable, IntWritable, VectorWritable> {
+
+	@Override
+	protected void reduce(IntWritable block, Iterable<VectorWritable> vectors,
+			Context context) throws IOException, InterruptedException {
+
+		Configuration conf = context.getConfiguration();
+		Path path = new Path(FileOutputFormat.getWorkOutputPath(context), 
+				BlockedSimilarityMatrixJob.blockFile(block.get()));
+
+		SequenceFile.Writer writer = new SequenceFile.Writer(
+				path.getFileSystem(conf), conf, path, 
+				IntWritable.class, VectorWritable.class);
+		try {
+			for (VectorWritable vector : vectors) {
+				writer.append(block, vector);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+}